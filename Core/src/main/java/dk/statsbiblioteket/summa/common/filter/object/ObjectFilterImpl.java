@@ -152,6 +152,15 @@ public abstract class ObjectFilterImpl extends ObjectFilterBase {
         return processedPayload != null;
     }
 
+    /**
+     * @param payload a Payload from the source.
+     * @return true if the Payload will be passed to {@link #processPayload}, false if it will be handled according to
+     *         {@link #CONF_UNMATCHED}.
+     */
+    protected boolean matchesPayload(Payload payload) {
+        return !payloadMatcher.isMatcherActive() || payloadMatcher.isMatch(payload);
+    }
+
     private Payload sourceNext() {
         timingPull.start();
         try {
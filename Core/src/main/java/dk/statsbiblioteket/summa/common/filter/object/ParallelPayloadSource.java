@@ -0,0 +1,208 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.filter.object;
+
+import dk.statsbiblioteket.summa.common.filter.Filter;
+import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pulls Payloads from a source ahead of delivery and processes them in parallel using an executor. The Payloads are
+ * delivered in the same order as they were received from the source.
+ * </p><p>
+ * Intended for use inside an {@link ObjectFilterImpl}, which sets this as its source and calls
+ * {@link #getResult(Payload)} from {@link ObjectFilterImpl#processPayload(Payload)} to get the result of the
+ * processing that has already been performed in the background.
+ * </p><p>
+ * This class is not thread safe: It must only be accessed from the filter thread.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ParallelPayloadSource implements ObjectFilter {
+
+    /**
+     * The processing to perform in parallel.
+     */
+    public interface Processor {
+        /**
+         * Called from the filter thread.
+         * @param payload a Payload from the source.
+         * @return true if the Payload should be processed, false if it should be passed on unprocessed.
+         */
+        boolean matches(Payload payload);
+
+        /**
+         * Called from the worker threads. Must be thread safe.
+         * @param payload a Payload from the source.
+         * @return the result of the processing, normally as defined by {@link ObjectFilterImpl#processPayload}.
+         * @throws PayloadException if the Payload could not be processed.
+         */
+        boolean process(Payload payload) throws PayloadException;
+    }
+
+    private final ObjectFilter source;
+    private final ExecutorService executor;
+    private final int readAhead;
+    private final Processor processor;
+
+    private final Deque<Future<Boolean>> results = new ArrayDeque<>();
+    private final Deque<Payload> pending = new ArrayDeque<>();
+    private Payload delivered = null;
+    private Future<Boolean> deliveredResult = null;
+
+    /**
+     * @param source    the real source for the Payloads.
+     * @param executor  the processing is submitted here.
+     * @param readAhead the maximum number of Payloads to pull from the source ahead of delivery.
+     * @param processor performs the processing.
+     */
+    public ParallelPayloadSource(ObjectFilter source, ExecutorService executor, int readAhead, Processor processor) {
+        this.source = source;
+        this.executor = executor;
+        this.readAhead = readAhead;
+        this.processor = processor;
+    }
+
+    /**
+     * Convenience method for creating an executor with named daemon threads.
+     * @param name    the prefix for the thread names.
+     * @param threads the number of threads in the pool.
+     * @return a fixed size thread pool.
+     */
+    public static ExecutorService createExecutor(final String name, int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "_" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private void fill() {
+        while (pending.size() < readAhead && source.hasNext()) {
+            final Payload payload = source.next();
+            if (payload == null) {
+                continue;
+            }
+            pending.addLast(payload);
+            results.addLast(processor.matches(payload) ? executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return processor.process(payload);
+                }
+            }) : null); // Not matching: ObjectFilterImpl handles it without calling processPayload
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public Payload next() {
+        if (!hasNext()) {
+            throw new IllegalStateException("No more Payloads available");
+        }
+        delivered = pending.removeFirst();
+        deliveredResult = results.removeFirst();
+        fill(); // Keep the workers busy while the result is being waited for
+        return delivered;
+    }
+
+    /**
+     * Waits for the processing of the given Payload to finish.
+     * @param payload the Payload most recently delivered by {@link #next()}.
+     * @return the result of {@link Processor#process(Payload)}.
+     * @throws PayloadException if the processing failed.
+     */
+    public boolean getResult(Payload payload) throws PayloadException {
+        if (payload != delivered || deliveredResult == null) {
+            throw new IllegalStateException("Requested result for " + payload + " which was not pre-processed");
+        }
+        Future<Boolean> result = deliveredResult;
+        delivered = null;
+        deliveredResult = null;
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            throw new PayloadException("Interrupted while waiting for processing", e, payload);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PayloadException) {
+                throw (PayloadException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PayloadException("Exception during processing", cause, payload);
+        }
+    }
+
+    @Override
+    public boolean pump() throws IOException {
+        throw new UnsupportedOperationException("pump is not supported by the internal parallel source");
+    }
+
+    @Override
+    public void close(boolean success) {
+        for (Future<Boolean> result: results) {
+            if (result != null) {
+                result.cancel(true);
+            }
+        }
+        results.clear();
+        for (Payload payload: pending) {
+            payload.close();
+        }
+        pending.clear();
+        source.close(success);
+    }
+
+    @Override
+    public void setSource(Filter filter) {
+        throw new UnsupportedOperationException("The source cannot be changed for the internal parallel source");
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Remove not supported");
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelPayloadSource(pending=" + pending.size() + ", readAhead=" + readAhead
+               + ", source=" + source + ")";
+    }
+}
@@ -84,6 +84,37 @@ public class IndexField<A, T, F> {
         }
     }
 
+    /**
+     * Doc values store a column-oriented per-document value at index time, so that sorting and faceting does not
+     * need to un-invert the field from the term dictionary when the index is opened.
+     * </p><p>
+     * none: No doc values (default).<br />
+     * sorted: A single binary value per document. Used for sorting. If the field has a {@link #sortLocale}, the
+     *         collator key for the value is stored, so that sorting needs no search-time collation.<br />
+     * sortedset: Multiple binary values per document. Used for faceting in index or count order.<br />
+     * numeric: A single long per document. Used for sorting.
+     */
+    public enum DOC_VALUES {
+        none, sorted, sortedset, numeric;
+
+        public static DOC_VALUES defaultDocValues() {
+            return none;
+        }
+
+        public static DOC_VALUES parse(String docValues) {
+            if (docValues == null) {
+                return none;
+            }
+            for (DOC_VALUES value: values()) {
+                if (value.toString().equalsIgnoreCase(docValues)) {
+                    return value;
+                }
+            }
+            log.warn("Unknown doc values type '" + docValues + "'. Using " + none);
+            return none;
+        }
+    }
+
     /**
      * The name of the field is used verbatim as the field in generated indexes.
      * </p><p>
@@ -184,6 +215,13 @@ public class IndexField<A, T, F> {
 
     private SORT_CACHE sortCache = SORT_CACHE.defaultCache();
 
+    /**
+     * Which kind of doc values, if any, to store for the field.
+     * </p><p>
+     * This is used at index- and search-time.
+     */
+    private DOC_VALUES docValues = DOC_VALUES.defaultDocValues();
+
     /**
      * The content of this field should be duplicated in the freetext-field
      * upon indexing.
@@ -328,6 +366,7 @@ public class IndexField<A, T, F> {
         indexBoost = parent.getIndexBoost();
         sortLocale = parent.getSortLocale();
         sortCache = parent.sortCache;
+        docValues = parent.getDocValues();
         inFreetext = parent.isInFreetext();
         required = parent.isRequired();
         aliases = new ArrayList<>(parent.getAliases());
@@ -352,9 +391,9 @@ public class IndexField<A, T, F> {
         sw.append(String.format(
                 "<field name=\"%s\" parent=\"%s\" indexed=\"%s\" tokenized=\"%s\" stored=\"%s\" compressed=\"%s\" "
                         + "multiValued=\"%s\" queryBoost=\"%s\" indexBoost=\"%s\" sortLocale=\"%s\" sortCache=\"%s\" " +
-                        "inFreeText=\"%s\" required=\"%s\" tokenized=\"%s\">\n",
+                        "docValues=\"%s\" inFreeText=\"%s\" required=\"%s\" tokenized=\"%s\">\n",
                 name, parent == null ? "" : parent.getName(), doIndex, analyze, doStore, doCompress,
-                multiValued, queryBoost, indexBoost, sortLocale, sortCache, inFreetext, required, analyze));
+                multiValued, queryBoost, indexBoost, sortLocale, sortCache, docValues, inFreetext, required, analyze));
         for (IndexAlias alias : aliases) {
             sw.append(alias.toXMLFragment());
         }
@@ -471,6 +510,7 @@ public class IndexField<A, T, F> {
         //        xPath, node, "@sortCache", sortCache.toString()));
 //        sortCache = SORT_CACHE.parse(DOM.selectString(node, "@sortCache", sortCache.toString()));
         sortCache = SORT_CACHE.parse(getString(node, "sortCache", sortCache.toString()));
+        docValues = DOC_VALUES.parse(getString(node, "docValues", docValues.toString()));
         //inFreetext =  ParseUtil.getValue(xPath, node, "@inFreeText",
         //                                 inFreetext);
 //        inFreetext = DOM.selectBoolean(node, "@inFreeText", inFreetext);
@@ -734,6 +774,7 @@ public class IndexField<A, T, F> {
                 && equals(indexBoost, other.getIndexBoost(), 0.001f)
                 && nullCompare(sortLocale, other.getSortLocale())
                 && sortCache == other.getSortCache()
+                && docValues == other.getDocValues()
                 && inFreetext == other.isInFreetext()
                 && required == other.isRequired()
                 && nullCompare(indexTokenizer, other.getIndexTokenizer())
@@ -812,6 +853,10 @@ public class IndexField<A, T, F> {
         return sortCache;
     }
 
+    public DOC_VALUES getDocValues() {
+        return docValues;
+    }
+
     public boolean isInFreetext() {
         return inFreetext;
     }
@@ -890,6 +935,10 @@ public class IndexField<A, T, F> {
         this.sortCache = sortCache;
     }
 
+    public void setDocValues(DOC_VALUES docValues) {
+        this.docValues = docValues;
+    }
+
     public void setInFreetext(boolean inFreetext) {
         this.inFreetext = inFreetext;
     }
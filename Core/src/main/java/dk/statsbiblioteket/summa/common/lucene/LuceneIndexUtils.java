@@ -45,6 +45,12 @@ public class LuceneIndexUtils {
     @SuppressWarnings({"DuplicateStringLiteralInspection"})
     public static final String LUCENE_FOLDER = "lucene";
 
+    /**
+     * The subfolder in the index root containing the shards for a sharded index. Each shard is a sub folder with
+     * a {@link #LUCENE_FOLDER}. See {@link dk.statsbiblioteket.summa.index.lucene.ShardedLuceneManipulator}.
+     */
+    public static final String SHARDS_FOLDER = "shards";
+
     /**
      * Used to communicate changes to Lucene-indexes caused by this Record.
      * Updates will have both {@link #META_DELETE_DOCID} and META_ADD_DOCID.
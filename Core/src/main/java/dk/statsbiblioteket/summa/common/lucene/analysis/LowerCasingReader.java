@@ -25,6 +25,10 @@ import java.io.StringReader;
  *
  */
 public class LowerCasingReader extends ReplaceReader {
+    private static final int BUFFER_SIZE = 1024;
+
+    // Reused between calls to read(CircularCharBuffer, int) to avoid per char reads from the source
+    private char[] buffer = null;
 
     /**
      * Creates a new filtered reader.
@@ -51,29 +55,26 @@ public class LowerCasingReader extends ReplaceReader {
     @Override
     public int read(char[] buf, int offset, int count) throws IOException {
         int numRead = in.read(buf, offset, count);
-
-        for (int i = offset+numRead; i >= offset; i--) {
+        // Lower case in place, so no extra buffers are allocated
+        for (int i = offset; i < offset + numRead; i++) {
             buf[i] = Character.toLowerCase(buf[i]);
         }
-        
         return numRead;
     }
 
     @Override
     public int read(CircularCharBuffer cbuf, int length) throws IOException {
-        int codePoint;
-        int count = 0;
-
-        while ((codePoint = in.read()) != -1) {
-            cbuf.put((char)Character.toLowerCase(codePoint));
-            count++;
+        if (length <= 0) {
+            return 0;
         }
-
-        if (count == 0) {
-            return -1;
+        if (buffer == null) {
+            buffer = new char[BUFFER_SIZE];
         }
-
-        return count;
+        int numRead = in.read(buffer, 0, Math.min(length, buffer.length));
+        for (int i = 0; i < numRead; i++) {
+            cbuf.put(Character.toLowerCase(buffer[i]));
+        }
+        return numRead;
     }
 
     @Override
@@ -19,6 +19,7 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is a simple RuleParser, used for reading mapping rules found in
@@ -38,8 +39,8 @@ import java.util.Map;
         author = "hal")
 public class RuleParser {
 
-    // Cache used to store parsed ruleMaps.
-    private static Map<String, Map<String, String>> ruleCache = new HashMap<>();
+    // Cache used to store parsed ruleMaps. Analyzers are created from multiple threads, so the cache must be concurrent
+    private static final Map<String, Map<String, String>> ruleCache = new ConcurrentHashMap<>();
 
     /**
      * Parses a String containing rules, a rule is a mapping pair of Strings.
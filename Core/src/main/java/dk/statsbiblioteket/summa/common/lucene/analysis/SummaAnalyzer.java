@@ -17,21 +17,29 @@ package dk.statsbiblioteket.summa.common.lucene.analysis;
 import com.ibm.icu.text.Collator;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import dk.statsbiblioteket.util.reader.ReplaceFactory;
+import dk.statsbiblioteket.util.reader.ReplaceReader;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordTokenizer;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.search.exposed.analysis.ConcatICUCollatedTermAttributeImpl;
 import org.apache.lucene.search.exposed.analysis.ConcatICUCollationAttributeFactory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CloseableThreadLocal;
 import org.apache.lucene.util.Version;
 
 import java.io.Reader;
+import java.io.StringReader;
 
 /**
  * The SummaAnalyzer defines a configurable chain for tokenization.
  *
  * If a Collator is provided, the analyzer generated collation keys with the original String embedded.
  * The original String can be extracted by {@link #getOriginalString}.
+ *
+ * The Readers for lower casing, token replacement and transliteration are stateful, so each thread holds its own
+ * chain of Readers which is re-sourced for every field value instead of being created anew. Together with the
+ * component reuse of {@link Analyzer} this means that analyzing a field value does not allocate new Readers or
+ * Tokenizers once the chain has been created for the calling thread.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
@@ -52,6 +60,13 @@ public class SummaAnalyzer extends Analyzer {
     private Collator collator = null;
     private ConcatICUCollationAttributeFactory factory = null;
 
+    private final CloseableThreadLocal<ReaderChain> readerChains = new CloseableThreadLocal<ReaderChain>() {
+        @Override
+        protected ReaderChain initialValue() {
+            return new ReaderChain();
+        }
+    };
+
     @Override
     protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
         //return new TokenStreamComponents(new WhitespaceTokenizer(Version.LUCENE_46, reader));
@@ -104,12 +119,37 @@ public class SummaAnalyzer extends Analyzer {
     }
 
     private Reader wrap(Reader reader) {
-        if (ignoreCase) {
-            reader = new LowerCasingReader(reader);
+        return readerChains.get().wrap(reader);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        readerChains.close();
+    }
+
+    /**
+     * The Readers used by {@link #initReader} for a single thread. Lucene only allows one active TokenStream per
+     * thread for an Analyzer, so the chain can safely be re-sourced every time a new field value is analyzed.
+     */
+    private final class ReaderChain {
+        private final LowerCasingReader lowerCaser;
+        private final ReplaceReader tokenReplacer;
+        private final ReplaceReader transliterator;
+
+        private ReaderChain() {
+            lowerCaser = ignoreCase ? new LowerCasingReader(new StringReader("")) : null;
+            tokenReplacer = tokenReplacerFactory.getReplacer(new StringReader(""));
+            transliterator = transliteratorFactory.getReplacer(new StringReader(""));
+        }
+
+        public Reader wrap(Reader reader) {
+            if (lowerCaser != null) {
+                reader = lowerCaser.setSource(reader);
+            }
+            reader = tokenReplacer.setSource(reader);
+            return transliterator.setSource(reader);
         }
-        reader = tokenReplacerFactory.getReplacer(reader);
-        reader = transliteratorFactory.getReplacer(reader);
-        return reader;
     }
 
     // Delegation to {@link SummaICUCollatedTermAttributeImpl#getOriginalString}.
@@ -0,0 +1,389 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.lucene.distribution;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only, memory mapped representation of the terms and stats from a {@link TermStat}, providing lookup of terms
+ * in O(1) without disk seeks once the pages are cached by the operating system.
+ * </p><p>
+ * The format is a fixed size header, followed by the terms and stats, a block table and a hash table:
+ * <ul>
+ *   <li>Terms are UTF-8 encoded and front coded in blocks of {@link #BLOCK_SIZE}: The first term in a block is stored
+ *       in full, the following terms as the number of bytes shared with the previous term, followed by the rest of the
+ *       bytes. Each term is followed by its stats as zig-zag encoded variable length longs.</li>
+ *   <li>The block table holds the offset for each block.</li>
+ *   <li>The hash table uses open addressing with linear probing. Each slot holds the hash of the term and its index
+ *       (+1, so that 0 marks an empty slot).</li>
+ * </ul>
+ * Note: The full structure must be below 2GB.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class BinaryTermStat {
+    private static Log log = LogFactory.getLog(BinaryTermStat.class);
+
+    public static final int MAGIC = 0x54534231; // TSB1
+    public static final int VERSION = 2;
+    public static final int BLOCK_SIZE = 16;
+    private static final int HEADER_SIZE = 44;
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int termCount;
+    private final int statCount;
+    private final int blockSize;
+    private final int hashMask;
+    private final int blockTableOffset;
+    private final int hashTableOffset;
+    private final int maxTermBytes;
+    private final long docCount;
+
+    private BinaryTermStat(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("The file '" + file + "' is not a binary term stat file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("The file '" + file + "' has version " + buffer.getInt(4) + " where " + VERSION
+                                  + " was expected");
+        }
+        termCount = buffer.getInt(8);
+        statCount = buffer.getInt(12);
+        blockSize = buffer.getInt(16);
+        hashMask = buffer.getInt(20) - 1;
+        blockTableOffset = buffer.getInt(24);
+        hashTableOffset = buffer.getInt(28);
+        maxTermBytes = buffer.getInt(32);
+        docCount = buffer.getLong(36);
+    }
+
+    /**
+     * Memory maps the given binary term stat file.
+     * @param file a file created with {@link #write}.
+     * @return a read-only term stat structure.
+     * @throws IOException if the file could not be mapped or was not valid.
+     */
+    public static BinaryTermStat open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("The file '" + file + "' is " + raf.length() + " bytes. Max is 2GB");
+            }
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            BinaryTermStat stat = new BinaryTermStat(file, buffer);
+            log.debug("Opened " + stat);
+            return stat;
+        } finally {
+            raf.close(); // The mapping stays valid
+        }
+    }
+
+    /**
+     * Converts the entries from the given term stats to the binary format.
+     * @param source an opened TermStat with entries in natural order.
+     * @param destination where to store the binary representation.
+     * @throws IOException if the file could not be written.
+     */
+    public static void write(TermStat source, File destination) throws IOException {
+        long startTime = System.currentTimeMillis();
+        final int termCount = source.size();
+        int slots = 2;
+        while (slots < termCount * 2L) {
+            slots <<= 1;
+        }
+        int[] slotHashes = new int[slots];
+        int[] slotIndexes = new int[slots];
+        int[] blockOffsets = new int[(termCount + BLOCK_SIZE - 1) / BLOCK_SIZE];
+
+        File tmp = new File(destination.getPath() + ".tmp");
+        CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(counter);
+        int statCount = -1;
+        int maxTermBytes = 0;
+        try {
+            out.write(new byte[HEADER_SIZE]); // Filled later
+            byte[] previous = new byte[0];
+            for (int index = 0 ; index < termCount ; index++) {
+                TermEntry entry = source.get(index);
+                if (statCount == -1) {
+                    statCount = entry.getStats().length;
+                }
+                byte[] term = entry.getTerm().getBytes(UTF8);
+                maxTermBytes = Math.max(maxTermBytes, term.length);
+                int prefix = 0;
+                if (index % BLOCK_SIZE == 0) {
+                    blockOffsets[index / BLOCK_SIZE] = checkOffset(counter.getCount(), destination);
+                } else {
+                    int max = Math.min(previous.length, term.length);
+                    while (prefix < max && previous[prefix] == term[prefix]) {
+                        prefix++;
+                    }
+                    writeVInt(out, prefix);
+                }
+                writeVInt(out, term.length - prefix);
+                out.write(term, prefix, term.length - prefix);
+                for (long stat: entry.getStats()) {
+                    writeVLong(out, (stat << 1) ^ (stat >> 63));
+                }
+                previous = term;
+
+                int hash = entry.getTerm().hashCode();
+                int slot = mix(hash) & (slots - 1);
+                while (slotIndexes[slot] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                slotHashes[slot] = hash;
+                slotIndexes[slot] = index + 1;
+            }
+            int blockTableOffset = checkOffset(counter.getCount(), destination);
+            for (int blockOffset: blockOffsets) {
+                out.writeInt(blockOffset);
+            }
+            int hashTableOffset = checkOffset(counter.getCount(), destination);
+            for (int slot = 0 ; slot < slots ; slot++) {
+                out.writeInt(slotHashes[slot]);
+                out.writeInt(slotIndexes[slot]);
+            }
+            checkOffset(counter.getCount(), destination);
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(termCount);
+                raf.writeInt(Math.max(0, statCount));
+                raf.writeInt(BLOCK_SIZE);
+                raf.writeInt(slots);
+                raf.writeInt(blockTableOffset);
+                raf.writeInt(hashTableOffset);
+                raf.writeInt(maxTermBytes);
+                raf.writeLong(source.getDocCount());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            out.close();
+            if (!tmp.delete()) {
+                log.warn("Unable to delete temporary file '" + tmp + "'");
+            }
+            throw e;
+        }
+        if (destination.exists() && !destination.delete()) {
+            throw new IOException("Unable to delete old binary term stats '" + destination + "'");
+        }
+        if (!tmp.renameTo(destination)) {
+            throw new IOException("Unable to rename '" + tmp + "' to '" + destination + "'");
+        }
+        log.info("Wrote " + termCount + " terms as binary term stats to '" + destination + "' ("
+                 + destination.length() / 1024 + "KB) in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static int checkOffset(long offset, File destination) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Binary term stats for '" + destination + "' exceeds 2GB");
+        }
+        return (int)offset;
+    }
+
+    /**
+     * @param term the term to locate.
+     * @return the index of the term or -1 if it is not present.
+     */
+    public int indexOf(String term) {
+        int hash = term.hashCode();
+        byte[] termBytes = null;
+        int slot = mix(hash) & hashMask;
+        while (true) {
+            int position = hashTableOffset + slot * 8;
+            int index = buffer.getInt(position + 4) - 1;
+            if (index < 0) {
+                return -1;
+            }
+            if (buffer.getInt(position) == hash) {
+                if (termBytes == null) {
+                    termBytes = term.getBytes(UTF8);
+                }
+                Cursor cursor = seek(index);
+                if (cursor.equalsTerm(termBytes)) {
+                    return index;
+                }
+            }
+            slot = (slot + 1) & hashMask;
+        }
+    }
+
+    /**
+     * @param term    the term to locate.
+     * @param columns the column names for the TermEntry.
+     * @return the entry for the term or null if it is not present.
+     */
+    public TermEntry getEntry(String term, String[] columns) {
+        int index = indexOf(term);
+        return index == -1 ? null : get(index, columns);
+    }
+
+    /**
+     * @param index   0 &lt;= index &lt; size().
+     * @param columns the column names for the TermEntry.
+     * @return the entry at the given index.
+     */
+    public TermEntry get(int index, String[] columns) {
+        if (index < 0 || index >= termCount) {
+            throw new ArrayIndexOutOfBoundsException(
+                "There is " + termCount + " terms in the collection, the term at pos " + index + " were requested");
+        }
+        Cursor cursor = seek(index);
+        long[] stats = new long[statCount];
+        for (int i = 0 ; i < statCount ; i++) {
+            long zigzag = cursor.readVLong();
+            stats[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        return new TermEntry(new String(cursor.term, 0, cursor.length, UTF8), stats, columns);
+    }
+
+    /* Positions a cursor directly after the term at the given index, with the term bytes in the cursor */
+    private Cursor seek(int index) {
+        int block = index / blockSize;
+        Cursor cursor = new Cursor(buffer.getInt(blockTableOffset + block * 4));
+        for (int current = block * blockSize ; current <= index ; current++) {
+            int prefix = current == block * blockSize ? 0 : cursor.readVInt();
+            int suffix = cursor.readVInt();
+            for (int i = 0 ; i < suffix ; i++) {
+                cursor.term[prefix + i] = buffer.get(cursor.position++);
+            }
+            cursor.length = prefix + suffix;
+            if (current != index) {
+                for (int s = 0 ; s < statCount ; s++) {
+                    cursor.readVLong();
+                }
+            }
+        }
+        return cursor;
+    }
+
+    public int size() {
+        return termCount;
+    }
+
+    /**
+     * @return the docCount from the TermStat at the time of {@link #write}.
+     */
+    public long getDocCount() {
+        return docCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private final class Cursor {
+        private final byte[] term = new byte[maxTermBytes];
+        private int length = 0;
+        private int position;
+
+        private Cursor(int position) {
+            this.position = position;
+        }
+
+        private boolean equalsTerm(byte[] other) {
+            if (other.length != length) {
+                return false;
+            }
+            for (int i = 0 ; i < length ; i++) {
+                if (term[i] != other[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int readVInt() {
+            return (int)readVLong();
+        }
+
+        private long readVLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private static void writeVInt(DataOutputStream out, int value) throws IOException {
+        writeVLong(out, value);
+    }
+
+    private static void writeVLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryTermStat(file='" + file + "', terms=" + termCount + ", stats=" + statCount + ", "
+               + buffer.capacity() / 1024 + "KB)";
+    }
+}
@@ -54,6 +54,10 @@ Zoo\t54\t89
  * Note: {@link #open} or {@link #create} must be called before the TermStat
  * can be updated or queried.
  * </p><p>
+ * When opened, the term stats are converted to a memory mapped
+ * {@link BinaryTermStat} (unless disabled with {@link #CONF_BINARY}) which
+ * gives O(1) look ups without disk seeks.
+ * </p><p>
  * Note: this TermStat-component is limited to Integer.MAX_VALUE terms.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
@@ -115,6 +119,19 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
     public static final String CONF_SKIP_COLUMNNAMES_ON_OPEN = "common.distribution.skipcolumnnamesonopen";
     public static final boolean DEFAULT_SKIP_COLUMNNAMES_ON_OPEN = false;
 
+    /**
+     * If true, {@link #open} uses a memory mapped binary representation of the
+     * term stats for look ups. If the binary file does not exist, is older
+     * than the textual data or meta file or does not match the term and
+     * document counts from the meta file, it is created from the textual data
+     * file. If the binary file cannot be written, e.g. because the term stats
+     * are in a read-only folder, the textual look ups are used.
+     * </p><p>
+     * Optional. Default is true.
+     */
+    public static final String CONF_BINARY = "common.distribution.termstat.binary";
+    public static final boolean DEFAULT_BINARY = true;
+
     private LineReader persistent;
     private long docCount = 0;
     private int termCount = 0;
@@ -124,6 +141,8 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
     private int bufferSize = DEFAULT_READER_BUFFER;
     private String commentPrefix = DEFAULT_COMMENT_PREFIX;
     private boolean skipColumnNames = DEFAULT_SKIP_COLUMNNAMES_ON_OPEN;
+    private boolean useBinary = DEFAULT_BINARY;
+    private BinaryTermStat binary = null;
 
     /**
      * Holds offsets in the backing persistent file for all line entries.
@@ -146,6 +165,7 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
         bufferSize = conf.getInt(CONF_READER_BUFFER, bufferSize);
         commentPrefix = conf.getString(CONF_COMMENT_PREFIX, commentPrefix);
         skipColumnNames = conf.getBoolean(CONF_SKIP_COLUMNNAMES_ON_OPEN, skipColumnNames);
+        useBinary = conf.getBoolean(CONF_BINARY, useBinary);
     }
 
     /**
@@ -168,6 +188,9 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
             persistent.setBufferSize(bufferSize);
             boolean result = openMeta();
             openLookup();
+            if (useBinary) {
+                openBinary();
+            }
             return result;
         }
     }
@@ -180,6 +203,7 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
         docCount = 0;
         termCount = 0;
         cache.clear();
+        binary = null;
         lookupTable = new long[1];
         source = "No Source";
     }
@@ -301,6 +325,10 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
                 }
             }
 
+            File bin = getFile(location, ".bin");
+            if (bin.exists() && !bin.delete()) {
+                throw new IOException("Unable to delete old binary file " + bin.getAbsolutePath());
+            }
             File per = getFile(location, ".dat");
             if (per.exists()) {
                 log.debug("The data file " + per + " already exists. Deleting old file");
@@ -459,10 +487,56 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
         log.info("Created lookup file " + getLookupFile() + " for " + getDataFile() + " in " + creationTime + " ms");
     }
 
+    private void openBinary() {
+        File binFile = getFile(persistent.getFile().getParentFile(), ".bin");
+        BinaryTermStat candidate = null;
+        // Timestamps have coarse granularity on some file systems, so the counts from meta are checked as well
+        if (binFile.exists() && binFile.lastModified() >= getDataFile().lastModified()
+            && binFile.lastModified() >= getMetaFile().lastModified()) {
+            try {
+                candidate = BinaryTermStat.open(binFile);
+            } catch (IOException e) {
+                log.warn("Unable to open binary term stats " + binFile + ". Recreating binary term stats", e);
+            }
+            if (candidate != null && (candidate.size() != termCount || candidate.getDocCount() != docCount)) {
+                log.warn("The binary term stats " + binFile + " has " + candidate.size() + " terms and docCount "
+                         + candidate.getDocCount() + " while " + termCount + " terms and docCount " + docCount
+                         + " were expected. Recreating binary term stats");
+                candidate = null;
+            }
+        }
+        if (candidate == null) {
+            log.info("Creating binary term stats " + binFile + " from " + getDataFile());
+            try {
+                BinaryTermStat.write(this, binFile);
+                candidate = BinaryTermStat.open(binFile);
+            } catch (IOException e) {
+                log.warn("Unable to create binary term stats " + binFile + ". Falling back to textual look ups", e);
+                candidate = null;
+            }
+        }
+        binary = candidate;
+    }
+
+    /**
+     * Writes a memory mappable binary representation of the term stats to
+     * the given file. This is done automatically on {@link #open} unless
+     * {@link #CONF_BINARY} is false.
+     * @param destination where to store the binary term stats.
+     * @throws IOException if the binary term stats could not be written.
+     */
+    public void storeBinary(File destination) throws IOException {
+        BinaryTermStat.write(this, destination);
+    }
+
     private File getLookupFile() {
         return getFile(persistent.getFile().getParentFile(), ".lookup");
     }
 
+    private File getMetaFile() {
+        return getFile(persistent.getFile().getParentFile(), ".meta");
+    }
+
     private File getDataFile() {
         return getFile(persistent.getFile().getParentFile(), ".dat");
     }
@@ -538,7 +612,7 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
         } else {
             return -1;
         }
-        return binarySearch(key);
+        return binary == null ? binarySearch(key) : binary.indexOf(key);
     }
 
     // Returns -1 if not found
@@ -562,13 +636,18 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
     }
 
     /**
-     * Finds the entry with the given term in {@code log2(n)} time.
-     * The look ups are LRU cached so multiple calls for the same term in
-     * short order are cheap..
+     * Finds the entry with the given term in {@code O(1)} time if the binary
+     * representation is used, else {@code log2(n)} time.
+     * The textual look ups are LRU cached so multiple calls for the same term
+     * in short order are cheap..
      * @param term the term for the wanted entry.
      * @return the entry for the term if it exists, else null;
      */
     public TermEntry getEntry(String term) {
+        BinaryTermStat binary = this.binary;
+        if (binary != null) {
+            return binary.getEntry(term, columns);
+        }
         TermEntry entry = cache.get(term);
         if (entry != null) {
             cache.put(term, entry);
@@ -585,6 +664,10 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
 
     @Override
     public TermEntry get(int index) {
+        BinaryTermStat binary = this.binary;
+        if (binary != null) {
+            return binary.get(index, columns);
+        }
         return new TermEntry(getLine(index), columns);
     }
 
@@ -625,6 +708,13 @@ public class TermStat extends AbstractList<TermEntry> implements Configurable {
         return termCount;
     }
 
+    /**
+     * @return the column names, starting with the name for the term column.
+     */
+    public String[] getColumns() {
+        return columns;
+    }
+
     /**
      * @return the number of documents in the (potentially virtual) index that
      *         this represents.
@@ -37,6 +37,9 @@ import org.apache.lucene.util.BytesRef;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 /**
@@ -52,11 +55,39 @@ import java.util.regex.Pattern;
 public class TermStatClient implements Configurable {
     private static Log log = LogFactory.getLog(TermStatClient.class);
 
+    /**
+     * The number of threads to use for extracting term stats. Fields and
+     * segments in the index are extracted in parallel.
+     * </p><p>
+     * Optional. Default is the number of processors.
+     */
+    public static final String CONF_THREADS = "common.distribution.termstatclient.threads";
+
+    /**
+     * The number of terms to extract at a time from each field in each segment
+     * when extracting in parallel.
+     * </p><p>
+     * Optional. Default is 1000.
+     */
+    public static final String CONF_BATCH_SIZE = "common.distribution.termstatclient.batchsize";
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     private Configuration termStatConf;
+    private final int threads;
+    private final int batchSize;
 
     public TermStatClient(Configuration conf) {
         termStatConf = conf;
+        threads = conf.getInt(CONF_THREADS, Runtime.getRuntime().availableProcessors());
+        batchSize = conf.getInt(CONF_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        if (threads < 1) {
+            throw new ConfigurationException(CONF_THREADS + " must be >= 1. It was " + threads);
+        }
+        if (batchSize < 1) {
+            throw new ConfigurationException(CONF_BATCH_SIZE + " must be >= 1. It was " + batchSize);
+        }
     }
+
     private TermStatClient() {
         this(Configuration.newMemoryBased());
     }
@@ -134,7 +165,7 @@ public class TermStatClient implements Configurable {
     }
 
     private enum MODE {none, input, column}
-    private static void merge(List<String> arguments) {
+    private static void merge(List<String> arguments) throws IOException {
         List<File> inputs = new ArrayList<>(10);
         List<String> columns = new ArrayList<>(10);
         int mdf = 1;
@@ -259,6 +290,8 @@ public class TermStatClient implements Configurable {
 
         IndexReader ir = IndexReader.open(new NIOFSDirectory(index));
         Set<String> fields = getFields(ir, fieldRegexps, index);
+        long docCount = getDocCount(ir);
+        ir.close();
 
         @SuppressWarnings({"MismatchedQueryAndUpdateOfCollection"})
         TermStat termStat = new TermStat(Configuration.newMemoryBased());
@@ -267,13 +300,33 @@ public class TermStatClient implements Configurable {
                                       index, System.currentTimeMillis());
         final String[] columns = new String[]{ "term", "tf_" + columnPrefix, "df_" + columnPrefix};
         termStat.create(new File(destination), header, columns);
-        termStat.setDocCount(getDocCount(ir));
+        termStat.setDocCount(docCount);
         termStat.setSource(index.toString());
         termStat.setMinDocumentFrequency(mdf);
 
         TermStatSource factory = new TermStatSource(index);
-        // TODO: docCount
-        Iterator<Triple<BytesRef, Long, Long>> source = factory.getTerms(fields);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int counter = 0;
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TermStatExtractor_" + counter++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            addTerms(termStat, factory.getTerms(fields, executor, batchSize), columns, mdf, mtl, skipSpace);
+        } finally {
+            executor.shutdownNow();
+            factory.close();
+        }
+        termStat.store();
+        termStat.close();
+        log.info("Finished extraction with " + threads + " threads in " + profiler.getSpendTime());
+    }
+
+    private void addTerms(TermStat termStat, Iterator<Triple<BytesRef, Long, Long>> source, String[] columns,
+                          int mdf, int mtl, boolean skipSpace) {
         final long[] cache = new long[2];
         while (source.hasNext()) {
             Triple<BytesRef, Long, Long> triple = source.next();
@@ -302,9 +355,6 @@ public class TermStatClient implements Configurable {
                 log.trace("Skipping " + triple + " as mdf=" + mdf);
             }
         }
-        termStat.store();
-        termStat.close();
-        log.info("Finished extraction in " + profiler.getSpendTime());
     }
 
     @SuppressWarnings("UseOfSystemOutOrSystemErr")
@@ -382,7 +432,22 @@ public class TermStatClient implements Configurable {
         return count;
     }
 
-    public void merge(List<File> inputs, List<String> columns, String destination, int mdf) {
+    /**
+     * Merges the given term stats into a single term stats structure in a
+     * single pass, using a k-way merge of the sorted inputs. Only one entry
+     * per input is held in memory at a time.
+     * </p><p>
+     * The merged columns are the union of the input columns matching the
+     * column regexps. Stats from equally named columns are summed. Terms are
+     * only stored if the sum of the stats in columns starting with {@code df}
+     * is at least mdf.
+     * @param inputs      term stats, all with terms in natural order.
+     * @param columns     regexps for the columns to merge.
+     * @param destination where to store the merged term stats.
+     * @param mdf         the minimum document frequency for terms to keep.
+     * @throws IOException if an input could not be read or the destination could not be written.
+     */
+    public void merge(List<File> inputs, List<String> columns, String destination, int mdf) throws IOException {
         if (inputs.isEmpty()) {
             throw new IllegalArgumentException("One or more inputs must be specified");
         }
@@ -397,9 +462,149 @@ public class TermStatClient implements Configurable {
                                Strings.join(columns, ", "), Strings.join(inputs, ", "), mdf, destination));
         Profiler profiler = new Profiler();
 
-        // TODO: Implement this. Remember docCount
+        Configuration sourceConf = Configuration.newMemoryBased();
+        sourceConf.importConfiguration(termStatConf);
+        sourceConf.set(TermStat.CONF_BINARY, false); // Single sequential pass, so no need for the binary version
+        List<TermStat> sources = new ArrayList<>(inputs.size());
+        try {
+            for (File input: inputs) {
+                TermStat source = new TermStat(sourceConf);
+                source.open(input);
+                sources.add(source);
+            }
+            mergeSources(sources, columns, new File(destination), mdf);
+        } finally {
+            for (TermStat source: sources) {
+                source.close();
+            }
+        }
+        log.info("Finished merging " + inputs.size() + " term stats in " + profiler.getSpendTime());
+    }
+
+    private void mergeSources(List<TermStat> sources, List<String> columnRegexps, File destination, int mdf)
+            throws IOException {
+        List<Pattern> patterns = new ArrayList<>(columnRegexps.size());
+        for (String regexp: columnRegexps) {
+            patterns.add(Pattern.compile(regexp));
+        }
+
+        // Map source stats to destination stats
+        List<String> mergedColumns = new ArrayList<>();
+        mergedColumns.add("term");
+        List<int[]> mappings = new ArrayList<>(sources.size());
+        long docCount = 0;
+        List<String> sourceNames = new ArrayList<>(sources.size());
+        for (TermStat source: sources) {
+            String[] sourceColumns = source.getColumns();
+            int[] mapping = new int[sourceColumns.length - 1];
+            for (int i = 1 ; i < sourceColumns.length ; i++) {
+                mapping[i-1] = -1;
+                for (Pattern pattern: patterns) {
+                    if (pattern.matcher(sourceColumns[i]).matches()) {
+                        if (!mergedColumns.contains(sourceColumns[i])) {
+                            mergedColumns.add(sourceColumns[i]);
+                        }
+                        mapping[i-1] = mergedColumns.indexOf(sourceColumns[i]) - 1;
+                        break;
+                    }
+                }
+            }
+            mappings.add(mapping);
+            docCount += source.getDocCount();
+            sourceNames.add(source.getSource());
+        }
+        if (mergedColumns.size() == 1) {
+            throw new IllegalArgumentException(
+                    "None of the column regexps " + Strings.join(columnRegexps, ", ") + " matched any columns");
+        }
+        final String[] columns = mergedColumns.toArray(new String[mergedColumns.size()]);
+        List<Integer> dfIndexes = new ArrayList<>();
+        for (int i = 1 ; i < columns.length ; i++) {
+            if (columns[i].startsWith("df")) {
+                dfIndexes.add(i-1);
+            }
+        }
+
+        TermStat termStat = new TermStat(termStatConf);
+        String header = String.format("TermStats merged from %d sources at %2$tF %2$tT",
+                                      sources.size(), System.currentTimeMillis());
+        termStat.create(destination, header, columns);
+        termStat.setDocCount(docCount);
+        termStat.setSource("merge(" + Strings.join(sourceNames, ", ") + ")");
+        termStat.setMinDocumentFrequency(mdf);
+
+        PriorityQueue<MergeCursor> heap = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (int i = 0 ; i < sources.size() ; i++) {
+            if (sources.get(i).size() > 0) {
+                heap.add(new MergeCursor(sources.get(i), mappings.get(i)));
+            }
+        }
+        final long[] stats = new long[columns.length - 1];
+        long terms = 0;
+        while (!heap.isEmpty()) {
+            Arrays.fill(stats, 0);
+            MergeCursor cursor = heap.poll();
+            String term = cursor.entry.getTerm();
+            cursor.addTo(stats);
+            if (cursor.next()) {
+                heap.add(cursor);
+            }
+            while (!heap.isEmpty() && term.equals(heap.peek().entry.getTerm())) {
+                cursor = heap.poll();
+                cursor.addTo(stats);
+                if (cursor.next()) {
+                    heap.add(cursor);
+                }
+            }
+            long df = 0;
+            for (int dfIndex: dfIndexes) {
+                df += stats[dfIndex];
+            }
+            if (dfIndexes.isEmpty() || df >= mdf) {
+                termStat.add(new TermEntry(term, stats, columns));
+                terms++;
+            } else if (log.isTraceEnabled()) {
+                log.trace("Skipping '" + term + "' with df=" + df + " as mdf=" + mdf);
+            }
+        }
+        termStat.store();
+        termStat.close();
+        log.debug("Merged " + terms + " terms from " + sources.size() + " sources into " + destination);
+    }
+
+    /* Sequential reader of a TermStat, used for k-way merging */
+    private static class MergeCursor implements Comparable<MergeCursor> {
+        private final TermStat source;
+        private final int[] mapping;
+        private int position = 0;
+        private TermEntry entry;
+
+        private MergeCursor(TermStat source, int[] mapping) {
+            this.source = source;
+            this.mapping = mapping;
+            entry = source.get(0);
+        }
+
+        public boolean next() {
+            if (++position >= source.size()) {
+                return false;
+            }
+            entry = source.get(position);
+            return true;
+        }
 
-        log.info("Finished merging in " + profiler.getSpendTime());
+        public void addTo(long[] stats) {
+            for (int i = 0 ; i < mapping.length ; i++) {
+                if (mapping[i] != -1) {
+                    stats[mapping[i]] += entry.getStat(i);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(MergeCursor o) {
+            return entry.getTerm().compareTo(o.entry.getTerm());
+        }
     }
 
     /**
@@ -429,102 +634,7 @@ public class TermStatClient implements Configurable {
      * @throws IOException if the destination could not be updated.
      */
     public void mergeStats(List<File> sources, File destination) throws IOException {
-
-        // TODO: Split on maxOpenSources or the merger will die on ~500 sources
-        doMerge(sources, destination);
+        merge(sources, new ArrayList<>(Arrays.asList(".*")), destination.toString(), 1);
     }
-
-    // TODO: Make the merger more robust with regard to errors in the sources
-    private void doMerge(List<File> fileSources, File destinationFile) throws IOException {
-/*        Profiler profiler = new Profiler();
-        TermStat destination = new TermStat(termStatConf);
-        destination.create(destinationFile);
-
-        List<TermStat> sources = new ArrayList<TermStat>(fileSources.size());
-        for (File fileSource: fileSources) {
-            log.trace("Opening the source '" + fileSource + "'");
-            try {
-                TermStat source = new TermStat(termStatConf);
-                source.open(fileSource);
-                source.reset();
-                sources.add(source);
-            } catch (Exception e) {
-                log.warn(String.format(
-                        "Unable to open TermStat with source '%s'. "
-                        + "Skipping source", fileSource), e);
-            }
-        }
-        log.debug(fileSources.size() + " sources opened. Calculating stats");
-
-        updateMergeStats(sources, destination);
-
-        log.debug("Beginning merge");
-        while(sources.size() > 0) {
-            // Find the first term in Unicode-order
-            TermStat first = null;
-            for (TermStat candidate : sources) {
-                TermEntry candidateEntry = candidate.peek();
-                if (candidateEntry == null) {
-                    continue;
-                }
-                if (first == null ||
-                    candidate.peek().getTerm().compareTo(
-                            first.peek().getTerm()) < 0) {
-                    first = candidate;
-                }
-            }
-
-            // Sum the term counts and remove empty
-            TermEntry firstEntry = first.peek();
-            int sum = 0; //firstEntry.getCount();
-            String term = firstEntry.getTerm();
-            for (int i = sources.size() - 1 ; i >= 0 ; i--) {
-                TermStat current = sources.get(i);
-                TermEntry currentTerm = current.peek();
-                if (currentTerm == null) {
-                    current.close();
-                    sources.remove(i);
-                    continue;
-                }
-                if (currentTerm.getTerm().equals(term)) {
-                    sum += currentTerm.getCount();
-                    current.get();
-                    // Remove depleted
-                    if (!current.hasNext()) {
-                        current.close();
-                        sources.remove(i);
-                    }
-                }
-            }
-            if (log.isTraceEnabled()) {
-                log.trace("Summed docFreq for '" + term + "' is " + sum);
-            }
-            destination.add(new TermEntry(term, sum));
-            profiler.beat();
-        }
-        log.debug("Finished merging. Storing...");
-        destination.store();
-        log.debug("Finished storing");
-        destination.close();
-        log.debug(String.format(
-                "Finished merging %d sources to '%s' in %s",
-                fileSources.size(), destination, profiler.getSpendTime()));
-                */
-    }
-
-/*    private void updateMergeStats(List<TermStat> sources, TermStat destination) {
-        long docCount = 0;
-        StringWriter sw = new StringWriter(sources.size() * 50);
-        sw.append("merge(");
-        boolean firstS = true;
-        for (TermStat source: sources) {
-            docCount += source.getDocCount();
-            sw.append(firstS ? "" : ", ").append(source.getSource());
-            firstS = false;
-        }
-        sw.append(")");
-        destination.setDocCount(docCount);
-        destination.setSource(sw.toString());
-    }*/
 }
 
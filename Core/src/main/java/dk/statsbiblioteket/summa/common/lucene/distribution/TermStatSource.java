@@ -36,6 +36,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Encapsulates an IndexReader and exposes factory methods for term iterators.
@@ -90,89 +96,180 @@ public class TermStatSource implements Closeable {
         return new TermStatSource.Merger(sources, "multi(" + designation + ")");
     }
 
+    /**
+     * Creates an iterator where the stats for each field in each segment are extracted in parallel using the given
+     * executor. Each field/segment is extracted in batches of {@code batchSize} terms with at most one pending batch,
+     * so memory usage is bounded by {@code #fields * #segments * 2 * batchSize} terms. Extraction tasks never block,
+     * so any number of threads can be used.
+     * @param fields    the fields to extract stats for.
+     * @param executor  used for extraction.
+     * @param batchSize the number of terms to extract in each batch.
+     * @return an iterator delivering terms in BytesRef order with summed stats for all fields.
+     * @throws IOException if the index could not be accessed.
+     */
+    public Iterator<Triple<BytesRef, Long, Long>> getTerms(
+            Collection<String> fields, ExecutorService executor, int batchSize) throws IOException {
+        List<AtomicReader> irs = LuceneUtil.gatherSubReaders(ir);
+        String designation = Strings.join(fields, ", ");
+        log.debug("Creating parallel multi field iterator for " + designation + " with " + irs.size() + " readers");
+        List<Iterator<Triple<BytesRef, Long, Long>>> providers = new ArrayList<>(fields.size() * irs.size());
+        for (String field: fields) {
+            for (AtomicReader reader: irs) {
+                LeafIterator li = new LeafIterator(reader, field);
+                if (li.hasNext()) {
+                    providers.add(new PrefetchIterator(li, executor, batchSize));
+                }
+            }
+        }
+        return new Merger(providers, "parallel(" + designation + ")");
+    }
+
+    /**
+     * k-way merge of sorted term iterators, summing the stats for equal terms.
+     */
     public static class Merger implements Iterator<Triple<BytesRef, Long, Long>> {
-        private List<Iterator<Triple<BytesRef, Long, Long>>> providers;
-        private List<Triple<BytesRef, Long, Long>> values;
-        private String designation;
+        private final PriorityQueue<Head> heap;
+        private final String designation;
         private long termCount = 0;
 
         public Merger(List<Iterator<Triple<BytesRef, Long, Long>>> providers, String designation) {
-            log.debug("Creating Merger(" + designation + ")");
-            this.providers = providers;
+            log.debug("Creating Merger(" + designation + ") with " + providers.size() + " providers");
             this.designation = designation;
-            values = new ArrayList<>(providers.size());
-            Iterator<Iterator<Triple<BytesRef, Long, Long>>> pi = providers.iterator();
-
-            while (pi.hasNext()) {
-                Iterator<Triple<BytesRef, Long, Long>> provider = pi.next();
+            heap = new PriorityQueue<>(Math.max(1, providers.size()));
+            for (Iterator<Triple<BytesRef, Long, Long>> provider: providers) {
                 if (!provider.hasNext()) {
-                    log.debug("Merger init: Removed empty provider");
-                    pi.remove();
+                    log.debug("Merger init: Skipped empty provider");
                 } else {
-                    values.add(provider.next());
+                    heap.add(new Head(provider));
                 }
             }
         }
 
         @Override
         public boolean hasNext() {
-            return !providers.isEmpty();
+            return !heap.isEmpty();
         }
 
         @Override
         public Triple<BytesRef, Long, Long> next() {
-            if (values.size() != providers.size()) {
-                throw new IllegalStateException(
-                    "There were " + providers.size() + " and " + values.size() + " values. The two numbers should be "
-                    + "the same. There is an error in the internal bookkeeping");
+            if (heap.isEmpty()) {
+                throw new NoSuchElementException("No more terms in " + designation);
+            }
+            Head head = heap.poll();
+            BytesRef term = head.value.getValue1();
+            long tf = head.value.getValue2();
+            long df = head.value.getValue3();
+            advance(head);
+            while (!heap.isEmpty() && term.equals(heap.peek().value.getValue1())) {
+                head = heap.poll();
+                tf += head.value.getValue2();
+                df += head.value.getValue3();
+                advance(head);
             }
 
-            BytesRef term = null;
+            Triple<BytesRef, Long, Long> result = new Triple<>(term, tf, df);
+            termCount++;
+            if (heap.isEmpty()) {
+                log.debug("Merger for " + designation + " depleted with " + termCount + " delivered terms");
+            }
+            if (log.isTraceEnabled()) {
+                log.trace("Merging iterator delivered " + result);
+            }
+            return result;
+        }
 
-            // Locate next term
-            for (Triple<BytesRef, Long, Long> value: values) {
-                if (term == null || term.compareTo(value.getValue1()) > 0) {
-                    term = value.getValue1();
-                }
+        private void advance(Head head) {
+            if (head.provider.hasNext()) {
+                head.value = head.provider.next();
+                heap.add(head);
             }
+        }
+
+        @Override
+        public void remove() {
+            throw new IllegalArgumentException("Not supported");
+        }
 
-            // Found the term, now sum the stats and cleanup depleted providers
-            long tf = 0;
-            long df = 0;
+        private static class Head implements Comparable<Head> {
+            private final Iterator<Triple<BytesRef, Long, Long>> provider;
+            private Triple<BytesRef, Long, Long> value;
 
-            if (term == null) {
-                throw new IllegalStateException(
-                    "Term was null which is illegal at this execution point. There is an error in program logic");
+            private Head(Iterator<Triple<BytesRef, Long, Long>> provider) {
+                this.provider = provider;
+                value = provider.next();
             }
 
-            for (int i = values.size()-1 ; i >= 0 ; i--) {
-                Triple<BytesRef, Long, Long> value = values.get(i);
-                if (term.equals(value.getValue1())) {
-                    tf += value.getValue2();
-                    df += value.getValue3();
-                    if (!providers.get(i).hasNext()) {
-                        providers.remove(i);
-                        values.remove(i);
-                    } else {
-                        values.set(i, providers.get(i).next());
+            @Override
+            public int compareTo(Head o) {
+                return value.getValue1().compareTo(o.value.getValue1());
+            }
+        }
+    }
+
+    /**
+     * Extracts batches from the source iterator using the executor, with at most one pending batch. The source is
+     * only accessed from one task at a time.
+     */
+    private static class PrefetchIterator implements Iterator<Triple<BytesRef, Long, Long>> {
+        private final Iterator<Triple<BytesRef, Long, Long>> source;
+        private final ExecutorService executor;
+        private final int batchSize;
+        private List<Triple<BytesRef, Long, Long>> current = null;
+        private int position = 0;
+        private Future<List<Triple<BytesRef, Long, Long>>> pending;
+
+        public PrefetchIterator(Iterator<Triple<BytesRef, Long, Long>> source, ExecutorService executor,
+                                int batchSize) {
+            this.source = source;
+            this.executor = executor;
+            this.batchSize = batchSize;
+            pending = submit();
+        }
+
+        private Future<List<Triple<BytesRef, Long, Long>>> submit() {
+            return executor.submit(new Callable<List<Triple<BytesRef, Long, Long>>>() {
+                @Override
+                public List<Triple<BytesRef, Long, Long>> call() throws Exception {
+                    List<Triple<BytesRef, Long, Long>> batch = new ArrayList<>(batchSize);
+                    while (batch.size() < batchSize && source.hasNext()) {
+                        batch.add(source.next());
                     }
+                    return batch;
                 }
-            }
+            });
+        }
 
-            Triple<BytesRef, Long, Long> result = new Triple<>(term, tf, df);
-            termCount++;
-            if (termCount == 0) {
-                log.debug("Merger for " + designation + " depleted with " + termCount + " delivered terms");
+        @Override
+        public boolean hasNext() {
+            while (current == null || position >= current.size()) {
+                if (pending == null) {
+                    return false;
+                }
+                try {
+                    current = pending.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted while waiting for terms", e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Unable to extract terms", e.getCause());
+                }
+                position = 0;
+                // A partial batch means that the source is depleted
+                pending = current.size() < batchSize ? null : submit();
             }
-            if (log.isTraceEnabled()) {
-                log.trace("Merging iterator delivered " + result);
+            return true;
+        }
+
+        @Override
+        public Triple<BytesRef, Long, Long> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more terms");
             }
-            return result;
+            return current.get(position++);
         }
 
         @Override
         public void remove() {
-            throw new IllegalArgumentException("Not supported");
+            throw new UnsupportedOperationException("No removal of terms");
         }
     }
 
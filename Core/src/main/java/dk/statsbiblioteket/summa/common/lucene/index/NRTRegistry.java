@@ -0,0 +1,215 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.lucene.index;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-JVM channel for near-real-time (NRT) index visibility. An index writer registers its IndexWriter under the
+ * folder of the Lucene index and signals changes. Searchers in the same JVM listen on the same folder and are
+ * notified at most once per refresh interval with the writer to open NRT readers from.
+ * </p><p>
+ * Notifications are delivered from a single daemon thread, so slow listeners delay later notifications but never the
+ * writer.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class NRTRegistry {
+    private static Log log = LogFactory.getLog(NRTRegistry.class);
+
+    /**
+     * Receives notifications about changes to an index.
+     */
+    public interface Listener {
+        /**
+         * Called when the writer for the index has received changes or when a new writer has been registered.
+         * @param writer       the current writer for the index. Use with
+         *                     {@link org.apache.lucene.index.DirectoryReader#openIfChanged(
+         *                     org.apache.lucene.index.DirectoryReader, IndexWriter, boolean)}.
+         * @param oldestChange the time in milliseconds since epoch for the oldest change not previously notified
+         *                     or 0 if unknown. Used for measuring freshness latency.
+         */
+        void indexChanged(IndexWriter writer, long oldestChange);
+    }
+
+    private static final Map<String, Entry> entries = new HashMap<>();
+    // changed(File) is called for every update, so the canonical path lookup is cached
+    private static final Map<File, String> keys = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService notifier = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "NRTRegistryNotifier");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Registers the writer for the given folder. Listeners for the folder are notified after the refresh interval.
+     * @param folder          the folder with the Lucene index.
+     * @param writer          the writer for the index.
+     * @param refreshInterval the minimum number of milliseconds between notifications.
+     */
+    public static void register(File folder, IndexWriter writer, long refreshInterval) {
+        Entry entry;
+        synchronized (entries) {
+            entry = getEntry(folder);
+            entry.writer = writer;
+            entry.refreshInterval = refreshInterval;
+        }
+        log.info("Registered NRT writer for '" + folder + "' with refreshInterval=" + refreshInterval + "ms");
+        changed(folder);
+    }
+
+    /**
+     * Removes the writer for the given folder, if it is the registered one. Listeners are kept.
+     * @param folder the folder with the Lucene index.
+     * @param writer the writer to remove.
+     */
+    public static void unregister(File folder, IndexWriter writer) {
+        synchronized (entries) {
+            Entry entry = entries.get(getKey(folder));
+            if (entry != null && entry.writer == writer) {
+                entry.writer = null;
+                log.debug("Unregistered NRT writer for '" + folder + "'");
+            }
+        }
+    }
+
+    /**
+     * @param folder the folder with the Lucene index.
+     * @return the writer for the folder or null if none is registered.
+     */
+    public static IndexWriter getWriter(File folder) {
+        synchronized (entries) {
+            Entry entry = entries.get(getKey(folder));
+            return entry == null ? null : entry.writer;
+        }
+    }
+
+    public static void addListener(File folder, Listener listener) {
+        synchronized (entries) {
+            getEntry(folder).listeners.add(listener);
+        }
+    }
+
+    public static void removeListener(File folder, Listener listener) {
+        synchronized (entries) {
+            Entry entry = entries.get(getKey(folder));
+            if (entry != null) {
+                entry.listeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Signals that the index in the given folder has changed. Cheap enough to be called for every update. The
+     * listeners are notified when the refresh interval has passed.
+     * @param folder the folder with the Lucene index.
+     */
+    public static void changed(File folder) {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(getKey(folder));
+            if (entry == null || entry.writer == null || entry.listeners.isEmpty()) {
+                return;
+            }
+            entry.oldestChange.compareAndSet(0, System.currentTimeMillis());
+            if (entry.scheduled) {
+                return;
+            }
+            entry.scheduled = true;
+        }
+        notifier.schedule(new Runnable() {
+            @Override
+            public void run() {
+                entry.notifyListeners();
+            }
+        }, entry.refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static Entry getEntry(File folder) {
+        String key = getKey(folder);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static String getKey(File folder) {
+        String key = keys.get(folder);
+        if (key == null) {
+            try {
+                key = folder.getCanonicalPath();
+            } catch (IOException e) {
+                key = folder.getAbsolutePath();
+            }
+            keys.put(folder, key);
+        }
+        return key;
+    }
+
+    private static class Entry {
+        private final String key;
+        private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicLong oldestChange = new AtomicLong(0);
+        private IndexWriter writer = null;
+        private long refreshInterval = 0;
+        private boolean scheduled = false;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        private void notifyListeners() {
+            IndexWriter current;
+            synchronized (entries) {
+                scheduled = false;
+                current = writer;
+            }
+            long oldest = oldestChange.getAndSet(0);
+            if (current == null) {
+                return;
+            }
+            for (Listener listener: listeners) {
+                try {
+                    listener.indexChanged(current, oldest);
+                } catch (Exception e) {
+                    log.warn("Exception notifying NRT listener " + listener + " for '" + key + "'", e);
+                }
+            }
+        }
+    }
+}
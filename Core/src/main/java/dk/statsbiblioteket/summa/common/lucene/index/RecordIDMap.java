@@ -0,0 +1,210 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.lucene.index;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Maps from RecordIDs to Lucene docIDs for an IndexReader, using the term dictionary for
+ * {@link IndexUtils#RECORD_FIELD} directly. The term dictionary is a sorted, prefix-compressed structure per segment
+ * and is memory mapped when the index is opened with an MMapDirectory, so lookups cost a few page accesses and no
+ * RecordIDs are held on the heap, regardless of index size.
+ * </p><p>
+ * Batch lookups sort the RecordIDs before seeking, so that consecutive seeks hit the same term blocks.
+ * </p><p>
+ * The map reflects the reader it was created with. Create a new map when the reader is reopened. This class is thread
+ * safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class RecordIDMap {
+    private static Log log = LogFactory.getLog(RecordIDMap.class);
+
+    /** Returned by lookups for RecordIDs that are not present in the index. */
+    public static final int NOT_PRESENT = -1;
+
+    private final IndexReader reader;
+    private final String field;
+
+    /**
+     * Creates a map for the RecordIDs in {@link IndexUtils#RECORD_FIELD}.
+     * @param reader the reader to perform lookups in.
+     */
+    public RecordIDMap(IndexReader reader) {
+        this(reader, IndexUtils.RECORD_FIELD);
+    }
+
+    /**
+     * @param reader the reader to perform lookups in.
+     * @param field  the field holding the unique IDs.
+     */
+    public RecordIDMap(IndexReader reader, String field) {
+        this.reader = reader;
+        this.field = field;
+    }
+
+    /**
+     * @param recordID a RecordID.
+     * @return true if a live document with the given RecordID is present.
+     * @throws IOException if the index could not be accessed.
+     */
+    public boolean contains(String recordID) throws IOException {
+        return getDocID(recordID) != NOT_PRESENT;
+    }
+
+    /**
+     * If more than one live document has the given RecordID, the one with the highest docID is returned, as that is
+     * the newest.
+     * @param recordID a RecordID.
+     * @return the docID for the RecordID or {@link #NOT_PRESENT}.
+     * @throws IOException if the index could not be accessed.
+     */
+    public int getDocID(String recordID) throws IOException {
+        return getDocIDs(Collections.singletonList(recordID))[0];
+    }
+
+    /**
+     * Resolves the given RecordIDs with sorted seeks in the term dictionary of each segment.
+     * @param recordIDs the RecordIDs to resolve.
+     * @return the docIDs in the same order as the RecordIDs, with {@link #NOT_PRESENT} for unknown RecordIDs.
+     * @throws IOException if the index could not be accessed.
+     */
+    public int[] getDocIDs(List<String> recordIDs) throws IOException {
+        final long startTime = System.nanoTime();
+        int[] docIDs = new int[recordIDs.size()];
+        Arrays.fill(docIDs, NOT_PRESENT);
+        BytesRef[] terms = new BytesRef[recordIDs.size()];
+        for (int i = 0 ; i < terms.length ; i++) {
+            terms[i] = new BytesRef(recordIDs.get(i));
+        }
+        Integer[] order = getSortedOrder(terms);
+
+        // Later segments are newer, so their docIDs take precedence
+        for (AtomicReaderContext leaf: reader.leaves()) {
+            AtomicReader segment = leaf.reader();
+            Terms segmentTerms = segment.terms(field);
+            if (segmentTerms == null) {
+                continue;
+            }
+            Bits live = segment.getLiveDocs();
+            TermsEnum termsEnum = segmentTerms.iterator(null);
+            DocsEnum docsEnum = null;
+            for (Integer index: order) {
+                if (!termsEnum.seekExact(terms[index])) {
+                    continue;
+                }
+                docsEnum = termsEnum.docs(live, docsEnum, DocsEnum.FLAG_NONE);
+                int docID;
+                while ((docID = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    docIDs[index] = leaf.docBase + docID;
+                }
+            }
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Resolved " + recordIDs.size() + " RecordIDs in " + (System.nanoTime() - startTime) / 1000
+                      + " us");
+        }
+        return docIDs;
+    }
+
+    /**
+     * Creates a Filter matching the live documents with the given RecordIDs. Unknown RecordIDs are ignored. This is
+     * much cheaper than parsing and executing a query with one clause per RecordID and is not limited by the maximum
+     * number of boolean clauses.
+     * @param recordIDs the RecordIDs to match.
+     * @param field     the field holding the RecordIDs, normally {@link IndexUtils#RECORD_FIELD}.
+     * @return a Filter for use with any reader for the index.
+     */
+    public static Filter createFilter(Collection<String> recordIDs, final String field) {
+        final BytesRef[] terms = new BytesRef[recordIDs.size()];
+        int index = 0;
+        for (String recordID: recordIDs) {
+            terms[index++] = new BytesRef(recordID);
+        }
+        Arrays.sort(terms);
+        return new Filter() {
+            @Override
+            public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+                Terms segmentTerms = context.reader().terms(field);
+                if (segmentTerms == null) {
+                    return null;
+                }
+                FixedBitSet bits = null;
+                TermsEnum termsEnum = segmentTerms.iterator(null);
+                DocsEnum docsEnum = null;
+                for (BytesRef term: terms) {
+                    if (!termsEnum.seekExact(term)) {
+                        continue;
+                    }
+                    docsEnum = termsEnum.docs(acceptDocs, docsEnum, DocsEnum.FLAG_NONE);
+                    int docID;
+                    while ((docID = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        if (bits == null) {
+                            bits = new FixedBitSet(context.reader().maxDoc());
+                        }
+                        bits.set(docID);
+                    }
+                }
+                return bits;
+            }
+
+            @Override
+            public String toString() {
+                return "RecordIDFilter(field=" + field + ", #ids=" + terms.length + ")";
+            }
+        };
+    }
+
+    private Integer[] getSortedOrder(final BytesRef[] terms) {
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0 ; i < order.length ; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return terms[o1].compareTo(terms[o2]);
+            }
+        });
+        return order;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordIDMap(field=" + field + ", maxDoc=" + reader.maxDoc() + ")";
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.marc;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc4j.converter.CharConverter;
+import org.marc4j.converter.impl.AnselToUnicode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Direct ISO 2709 to {@link MARCObject} reader, bypassing marc4j and the intermediate MARC21Slim XML.
+ * </p><p>
+ * Each record is read into a single reusable byte buffer and the directory as well as the subfields are located by
+ * scanning that buffer. Tags, indicators and subfield codes are resolved from static caches, so the only Strings
+ * allocated per record are the leader and the field content itself.
+ * </p><p>
+ * The {@code fixControlfields} option mirrors
+ * {@link dk.statsbiblioteket.summa.ingest.stream.ISO2709ToMARCXMLFilter#CONF_FIX_CONTROLFIELDS}: The danish variant
+ * of ISO 2709 has subfields in the 00x-fields, so these are delivered as DataFields with indicators {@code 0}.
+ * </p><p>
+ * This class is not thread safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ISO2709Reader {
+    private static Log log = LogFactory.getLog(ISO2709Reader.class);
+
+    /** Subfield delimiter. */
+    public static final byte US = 0x1F;
+    /** Field terminator. */
+    public static final byte FT = 0x1E;
+    /** Record terminator. */
+    public static final byte RT = 0x1D;
+
+    public static final int LEADER_LENGTH = 24;
+    public static final int DIRECTORY_ENTRY_LENGTH = 12;
+
+    private static final String[] SINGLE_CHARS = new String[256];
+    private static final String[] NUMERIC_TAGS = new String[1000];
+    static {
+        for (int i = 0 ; i < SINGLE_CHARS.length ; i++) {
+            SINGLE_CHARS[i] = String.valueOf((char) i).intern();
+        }
+        for (int i = 0 ; i < NUMERIC_TAGS.length ; i++) {
+            NUMERIC_TAGS[i] = String.format("%03d", i).intern();
+        }
+    }
+
+    private final InputStream in;
+    private final Charset charset; // null means inferred from the leader
+    private final CharConverter marc8;
+    private final boolean fixControlfields;
+
+    private byte[] buffer = new byte[8192];
+    private long recordCount = 0;
+
+    /**
+     * @param in               ISO 2709 records.
+     * @param charset          the charset for field content. If null, the charset is inferred from the leader
+     *                         (position 9: {@code a} means UTF-8, everything else ISO-8859-1). {@code MARC-8} is
+     *                         accepted and handled with marc4j's AnselToUnicode.
+     * @param fixControlfields if true, 00x-fields are parsed as DataFields (the danish variant of ISO 2709).
+     */
+    public ISO2709Reader(InputStream in, String charset, boolean fixControlfields) {
+        this.in = in;
+        if (charset == null || charset.isEmpty()) {
+            this.charset = null;
+            this.marc8 = null;
+        } else if ("MARC8".equals(charset.toUpperCase().replace("-", "").replace("_", ""))) {
+            this.charset = null;
+            this.marc8 = new AnselToUnicode();
+        } else {
+            this.charset = Charset.forName(charset);
+            this.marc8 = null;
+        }
+        this.fixControlfields = fixControlfields;
+        log.debug("Created " + this);
+    }
+
+    /**
+     * Reads the next record from the stream.
+     * @return the next record or null if the stream is depleted.
+     * @throws IOException    if the stream could not be read or ended prematurely.
+     * @throws ParseException if the record did not conform to ISO 2709.
+     */
+    public MARCObject next() throws IOException, ParseException {
+        int first = in.read();
+        while (first == '\n' || first == '\r') { // Some dumps are line-separated
+            first = in.read();
+        }
+        if (first == -1) {
+            return null;
+        }
+        buffer[0] = (byte) first;
+        readFully(1, LEADER_LENGTH - 1);
+        int recordLength = parseInt(0, 5);
+        if (recordLength < LEADER_LENGTH + 2) {
+            throw new ParseException("Invalid record length " + recordLength + " for record #" + recordCount, 0);
+        }
+        if (buffer.length < recordLength) {
+            buffer = Arrays.copyOf(buffer, Math.max(recordLength, buffer.length * 2));
+        }
+        readFully(LEADER_LENGTH, recordLength - LEADER_LENGTH);
+        recordCount++;
+        return parse(recordLength);
+    }
+
+    /**
+     * Iterates all records in the stream and delivers them to the sink.
+     * @param sink receives the constructed MARCObjects.
+     * @return the number of delivered records.
+     * @throws IOException    if the stream could not be read or ended prematurely.
+     * @throws ParseException if a record did not conform to ISO 2709.
+     */
+    public long deliverAll(MARCObjectFactory.Callback sink) throws IOException, ParseException {
+        long count = 0;
+        MARCObject marc;
+        while ((marc = next()) != null) {
+            sink.handle(marc);
+            count++;
+        }
+        return count;
+    }
+
+    private MARCObject parse(int recordLength) throws ParseException {
+        MARCObject marc = new MARCObject(null, null);
+        marc.setLeader(new MARCObject.Leader(null, new String(buffer, 0, LEADER_LENGTH, StandardCharsets.ISO_8859_1)));
+        Charset contentCharset = charset != null ? charset :
+                                 buffer[9] == 'a' ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+
+        int baseAddress = parseInt(12, 5);
+        if (baseAddress <= LEADER_LENGTH || baseAddress > recordLength) {
+            throw new ParseException(String.format(
+                    "Invalid base address %d for record #%d with length %d", baseAddress, recordCount, recordLength),
+                                     12);
+        }
+        int directoryEnd = baseAddress - 1;
+        if (buffer[directoryEnd] != FT || (directoryEnd - LEADER_LENGTH) % DIRECTORY_ENTRY_LENGTH != 0) {
+            throw new ParseException("Invalid directory for record #" + recordCount, LEADER_LENGTH);
+        }
+        for (int entry = LEADER_LENGTH ; entry < directoryEnd ; entry += DIRECTORY_ENTRY_LENGTH) {
+            String tag = getTag(entry);
+            int length = parseInt(entry + 3, 4);
+            int start = baseAddress + parseInt(entry + 7, 5);
+            int end = start + length; // Exclusive, includes the field terminator
+            if (end > recordLength) {
+                throw new ParseException(String.format(
+                        "Field %s in record #%d extends beyond the record end (%d > %d)",
+                        tag, recordCount, end, recordLength), entry);
+            }
+            if (end > start && buffer[end-1] == FT) {
+                end--;
+            }
+            boolean control = tag.length() == 3 && tag.charAt(0) == '0' && tag.charAt(1) == '0';
+            if (control && !fixControlfields) {
+                marc.getControlFields().add(new MARCObject.ControlField(
+                        tag, null, decode(start, end - start, contentCharset)));
+            } else if (control) {
+                MARCObject.DataField field = new MARCObject.DataField(
+                        tag, null, SINGLE_CHARS['0'], SINGLE_CHARS['0']);
+                addSubFields(field, start, end, contentCharset);
+                marc.getDataFields().add(field);
+            } else {
+                MARCObject.DataField field = new MARCObject.DataField(
+                        tag, null,
+                        start < end ? SINGLE_CHARS[buffer[start] & 0xFF] : SINGLE_CHARS[' '],
+                        start + 1 < end ? SINGLE_CHARS[buffer[start+1] & 0xFF] : SINGLE_CHARS[' ']);
+                addSubFields(field, Math.min(start + 2, end), end, contentCharset);
+                marc.getDataFields().add(field);
+            }
+        }
+        return marc;
+    }
+
+    // Everything before the first subfield delimiter is ignored
+    private void addSubFields(MARCObject.DataField field, int start, int end, Charset contentCharset) {
+        int pos = start;
+        while (pos < end && buffer[pos] != US) {
+            pos++;
+        }
+        while (pos < end) {
+            pos++; // Skip US
+            if (pos >= end) {
+                break;
+            }
+            String code = SINGLE_CHARS[buffer[pos++] & 0xFF];
+            int contentStart = pos;
+            while (pos < end && buffer[pos] != US) {
+                pos++;
+            }
+            field.getSubFields().add(new MARCObject.SubField(
+                    code, decode(contentStart, pos - contentStart, contentCharset)));
+        }
+    }
+
+    private String decode(int offset, int length, Charset contentCharset) {
+        if (length == 0) {
+            return "";
+        }
+        if (marc8 != null) {
+            return marc8.convert(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+        return new String(buffer, offset, length, contentCharset);
+    }
+
+    private String getTag(int offset) {
+        int b0 = buffer[offset] - '0';
+        int b1 = buffer[offset+1] - '0';
+        int b2 = buffer[offset+2] - '0';
+        if (b0 >= 0 && b0 <= 9 && b1 >= 0 && b1 <= 9 && b2 >= 0 && b2 <= 9) {
+            return NUMERIC_TAGS[b0 * 100 + b1 * 10 + b2];
+        }
+        return new String(buffer, offset, 3, StandardCharsets.ISO_8859_1);
+    }
+
+    private int parseInt(int offset, int length) throws ParseException {
+        int result = 0;
+        for (int i = offset ; i < offset + length ; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ParseException(String.format(
+                        "Expected digit at position %d in record #%d but got '%s'",
+                        i, recordCount, (char) (buffer[i] & 0xFF)), i);
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    private void readFully(int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int r = in.read(buffer, offset + read, length - read);
+            if (r == -1) {
+                throw new EOFException(String.format(
+                        "Premature end of stream for record #%d: Expected %d bytes, got %d",
+                        recordCount, length, read));
+            }
+            read += r;
+        }
+    }
+
+    /**
+     * @return the number of records read so far.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ISO2709Reader(charset=" + (marc8 != null ? "MARC-8" : charset == null ? "inferred" : charset)
+               + ", fixControlfields=" + fixControlfields + ", records=" + recordCount + ")";
+    }
+}
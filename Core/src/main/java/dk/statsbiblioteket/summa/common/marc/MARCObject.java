@@ -46,7 +46,9 @@ public class MARCObject implements Cloneable {
     private List<DataField> dataFields= new ArrayList<>();
 
     public MARCObject(String id, String type) {
-        log.debug("Creating with id='" + id + "', type='" + type + "'");
+        if (log.isTraceEnabled()) {
+            log.trace("Creating with id='" + id + "', type='" + type + "'");
+        }
         this.id = id;
         this.type = type;
     }
@@ -125,6 +125,29 @@ public class MARCObjectFactory {
         });
     }
 
+    /**
+     * Iterates through the provided ISO 2709 records, constructs {@link MARCObject}s directly from the binary
+     * representation and delivers them to the sink. This skips the marc4j -> MARC21Slim -> {@link MARCStepper} round
+     * trip used when the input is passed through
+     * {@link dk.statsbiblioteket.summa.ingest.stream.ISO2709ToMARCXMLFilter} first.
+     * @param iso2709 records in ISO 2709.
+     * @param charset the charset for field content. If null, it is inferred from the leader.
+     *                See {@link ISO2709Reader#ISO2709Reader(InputStream, String, boolean)}.
+     * @param fixControlfields if true, 00x-fields are treated as DataFields (danish variant of ISO 2709).
+     * @param sink constructed MARCObjects will be delivered here.
+     * @return the number of delivered MARCObjects.
+     * @throws IOException if the InputStream could not be read.
+     * @throws ParseException if there was a format error in the ISO 2709 data.
+     */
+    public static long generateFromISO2709(
+            InputStream iso2709, String charset, boolean fixControlfields, Callback sink)
+            throws IOException, ParseException {
+        ISO2709Reader reader = new ISO2709Reader(iso2709, charset, fixControlfields);
+        long count = reader.deliverAll(sink);
+        log.debug("Delivered " + count + " MARCObjects from " + reader);
+        return count;
+    }
+
     public static interface Callback {
         /**
          *
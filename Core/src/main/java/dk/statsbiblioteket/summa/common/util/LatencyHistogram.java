@@ -0,0 +1,108 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.util;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe, fixed size histogram of latencies in milliseconds. The buckets are roughly logarithmic from 10ms to
+ * 20 seconds, with a final bucket for everything above. Missed deadlines are counted separately.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class LatencyHistogram {
+    private static final long[] LIMITS = new long[]{
+            10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, Long.MAX_VALUE};
+
+    private final AtomicLongArray counts = new AtomicLongArray(LIMITS.length);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+
+    /**
+     * @param ms the latency for a successful call.
+     */
+    public void add(long ms) {
+        int bucket = 0;
+        while (ms > LIMITS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        total.addAndGet(ms);
+    }
+
+    /**
+     * Registers a call that did not finish within its deadline.
+     */
+    public void addTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * @return the number of successful calls.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0 ; i < counts.length() ; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @param percentile 0-100.
+     * @return the upper limit of the bucket containing the given percentile or -1 if there are no measurements.
+     *         Long.MAX_VALUE is returned if the percentile is above the highest limit.
+     */
+    public long getPercentileLimit(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return -1;
+        }
+        long wanted = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0 ; i < counts.length() ; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return LIMITS[i];
+            }
+        }
+        return LIMITS[LIMITS.length-1];
+    }
+
+    @Override
+    public String toString() {
+        long count = getCount();
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(count).append(", timeouts=").append(timeouts.get());
+        sb.append(", avg=").append(count == 0 ? 0 : total.get() / count).append("ms, buckets=[");
+        for (int i = 0 ; i < counts.length() ; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(LIMITS[i] == Long.MAX_VALUE ? ">" + LIMITS[i-1] : "<=" + LIMITS[i]);
+            sb.append(":").append(counts.get(i));
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.util;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe cache of compiled XSLTs, keyed on the URL of the XSLT. Each XSLT is compiled at most once per
+ * modification time: For {@code file:}-URLs the timestamp of the file is checked at most once every
+ * {@link #MODIFICATION_CHECK_INTERVAL} ms and the XSLT is re-compiled if it has changed. Other URLs are compiled
+ * once and kept until {@link #clear}.
+ * </p><p>
+ * Templates are thread safe, so the cached Templates can be shared between threads. Transformers created from the
+ * Templates are not.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class TemplatesCache {
+    private static Log log = LogFactory.getLog(TemplatesCache.class);
+
+    /**
+     * The minimum number of milliseconds between checks for changes to cached {@code file:}-XSLTs.
+     */
+    public static final long MODIFICATION_CHECK_INTERVAL = 1000;
+
+    /**
+     * Compiles XSLTs for the cache, e.g. with a specific TransformerFactory.
+     */
+    public interface Compiler {
+        Templates compile(URL xslt) throws TransformerException;
+    }
+
+    private final Map<String, CachedTemplates> cache = new ConcurrentHashMap<>();
+    private final Compiler compiler;
+
+    public TemplatesCache(Compiler compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * @param xslt the location of the XSLT.
+     * @return compiled Templates for the XSLT, from the cache if the XSLT has not changed.
+     * @throws TransformerException if the XSLT could not be compiled.
+     */
+    public Templates get(final URL xslt) throws TransformerException {
+        if (xslt == null) {
+            throw new NullPointerException("xslt URL is null");
+        }
+        final String key = xslt.toString();
+        CachedTemplates cached = cache.get(key);
+        if (cached != null) {
+            if (cached.isCurrent(xslt)) {
+                return cached.templates;
+            }
+            log.info("The XSLT '" + xslt + "' has changed. Re-compiling");
+            cache.remove(key, cached);
+        }
+        try {
+            // Only one compilation of any given XSLT at a time
+            return cache.computeIfAbsent(key, k -> {
+                final long lastModified = getLastModified(xslt);
+                try {
+                    return new CachedTemplates(compiler.compile(xslt), lastModified);
+                } catch (TransformerException e) {
+                    throw new CompilationException(e);
+                }
+            }).templates;
+        } catch (CompilationException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Removes all compiled XSLTs from the cache.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Resolves {@code file:}-URLs with {@link URL#toURI()}, so that escaped characters such as spaces are handled.
+     * @param xslt the location of an XSLT.
+     * @return the modification time for {@code file:}-URLs, else 0.
+     */
+    static long getLastModified(URL xslt) {
+        if (!"file".equals(xslt.getProtocol())) {
+            return 0;
+        }
+        try {
+            return new File(xslt.toURI()).lastModified();
+        } catch (Exception e) {
+            log.debug("Unable to determine last modification time for '" + xslt + "'", e);
+            return 0;
+        }
+    }
+
+    private static class CachedTemplates {
+        private final Templates templates;
+        private final long lastModified;
+        private volatile long lastChecked = System.currentTimeMillis();
+
+        private CachedTemplates(Templates templates, long lastModified) {
+            this.templates = templates;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return false if the XSLT is a {@code file:}-URL that has been modified since compilation. The file is
+         *         checked at most once every {@link #MODIFICATION_CHECK_INTERVAL} ms, else true is returned.
+         */
+        private boolean isCurrent(URL xslt) {
+            if (!"file".equals(xslt.getProtocol())) {
+                return true;
+            }
+            final long now = System.currentTimeMillis();
+            if (now - lastChecked < MODIFICATION_CHECK_INTERVAL) {
+                return true;
+            }
+            lastChecked = now;
+            return getLastModified(xslt) == lastModified;
+        }
+    }
+
+    /* Used for passing compilation failures out of ConcurrentHashMap.computeIfAbsent */
+    private static class CompilationException extends RuntimeException {
+        private CompilationException(TransformerException cause) {
+            super(cause);
+        }
+
+        @Override
+        public TransformerException getCause() {
+            return (TransformerException) super.getCause();
+        }
+    }
+}
@@ -39,7 +39,18 @@ public class XSLTUtil {
 
 
     /**
-     * Create a transformer based on the given XSLTLocation.
+     * Compiled XSLTs, keyed on location. Templates are thread safe, so these are shared in the JVM.
+     */
+    private static final TemplatesCache templatesCache = new TemplatesCache(new TemplatesCache.Compiler() {
+        @Override
+        public Templates compile(URL xslt) throws TransformerException {
+            return XSLTUtil.compile(xslt);
+        }
+    });
+
+    /**
+     * Create a transformer based on the given XSLTLocation. The compiled XSLT is cached, so only the first call for
+     * a given XSLT (or the first call after a change to a file-based XSLT) pays the compilation cost.
      * @param xsltLocation the location of the XSLT.
      * @throws TransformerException thrown if for some reason a Transformer
      *                               could not be instantiated.
@@ -50,32 +61,37 @@ public class XSLTUtil {
     public static Transformer createTransformer(String xsltLocation) throws
                                                           TransformerException {
 
-        log.debug("Requesting and compiling XSLT from '" + xsltLocation + "'");
+        log.debug("Requesting XSLT from '" + xsltLocation + "'");
 
+        URL url = Resolver.getURL(xsltLocation);
+        if (url == null) {
+            throw new NullPointerException(String.format(
+                    "Unable to resolve '%s' to URL", xsltLocation));
+        }
+        return templatesCache.get(url).newTransformer();
+    }
+
+    private static Templates compile(URL url) throws TransformerException {
+        log.debug("Compiling XSLT from '" + url + "'");
         TransformerFactory tfactory = TransformerFactory.newInstance();
         InputStream in = null;
-        Transformer transformer;
+        Templates templates;
         try {
-            URL url = Resolver.getURL(xsltLocation);
-            if (url == null) {
-                throw new NullPointerException(String.format(
-                        "Unable to resolve '%s' to URL", xsltLocation));
-            }
             in = url.openStream();
-            transformer = tfactory.newTransformer(
+            templates = tfactory.newTemplates(
                     new StreamSource(in, url.toString()));
         } catch (MalformedURLException e) {
             throw new TransformerException(String.format(
                     "The URL to the XSLT is not a valid URL: '%s'",
-                    xsltLocation), e);
+                    url), e);
         } catch (IOException e) {
             throw new TransformerException(String.format(
                     "Unable to open the XSLT resource '%s', check the "
-                    + "destination", xsltLocation), e);
+                    + "destination", url), e);
         } catch (TransformerConfigurationException e) {
             throw new TransformerException(String.format(
                     "Wrongly configured transformer for XSLT at '%s'",
-                    xsltLocation), e);
+                    url), e);
         } catch (TransformerException e) {
             throw new TransformerException(
                     "Unable to instantiate Transformer, a system configuration"
@@ -87,10 +103,10 @@ public class XSLTUtil {
                 }
             } catch (IOException e) {
                 log.warn("Non-fatal IOException while closing stream to '"
-                         + xsltLocation + "'");
+                         + url + "'");
             }
         }
-        return transformer;
+        return templates;
     }
 
     /**
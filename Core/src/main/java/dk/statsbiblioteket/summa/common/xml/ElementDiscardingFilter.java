@@ -0,0 +1,107 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.xml;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.util.Set;
+
+/**
+ * SAX filter that removes all elements with the given local names, including their sub trees, before the events
+ * reach the ContentHandler. Used in front of XSLT tree building to avoid materialising parts of large documents
+ * that the XSLT does not use.
+ * </p><p>
+ * This class is not thread safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ElementDiscardingFilter extends XMLFilterImpl {
+    private final Set<String> discard;
+    private int skipDepth = 0; // > 0 means inside a discarded element
+    private long discarded = 0;
+
+    /**
+     * @param parent  the XMLReader that delivers the SAX events.
+     * @param discard local names of elements to remove.
+     */
+    public ElementDiscardingFilter(XMLReader parent, Set<String> discard) {
+        super(parent);
+        this.discard = discard;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        skipDepth = 0;
+        discarded = 0;
+        super.startDocument();
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (skipDepth > 0) {
+            skipDepth++;
+            return;
+        }
+        if (discard.contains(localName.isEmpty() ? qName : localName)) {
+            skipDepth = 1;
+            discarded++;
+            return;
+        }
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (skipDepth > 0) {
+            skipDepth--;
+            return;
+        }
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (skipDepth == 0) {
+            super.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        if (skipDepth == 0) {
+            super.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        if (skipDepth == 0) {
+            super.processingInstruction(target, data);
+        }
+    }
+
+    /**
+     * @return the number of elements discarded (sub elements of discarded elements not counted) since the start of
+     *         the last document.
+     */
+    public long getDiscarded() {
+        return discarded;
+    }
+}
@@ -20,20 +20,40 @@
 package dk.statsbiblioteket.summa.facetbrowser;
 
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.common.configuration.Resolver;
 import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.index.IndexDescriptor;
+import dk.statsbiblioteket.summa.common.lucene.LuceneIndexDescriptor;
+import dk.statsbiblioteket.summa.common.lucene.LuceneIndexUtils;
 import dk.statsbiblioteket.summa.index.IndexManipulator;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.exposed.ExposedCache;
+import org.apache.lucene.search.exposed.facet.CollectorPoolFactory;
+import org.apache.lucene.search.exposed.facet.FacetMap;
+import org.apache.lucene.search.exposed.facet.FacetMapPersistence;
+import org.apache.lucene.search.exposed.facet.request.FacetRequest;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 
 /**
- * Dummy class that logs that index-time FacetBuilding currently is a no-op.
+ * Builds the facet structures (sorted terms and document to tag mappings) for the Lucene index at index time and
+ * persists them next to the index files with {@link FacetMapPersistence}. When a {@link FacetSearchNode} opens the
+ * same index generation, the persisted structures are loaded instead of being built, which moves the startup cost
+ * for faceting from the searchers to the indexer.
  * </p><p>
- * We should keep this as it is possible to move the startup-cost for faceting
- * to the index side at a later time.
+ * The manipulator reads the committed index, so it must be placed after the LuceneManipulator in the list of
+ * manipulators. The facets are taken from the IndexDescriptor in the same way as {@link FacetSearchNode} does.
+ * Persisted structures are tied to the exact index version; if the searcher sees another version (e.g. when using
+ * near-real-time readers), it builds the structures itself as before. If
+ * {@link FacetSearchNode#CONF_USE_DOC_VALUES} is true and the facets can be served by doc values, nothing is built,
+ * as the searchers build those maps from the doc values.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
@@ -41,19 +61,52 @@ import java.io.IOException;
 public class FacetManipulator implements IndexManipulator {
     private static Log log = LogFactory.getLog(FacetManipulator.class);
 
-    @SuppressWarnings("UnusedParameters")
+    /**
+     * If true, the facet structures are built and persisted when the index is consolidated.
+     * </p><p>
+     * Optional. Default is true.
+     */
+    public static final String CONF_BUILD_ON_CONSOLIDATE = "summa.facet.build.onconsolidate";
+    public static final boolean DEFAULT_BUILD_ON_CONSOLIDATE = true;
+
+    /**
+     * If true, the facet structures are built and persisted on every commit. Building takes time proportional to
+     * the size of the index, so this should be disabled for large indexes with frequent commits.
+     * </p><p>
+     * Optional. Default is false.
+     */
+    public static final String CONF_BUILD_ON_COMMIT = "summa.facet.build.oncommit";
+    public static final boolean DEFAULT_BUILD_ON_COMMIT = false;
+
+    private final boolean buildOnConsolidate;
+    private final boolean buildOnCommit;
+    private final boolean useDocValues;
+    private Structure structure = null;
+    private File indexRoot = null;
+
     public FacetManipulator(Configuration conf) {
-        log.info("The current FacetSystem does not do any index-time processing");
+        buildOnConsolidate = conf.getBoolean(CONF_BUILD_ON_CONSOLIDATE, DEFAULT_BUILD_ON_CONSOLIDATE);
+        buildOnCommit = conf.getBoolean(CONF_BUILD_ON_COMMIT, DEFAULT_BUILD_ON_COMMIT);
+        useDocValues = conf.getBoolean(FacetSearchNode.CONF_USE_DOC_VALUES, FacetSearchNode.DEFAULT_USE_DOC_VALUES);
+        if (Structure.isSetupDefinedInConfiguration(conf)) {
+            structure = new Structure(conf);
+            // The act of creating a LuceneIndexDescriptor registers the proper collators with ExposedUtil/Cache
+            LuceneIndexUtils.getDescriptor(conf);
+        }
+        log.info("Created FacetManipulator with buildOnCommit=" + buildOnCommit + ", buildOnConsolidate="
+                 + buildOnConsolidate + ", useDocValues=" + useDocValues + ", structure from "
+                 + (structure == null ? "index folder" : "configuration"));
     }
 
     @Override
     public void open(File indexRoot) throws IOException {
-        log.debug("open(" + indexRoot + ") called - doing nothing");
+        log.debug("open(" + indexRoot + ") called");
+        this.indexRoot = indexRoot;
     }
 
     @Override
     public void clear() throws IOException {
-        log.debug("Clear called - doing nothing");
+        log.debug("Clear called - doing nothing as persisted structures are tied to the index version");
     }
 
     @Override
@@ -64,17 +117,22 @@ public class FacetManipulator implements IndexManipulator {
 
     @Override
     public void commit() throws IOException {
-        log.debug("commit() called - doing nothing");
+        if (buildOnCommit) {
+            build("commit");
+        }
     }
 
     @Override
     public void consolidate() throws IOException {
-        log.debug("consolidate() called - doing nothing");
+        if (buildOnConsolidate) {
+            build("consolidate");
+        }
     }
 
     @Override
     public void close() throws IOException {
-        log.debug("close() called - doing nothing");
+        log.debug("close() called");
+        indexRoot = null;
     }
 
     @Override
@@ -86,4 +144,58 @@ public class FacetManipulator implements IndexManipulator {
     public boolean isOrderChangedSinceLastCommit() throws IOException {
         return false;
     }
+
+    private void build(String trigger) throws IOException {
+        if (indexRoot == null) {
+            log.warn(trigger + "() called before open. No facet structures are built");
+            return;
+        }
+        Structure current = getStructure();
+        if (current == null) {
+            return;
+        }
+        File luceneFolder = new File(indexRoot, LuceneIndexUtils.LUCENE_FOLDER);
+        Directory directory = FSDirectory.open(luceneFolder);
+        if (!DirectoryReader.indexExists(directory)) {
+            log.debug(trigger + "(): No index present at '" + luceneFolder + "'. No facet structures are built");
+            directory.close();
+            return;
+        }
+        long buildTime = -System.currentTimeMillis();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            FacetRequest request = FacetSearchNode.createExposedRequest(current, null, null);
+            if (useDocValues && CollectorPoolFactory.isDocValuesApplicable(reader, request)) {
+                // Doc values maps are not persisted. The searchers build them cheaply from the doc values instead
+                log.debug(trigger + "(): The facet map is built from doc values at search time. No facet "
+                          + "structures are built");
+                return;
+            }
+            FacetMap map = CollectorPoolFactory.createFacetMap(reader, request, useDocValues, false);
+            boolean persisted = FacetMapPersistence.save(reader, request.getGroupKey(), map);
+            buildTime += System.currentTimeMillis();
+            log.info(trigger + "(): Built facet structures for " + reader.maxDoc() + " documents in " + buildTime
+                     + " ms. Persisted: " + persisted);
+        } finally {
+            // The providers are only needed by the searchers, which open their own readers
+            ExposedCache.getInstance().purge(reader);
+            reader.close();
+            directory.close();
+        }
+    }
+
+    private Structure getStructure() throws IOException {
+        if (structure != null) {
+            return structure;
+        }
+        File descriptorFile = new File(indexRoot, IndexDescriptor.DESCRIPTOR_FILENAME);
+        if (!descriptorFile.exists()) {
+            log.warn("No IndexDescriptor at '" + descriptorFile + "'. No facet structures are built");
+            return null;
+        }
+        URL location = Resolver.getURL(descriptorFile.toString());
+        // The act of creating a LuceneIndexDescriptor registers the proper collators with ExposedUtil/Cache
+        new LuceneIndexDescriptor(location);
+        return new Structure(location);
+    }
 }
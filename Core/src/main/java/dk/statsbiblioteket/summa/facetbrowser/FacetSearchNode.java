@@ -100,6 +100,25 @@ public class FacetSearchNode extends SearchNodeImpl implements Browser {
     public static final String CONF_COLLECTOR_FRESH = "exposed.collectorpoolfactory.freshcollectors";
     public static final int DEFAULT_COLLECTOR_FRESH = 2;
 
+    /**
+     * If true, facet structures persisted by {@link FacetManipulator} are loaded when they match the opened index,
+     * instead of being built from scratch.
+     * </p><p>
+     * Optional. Default is true.
+     */
+    public static final String CONF_LOAD_PERSISTED = "exposed.facetmap.loadpersisted";
+    public static final boolean DEFAULT_LOAD_PERSISTED = true;
+
+    /**
+     * If true, facet maps are built from SORTED_SET doc values for requests where all groups are single field groups
+     * in index or count order with doc values declared in the IndexDescriptor. Maps built from doc values are not
+     * persisted by {@link FacetManipulator}.
+     * </p><p>
+     * Optional. Default is false.
+     */
+    public static final String CONF_USE_DOC_VALUES = "exposed.facetmap.usedocvalues";
+    public static final boolean DEFAULT_USE_DOC_VALUES = false;
+
     // Really ugly as this is indirectly shared with IndexLookup
     private static CollectorPoolFactory poolFactory;
 
@@ -124,7 +143,9 @@ public class FacetSearchNode extends SearchNodeImpl implements Browser {
         poolFactory = new CollectorPoolFactory(
             conf.getInt(CONF_COLLECTOR_POOLS,  DEFAULT_COLLECTOR_POOLS),
             conf.getInt(CONF_COLLECTOR_FILLED, DEFAULT_COLLECTOR_FILLED),
-            conf.getInt(CONF_COLLECTOR_FRESH,  DEFAULT_COLLECTOR_FRESH));
+            conf.getInt(CONF_COLLECTOR_FRESH,  DEFAULT_COLLECTOR_FRESH),
+            conf.getBoolean(CONF_USE_DOC_VALUES, DEFAULT_USE_DOC_VALUES),
+            conf.getBoolean(CONF_LOAD_PERSISTED, DEFAULT_LOAD_PERSISTED));
         // TODO: Add override-switch to state where to get the descriptor
         loadDescriptorFromIndex = !Structure.isSetupDefinedInConfiguration(conf);
         if (loadDescriptorFromIndex) {
@@ -404,6 +425,20 @@ public class FacetSearchNode extends SearchNodeImpl implements Browser {
         String facets = request.containsKey(FacetKeys.SEARCH_FACET_FACETS) ?
                         request.getString(FacetKeys.SEARCH_FACET_FACETS) :
                         null;
+        return createExposedRequest(structure, facets, query);
+    }
+
+    /**
+     * Creates an exposed facet request for the given facets. Shared with {@link FacetManipulator} so that the facet
+     * structures built at index time have the same group key as the ones requested at search time.
+     * @param structure the facet structure, normally derived from the IndexDescriptor.
+     * @param facets    the facets to request as specified by {@link FacetKeys#SEARCH_FACET_FACETS}.
+     *                  If null, all facets are requested.
+     * @param query     the query for the request. Can be null.
+     * @return an exposed facet request for the facets.
+     */
+    static org.apache.lucene.search.exposed.facet.request.FacetRequest
+    createExposedRequest(Structure structure, String facets, String query) {
         dk.statsbiblioteket.summa.facetbrowser.browse.FacetRequest oldFacetRequest = new FacetRequest(
                 null, facets, structure);
         //ExposedRequest.
@@ -412,22 +447,22 @@ public class FacetSearchNode extends SearchNodeImpl implements Browser {
 
         for (Map.Entry<String, FacetStructure> facet:
             oldFacetRequest.getFacets().entrySet()) {
-            FacetStructure structure = facet.getValue();
+            FacetStructure facetStructure = facet.getValue();
             NamedComparator comparator;
-            comparator = structure.getSortType().equals(FacetStructure.SORT_ALPHA) ?
-                         ComparatorFactory.create(structure.getLocale()) :
+            comparator = facetStructure.getSortType().equals(FacetStructure.SORT_ALPHA) ?
+                         ComparatorFactory.create(facetStructure.getLocale()) :
                          new NamedOrderDefaultComparator();
-            comparator.setReverse(structure.isReverse());
+            comparator.setReverse(facetStructure.isReverse());
 
             List<ExposedRequest.Field> fields = new ArrayList<>();
-            for (String fieldName: structure.getFields()) {
+            for (String fieldName: facetStructure.getFields()) {
                 fields.add(new ExposedRequest.Field(fieldName, comparator));
             }
             // TODO: Add reverse to request and here
-            ExposedRequest.Group group = new ExposedRequest.Group(structure.getName(), fields, comparator);
+            ExposedRequest.Group group = new ExposedRequest.Group(facetStructure.getName(), fields, comparator);
             FacetRequestGroup facetGroup = new FacetRequestGroup(
-                group, comparator.getOrder(), comparator.isReverse(), structure.getLocale(),
-                0, structure.getWantedTags(), 1, null);
+                group, comparator.getOrder(), comparator.isReverse(), facetStructure.getLocale(),
+                0, facetStructure.getWantedTags(), 1, null);
             groups.add(facetGroup);
         }
         return new org.apache.lucene.search.exposed.facet.request.FacetRequest(query, groups);
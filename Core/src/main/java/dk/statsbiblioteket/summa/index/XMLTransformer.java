@@ -19,12 +19,16 @@ import dk.statsbiblioteket.summa.common.Record;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.configuration.Resolver;
 import dk.statsbiblioteket.summa.common.configuration.SubConfigurationsNotSupportedException;
+import dk.statsbiblioteket.summa.common.filter.Filter;
 import dk.statsbiblioteket.summa.common.filter.Payload;
 import dk.statsbiblioteket.summa.common.filter.object.GraphFilter;
+import dk.statsbiblioteket.summa.common.filter.object.ObjectFilter;
+import dk.statsbiblioteket.summa.common.filter.object.ParallelPayloadSource;
 import dk.statsbiblioteket.summa.common.filter.object.PayloadException;
 import dk.statsbiblioteket.summa.common.lucene.index.IndexUtils;
 import dk.statsbiblioteket.summa.common.util.PayloadMatcher;
 import dk.statsbiblioteket.summa.common.util.RecordUtil;
+import dk.statsbiblioteket.summa.common.xml.ElementDiscardingFilter;
 import dk.statsbiblioteket.summa.common.xml.SummaEntityResolver;
 import dk.statsbiblioteket.summa.plugins.SaxonXSLT;
 import dk.statsbiblioteket.util.Strings;
@@ -41,6 +45,7 @@ import org.xml.sax.helpers.XMLReaderFactory;
 import javax.xml.XMLConstants;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXSource;
@@ -48,7 +53,12 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Transform arbitrary XML in Payload.Record.content using XSLT. This is
@@ -78,6 +88,10 @@ import java.util.List;
  * {@link GraphFilter#CONF_VISIT_CHILDREN} and
  * {@link GraphFilter#CONF_VISIT_PARENTS} should be specified if traversal is
  * required.
+ * </p><p>
+ * The XSLTs are compiled once per JVM (see {@link SaxonXSLT#getTemplates}) and each thread gets its own Transformer.
+ * If {@link #CONF_THREADS} is above 1, the transformer reads ahead from its source and transforms multiple Payloads in
+ * parallel. The order of the Payloads is preserved.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED,
@@ -169,7 +183,63 @@ public class XMLTransformer extends GraphFilter<Object> {
     public static final String CONF_FULL_DEBUG_DUMP = "summa.xmltransformer.fulldebugdump";
     public static final boolean DEFAULT_FULL_DEBUG_DUMP = false;
 
+    /**
+     * A list of element local names that are removed, including their sub trees, from the input before the XSLT
+     * tree is built. The filtering is done on the SAX-stream, so the removed parts never takes up memory.
+     * This is useful for large documents where the XSLT only uses part of the input, such as ALTO pages where only
+     * the text blocks are used.
+     * </p><p>
+     * Warning: The XSLT will not see the discarded elements. Use with care.
+     * </p><p>
+     * Optional. Default is empty (no filtering).
+     */
+    public static final String CONF_DISCARD_ELEMENTS = "summa.xmltransformer.prefilter.discard";
+
+    /**
+     * The tree model to use for the input document. Valid values are {@code saxon}, {@code tiny}, {@code condensed}
+     * and {@code linked}. See {@link SaxonXSLT.TREE_MODEL} for details. {@code condensed} is recommended for large
+     * documents with many repeated values.
+     * </p><p>
+     * Optional. Default is saxon.
+     */
+    public static final String CONF_TREE_MODEL = "summa.xmltransformer.treemodel";
+    public static final String DEFAULT_TREE_MODEL = SaxonXSLT.TREE_MODEL.saxon.toString();
+
+    /**
+     * If true, the number of bytes allocated by the thread during transformations is measured and reported
+     * in the statistics and at TRACE level for each Record. Not all JVMs support this.
+     * </p><p>
+     * Optional. Default is true.
+     */
+    public static final String CONF_MEASURE_ALLOCATION = "summa.xmltransformer.measureallocation";
+    public static final boolean DEFAULT_MEASURE_ALLOCATION = true;
+
+    /**
+     * The number of threads to use for transformation. If this is more than 1, up to {@link #CONF_READ_AHEAD}
+     * Payloads are pulled from the source and transformed in parallel. The Payloads are delivered in the same order
+     * as they were received.
+     * </p><p>
+     * Note: The {@link dk.statsbiblioteket.summa.common.Logging#logProcess} timing for the filter will measure the
+     * time spent waiting for results, not the time spent transforming.
+     * </p><p>
+     * Optional. Default is 1 (no parallel processing).
+     */
+    public static final String CONF_THREADS = "summa.xmltransformer.threads";
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * The maximum number of Payloads that are pulled from the source ahead of delivery when {@link #CONF_THREADS}
+     * is more than 1. This bounds the memory overhead of parallel transformation.
+     * </p><p>
+     * Optional. Default is 2 * threads.
+     */
+    public static final String CONF_READ_AHEAD = "summa.xmltransformer.readahead";
+
     private final boolean topLevelStackOverflowCatch;
+    private final int threads;
+    private final int readAhead;
+    private ExecutorService executor = null;
+    private ParallelPayloadSource parallelSource = null;
 
     /**
      * Set with {@link RecordUtil#CONF_ESCAPE_CONTENT}. Can be overwritten inside Changelings.
@@ -208,7 +278,50 @@ public class XMLTransformer extends GraphFilter<Object> {
                 + CONF_XSLT + ") from configuration");
         }
         fullDebugDump = conf.getBoolean(CONF_FULL_DEBUG_DUMP, DEFAULT_FULL_DEBUG_DUMP);
-        log.info("XMLTransformer with " + changelings.size() + " transforming sub-units initialized");
+        threads = conf.getInt(CONF_THREADS, DEFAULT_THREADS);
+        readAhead = Math.max(threads, conf.getInt(CONF_READ_AHEAD, threads * 2));
+        log.info("XMLTransformer with " + changelings.size() + " transforming sub-units and " + threads
+                 + " threads initialized");
+    }
+
+    @Override
+    public void setSource(Filter filter) {
+        if (threads <= 1) {
+            super.setSource(filter);
+            return;
+        }
+        if (!(filter instanceof ObjectFilter)) { // Let the super class produce the proper error
+            super.setSource(filter);
+        }
+        if (executor == null) {
+            executor = ParallelPayloadSource.createExecutor("XMLTransformer_" + getName(), threads);
+        }
+        parallelSource = new ParallelPayloadSource(
+                (ObjectFilter) filter, executor, readAhead, new ParallelPayloadSource.Processor() {
+            @Override
+            public boolean matches(Payload payload) {
+                return matchesPayload(payload);
+            }
+
+            @Override
+            public boolean process(Payload payload) throws PayloadException {
+                return parallelProcess(payload);
+            }
+        });
+        super.setSource(parallelSource);
+    }
+
+    @Override
+    protected boolean processPayload(Payload payload) throws PayloadException {
+        if (parallelSource == null) {
+            return super.processPayload(payload);
+        }
+        return parallelSource.getResult(payload);
+    }
+
+    // Called from the worker threads
+    private boolean parallelProcess(Payload payload) throws PayloadException {
+        return super.processPayload(payload);
     }
 
 
@@ -242,6 +355,28 @@ public class XMLTransformer extends GraphFilter<Object> {
     }
 
 
+    /**
+     * Transforms the Record with the first matching XSLT and delivers the output to the given Result instead of
+     * the {@link #CONF_DESTINATION} of the Record. This is used for fused processing, where the output is consumed
+     * directly as SAX events by a {@link javax.xml.transform.sax.SAXResult}, avoiding serialisation and re-parsing.
+     * See {@link dk.statsbiblioteket.summa.index.lucene.TransformingDocumentCreator}.
+     * @param record the Record to transform. The Record is not modified.
+     * @param result the receiver of the transformation output.
+     * @return true if a matching XSLT was found and the transformation performed, else false.
+     * @throws PayloadException if the transformation failed.
+     */
+    public boolean transform(Record record, Result result) throws PayloadException {
+        Changeling changeling = getChangeling(record);
+        if (changeling == null) {
+            Logging.logProcess(
+                "XMLTransformer", "Unable to locate a sub transformer",
+                Logging.LogLevel.TRACE, record.toString());
+            return false;
+        }
+        changeling.transform(record, result);
+        return true;
+    }
+
     private Changeling getChangeling(Record record) {
         for (Changeling changeling: changelings) {
             if (changeling.matches(record)) {
@@ -254,7 +389,25 @@ public class XMLTransformer extends GraphFilter<Object> {
     @Override
     public synchronized void close(boolean success) {
         super.close(success);
-        log.info("Closing down XMLTransformer '" + getName() + "'. " + getProcessStats());
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        log.info("Closing down XMLTransformer '" + getName() + "'. " + getProcessStats() + ". " + getTransformStats());
+    }
+
+    /**
+     * @return statistics for transformations, including allocation measurements if enabled.
+     */
+    public String getTransformStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Changeling changeling: changelings) {
+            if (sb.length() != 0) {
+                sb.append(", ");
+            }
+            sb.append(changeling.getStats());
+        }
+        return "Transform stats: [" + sb + "]";
     }
 
     @Override
@@ -267,13 +420,23 @@ public class XMLTransformer extends GraphFilter<Object> {
         private final URL xsltLocation;
         private final boolean stripXMLNamespaces;
         private EntityResolver entityResolver = null;
-        // Used if the EntityResolver is not null
-        private Transformer transformer;
+        private Templates templates;
+        // Transformers are not thread safe, so each thread gets its own
+        private final ThreadLocal<Transformer> transformers = new ThreadLocal<>();
+        private final ThreadLocal<ByteArrayOutputStream> outs = new ThreadLocal<>();
         private final PayloadMatcher matcher;
         private final String source;
         private final String destination;
         private final boolean stackOverflowCatch;
         private final boolean escapeContentOnXmlFull;
+        private final Set<String> discardElements;
+        private final SaxonXSLT.TREE_MODEL treeModel;
+        private final boolean measureAllocation;
+
+        private final AtomicLong transformations = new AtomicLong(0);
+        private final AtomicLong transformNS = new AtomicLong(0);
+        private final AtomicLong allocatedBytes = new AtomicLong(0);
+        private final AtomicLong maxAllocatedBytes = new AtomicLong(0);
 
         public Changeling(Configuration conf, boolean failOnMissing) {
             String xsltLocationString = conf.getString(CONF_XSLT, null);
@@ -290,6 +453,9 @@ public class XMLTransformer extends GraphFilter<Object> {
                 destination = null;
                 stackOverflowCatch = false;
                 escapeContentOnXmlFull = false;
+                discardElements = null;
+                treeModel = null;
+                measureAllocation = false;
                 return;
             }
             matcher = new PayloadMatcher(conf, false);
@@ -311,6 +477,17 @@ public class XMLTransformer extends GraphFilter<Object> {
             stripXMLNamespaces = conf.getBoolean(CONF_STRIP_XML_NAMESPACES, DEFAULT_STRIP_XML_NAMESPACES);
             stackOverflowCatch = conf.getBoolean(CONF_CATCH_STACK_OVERFLOW, DEFAULT_CATCH_STACK_OVERFLOW);
             escapeContentOnXmlFull = conf.getBoolean(RecordUtil.CONF_ESCAPE_CONTENT, defaultEscapeContentOnXmlFull);
+            discardElements = new HashSet<>(conf.getStrings(CONF_DISCARD_ELEMENTS, new ArrayList<String>()));
+            try {
+                treeModel = SaxonXSLT.TREE_MODEL.valueOf(conf.getString(CONF_TREE_MODEL, DEFAULT_TREE_MODEL));
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException(String.format(
+                        "The value '%s' for key %s is not valid. Valid values are %s",
+                        conf.getString(CONF_TREE_MODEL), CONF_TREE_MODEL,
+                        Arrays.toString(SaxonXSLT.TREE_MODEL.values())), e);
+            }
+            measureAllocation = conf.getBoolean(CONF_MEASURE_ALLOCATION, DEFAULT_MEASURE_ALLOCATION)
+                                && SaxonXSLT.getAllocatedBytes() != -1;
             if (xsltLocation != null) {
                 initTransformer(conf);
             }
@@ -319,11 +496,8 @@ public class XMLTransformer extends GraphFilter<Object> {
 
         private void initTransformer(Configuration conf) throws ConfigurationException {
             try {
-                // getLocalTransformer would in principle be better, but is it really safe in our context?
-                //transformer = XSLT.createTransformer(xsltLocation);
-                transformer = SaxonXSLT.createTransformer(xsltLocation);
-                // We want our extensions to work
-                transformer.setParameter(XMLConstants.FEATURE_SECURE_PROCESSING, false);
+                templates = SaxonXSLT.getTemplates(xsltLocation);
+                getTransformer(); // Fail early
                 if (!conf.valueExists(CONF_ENTITY_RESOLVER)) {
                     log.debug("No entity-resolver specified. Using basic transformation calls");
                     return;
@@ -332,7 +506,7 @@ public class XMLTransformer extends GraphFilter<Object> {
                 Class<? extends EntityResolver> resolver = conf.getClass(
                     CONF_ENTITY_RESOLVER, EntityResolver.class, SummaEntityResolver.class);
                 entityResolver = Configuration.create(resolver, conf);
-                log.debug("Constructed Transformer with class " + transformer.getClass());
+                log.debug("Constructed Transformer with class " + getTransformer().getClass());
             } catch (NullPointerException e) {
                 throw new ConfigurationException("Unable to construct Transformer for xslt '" + xsltLocation + "'", e);
             } catch (TransformerException e) {
@@ -344,6 +518,17 @@ public class XMLTransformer extends GraphFilter<Object> {
             }
         }
 
+        private Transformer getTransformer() throws TransformerException {
+            Transformer transformer = transformers.get();
+            if (transformer == null) {
+                transformer = templates.newTransformer();
+                // We want our extensions to work
+                transformer.setParameter(XMLConstants.FEATURE_SECURE_PROCESSING, false);
+                transformers.set(transformer);
+            }
+            return transformer;
+        }
+
         /**
          * A Changeling is valid if is has an xsltLocation.
          * @return if the Changeling can be used.
@@ -355,18 +540,48 @@ public class XMLTransformer extends GraphFilter<Object> {
         public boolean matches(Record record) {
             return !matcher.isMatcherActive() || matcher.isMatch(record);
         }
-        private ByteArrayOutputStream out = null;
         public void transform(Record record) throws PayloadException {
+            transform(record, null);
+        }
+
+        /**
+         * @param record the Record to transform.
+         * @param result if null, the output is stored in the Record at the destination. If not null, the output is
+         *               delivered to the result and the Record is not modified.
+         * @throws PayloadException if the transformation failed.
+         */
+        public void transform(Record record, Result result) throws PayloadException {
+            long allocated = measureAllocation ? -SaxonXSLT.getAllocatedBytes() : 0;
             long transformTime = -System.nanoTime();
-            innerTransform(record);
+            innerTransform(record, result);
             transformTime += System.nanoTime();
+            transformations.incrementAndGet();
+            transformNS.addAndGet(transformTime);
+            if (measureAllocation) {
+                allocated += SaxonXSLT.getAllocatedBytes();
+                allocatedBytes.addAndGet(allocated);
+                long max;
+                while ((max = maxAllocatedBytes.get()) < allocated && !maxAllocatedBytes.compareAndSet(max, allocated));
+            }
             Logging.logProcess(
                 "XMLTransformer",
-                "Transform for " + record.getId() + " finished in " + (transformTime / 1000000.0) + "ms",
+                "Transform for " + record.getId() + " finished in " + (transformTime / 1000000.0) + "ms"
+                + (measureAllocation ? " with " + allocated / 1024 + "KB allocated" : ""),
                 Logging.LogLevel.TRACE, record.getId());
         }
 
-        private synchronized void innerTransform(Record record) throws PayloadException {
+        public String getStats() {
+            long count = transformations.get();
+            return "Changeling(xslt=" + xsltLocation + ", treeModel=" + treeModel
+                   + ", transformations=" + count
+                   + ", avgMS=" + (count == 0 ? "N/A" : String.format("%.2f", transformNS.get() / 1000000.0 / count))
+                   + (measureAllocation ?
+                      ", avgAllocatedKB=" + (count == 0 ? "N/A" : allocatedBytes.get() / 1024 / count)
+                      + ", maxAllocatedKB=" + maxAllocatedBytes.get() / 1024 : "")
+                   + ")";
+        }
+
+        private void innerTransform(Record record, Result externalResult) throws PayloadException {
             Reader reader = getReader(record);
 
             XMLReader xml;
@@ -378,14 +593,28 @@ public class XMLTransformer extends GraphFilter<Object> {
             if (entityResolver != null) {
                 xml.setEntityResolver(entityResolver);
             }
-            if (out == null) {
-                out = new ByteArrayOutputStream(5000);
+            ByteArrayOutputStream out = null;
+            Result result = externalResult;
+            if (result == null) {
+                out = outs.get();
+                if (out == null) {
+                    out = new ByteArrayOutputStream(5000);
+                    outs.set(out);
+                }
+                out.reset();
+                result = new StreamResult(out);
             }
-
-            out.reset();
-            Result result = new StreamResult(out);
             InputSource is = new InputSource(reader);
-            Source source = new SAXSource(xml, is);
+            ElementDiscardingFilter discarder = discardElements.isEmpty() ? null :
+                    new ElementDiscardingFilter(xml, discardElements);
+            Source source = new SAXSource(discarder == null ? xml : discarder, is);
+            if (treeModel != SaxonXSLT.TREE_MODEL.saxon) {
+                try {
+                    source = SaxonXSLT.buildTree(source, treeModel);
+                } catch (TransformerException e) {
+                    throw new PayloadException("Unable to build " + treeModel + " tree for " + record.getId(), e);
+                }
+            }
 
             if (log.isTraceEnabled()) {
                 log.trace(getName() + " calling transformer for " + getName() + " for " + record);
@@ -395,6 +624,16 @@ public class XMLTransformer extends GraphFilter<Object> {
             } else {
                 nonCatchTransform(record, source, result);
             }
+            if (discarder != null && log.isTraceEnabled()) {
+                log.trace("Discarded " + discarder.getDiscarded() + " elements from " + record.getId()
+                          + " before transformation");
+            }
+            if (out == null) {
+                if (log.isTraceEnabled()) {
+                    log.trace(getName() + " delivered the transformation of " + record + " to " + result);
+                }
+                return;
+            }
             RecordUtil.setBytes(record, out.toByteArray(), destination);
             if (fullDebugDump) {
                 try {
@@ -432,6 +671,7 @@ public class XMLTransformer extends GraphFilter<Object> {
         @SuppressWarnings("ThrowInsideCatchBlockWhichIgnoresCaughtException")
         private void catchTransform(Record record, Source source, Result result) throws PayloadException {
             try {
+                Transformer transformer = getTransformer();
                 transformer.setParameter(IndexUtils.RECORD_FIELD, record.getId());
                 transformer.setParameter("recordBase", record.getBase());
                 // TODO: Seems that DTMManagerDefault.getDTM & DTMStringPool.stringToIndex takes most of the time
@@ -451,6 +691,7 @@ public class XMLTransformer extends GraphFilter<Object> {
 
         private void nonCatchTransform(Record record, Source source, Result result) throws PayloadException {
             try {
+                Transformer transformer = getTransformer();
                 transformer.setParameter(IndexUtils.RECORD_FIELD, record.getId());
                 transformer.setParameter("recordBase", record.getBase());
                 transformer.transform(source, result);
@@ -470,6 +711,9 @@ public class XMLTransformer extends GraphFilter<Object> {
                    ", escapeContent='" + escapeContentOnXmlFull + '\'' +
                    ", destination='" + destination + '\'' +
                    ", stackOverflowCatch=" + stackOverflowCatch +
+                   ", discardElements=" + discardElements +
+                   ", treeModel=" + treeModel +
+                   ", measureAllocation=" + measureAllocation +
                    ')';
         }
     }
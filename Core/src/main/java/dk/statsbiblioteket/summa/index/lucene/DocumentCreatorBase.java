@@ -14,6 +14,8 @@
  */
 package dk.statsbiblioteket.summa.index.lucene;
 
+import com.ibm.icu.text.Collator;
+import com.ibm.icu.text.RawCollationKey;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.filter.object.GraphFilter;
 import dk.statsbiblioteket.summa.common.index.IndexField;
@@ -24,6 +26,17 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.exposed.compare.ComparatorFactory;
+import org.apache.lucene.search.exposed.compare.NamedCollatorComparator;
+import org.apache.lucene.search.exposed.compare.NamedComparator;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Convenience base for Document creators.
@@ -34,6 +47,9 @@ import org.apache.lucene.document.Field;
 public abstract class DocumentCreatorBase<T> extends GraphFilter<T> {
     private static final Log log = LogFactory.getLog(DocumentCreatorBase.class);
 
+    // Collators are expensive to create and only thread safe when frozen
+    private final Map<String, Collator> sortCollators = new ConcurrentHashMap<>();
+
     protected DocumentCreatorBase(Configuration conf) {
         super(conf);
     }
@@ -82,9 +98,82 @@ public abstract class DocumentCreatorBase<T> extends GraphFilter<T> {
                       + field.boost() + " to Lucene Document");
         }
         luceneDoc.add(field);
+        addDocValues(indexField, luceneDoc, fieldName, content);
         return indexField;
     }
 
+    /**
+     * Adds doc values for the content as specified by {@link IndexField#getDocValues()}. Only the first value is
+     * used for the single valued types sorted and numeric; subsequent values are ignored.
+     * @param indexField the resolved field from the index descriptor.
+     * @param luceneDoc  the Lucene Document to update.
+     * @param fieldName  the name of the field.
+     * @param content    the content for the field.
+     */
+    protected void addDocValues(LuceneIndexField indexField, org.apache.lucene.document.Document luceneDoc,
+                                String fieldName, String content) {
+        switch (indexField.getDocValues()) {
+            case none: {
+                break;
+            }
+            case sortedset: {
+                luceneDoc.add(new SortedSetDocValuesField(fieldName, new BytesRef(content)));
+                break;
+            }
+            case sorted: {
+                if (!hasDocValues(luceneDoc, fieldName)) {
+                    luceneDoc.add(new SortedDocValuesField(fieldName, getSortKey(indexField, content)));
+                }
+                break;
+            }
+            case numeric: {
+                if (!hasDocValues(luceneDoc, fieldName)) {
+                    try {
+                        luceneDoc.add(new NumericDocValuesField(fieldName, Long.parseLong(content)));
+                    } catch (NumberFormatException e) {
+                        log.debug("Unable to parse '" + content + "' as a long for numeric doc values in field '"
+                                  + fieldName + "'. No doc values added");
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    private boolean hasDocValues(org.apache.lucene.document.Document luceneDoc, String fieldName) {
+        for (IndexableField existing: luceneDoc.getFields(fieldName)) {
+            if (existing.fieldType().docValueType() != null) {
+                if (log.isTraceEnabled()) {
+                    log.trace("The field '" + fieldName + "' already has doc values. Skipping extra value");
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If the field has a sort locale, the collator key for the content is returned, so that the binary order of the
+     * doc values is the locale order. The collator is the same as the one used for search-time sorting.
+     */
+    private BytesRef getSortKey(LuceneIndexField indexField, String content) {
+        String locale = indexField.getSortLocale();
+        if (locale == null || "".equals(locale)) {
+            return new BytesRef(content);
+        }
+        Collator collator = sortCollators.get(locale);
+        if (collator == null) {
+            NamedComparator comparator = ComparatorFactory.create(locale);
+            if (!(comparator instanceof NamedCollatorComparator)) {
+                return new BytesRef(content);
+            }
+            collator = ((NamedCollatorComparator) comparator).getCollator().freeze();
+            sortCollators.put(locale, collator);
+        }
+        RawCollationKey key = collator.getRawCollationKey(content, null);
+        return new BytesRef(key.bytes, 0, key.size);
+    }
+
     /**
      * A special case of {@link #addFieldToDocument} that adds to the freetext-
      * field.
@@ -17,9 +17,11 @@ package dk.statsbiblioteket.summa.index.lucene;
 import dk.statsbiblioteket.summa.common.Logging;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.filter.object.ParallelPayloadSource;
 import dk.statsbiblioteket.summa.common.lucene.LuceneIndexDescriptor;
 import dk.statsbiblioteket.summa.common.lucene.LuceneIndexUtils;
 import dk.statsbiblioteket.summa.common.lucene.index.IndexUtils;
+import dk.statsbiblioteket.summa.common.lucene.index.NRTRegistry;
 import dk.statsbiblioteket.summa.index.IndexManipulator;
 import dk.statsbiblioteket.util.Files;
 import dk.statsbiblioteket.util.qa.QAInfo;
@@ -27,9 +29,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
 import org.apache.lucene.util.Version;
 
 import java.io.File;
@@ -90,6 +95,20 @@ public class LuceneManipulator implements IndexManipulator {
     /** Default value for {@link #CONF_WRITER_THREADS}. */
     public static final int DEFAULT_WRITER_THREADS = 1;
 
+    /**
+     * The number of Documents that can be queued for the writer threads, in
+     * addition to the ones being processed. A queue allows the filter chain to
+     * continue while the writer threads are busy analyzing. The total number
+     * of Documents held by the manipulator is writerthreads + writerqueue.
+     * Only used if {@link #CONF_WRITER_THREADS} is more than 1.
+     * </p><p>
+     * The Documents are analyzed using the shared index analyzer from the
+     * IndexDescriptor, which holds reusable analysis components per thread.
+     * </p><p>
+     * Optional. Default is writerthreads.
+     */
+    public static final String CONF_WRITER_QUEUE = "summa.index.lucene.writerqueue";
+
     /**
      * The maximum number of segments after a consolidate. Setting this to 1
      * increases consolidation time considerably on large (multi-GB) indexes.
@@ -116,6 +135,102 @@ public class LuceneManipulator implements IndexManipulator {
     /** Default value for {@link #CONF_EXPUNGE_DELETES_ON_COMMIT}. */
     public static final boolean DEFAULT_EXPUNGE_DELETES_ON_COMMIT = true;
 
+    /**
+     * The merge policy for the index. Valid values are
+     * </p><ul>
+     *   <li>tiered: Merges segments of roughly equal size, capped by
+     *       {@link #CONF_MAX_MERGED_SEGMENT_MB}. Merged segments need not be
+     *       adjacent, so document order is not guaranteed after merges.</li>
+     *   <li>logdoc: Merges adjacent segments based on document count with the
+     *       merge factor {@link #CONF_MERGE_FACTOR}. This preserves document
+     *       order.</li>
+     * </ul><p>
+     * Optional. Default is tiered.
+     */
+    public static final String CONF_MERGE_POLICY = "summa.index.lucene.mergepolicy";
+    public static final String DEFAULT_MERGE_POLICY = "tiered";
+
+    /**
+     * The maximum size of a segment produced by normal merging with the tiered
+     * merge policy. Consolidation via forceMerge ignores this limit.
+     * </p><p>
+     * Optional. Default is 5120 (5GB).
+     */
+    public static final String CONF_MAX_MERGED_SEGMENT_MB = "summa.index.lucene.mergepolicy.maxsegmentmb";
+    public static final double DEFAULT_MAX_MERGED_SEGMENT_MB = 5120;
+
+    /**
+     * The allowed number of segments per tier with the tiered merge policy.
+     * Higher values means less merging and more segments.
+     * </p><p>
+     * Optional. Default is 10.
+     */
+    public static final String CONF_SEGMENTS_PER_TIER = "summa.index.lucene.mergepolicy.segmentspertier";
+    public static final double DEFAULT_SEGMENTS_PER_TIER = 10;
+
+    /**
+     * The merge factor for the logdoc merge policy.
+     * </p><p>
+     * Optional. Default is 80.
+     */
+    public static final String CONF_MERGE_FACTOR = "summa.index.lucene.mergepolicy.mergefactor";
+    public static final int DEFAULT_MERGE_FACTOR = 80;
+
+    /**
+     * The number of threads used for merging segments. If this is 0, merges
+     * are performed in the indexing thread, blocking updates while merging.
+     * If it is 1 or more, merges are performed in the background by a
+     * concurrent merge scheduler.
+     * </p><p>
+     * Optional. Default is 1.
+     */
+    public static final String CONF_MERGE_THREADS = "summa.index.lucene.mergescheduler.threads";
+    public static final int DEFAULT_MERGE_THREADS = 1;
+
+    /**
+     * The maximum write speed in MB/second for merges. This limits the impact
+     * of merging on concurrent searches and indexing. -1 means unlimited.
+     * </p><p>
+     * Optional. Default is -1.
+     */
+    public static final String CONF_MERGE_MAX_MB_PER_SEC = "summa.index.lucene.mergescheduler.maxmbpersec";
+    public static final double DEFAULT_MERGE_MAX_MB_PER_SEC = -1;
+
+    /**
+     * If true, {@link #consolidate()} starts the merge down to
+     * {@link #CONF_MAX_SEGMENTS_ON_CONSOLIDATE} segments and returns without
+     * waiting for it to finish, so that updates can continue. The merged index
+     * is persisted by the next commit. If false, consolidate blocks until the
+     * merge has finished.
+     * </p><p>
+     * Note: Requires {@link #CONF_MERGE_THREADS} to be 1 or more.
+     * </p><p>
+     * Optional. Default is false.
+     */
+    public static final String CONF_CONSOLIDATE_BACKGROUND = "summa.index.lucene.consolidate.background";
+    public static final boolean DEFAULT_CONSOLIDATE_BACKGROUND = false;
+
+    /**
+     * If true, the IndexWriter is registered in the {@link NRTRegistry} so that
+     * searchers in the same JVM can open near-real-time readers directly from
+     * it, making updates searchable before commit. See
+     * {@link dk.statsbiblioteket.summa.support.lucene.search.LuceneSearchNode#CONF_NRT}.
+     * </p><p>
+     * Optional. Default is false.
+     */
+    public static final String CONF_NRT = "summa.index.lucene.nrt";
+    public static final boolean DEFAULT_NRT = false;
+
+    /**
+     * The minimum number of milliseconds between notifications to NRT
+     * searchers. Lower values means fresher search results at the cost of
+     * more frequent reader reopens.
+     * </p><p>
+     * Optional. Default is 1000.
+     */
+    public static final String CONF_NRT_REFRESH_INTERVAL = "summa.index.lucene.nrt.refreshinterval";
+    public static final int DEFAULT_NRT_REFRESH_INTERVAL = 1000;
+
     /** The index descriptor, used for providing Analyzers et al. */
     private LuceneIndexDescriptor descriptor;
     /** The general index folder, which contains the concrete index-parts. */
@@ -126,22 +241,29 @@ public class LuceneManipulator implements IndexManipulator {
     /** The connection to the Lucene index */
     private IndexWriter writer;
 
-    /*
-     * Keeps track of RecordIDs. The idMapper is used and updated by
-     * {@link #updateAddition}.
-     */
-//    private IDMapper idMapper;
-
     private int bufferSizePayloads = DEFAULT_BUFFER_SIZE_PAYLOADS;
     private double buffersizeMB = DEFAULT_BUFFER_SIZE_MB;
     private int maxMergeOnConsolidate = DEFAULT_MAX_SEGMENTS_ON_CONSOLIDATE;
     private int writerThreads = DEFAULT_WRITER_THREADS;
+    private int writerQueue;
     private boolean expungeDeleted = DEFAULT_EXPUNGE_DELETES_ON_COMMIT;
+    private final String mergePolicy;
+    private final double maxMergedSegmentMB;
+    private final double segmentsPerTier;
+    private final int mergeFactor;
+    private final int mergeThreads;
+    private final double mergeMaxMBPerSec;
+    private final boolean consolidateBackground;
+    private final boolean nrt;
+    private final int nrtRefreshInterval;
+    private File nrtFolder = null;
 
     private boolean orderChanged = false;
     // WriterCallables automatically reappears in available after use
     private BlockingQueue<WriterCallable> available;
     private ExecutorService executor;
+    /* Guards the Lucene commit and the closing of the writer */
+    private final Object commitLock = new Object();
 
     public LuceneManipulator(Configuration conf) {
         bufferSizePayloads = conf.getInt(CONF_BUFFER_SIZE_PAYLOADS, bufferSizePayloads);
@@ -156,18 +278,56 @@ public class LuceneManipulator implements IndexManipulator {
         if (writerThreads < 1) {
             throw new ConfigurationException("The number of writer threads must be > 0. It was " + writerThreads);
         }
+        writerQueue = writerThreads == 1 ? 0 : conf.getInt(CONF_WRITER_QUEUE, writerThreads);
+        if (writerQueue < 0) {
+            throw new ConfigurationException("The writer queue size must be >= 0. It was " + writerQueue);
+        }
         expungeDeleted = conf.getBoolean(CONF_EXPUNGE_DELETES_ON_COMMIT, expungeDeleted);
+        mergePolicy = conf.getString(CONF_MERGE_POLICY, DEFAULT_MERGE_POLICY);
+        if (!"tiered".equals(mergePolicy) && !"logdoc".equals(mergePolicy)) {
+            throw new ConfigurationException(
+                    "Unknown merge policy '" + mergePolicy + "' for key " + CONF_MERGE_POLICY
+                    + ". Valid values are tiered and logdoc");
+        }
+        maxMergedSegmentMB = getDouble(conf, CONF_MAX_MERGED_SEGMENT_MB, DEFAULT_MAX_MERGED_SEGMENT_MB);
+        segmentsPerTier = getDouble(conf, CONF_SEGMENTS_PER_TIER, DEFAULT_SEGMENTS_PER_TIER);
+        mergeFactor = conf.getInt(CONF_MERGE_FACTOR, DEFAULT_MERGE_FACTOR);
+        mergeThreads = conf.getInt(CONF_MERGE_THREADS, DEFAULT_MERGE_THREADS);
+        mergeMaxMBPerSec = getDouble(conf, CONF_MERGE_MAX_MB_PER_SEC, DEFAULT_MERGE_MAX_MB_PER_SEC);
+        consolidateBackground = conf.getBoolean(CONF_CONSOLIDATE_BACKGROUND, DEFAULT_CONSOLIDATE_BACKGROUND);
+        if (consolidateBackground && mergeThreads < 1) {
+            log.warn(CONF_CONSOLIDATE_BACKGROUND + " is true but " + CONF_MERGE_THREADS + " is " + mergeThreads
+                     + ". Consolidation will block");
+        }
+        nrt = conf.getBoolean(CONF_NRT, DEFAULT_NRT);
+        nrtRefreshInterval = conf.getInt(CONF_NRT_REFRESH_INTERVAL, DEFAULT_NRT_REFRESH_INTERVAL);
         descriptor = LuceneIndexUtils.getDescriptor(conf);
-        available = new ArrayBlockingQueue<>(writerThreads);
-        for (int i = 0 ; i < writerThreads ; i++) {
+        available = new ArrayBlockingQueue<>(writerThreads + writerQueue);
+        for (int i = 0 ; i < writerThreads + writerQueue ; i++) {
             available.add(new WriterCallable(available));
         }
         executor = null;
         log.info(String.format(
                 "LuceneManipulator created. bufferSizePayloads is %d, bufferSizeMB is %f"
-                + ", maxMergeOnConsolidate is %d, writerThreads is %d, expungeDeletedOnCommit=%b",
+                + ", maxMergeOnConsolidate is %d, writerThreads is %d, writerQueue is %d, expungeDeletedOnCommit=%b",
                 bufferSizePayloads, buffersizeMB, maxMergeOnConsolidate,
-                writerThreads, expungeDeleted));
+                writerThreads, writerQueue, expungeDeleted));
+        log.info(String.format(
+                "Merging: policy=%s, maxMergedSegmentMB=%.0f, segmentsPerTier=%.1f, mergeFactor=%d, mergeThreads=%d, "
+                + "mergeMaxMBPerSec=%.1f, consolidateBackground=%b, nrt=%b, nrtRefreshInterval=%dms",
+                mergePolicy, maxMergedSegmentMB, segmentsPerTier, mergeFactor, mergeThreads, mergeMaxMBPerSec,
+                consolidateBackground, nrt, nrtRefreshInterval));
+    }
+
+    private double getDouble(Configuration conf, String key, double defaultValue) {
+        String value = conf.getString(key, Double.toString(defaultValue));
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Unable to parse '%s' from %s as a double. Using default %f",
+                                   value, key, defaultValue));
+            return defaultValue;
+        }
     }
 
     @Override
@@ -184,14 +344,6 @@ public class LuceneManipulator implements IndexManipulator {
         }
         indexDirectory = new NIOFSDirectory(
                 new File(indexRoot, LuceneIndexUtils.LUCENE_FOLDER));
-/*        if (IndexReader.indexExists(indexDirectory)) {
-            log.debug("Extracting existing RecordIDs from index at '"
-                      + indexDirectory.getFile() + "'");
-            idMapper = new IDMapper(indexDirectory);
-        } else {
-            log.debug("No existing index, creating empty idMapper");
-            idMapper = new IDMapper();
-        }*/
         checkWriter();
     }
 
@@ -214,28 +366,29 @@ public class LuceneManipulator implements IndexManipulator {
                 writerConfig.setMaxBufferedDocs(bufferSizePayloads);
             }
             writerConfig.setRAMBufferSizeMB(buffersizeMB);
-            // Old style merging to preserve order of documents
-            writerConfig.setMergeScheduler(new SerialMergeScheduler());
+            writerConfig.setMergePolicy(createMergePolicy());
+            writerConfig.setMergeScheduler(createMergeScheduler());
             log.debug(String.format("Checking for index existence at '%s'", indexDirectory));
 
+            Directory writerDirectory = indexDirectory;
+            if (mergeMaxMBPerSec > 0) {
+                RateLimitedDirectoryWrapper limited = new RateLimitedDirectoryWrapper(indexDirectory);
+                limited.setMaxWriteMBPerSec(mergeMaxMBPerSec, IOContext.Context.MERGE);
+                writerDirectory = limited;
+            }
             if (DirectoryReader.indexExists(indexDirectory)) {
                 log.debug(String.format(
                         "checkWriter: Setting configuration for an existing index at '%s",
                           indexDirectory.getDirectory()));
                 writerConfig.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
-
-
-                LogMergePolicy logMergePolicy = new LogDocMergePolicy();
-                logMergePolicy.setMergeFactor(80); // TODO: Verify this
-                writerConfig.setMergePolicy(logMergePolicy);
-                writer = new IndexWriter(indexDirectory, writerConfig);
-
-                // We want to avoid implicit merging of segments as is messes
-                // up document ordering
             } else {
                 log.debug("No existing index at '" + indexDirectory.getDirectory() + "', creating new index");
                 writerConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-                writer = new IndexWriter(indexDirectory, writerConfig);
+            }
+            writer = new IndexWriter(writerDirectory, writerConfig);
+            if (nrt) {
+                nrtFolder = indexDirectory.getDirectory();
+                NRTRegistry.register(nrtFolder, writer, nrtRefreshInterval);
             }
         } catch (CorruptIndexException e) {
             throw new IOException(String.format("Corrupt index found at '%s'", indexDirectory.getDirectory()),e);
@@ -247,6 +400,29 @@ public class LuceneManipulator implements IndexManipulator {
         }
     }
 
+    private MergePolicy createMergePolicy() {
+        if ("logdoc".equals(mergePolicy)) {
+            // Only adjacent segments are merged, which preserves document order
+            LogMergePolicy logMergePolicy = new LogDocMergePolicy();
+            logMergePolicy.setMergeFactor(mergeFactor);
+            return logMergePolicy;
+        }
+        TieredMergePolicy tiered = new TieredMergePolicy();
+        tiered.setMaxMergedSegmentMB(maxMergedSegmentMB);
+        tiered.setSegmentsPerTier(segmentsPerTier);
+        return tiered;
+    }
+
+    private MergeScheduler createMergeScheduler() {
+        if (mergeThreads < 1) {
+            return new SerialMergeScheduler();
+        }
+        ConcurrentMergeScheduler concurrent = new ConcurrentMergeScheduler();
+        // Allow a few pending merges before the indexing threads are stalled
+        concurrent.setMaxMergesAndThreads(mergeThreads + 2, mergeThreads);
+        return concurrent;
+    }
+
     /*
      * Opens a reader at indexDirectory if no reader is currently open.
      * @throws IOException if the reader could not be opened.
@@ -332,6 +508,9 @@ public class LuceneManipulator implements IndexManipulator {
         if (writerThreads == 1) {
             waitForJob(writerFuture, payload);
         }
+        if (nrtFolder != null) {
+            NRTRegistry.changed(nrtFolder);
+        }
         log.trace("writerCallable submitted");
     }
 
@@ -437,30 +616,52 @@ public class LuceneManipulator implements IndexManipulator {
 //        }
     }
   */
+    /**
+     * Waits for all pending writer jobs and commits the index. Only the waiting is exclusive with {@link #update}, as
+     * update would otherwise dispatch jobs to the executor while it is shut down. The Lucene commit is thread safe and
+     * happens under a separate lock, so that updates can continue while the segments are flushed and synced.
+     * Documents added during the Lucene commit might or might not be part of the commit.
+     */
     @Override
-    public synchronized void commit() throws IOException {
+    public void commit() throws IOException {
         //noinspection DuplicateStringLiteralInspection
         log.trace("commit() called for '" + indexRoot + "'");
         long startTime = System.currentTimeMillis();
-        if (writer == null) {
-            log.trace("commit: No writer, commit finished in " + (System.currentTimeMillis() - startTime) + " ms");
-            return;
-        }
+        final IndexWriter committer;
+        synchronized (this) {
+            if (writer == null) {
+                log.trace("commit: No writer, commit finished in " + (System.currentTimeMillis() - startTime) + " ms");
+                return;
+            }
 
-        log.debug("commit: Flushing index at '" + indexRoot + "' with docCount " + writer.maxDoc());
-        flushPending();
-        orderChanged = false;
-        if (expungeDeleted) {
-            log.trace("commit: Expunging deleted documents from '" + indexRoot + "'");
-            writer.forceMergeDeletes(true);
-        } else {
-            log.trace("commit: Skipping the expunge deleted documents step");
+            log.debug("commit: Flushing index at '" + indexRoot + "' with docCount " + writer.maxDoc());
+            flushPending();
+            if (nrtFolder != null) {
+                // Updates from parallel writers might have been pending at the last notification
+                NRTRegistry.changed(nrtFolder);
+            }
+            orderChanged = false;
+            committer = writer;
+        }
+        final int docCount;
+        synchronized (commitLock) {
+            if (committer != writer) {
+                log.debug("commit: The writer for '" + indexRoot + "' was closed concurrently. Skipping commit");
+                return;
+            }
+            if (expungeDeleted) {
+                log.trace("commit: Expunging deleted documents from '" + indexRoot + "'");
+                committer.forceMergeDeletes(true);
+            } else {
+                log.trace("commit: Skipping the expunge deleted documents step");
+            }
+            log.trace("commit: Lucene committing index at '" + indexRoot + "'");
+            committer.commit();
+            docCount = committer.maxDoc();
         }
-        log.trace("commit: Lucene committing index at '" + indexRoot + "'");
-        writer.commit();
         log.debug(String.format(
                 "Commit finished for '%s' in %s ms with docCount %d and expungeDeleted=%b",
-                indexRoot, System.currentTimeMillis() - startTime, writer.maxDoc(), expungeDeleted));
+                indexRoot, System.currentTimeMillis() - startTime, docCount, expungeDeleted));
     }
 
     /* Note: Sets executor = null */
@@ -470,7 +671,7 @@ public class LuceneManipulator implements IndexManipulator {
             return;
         }
 
-        log.debug("Waiting for " + available.size() + " pending jobs to finish");
+        log.debug("Waiting for " + (writerThreads + writerQueue - available.size()) + " pending jobs to finish");
         try {
             executor.shutdown();
             executor.awaitTermination(10, TimeUnit.MINUTES);
@@ -485,7 +686,7 @@ public class LuceneManipulator implements IndexManipulator {
     private void checkExecutor() {
         if (executor == null) {
             log.debug("Creating new thread pool");
-            executor = Executors.newFixedThreadPool(writerThreads);
+            executor = ParallelPayloadSource.createExecutor("LuceneWriter", writerThreads);
         }
     }
 
@@ -501,6 +702,15 @@ public class LuceneManipulator implements IndexManipulator {
         /**
         log.trace("consolidate(): Removing deletions");
         writer.expungeDeletes(true);*/
+        if (consolidateBackground && mergeThreads > 0) {
+            log.info(String.format(
+                    "Starting background optimization of index at %s to a maximum of %d segments. The result will "
+                    + "be persisted on a later commit",
+                    indexDirectory.getDirectory(), maxMergeOnConsolidate));
+            writer.forceMerge(maxMergeOnConsolidate, false);
+            log.debug("Background consolidate started in " + (System.currentTimeMillis()- startTime) + " ms");
+            return;
+        }
         log.info(String.format(
                 "Optimizing index at %s to a maximum of %d segments. This might take a while",
                 indexDirectory.getDirectory(), maxMergeOnConsolidate));
@@ -548,10 +758,6 @@ public class LuceneManipulator implements IndexManipulator {
         indexDirectory.close();
         //noinspection AssignmentToNull
         indexDirectory = null;
-
-//        idMapper.clear();
-        //noinspection AssignmentToNull
-//        idMapper = null;
     }
 
     private void closeWriter() throws IOException {
@@ -564,10 +770,16 @@ public class LuceneManipulator implements IndexManipulator {
             return;
         }
         log.debug("closeWriter: Closing '" + indexDirectory.getDirectory() + "'");
+        if (nrtFolder != null) {
+            NRTRegistry.unregister(nrtFolder, writer);
+            nrtFolder = null;
+        }
         try {
-            writer.close();
-            //noinspection AssignmentToNull
-            writer = null;
+            synchronized (commitLock) {
+                writer.close();
+                //noinspection AssignmentToNull
+                writer = null;
+            }
         } catch (CorruptIndexException e) {
             throw new IOException("Corrupt index in writer for '" + indexDirectory.getDirectory() + "'", e);
         } catch (IOException e) {
@@ -593,6 +805,7 @@ public class LuceneManipulator implements IndexManipulator {
 
     @Override
     public String toString() {
-        return "LuceneManipulator(writerThreads=" + writerThreads + ", indexRoot=" + indexRoot + ")";
+        return "LuceneManipulator(writerThreads=" + writerThreads + ", writerQueue=" + writerQueue
+               + ", nrt=" + nrt + ", indexRoot=" + indexRoot + ")";
     }
 }
@@ -0,0 +1,422 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.index.lucene;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.filter.object.ParallelPayloadSource;
+import dk.statsbiblioteket.summa.common.lucene.LuceneIndexUtils;
+import dk.statsbiblioteket.summa.index.IndexManipulator;
+import dk.statsbiblioteket.util.Files;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Partitions the incoming Payloads across a number of {@link LuceneManipulator}s, each writing its own shard of the
+ * index. The shard for a Payload is determined by the hash of its id, so updates and deletions for a given Record
+ * always goes to the same shard. The shards are located at {@code indexRoot/shards/shard_xx/lucene}.
+ * </p><p>
+ * Each shard has its own writer thread with a bounded queue of Payloads, see {@link #CONF_SHARD_QUEUE}, so the shards
+ * analyze and write Documents in parallel while the order of updates within each shard is preserved. Flushing,
+ * merging, commits and consolidations are also performed in parallel across the shards; they are queued after the
+ * pending updates for each shard. The LuceneManipulators for the shards are created from the configuration for this
+ * manipulator, so all {@link LuceneManipulator} properties apply to each shard. Failures in the writer threads are
+ * logged and the first one is thrown from the next call to {@link #update}, {@link #commit} or {@link #consolidate},
+ * in which case the commit or consolidate is not performed.
+ * </p><p>
+ * The shards are published to searchers as stated by {@link #CONF_PUBLISH}. LuceneSearchNode opens the shards with
+ * a MultiReader if there is no merged index at {@code indexRoot/lucene}.
+ * </p><p>
+ * Note: Manipulators that expects a single Lucene index at {@code indexRoot/lucene}, such as FacetManipulator, only
+ * works with the {@code merge} publish mode and must be positioned after this manipulator.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ShardedLuceneManipulator implements IndexManipulator {
+    private static Log log = LogFactory.getLog(ShardedLuceneManipulator.class);
+
+    /**
+     * The number of shards to partition the index into. Changing this for an existing index means that updates and
+     * deletions for existing Records will be directed to the wrong shards, so the index must be re-created.
+     * </p><p>
+     * Optional. Default is 4.
+     */
+    public static final String CONF_SHARDS = "summa.index.lucene.shards";
+    public static final int DEFAULT_SHARDS = 4;
+
+    /**
+     * How the shards are published to searchers.
+     * </p><p>
+     * {@code merge}: On consolidate, the shards are merged with {@link IndexWriter#addIndexes} into a new index at
+     * {@code indexRoot/lucene}, which is forceMerged to {@link LuceneManipulator#CONF_MAX_SEGMENTS_ON_CONSOLIDATE}.
+     * Updates to the shards are only visible to searchers after the next consolidate.
+     * </p><p>
+     * {@code multi}: No merged index is created. Searchers open all shards with a MultiReader and commits to the
+     * shards are visible to searchers immediately.
+     * </p><p>
+     * Optional. Default is merge.
+     */
+    public static final String CONF_PUBLISH = "summa.index.lucene.shards.publish";
+    public static final String DEFAULT_PUBLISH = PUBLISH.merge.toString();
+
+    public enum PUBLISH {merge, multi}
+
+    /**
+     * The maximum number of Payloads queued for each shard. When the queue for a shard is full, {@link #update}
+     * blocks until the writer thread for the shard has processed a Payload.
+     * </p><p>
+     * Optional. Default is 100.
+     */
+    public static final String CONF_SHARD_QUEUE = "summa.index.lucene.shards.queue";
+    public static final int DEFAULT_SHARD_QUEUE = 100;
+
+    private final List<LuceneManipulator> shards;
+    private final PUBLISH publish;
+    private final int maxSegments;
+    private final int queueSize;
+    // One single threaded executor per shard, so that the order of updates within each shard is preserved
+    private List<ExecutorService> executors = null;
+    private List<Semaphore> queueSlots = null;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private File indexRoot = null;
+    private boolean orderChanged = false;
+
+    public ShardedLuceneManipulator(Configuration conf) {
+        int shardCount = conf.getInt(CONF_SHARDS, DEFAULT_SHARDS);
+        if (shardCount < 1) {
+            throw new ConfigurationException("The number of shards must be 1 or more but was " + shardCount);
+        }
+        try {
+            publish = PUBLISH.valueOf(conf.getString(CONF_PUBLISH, DEFAULT_PUBLISH));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Unknown publish mode '" + conf.getString(CONF_PUBLISH) + "' for key "
+                                             + CONF_PUBLISH + ". Valid values are merge and multi", e);
+        }
+        maxSegments = conf.getInt(LuceneManipulator.CONF_MAX_SEGMENTS_ON_CONSOLIDATE,
+                                  LuceneManipulator.DEFAULT_MAX_SEGMENTS_ON_CONSOLIDATE);
+        queueSize = conf.getInt(CONF_SHARD_QUEUE, DEFAULT_SHARD_QUEUE);
+        if (queueSize < 1) {
+            throw new ConfigurationException("The shard queue size must be 1 or more but was " + queueSize);
+        }
+        shards = new ArrayList<>(shardCount);
+        for (int i = 0 ; i < shardCount ; i++) {
+            shards.add(new LuceneManipulator(conf));
+        }
+        log.info("Created " + this);
+    }
+
+    @Override
+    public synchronized void open(File indexRoot) throws IOException {
+        log.info("Opening " + shards.size() + " shards at '" + indexRoot + "/" + LuceneIndexUtils.SHARDS_FOLDER + "'");
+        this.indexRoot = indexRoot;
+        if (executors == null) {
+            executors = new ArrayList<>(shards.size());
+            queueSlots = new ArrayList<>(shards.size());
+            for (int i = 0 ; i < shards.size() ; i++) {
+                executors.add(ParallelPayloadSource.createExecutor(
+                        String.format("ShardedLuceneManipulator_%02d", i), 1));
+                queueSlots.add(new Semaphore(queueSize));
+            }
+        }
+        for (int i = 0 ; i < shards.size() ; i++) {
+            shards.get(i).open(getShardRoot(indexRoot, i));
+        }
+    }
+
+    /**
+     * @param indexRoot the root for a sharded index.
+     * @param shard     the number of the shard.
+     * @return the root for the given shard. The Lucene index for the shard is in the sub folder
+     *         {@link LuceneIndexUtils#LUCENE_FOLDER}.
+     */
+    public static File getShardRoot(File indexRoot, int shard) {
+        return new File(new File(indexRoot, LuceneIndexUtils.SHARDS_FOLDER), String.format("shard_%02d", shard));
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        log.debug("clear() called");
+        forAll("clear", new ShardJob() {
+            @Override
+            public void run(LuceneManipulator shard) throws IOException {
+                shard.clear();
+            }
+        });
+        removeMerged();
+    }
+
+    /**
+     * Queues the Payload for the writer thread of its shard. This only blocks if the queue for the shard is full.
+     * @param payload the Payload to add to the index.
+     * @return always false as the shards never request commits.
+     * @throws IOException if a previous update in a writer thread failed.
+     */
+    @Override
+    public synchronized boolean update(final Payload payload) throws IOException {
+        checkFailure("update");
+        String id = payload.getId();
+        if (id == null) {
+            throw new IllegalArgumentException(String.format("Could not extract id from %s", payload));
+        }
+        if (executors == null) {
+            throw new IllegalStateException("Unable to update as the shards has not been opened");
+        }
+        if (payload.getRecord() != null && (payload.getRecord().isDeleted() || payload.getRecord().isModified())) {
+            orderChanged = true; // Set here as the shard only registers it when the Payload has been processed
+        }
+        final int shardIndex = getShard(id);
+        final LuceneManipulator shard = shards.get(shardIndex);
+        final Semaphore slots = queueSlots.get(shardIndex);
+        slots.acquireUninterruptibly();
+        try {
+            executors.get(shardIndex).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shard.update(payload);
+                    } catch (Exception e) {
+                        log.error("Unable to update shard " + shardIndex + " with " + payload, e);
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the queued updates for all shards to be processed, then throws the first failure from the writer
+     * threads, if any.
+     */
+    private void drain(String action) throws IOException {
+        forAll("drain before " + action, new ShardJob() {
+            @Override
+            public void run(LuceneManipulator shard) {
+                // Only used for waiting for the queued updates
+            }
+        });
+        checkFailure(action);
+    }
+
+    /**
+     * Throws the first failure from the writer threads, if any, and resets it.
+     */
+    private void checkFailure(String action) throws IOException {
+        Exception e = failure.getAndSet(null);
+        if (e != null) {
+            throw new IOException("Unable to " + action + " as a previous update of a shard failed", e);
+        }
+    }
+
+    /**
+     * @param id the id of a Record.
+     * @return the shard that holds the Record.
+     */
+    int getShard(String id) {
+        return (id.hashCode() & Integer.MAX_VALUE) % shards.size();
+    }
+
+    @Override
+    public synchronized void commit() throws IOException {
+        long startTime = System.currentTimeMillis();
+        drain("commit");
+        forAll("commit", new ShardJob() {
+            @Override
+            public void run(LuceneManipulator shard) throws IOException {
+                shard.commit();
+            }
+        });
+        orderChanged = false;
+        log.debug("Committed " + shards.size() + " shards in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    @Override
+    public synchronized void consolidate() throws IOException {
+        long startTime = System.currentTimeMillis();
+        drain("consolidate");
+        forAll("consolidate", new ShardJob() {
+            @Override
+            public void run(LuceneManipulator shard) throws IOException {
+                shard.consolidate();
+            }
+        });
+        orderChanged = false;
+        log.info("Consolidated " + shards.size() + " shards in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (publish == PUBLISH.merge) {
+            merge();
+        }
+    }
+
+    /**
+     * Creates a new index at indexRoot/lucene from the committed state of all shards.
+     * @throws IOException if the merge failed.
+     */
+    private void merge() throws IOException {
+        long startTime = System.currentTimeMillis();
+        File merged = new File(indexRoot, LuceneIndexUtils.LUCENE_FOLDER);
+        log.info("Merging " + shards.size() + " shards into '" + merged + "'");
+        List<IndexReader> readers = new ArrayList<>(shards.size());
+        NIOFSDirectory mergedDirectory = new NIOFSDirectory(merged);
+        try {
+            for (int i = 0 ; i < shards.size() ; i++) {
+                File shardIndex = new File(getShardRoot(indexRoot, i), LuceneIndexUtils.LUCENE_FOLDER);
+                readers.add(DirectoryReader.open(new NIOFSDirectory(shardIndex)));
+            }
+            IndexWriterConfig writerConfig = new IndexWriterConfig(
+                    Version.LUCENE_46, new StandardAnalyzer(Version.LUCENE_46));
+            writerConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            IndexWriter writer = new IndexWriter(mergedDirectory, writerConfig);
+            try {
+                writer.addIndexes(readers.toArray(new IndexReader[readers.size()]));
+                writer.forceMerge(maxSegments);
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            for (IndexReader reader: readers) {
+                IOUtils.closeWhileHandlingException(reader, ((DirectoryReader)reader).directory());
+            }
+            mergedDirectory.close();
+        }
+        log.info("Merged " + shards.size() + " shards into '" + merged + "' in "
+                 + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private void removeMerged() throws IOException {
+        File merged = new File(indexRoot, LuceneIndexUtils.LUCENE_FOLDER);
+        if (merged.exists()) {
+            log.debug("Removing merged index at '" + merged + "'");
+            Files.delete(merged);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (executors == null) { // Never opened
+            return;
+        }
+        try {
+            forAll("close", new ShardJob() {
+                @Override
+                public void run(LuceneManipulator shard) throws IOException {
+                    shard.close();
+                }
+            });
+        } finally {
+            for (ExecutorService executor: executors) {
+                executor.shutdown();
+            }
+            executors = null;
+            queueSlots = null;
+        }
+        checkFailure("close");
+    }
+
+    @Override
+    public void orderChangedSinceLastCommit() throws IOException {
+        orderChanged = true;
+        for (LuceneManipulator shard: shards) {
+            shard.orderChangedSinceLastCommit();
+        }
+    }
+
+    @Override
+    public boolean isOrderChangedSinceLastCommit() throws IOException {
+        if (orderChanged) {
+            return true;
+        }
+        for (LuceneManipulator shard: shards) {
+            if (shard.isOrderChangedSinceLastCommit()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface ShardJob {
+        void run(LuceneManipulator shard) throws IOException;
+    }
+
+    /**
+     * Runs the job on all shards in parallel and waits for all of them to finish. The job for a shard is run after
+     * the updates queued for the shard.
+     * @throws IOException with the first Exception encountered, if any.
+     */
+    private void forAll(String action, final ShardJob job) throws IOException {
+        if (executors == null) {
+            throw new IllegalStateException("Unable to " + action + " as the shards has not been opened");
+        }
+        List<Future<Void>> futures = new ArrayList<>(shards.size());
+        for (int i = 0 ; i < shards.size() ; i++) {
+            final LuceneManipulator shard = shards.get(i);
+            futures.add(executors.get(i).submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    job.run(shard);
+                    return null;
+                }
+            }));
+        }
+        IOException first = null;
+        for (int i = 0 ; i < futures.size() ; i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                first = first != null ? first : new IOException(
+                        "Interrupted while waiting for " + action + " of shard " + i, e);
+            } catch (ExecutionException e) {
+                log.warn("Unable to " + action + " shard " + i, e.getCause());
+                first = first != null ? first : new IOException(
+                        "Unable to " + action + " shard " + i, e.getCause());
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedLuceneManipulator(shards=" + shards.size() + ", publish=" + publish + ", queue=" + queueSize
+               + ", indexRoot=" + indexRoot + ")";
+    }
+}
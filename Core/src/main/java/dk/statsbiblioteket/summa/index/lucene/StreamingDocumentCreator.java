@@ -18,7 +18,10 @@ import dk.statsbiblioteket.summa.common.Logging;
 import dk.statsbiblioteket.summa.common.Record;
 import dk.statsbiblioteket.summa.common.configuration.Configurable;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.common.filter.Filter;
 import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.filter.object.ObjectFilter;
+import dk.statsbiblioteket.summa.common.filter.object.ParallelPayloadSource;
 import dk.statsbiblioteket.summa.common.filter.object.PayloadException;
 import dk.statsbiblioteket.summa.common.lucene.LuceneIndexDescriptor;
 import dk.statsbiblioteket.summa.common.lucene.LuceneIndexField;
@@ -38,6 +41,7 @@ import javax.xml.stream.events.XMLEvent;
 import java.text.ParseException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Stream-based converter from SummaDocumentXML to Lucene Documents.
@@ -50,6 +54,10 @@ import java.util.Set;
  * retrieving the description must be stored in the sub-property
  * {@link dk.statsbiblioteket.summa.common.index.IndexDescriptor#CONF_DESCRIPTOR} with parameters from
  * {@link dk.statsbiblioteket.summa.common.index.IndexDescriptor}.
+ * </p><p>
+ * Document creation can be performed in parallel with {@link #CONF_THREADS}. Used together with
+ * {@link LuceneManipulator#CONF_WRITER_THREADS}, both document creation and analysis of the Documents uses multiple
+ * cores.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED,
@@ -65,13 +73,35 @@ public class StreamingDocumentCreator extends DocumentCreatorBase<org.apache.luc
 
     // TODO: Make DocumentCreator support namespace qualified attributes
 
-    private static final String SUMMA_DOCUMENT = "SummaDocument";
-    private static final String SUMMA_FIELD = "field";
-    private static final String SUMMA_FIELDS = "fields";
-    private static final String SUMMA_BOOST = "boost";
-    private static final String SUMMA_NAME = "name";
+    static final String SUMMA_DOCUMENT = "SummaDocument";
+    static final String SUMMA_FIELD = "field";
+    static final String SUMMA_FIELDS = "fields";
+    static final String SUMMA_BOOST = "boost";
+    static final String SUMMA_NAME = "name";
+
+    /**
+     * The number of threads to use for creating Documents. If this is more than 1, up to {@link #CONF_READ_AHEAD}
+     * Payloads are pulled from the source and converted in parallel. The Payloads are delivered in the same order
+     * as they were received.
+     * </p><p>
+     * Optional. Default is 1 (no parallel processing).
+     */
+    public static final String CONF_THREADS = "summa.index.documentcreator.threads";
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * The maximum number of Payloads that are pulled from the source ahead of delivery when {@link #CONF_THREADS}
+     * is more than 1.
+     * </p><p>
+     * Optional. Default is 2 * threads.
+     */
+    public static final String CONF_READ_AHEAD = "summa.index.documentcreator.readahead";
 
     private XMLInputFactory inputFactory;
+    private final int threads;
+    private final int readAhead;
+    private ExecutorService executor = null;
+    private ParallelPayloadSource parallelSource = null;
 
     private LuceneIndexDescriptor descriptor;
 
@@ -95,7 +125,41 @@ public class StreamingDocumentCreator extends DocumentCreatorBase<org.apache.luc
         inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
 
         descriptor = LuceneIndexUtils.getDescriptor(conf);
-        log.info("StreamingDocumentCreator '" + getName() + "' created");
+        threads = conf.getInt(CONF_THREADS, DEFAULT_THREADS);
+        readAhead = Math.max(threads, conf.getInt(CONF_READ_AHEAD, threads * 2));
+        log.info("StreamingDocumentCreator '" + getName() + "' with " + threads + " threads created");
+    }
+
+    @Override
+    public void setSource(Filter filter) {
+        if (threads <= 1 || !(filter instanceof ObjectFilter)) { // Let the super class produce any errors
+            super.setSource(filter);
+            return;
+        }
+        if (executor == null) {
+            executor = ParallelPayloadSource.createExecutor("DocumentCreator_" + getName(), threads);
+        }
+        parallelSource = new ParallelPayloadSource(
+                (ObjectFilter) filter, executor, readAhead, new ParallelPayloadSource.Processor() {
+            @Override
+            public boolean matches(Payload payload) {
+                return matchesPayload(payload);
+            }
+
+            @Override
+            public boolean process(Payload payload) throws PayloadException {
+                return StreamingDocumentCreator.super.processPayload(payload);
+            }
+        });
+        super.setSource(parallelSource);
+    }
+
+    @Override
+    protected boolean processPayload(Payload payload) throws PayloadException {
+        if (parallelSource == null) {
+            return super.processPayload(payload);
+        }
+        return parallelSource.getResult(payload);
     }
 
     // TODO: Check whether resolver is used for anything
@@ -125,7 +189,7 @@ public class StreamingDocumentCreator extends DocumentCreatorBase<org.apache.luc
     public boolean processRecord(Record record, boolean origin, Document doc) throws PayloadException {
         XMLStreamReader reader;
         try {
-            reader = inputFactory.createXMLStreamReader(RecordUtil.getReader(record, RecordUtil.PART.content));
+            reader = createXMLStreamReader(record);
         } catch (XMLStreamException e) {
             log.debug("Unable to make an XMLStream from " + record);
             if (origin) {
@@ -169,7 +233,12 @@ public class StreamingDocumentCreator extends DocumentCreatorBase<org.apache.luc
         return true;
     }
 
-    private static final float NEUTRAL_BOOST = 1.0f;
+    // XMLInputFactory implementations are not guaranteed to be thread safe
+    private synchronized XMLStreamReader createXMLStreamReader(Record record) throws XMLStreamException {
+        return inputFactory.createXMLStreamReader(RecordUtil.getReader(record, RecordUtil.PART.content));
+    }
+
+    static final float NEUTRAL_BOOST = 1.0f;
     private float processHeader(XMLStreamReader reader, Record record, boolean origin)
                                                                              throws ParseException, XMLStreamException {
         float boost = NEUTRAL_BOOST;
@@ -311,27 +380,7 @@ public class StreamingDocumentCreator extends DocumentCreatorBase<org.apache.luc
             // TODO: Verify how we handle embedded HTML
             String content = reader.getElementText();
             if (content != null) {
-                // TODO: Perform a more complete trim (newline et al)
-                content = content.trim();
-                if ("".equals(content)) {
-                    continue; // We do not want to store empty content
-                }
-
-                // As we explicitly assign to NEUTRAL_BOOST and as a false negative is okay, it is safe to compare directly
-                //noinspection FloatingPointEquality
-                if (boost == NEUTRAL_BOOST || (boostedFields != null && boostedFields.contains(fieldName))) {
-                    boost = null;
-                } else { // We have a boost and the field is not previously boosted
-                    if (boostedFields == null) {
-                        boostedFields = new HashSet<>();
-                    }
-                    boostedFields.add(fieldName);
-                }
-
-                LuceneIndexField indexField = addFieldToDocument(descriptor, luceneDoc, fieldName, content, boost);
-                if (indexField.isInFreetext()) {
-                    addToFreetext(descriptor, luceneDoc, fieldName, content);
-                }
+                boostedFields = addField(luceneDoc, fieldName, content, boost, boostedFields);
             } else {
                 log.debug("No content for field " + fieldName + " in " + record);
             }
@@ -340,6 +389,44 @@ public class StreamingDocumentCreator extends DocumentCreatorBase<org.apache.luc
                   + (System.nanoTime() - startTime) + " ns");
     }
 
+    /**
+     * Adds the content for a field to the Lucene Document and to freetext if the field is marked for it. Empty content
+     * is ignored. As the boost for multiple instances of the same field gets multiplied, a field is only boosted once.
+     * @param luceneDoc     the Document to update.
+     * @param fieldName     the name of the field.
+     * @param content       the untrimmed content for the field.
+     * @param boost         the combined document and field boost.
+     * @param boostedFields the fields boosted so far for the Document. Can be null.
+     * @return the fields boosted so far. This is boostedFields or a new Set if boostedFields was null and the field
+     *         was boosted.
+     * @throws IndexServiceException if the field could not be added.
+     */
+    Set<String> addField(Document luceneDoc, String fieldName, String content, Float boost, Set<String> boostedFields)
+                                                                                          throws IndexServiceException {
+        // TODO: Perform a more complete trim (newline et al)
+        content = content.trim();
+        if ("".equals(content)) {
+            return boostedFields; // We do not want to store empty content
+        }
+
+        // As we explicitly assign to NEUTRAL_BOOST and as a false negative is okay, it is safe to compare directly
+        //noinspection FloatingPointEquality
+        if (boost == NEUTRAL_BOOST || (boostedFields != null && boostedFields.contains(fieldName))) {
+            boost = null;
+        } else { // We have a boost and the field is not previously boosted
+            if (boostedFields == null) {
+                boostedFields = new HashSet<>();
+            }
+            boostedFields.add(fieldName);
+        }
+
+        LuceneIndexField indexField = addFieldToDocument(descriptor, luceneDoc, fieldName, content, boost);
+        if (indexField.isInFreetext()) {
+            addToFreetext(descriptor, luceneDoc, fieldName, content);
+        }
+        return boostedFields;
+    }
+
     // TODO: Make this namespace aware
     @SuppressWarnings({"UnusedParameters"})
     private String getAttributeValue(
@@ -355,6 +442,10 @@ public class StreamingDocumentCreator extends DocumentCreatorBase<org.apache.luc
     @Override
     public synchronized void close(boolean success) {
         super.close(success);
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
         log.info("Closing down StreamingDocumentcreator. " + getProcessStats());
     }
 }
@@ -0,0 +1,211 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.index.lucene;
+
+import dk.statsbiblioteket.summa.common.Logging;
+import dk.statsbiblioteket.summa.common.Record;
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.common.filter.object.PayloadException;
+import dk.statsbiblioteket.summa.common.lucene.index.IndexServiceException;
+import dk.statsbiblioteket.summa.index.XMLTransformer;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.transform.sax.SAXResult;
+import java.util.Set;
+
+/**
+ * Fused XSLT transformation and Document creation: The source XML in the Record is transformed with the XSLTs from
+ * an {@link XMLTransformer} and the SummaDocumentXML output is received directly as SAX events, which are converted
+ * to a Lucene Document. Compared to an XMLTransformer followed by a {@link StreamingDocumentCreator}, this avoids
+ * serialising the SummaDocumentXML to bytes and parsing it again.
+ * </p><p>
+ * The configuration is the union of the configurations for {@link XMLTransformer} and
+ * {@link StreamingDocumentCreator}, including {@link StreamingDocumentCreator#CONF_THREADS} for parallel processing.
+ * The XMLTransformer properties {@link XMLTransformer#CONF_DESTINATION} and {@link XMLTransformer#CONF_THREADS} are
+ * ignored.
+ * </p><p>
+ * Note: The content of the Record is not changed, so it will still be the source XML after processing. Filters after
+ * the document creator that expects SummaDocumentXML in the content must not be used with this creator.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class TransformingDocumentCreator extends StreamingDocumentCreator {
+    private static Log log = LogFactory.getLog(TransformingDocumentCreator.class);
+
+    private final XMLTransformer transformer;
+
+    public TransformingDocumentCreator(Configuration conf) throws ConfigurationException {
+        super(conf);
+        transformer = new XMLTransformer(conf);
+        log.info("TransformingDocumentCreator '" + getName() + "' created with " + transformer);
+    }
+
+    @Override
+    public boolean processRecord(Record record, boolean origin, Document doc) throws PayloadException {
+        DocumentHandler handler = new DocumentHandler(record, origin, doc);
+        try {
+            if (!transformer.transform(record, new SAXResult(handler))) {
+                if (origin) {
+                    throw new PayloadException("No XSLT matched " + record);
+                }
+                return false;
+            }
+        } catch (PayloadException e) {
+            if (origin) {
+                throw e;
+            }
+            log.debug("Unable to create Document content from non-origin " + record, e);
+            return false;
+        }
+        if (!handler.isSummaDocument()) {
+            String message = "The transformation of " + record + " did not produce a SummaDocument";
+            if (origin) {
+                throw new PayloadException(message);
+            }
+            log.debug(message);
+            return false;
+        }
+        Logging.logProcess("TransformingDocumentCreator", "Added " + handler.getFieldCount() + " fields",
+                           Logging.LogLevel.TRACE, record.getId());
+        return true;
+    }
+
+    @Override
+    public synchronized void close(boolean success) {
+        super.close(success);
+        log.info("Closing down TransformingDocumentCreator. " + transformer.getTransformStats());
+    }
+
+    /**
+     * Receives SummaDocumentXML as SAX events and adds the fields to the Lucene Document. The handling of boosts and
+     * content is the same as in {@link StreamingDocumentCreator}.
+     */
+    private class DocumentHandler extends DefaultHandler {
+        private final Record record;
+        private final boolean origin;
+        private final Document luceneDoc;
+
+        private final StringBuilder content = new StringBuilder();
+        private boolean summaDocument = false;
+        private float docBoost = NEUTRAL_BOOST;
+        private Set<String> boostedFields = null;
+        private boolean inFields = false;
+        private String fieldName = null;
+        private Float fieldBoost = null;
+        private int fieldCount = 0;
+
+        public DocumentHandler(Record record, boolean origin, Document luceneDoc) {
+            this.record = record;
+            this.origin = origin;
+            this.luceneDoc = luceneDoc;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if (!summaDocument) {
+                if (!(SUMMA_DOCUMENT.equals(localName) && SUMMA_NAMESPACE.equals(uri))) {
+                    throw new SAXException(String.format(
+                            "The start element should be %s:%s, but was %s:%s",
+                            SUMMA_NAMESPACE, SUMMA_DOCUMENT, uri, localName));
+                }
+                summaDocument = true;
+                String boostString = getAttributeValue(atts, SUMMA_BOOST);
+                if (boostString != null && origin) {
+                    try {
+                        docBoost = Float.parseFloat(boostString);
+                    } catch (NumberFormatException e) {
+                        log.debug("Unable to parse document boost '" + boostString + "' for " + record.getId());
+                    }
+                }
+                return;
+            }
+            if (!SUMMA_NAMESPACE.equals(uri)) {
+                return;
+            }
+            if (!inFields) {
+                inFields = SUMMA_FIELDS.equals(localName);
+                return;
+            }
+            if (fieldName == null && SUMMA_FIELD.equals(localName)) {
+                // <field name="author" boost="2.0">Jens Hansen</field>
+                fieldName = getAttributeValue(atts, SUMMA_NAME);
+                if (fieldName == null) {
+                    throw new SAXException("Field without name-attribute in " + record);
+                }
+                fieldBoost = docBoost;
+                String boostString = getAttributeValue(atts, SUMMA_BOOST);
+                if (boostString != null) {
+                    try {
+                        fieldBoost *= Float.valueOf(boostString);
+                    } catch (NumberFormatException e) {
+                        log.debug("Exception extracting boost for field " + fieldName + " from Record "
+                                  + record.getId(), e);
+                    }
+                }
+                content.setLength(0);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (fieldName != null) {
+                content.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (!SUMMA_NAMESPACE.equals(uri)) {
+                return;
+            }
+            if (fieldName != null && SUMMA_FIELD.equals(localName)) {
+                try {
+                    boostedFields = addField(luceneDoc, fieldName, content.toString(), fieldBoost, boostedFields);
+                } catch (IndexServiceException e) {
+                    throw new SAXException("Exception while updating the Lucene document for " + record, e);
+                }
+                fieldCount++;
+                fieldName = null;
+            } else if (SUMMA_FIELDS.equals(localName)) {
+                inFields = false;
+            }
+        }
+
+        // TODO: Make this namespace aware
+        private String getAttributeValue(Attributes atts, String localName) {
+            for (int i = 0 ; i < atts.getLength() ; i++) {
+                if (localName.equals(atts.getLocalName(i))) {
+                    return atts.getValue(i);
+                }
+            }
+            return null;
+        }
+
+        public boolean isSummaDocument() {
+            return summaDocument;
+        }
+
+        public int getFieldCount() {
+            return fieldCount;
+        }
+    }
+}
@@ -19,6 +19,9 @@ import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.filter.Payload;
 import dk.statsbiblioteket.summa.common.filter.object.ObjectFilterImpl;
 import dk.statsbiblioteket.summa.common.filter.object.PayloadException;
+import dk.statsbiblioteket.summa.common.marc.ISO2709Reader;
+import dk.statsbiblioteket.summa.common.marc.MARC;
+import dk.statsbiblioteket.summa.common.marc.MARCObject;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,9 +34,13 @@ import org.marc4j.marc.Record;
 import org.marc4j.marc.impl.DataFieldImpl;
 import org.marc4j.marc.impl.SubfieldImpl;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 
 /**
@@ -121,9 +128,21 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
     public static final String CONF_CONTROLFIELDS_DELIMITER = "iso2709tomarcxml.controlfields.delimiter";
     public static final String DEFAULT_CONTROLFIELDS_DELIMITER = "\u001F";
 
+    /**
+     * If true, the ISO 2709 input is scanned directly by {@link ISO2709Reader} into {@link MARCObject}s, which are
+     * serialized as MARC21Slim. This bypasses marc4j and is considerably faster and less GC-heavy, but performs no
+     * error-correction on bad input. {@link #CONF_USE_PERMISSIVE} and {@link #CONF_CONTROLFIELDS_DELIMITER} are
+     * ignored when this is true. {@code MARC-8} is supported as {@link #CONF_INPUT_CHARSET}.
+     * </p><p>
+     * Optional. Default is false.
+     */
+    public static final String CONF_USE_DIRECT = "summa.iso2709.input.direct";
+    public static final boolean DEFAULT_USE_DIRECT = false;
+
     private boolean fixControlfields = DEFAULT_FIX_CONTROLFIELDS;
     private String controlfieldsDelimiter = DEFAULT_CONTROLFIELDS_DELIMITER;
     private boolean usePermissive = DEFAULT_USE_PERMISSIVE;
+    private boolean useDirect = DEFAULT_USE_DIRECT;
 
 
     private String inputcharset = null; // null = let marc4j handle this
@@ -140,11 +159,12 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
         fixControlfields = conf.getBoolean(CONF_FIX_CONTROLFIELDS, fixControlfields);
         controlfieldsDelimiter = conf.getString(CONF_CONTROLFIELDS_DELIMITER, controlfieldsDelimiter);
         usePermissive = conf.getBoolean(CONF_USE_PERMISSIVE, usePermissive);
+        useDirect = conf.getBoolean(CONF_USE_DIRECT, useDirect);
         log.debug(String.format("Constructed ISO 2709 filter with charset '%s', fixControlFields=%b, " 
-                                + "controlfieldDelimiter='%s' and usePermissive=%b",
+                                + "controlfieldDelimiter='%s', usePermissive=%b and useDirect=%b",
                                 inputcharset == null ?
                                 "inferred from the InputStream" :
-                                inputcharset, fixControlfields, controlfieldsDelimiter, usePermissive));
+                                inputcharset, fixControlfields, controlfieldsDelimiter, usePermissive, useDirect));
     }
 
     @Override
@@ -168,7 +188,10 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
      * slightly different.
      */
     class ISO2MARCInputStream extends InputStream {
-        private MarcReader source;
+        private MarcReader source = null;
+        private ISO2709Reader directSource = null;
+        private MARCObject nextDirect = null;
+        private XMLStreamWriter directOut = null;
         private InputStream sourceStream;
 
         private ByteArrayOutputStream outStream = new ByteArrayOutputStream(4000);
@@ -194,7 +217,15 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
          */
         ISO2MARCInputStream(InputStream stream, boolean convertControlfieldsToDatafields, 
                             String controlfieldDelimiter) {
-            if (usePermissive) {
+            if (useDirect) {
+                directSource = new ISO2709Reader(stream, inputcharset, convertControlfieldsToDatafields);
+                try {
+                    outStream.write((MARC.XML_HEADER + "\n<collection xmlns=\"" + MARCObject.MARC21_NAMESPACE
+                                     + "\">\n").getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new IllegalStateException("IOException writing to ByteArrayOutputStream", e);
+                }
+            } else if (usePermissive) {
                 source = inputcharset == null ?
                          new MarcPermissiveStreamReader(stream, true, true) :
                          new MarcPermissiveStreamReader(stream, true, true, inputcharset);
@@ -203,6 +234,9 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
                          new FlexibleMarcStreamReader(stream) :
                          new FlexibleMarcStreamReader(stream, inputcharset);
             }
+            if (directSource == null) {
+                out = new MarcXmlWriterFixed(outStream, "UTF-8", true);
+            }
             log.trace("Constructed reader");
             sourceStream = stream;
             this.convertControlfieldsToDatafields = convertControlfieldsToDatafields;
@@ -213,13 +247,20 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
         public int read() throws IOException {
             while (true) {
                 if (length - pos > 0) { // Buffer has content
-                    return buffer[pos++];
+                    return buffer[pos++] & 0xFF;
                 }
-                if (closed || !source.hasNext()) { // No more content
+                if (closed || !hasMoreSource()) { // No more content
                     return -1; // EOF
                 }
+                if (length - pos > 0) { // hasMoreSource fills the buffer with the trailing XML in direct mode
+                    continue;
+                }
                 try {
-                    fillBuffer();
+                    if (directSource != null) {
+                        fillBufferDirect();
+                    } else {
+                        fillBuffer();
+                    }
                 } catch (Exception e) {
                     String message = "Exception while transforming ISO 2709 into MARC21Slim";
                     log.warn(message, e);
@@ -229,7 +270,51 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
             }
         }
 
-        private MarcWriter out = new MarcXmlWriterFixed(outStream, "UTF-8", true);
+        private boolean hasMoreSource() throws IOException {
+            if (directSource == null) {
+                return source.hasNext();
+            }
+            if (nextDirect == null && outStream.size() == 0) {
+                try {
+                    nextDirect = directSource.next();
+                } catch (java.text.ParseException e) {
+                    String message = "ParseException while scanning ISO 2709 record #" + directSource.getRecordCount();
+                    log.warn(message, e);
+                    sourceStream.close();
+                    throw new IOException(message, e);
+                }
+                if (nextDirect == null) { // Depleted: Close the collection
+                    outStream.write("</collection>\n".getBytes(StandardCharsets.UTF_8));
+                    closed = true;
+                    sourceStream.close();
+                    fillFromOutStream();
+                    return length - pos > 0;
+                }
+            }
+            return true;
+        }
+
+        // Assumes that the buffer has been depleted
+        private void fillBufferDirect() throws IOException, XMLStreamException {
+            if (nextDirect != null) {
+                if (directOut == null) {
+                    directOut = XMLOutputFactory.newInstance().createXMLStreamWriter(outStream, "UTF-8");
+                }
+                nextDirect.toXML(directOut);
+                directOut.flush();
+                nextDirect = null;
+            }
+            fillFromOutStream();
+        }
+
+        private void fillFromOutStream() {
+            buffer = outStream.toByteArray();
+            length = buffer.length;
+            pos = 0;
+            outStream.reset();
+        }
+
+        private MarcWriter out = null; // Only used when not in direct mode
 
         // Assumes that the buffer has been depleted
         private void fillBuffer() throws IOException {
@@ -325,6 +410,26 @@ public class ISO2709ToMARCXMLFilter extends ObjectFilterImpl {
             closed = true;
         }
 
-        // TODO: Implement buffer-read for better performance
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (length - pos <= 0) {
+                int first = read(); // Fills the buffer
+                if (first == -1) {
+                    return -1;
+                }
+                b[off] = (byte) first;
+                int copy = Math.min(len - 1, length - pos);
+                System.arraycopy(buffer, pos, b, off + 1, copy);
+                pos += copy;
+                return copy + 1;
+            }
+            int copy = Math.min(len, length - pos);
+            System.arraycopy(buffer, pos, b, off, copy);
+            pos += copy;
+            return copy;
+        }
     }
 }
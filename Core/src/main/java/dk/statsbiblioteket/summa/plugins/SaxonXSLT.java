@@ -14,13 +14,16 @@
  */
 package dk.statsbiblioteket.summa.plugins;
 
+import dk.statsbiblioteket.summa.common.util.TemplatesCache;
 import dk.statsbiblioteket.util.xml.NamespaceRemover;
 import net.sf.saxon.TransformerFactoryImpl;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.ExtensionFunctionCall;
 import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.lib.ParseOptions;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.ObjectValue;
 import net.sf.saxon.value.SequenceType;
@@ -30,6 +33,8 @@ import org.apache.commons.logging.Log;
 import org.w3c.dom.Document;
 
 import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -37,6 +42,7 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.ParseException;
@@ -61,16 +67,44 @@ public class SaxonXSLT {
      */
     public static Transformer createTransformer(URL xslt) throws TransformerException {
         log.debug("Creating Saxon Transformer from XSLT '" + xslt + "'");
+        if (xslt == null) {
+            throw new NullPointerException("xslt URL is null");
+        }
+        Transformer transformer = getTemplates(xslt).newTransformer();
+        transformer.setErrorListener(getErrorListener());
+        return transformer;
+    }
 
+    /**
+     * Returns compiled Templates for the given XSLT from a JVM-wide cache. Compilation happens at most once per XSLT
+     * and modification time, see {@link TemplatesCache}. Other URLs than {@code file:}-URLs are compiled once and kept
+     * until {@link #clearTransformerCache}.
+     * </p><p>
+     * Templates are thread safe, so the result can be shared between threads. Transformers created from the Templates
+     * are not.
+     * @param xslt the location of the XSLT.
+     * @return compiled Templates for the XSLT.
+     * @throws TransformerException if the XSLT could not be compiled.
+     */
+    public static Templates getTemplates(URL xslt) throws TransformerException {
+        return templatesCache.get(xslt);
+    }
+
+    private static final TemplatesCache templatesCache = new TemplatesCache(new TemplatesCache.Compiler() {
+        @Override
+        public Templates compile(URL xslt) throws TransformerException {
+            return compileTemplates(xslt);
+        }
+    });
+
+    private static Templates compileTemplates(URL xslt) throws TransformerException {
+        log.debug("Compiling Saxon Templates from XSLT '" + xslt + "'");
+        long startTime = System.nanoTime();
         InputStream in = null;
-        Transformer transformer;
+        Templates templates;
         try {
-            if (xslt == null) {
-                throw new NullPointerException("xslt URL is null");
-            }
             in = xslt.openStream();
-            transformer = getTransformerFactory().newTransformer(new StreamSource(in, xslt.toString()));
-            transformer.setErrorListener(getErrorListener());
+            templates = getTransformerFactory().newTemplates(new StreamSource(in, xslt.toString()));
         } catch (TransformerException e) {
             throw new TransformerException(String.format(
                     "Unable to instantiate Transformer, a system configuration error for XSLT at '%s'", xslt), e);
@@ -91,7 +125,73 @@ public class SaxonXSLT {
                 log.warn("Non-fatal IOException while closing stream to '" + xslt + "'");
             }
         }
-        return transformer;
+        log.info("Compiled XSLT '" + xslt + "' in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+        return templates;
+    }
+
+    /**
+     * The tree models that Saxon can build for input documents.
+     * </p><p>
+     * {@code saxon}: Let Saxon handle the Source directly (the tiny tree).<br/>
+     * {@code tiny}: Explicitly build a tiny tree.<br/>
+     * {@code condensed}: Build a condensed tiny tree, where identical text and attribute values share storage.
+     * This costs a little extra time during building but lowers memory for documents with many repeated values,
+     * such as ALTO.<br/>
+     * {@code linked}: Build a linked tree. Mostly useful for comparison.
+     */
+    public enum TREE_MODEL {saxon, tiny, condensed, linked}
+
+    /**
+     * Builds a Saxon tree from the given source using the stated model. The result can be used as Source for
+     * {@link Transformer#transform} and for multiple transformations of the same input.
+     * @param source the input document.
+     * @param model  the tree model to use. If {@link TREE_MODEL#saxon}, the source is returned unchanged.
+     * @return the tree, ready for transformation.
+     * @throws TransformerException if the tree could not be build.
+     */
+    public static Source buildTree(Source source, TREE_MODEL model) throws TransformerException {
+        if (model == TREE_MODEL.saxon) {
+            return source;
+        }
+        ParseOptions options = new ParseOptions();
+        switch (model) {
+            case tiny:
+                options.setModel(TreeModel.TINY_TREE);
+                break;
+            case condensed:
+                options.setModel(TreeModel.TINY_TREE_CONDENSED);
+                break;
+            case linked:
+                options.setModel(TreeModel.LINKED_TREE);
+                break;
+            default: throw new UnsupportedOperationException("The tree model " + model + " is not supported");
+        }
+        return ((TransformerFactoryImpl) getTransformerFactory()).getConfiguration().
+                buildDocumentTree(source, options).getRootNode();
+    }
+
+    private static final java.lang.management.ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_SUPPORTED = isAllocationMeasuringSupported();
+    private static boolean isAllocationMeasuringSupported() {
+        try {
+            return THREAD_BEAN instanceof com.sun.management.ThreadMXBean
+                   && ((com.sun.management.ThreadMXBean) THREAD_BEAN).isThreadAllocatedMemorySupported()
+                   && ((com.sun.management.ThreadMXBean) THREAD_BEAN).isThreadAllocatedMemoryEnabled();
+        } catch (Throwable t) { // The com.sun-classes are not available on all JVMs
+            log.info("Unable to determine whether thread allocation measuring is supported. Disabling measuring", t);
+            return false;
+        }
+    }
+
+    /**
+     * Used for measuring the memory allocation of transformations: Call this before and after a transformation
+     * performed in the current thread and subtract the results.
+     * @return the total number of bytes allocated by the current thread or -1 if the JVM does not support measuring.
+     */
+    public static long getAllocatedBytes() {
+        return ALLOCATION_SUPPORTED ?
+               ((com.sun.management.ThreadMXBean) THREAD_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId()) :
+               -1;
     }
 
     /**
@@ -192,9 +292,10 @@ public class SaxonXSLT {
     /**
      * Create or re-use a Transformer for the given xsltLocation.
      * The Transformer is {@link ThreadLocal}, so the method is thread-safe.
+     * The Transformers are created from the shared {@link #getTemplates(URL)}, so the XSLT is only compiled once.
      * </p><p>
      * Warning: A list is maintained for all XSLTs so changes to the xslt will
-     * not be reflected. Call {@link #clearTransformerCache} to clear
+     * only be reflected for {@code file:}-URLs. Call {@link #clearTransformerCache} to clear
      * the list.
      *
      * @param xslt       the location of the XSLT.
@@ -206,12 +307,16 @@ public class SaxonXSLT {
         if (xslt == null) {
             throw new NullPointerException("The xslt was null");
         }
-        Map<String, Transformer> map = localMapCache.get();
-        Transformer transformer = map.get(xslt.toString());
-        if (transformer == null) {
-            transformer = createTransformer(xslt);
-            map.put(xslt.toString(), transformer);
+        Map<String, LocalTransformer> map = localMapCache.get();
+        LocalTransformer local = map.get(xslt.toString());
+        Templates templates = getTemplates(xslt);
+        if (local == null || local.templates != templates) {
+            Transformer created = templates.newTransformer();
+            created.setErrorListener(getErrorListener());
+            local = new LocalTransformer(templates, created);
+            map.put(xslt.toString(), local);
         }
+        Transformer transformer = local.transformer;
         transformer.clearParameters(); // Is this safe? Any defaults lost?
         if (parameters != null) {
             for (Object entryObject : parameters.entrySet()) {
@@ -221,15 +326,26 @@ public class SaxonXSLT {
         }
         return transformer;
     }
-    private static ThreadLocal<Map<String, Transformer>> localMapCache = createLocalMapCache();
-    private static ThreadLocal<Map<String, Transformer>> createLocalMapCache() {
-        return new ThreadLocal<Map<String, Transformer>>() {
+    private static ThreadLocal<Map<String, LocalTransformer>> localMapCache = createLocalMapCache();
+    private static ThreadLocal<Map<String, LocalTransformer>> createLocalMapCache() {
+        return new ThreadLocal<Map<String, LocalTransformer>>() {
             @Override
-            protected Map<String, Transformer> initialValue() {
+            protected Map<String, LocalTransformer> initialValue() {
                 return new HashMap<>();
             }
         };
     }
+
+    // Keeps track of the Templates used to create the Transformer, so that changed XSLTs are reflected
+    private static class LocalTransformer {
+        private final Templates templates;
+        private final Transformer transformer;
+
+        private LocalTransformer(Templates templates, Transformer transformer) {
+            this.templates = templates;
+            this.transformer = transformer;
+        }
+    }
     /**
      * Create or re-use a Transformer for the given xsltLocation.
      * The Transformer is {@link ThreadLocal}, so the method is thread-safe.
@@ -299,6 +415,7 @@ public class SaxonXSLT {
      */
     public static void clearTransformerCache() {
         localMapCache = createLocalMapCache();
+        templatesCache.clear();
     }
 
     private static TransformerFactory saxonFactory = null;
@@ -332,6 +449,7 @@ public class SaxonXSLT {
      */
     public static void setSaxonFactory(TransformerFactoryImpl saxonFactory) {
         SaxonXSLT.saxonFactory = saxonFactory;
+        templatesCache.clear();
     }
 
     private static ErrorListener ERRORLISTENER;
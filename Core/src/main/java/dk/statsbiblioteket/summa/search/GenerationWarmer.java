@@ -0,0 +1,349 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.search;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.search.api.Request;
+import dk.statsbiblioteket.summa.search.api.ResponseCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records a sample of live requests and replays them against a new generation of a SearchNode before it is put into
+ * production. The requests are replayed in rounds, each round issuing all sampled requests in parallel. Warmup ends
+ * when the latency percentiles for two consecutive rounds converges or when {@link #CONF_MAXTIME} is reached.
+ * </p><p>
+ * The recorded requests are complete, so facets, sorting and other parameters are replayed as well as the queries.
+ * Requests are only sampled when the SearchNode is open, so there will be no samples for the first generation.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class GenerationWarmer {
+    private static Log log = LogFactory.getLog(GenerationWarmer.class);
+
+    /**
+     * The maximum number of recorded requests. When the maximum is reached, the oldest requests are replaced.
+     * </p><p>
+     * Optional. Default is 200.
+     */
+    public static final String CONF_SAMPLE_SIZE = "summa.search.warmup.generation.samplesize";
+    public static final int DEFAULT_SAMPLE_SIZE = 200;
+
+    /**
+     * Every {@code sampleevery}'th live request is recorded.
+     * </p><p>
+     * Optional. Default is 10.
+     */
+    public static final String CONF_SAMPLE_EVERY = "summa.search.warmup.generation.sampleevery";
+    public static final int DEFAULT_SAMPLE_EVERY = 10;
+
+    /**
+     * The number of threads used for replaying requests against the new generation. As the old generation serves
+     * live requests during warmup, this should be kept below the number of cores.
+     * </p><p>
+     * Optional. Default is 2.
+     */
+    public static final String CONF_THREADS = "summa.search.warmup.generation.threads";
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * The percentile used for determining convergence, in the range 0-100.
+     * </p><p>
+     * Optional. Default is 95.
+     */
+    public static final String CONF_PERCENTILE = "summa.search.warmup.generation.percentile";
+    public static final int DEFAULT_PERCENTILE = 95;
+
+    /**
+     * Warmup has converged when the {@link #CONF_PERCENTILE} latency for a round is within this fraction of the
+     * latency for the previous round.
+     * </p><p>
+     * Optional. Default is 0.2 (20%).
+     */
+    public static final String CONF_TOLERANCE = "summa.search.warmup.generation.tolerance";
+    public static final double DEFAULT_TOLERANCE = 0.2;
+
+    /**
+     * The minimum number of replay rounds, if there are recorded requests.
+     * </p><p>
+     * Optional. Default is 2.
+     */
+    public static final String CONF_MIN_ROUNDS = "summa.search.warmup.generation.minrounds";
+    public static final int DEFAULT_MIN_ROUNDS = 2;
+
+    /**
+     * The maximum number of milliseconds to spend on warmup. The new generation is put into production when this
+     * limit is reached, even if the latencies has not converged.
+     * </p><p>
+     * Optional. Default is 60000 (1 minute).
+     */
+    public static final String CONF_MAXTIME = "summa.search.warmup.generation.maxtime";
+    public static final int DEFAULT_MAXTIME = 60 * 1000;
+
+    private final Request[] samples;
+    private final int sampleEvery;
+    private final int threads;
+    private final int percentile;
+    private final double tolerance;
+    private final int minRounds;
+    private final int maxTime;
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private int sampleCount = 0;
+    private int nextSample = 0;
+    private Stats lastStats = null;
+
+    public GenerationWarmer(Configuration conf) {
+        samples = new Request[conf.getInt(CONF_SAMPLE_SIZE, DEFAULT_SAMPLE_SIZE)];
+        sampleEvery = Math.max(1, conf.getInt(CONF_SAMPLE_EVERY, DEFAULT_SAMPLE_EVERY));
+        threads = Math.max(1, conf.getInt(CONF_THREADS, DEFAULT_THREADS));
+        percentile = Math.max(0, Math.min(100, conf.getInt(CONF_PERCENTILE, DEFAULT_PERCENTILE)));
+        tolerance = conf.getDouble(CONF_TOLERANCE, DEFAULT_TOLERANCE);
+        minRounds = Math.max(1, conf.getInt(CONF_MIN_ROUNDS, DEFAULT_MIN_ROUNDS));
+        maxTime = conf.getInt(CONF_MAXTIME, DEFAULT_MAXTIME);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Records a copy of the request if it is selected by sampling. This must be called before the request is
+     * processed, as SearchNodes are allowed to modify requests.
+     * @param request a live request.
+     */
+    public void record(Request request) {
+        if (samples.length == 0 || requestCount.incrementAndGet() % sampleEvery != 0) {
+            return;
+        }
+        Request copy = new Request();
+        copy.putAll(request);
+        synchronized (samples) {
+            samples[nextSample] = copy;
+            nextSample = (nextSample + 1) % samples.length;
+            sampleCount = Math.min(samples.length, sampleCount + 1);
+        }
+    }
+
+    /**
+     * @return a snapshot of the recorded requests.
+     */
+    public List<Request> getSamples() {
+        synchronized (samples) {
+            List<Request> snapshot = new ArrayList<>(sampleCount);
+            for (int i = 0 ; i < sampleCount ; i++) {
+                snapshot.add(samples[i]);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Replays the recorded requests against the given SearchNode until latencies converges or the time limit is
+     * reached. Exceptions from the SearchNode are logged and counted, but never thrown, as warmup is non-critical.
+     * @param node an opened SearchNode that is not yet in production.
+     * @return statistics for the warmup.
+     */
+    public Stats warmup(final SearchNode node) {
+        final List<Request> requests = getSamples();
+        final Stats stats = new Stats(requests.size());
+        if (requests.isEmpty()) {
+            log.debug("warmup: No recorded requests. Skipping generation warmup");
+            return lastStats = stats.finish(false);
+        }
+        log.info("Starting generation warmup with " + requests.size() + " recorded requests and " + threads
+                 + " threads");
+        final long endTime = System.currentTimeMillis() + maxTime;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int counter = 0;
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GenerationWarmer_" + counter++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            long previous = -1;
+            while (System.currentTimeMillis() < endTime) {
+                long[] latencies = replay(executor, node, requests, stats, endTime);
+                if (latencies.length == 0) {
+                    break;
+                }
+                long current = getPercentile(latencies, percentile);
+                stats.addRound(getPercentile(latencies, 50), current);
+                if (stats.getRounds() >= minRounds && previous >= 0
+                    && Math.abs(current - previous) <= previous * tolerance) {
+                    return lastStats = stats.finish(true);
+                }
+                previous = current;
+            }
+            log.warn("Generation warmup did not converge within " + maxTime + " ms");
+            return lastStats = stats.finish(false);
+        } finally {
+            executor.shutdownNow();
+            log.info("Finished generation warmup: " + stats);
+        }
+    }
+
+    /**
+     * Issues all requests once in parallel.
+     * @return the latencies in nanoseconds for the completed requests, ordered ascending.
+     */
+    private long[] replay(ExecutorService executor, final SearchNode node, List<Request> requests, final Stats stats,
+                          final long endTime) {
+        List<Future<Long>> futures = new ArrayList<>(requests.size());
+        for (final Request request: requests) {
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    if (System.currentTimeMillis() >= endTime) {
+                        return -1L;
+                    }
+                    Request copy = new Request();
+                    copy.putAll(request);
+                    long startTime = System.nanoTime();
+                    try {
+                        node.search(copy, new ResponseCollection());
+                    } catch (Exception e) {
+                        stats.failed.incrementAndGet();
+                        log.debug("Exception during generation warmup with " + copy, e);
+                        return -1L;
+                    }
+                    return System.nanoTime() - startTime;
+                }
+            }));
+        }
+        long[] latencies = new long[futures.size()];
+        int completed = 0;
+        for (Future<Long> future: futures) {
+            try {
+                long latency = future.get();
+                if (latency >= 0) {
+                    latencies[completed++] = latency;
+                }
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for generation warmup request", e);
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.debug("Unexpected exception during generation warmup", e.getCause());
+            }
+        }
+        stats.queries.addAndGet(completed);
+        latencies = Arrays.copyOf(latencies, completed);
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * @param sorted     ascending values.
+     * @param percentile 0-100.
+     * @return the nearest-rank percentile of the values.
+     */
+    static long getPercentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int)Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * @return the statistics for the last warmup or null if no warmup has been performed.
+     */
+    public Stats getLastStats() {
+        return lastStats;
+    }
+
+    @Override
+    public String toString() {
+        return "GenerationWarmer(sampleSize=" + samples.length + ", sampleEvery=" + sampleEvery + ", threads="
+               + threads + ", percentile=" + percentile + ", tolerance=" + tolerance + ", minRounds=" + minRounds
+               + ", maxTime=" + maxTime + "ms, recorded=" + sampleCount + ")";
+    }
+
+    /**
+     * Statistics for a single warmup.
+     */
+    public static class Stats {
+        private final int samples;
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicLong queries = new AtomicLong(0);
+        private final AtomicLong failed = new AtomicLong(0);
+        private final List<long[]> rounds = new ArrayList<>(); // [median, percentile] in nanoseconds
+        private long spendTime = -1;
+        private boolean converged = false;
+
+        Stats(int samples) {
+            this.samples = samples;
+        }
+
+        void addRound(long median, long percentile) {
+            rounds.add(new long[]{median, percentile});
+        }
+
+        Stats finish(boolean converged) {
+            this.converged = converged;
+            spendTime = System.currentTimeMillis() - startTime;
+            return this;
+        }
+
+        public int getRounds() {
+            return rounds.size();
+        }
+
+        public long getQueries() {
+            return queries.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public boolean isConverged() {
+            return converged;
+        }
+
+        public long getSpendTime() {
+            return spendTime;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("WarmupStats(samples=").append(samples).append(", queries=").append(queries.get());
+            sb.append(", failed=").append(failed.get()).append(", converged=").append(converged);
+            sb.append(", time=").append(spendTime).append("ms, rounds(median/percentile ms)=[");
+            for (int i = 0 ; i < rounds.size() ; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(rounds.get(i)[0] / 1000000).append("/").append(rounds.get(i)[1] / 1000000);
+            }
+            return sb.append("])").toString();
+        }
+    }
+}
@@ -304,6 +304,33 @@ public abstract class SearchNodeImpl implements SearchNode {
      */
     protected abstract void managedOpen(String location) throws RemoteException;
 
+    /**
+     * Runs the task while no searches are in progress, blocking new searches until the task has finished. Intended
+     * for swapping internal structures, such as reopened index readers, outside of {@link #open(String)}.
+     * @param task the task to run.
+     * @return true if the task was run, false if the running searches did not finish within the open timeout, in which
+     *         case the task is not run.
+     * @throws InterruptedException if interrupted while waiting for running searches to finish.
+     */
+    protected synchronized boolean runExclusive(Runnable task) throws InterruptedException {
+        int permits = slots.getOverallPermits();
+        if (permits == 0) { // Not open, so no searches
+            task.run();
+            return true;
+        }
+        if (!slots.tryAcquire(permits, OPEN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            log.warn(String.format("runExclusive: Unable to acquire all %d slots within %d milliseconds",
+                                   permits, OPEN_TIMEOUT));
+            return false;
+        }
+        try {
+            task.run();
+        } finally {
+            slots.release(permits);
+        }
+        return true;
+    }
+
     @Override
     public int getFreeSlots() {
         return slots.availablePermits();
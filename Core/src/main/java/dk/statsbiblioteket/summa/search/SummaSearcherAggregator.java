@@ -18,6 +18,7 @@ import dk.statsbiblioteket.summa.common.Logging;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.configuration.SubConfigurationsNotSupportedException;
 import dk.statsbiblioteket.summa.common.util.DeferredSystemExit;
+import dk.statsbiblioteket.summa.common.util.LatencyHistogram;
 import dk.statsbiblioteket.summa.common.util.MachineStats;
 import dk.statsbiblioteket.summa.common.util.Pair;
 import dk.statsbiblioteket.summa.search.api.*;
@@ -33,7 +34,9 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 /**
@@ -98,7 +101,28 @@ public class SummaSearcherAggregator implements SummaSearcher {
     public static final String CONF_SHUTDOWN_ON_OOM = "summa.oom.shutdown";
     public static final boolean DEFAULT_SHUTDOWN_ON_OOM = true;
 
+    /**
+     * The time budget in milliseconds for a remote SummaSearcher, measured from the start of the search. If the
+     * searcher has not delivered a result within the budget, the search for that searcher is cancelled and the
+     * merged result is returned without it, marked with a {@link DegradedResponse}.
+     * This must be specified for each searcher in {@link #CONF_SEARCHERS} individually.
+     * </p><p>
+     * Optional. Default is -1 (no time budget: wait for the searcher to deliver).
+     */
+    public static final String CONF_SEARCHER_TIMEOUT = "search.aggregator.searcher.timeout";
+    public static final long DEFAULT_SEARCHER_TIMEOUT = -1;
+
+    /**
+     * Search-time maximum budget in milliseconds for all remote searchers. If a searcher has a lower
+     * {@link #CONF_SEARCHER_TIMEOUT}, that budget is used for that searcher.
+     * </p><p>
+     * Optional. Default is no search-time budget.
+     */
+    public static final String SEARCH_TIMEOUT = "search.aggregator.timeout";
+
     private List<Pair<String, SearchClient>> searchers;
+    private final Map<String, Long> timeouts = new HashMap<>();
+    private final Map<String, LatencyHistogram> latencies = new HashMap<>();
     private ExecutorService executor;
     private final List<String> defaultSearchers;
     private final Profiler profiler = new Profiler(Integer.MAX_VALUE, 100);
@@ -123,6 +147,8 @@ public class SummaSearcherAggregator implements SummaSearcher {
             String searcherName = searcherConf.getString(CONF_SEARCHER_DESIGNATION, searcher.getVendorId());
             created.add(searcherName);
             searchers.add(new Pair<>(searcherName, searcher));
+            timeouts.put(searcherName, searcherConf.getLong(CONF_SEARCHER_TIMEOUT, DEFAULT_SEARCHER_TIMEOUT));
+            latencies.put(searcherName, new LatencyHistogram());
             log.debug("Connected to " + searcherName + " at " + searcher.getVendorId());
         }
         this.defaultSearchers = conf.getStrings(CONF_ACTIVE, created);
@@ -225,12 +251,12 @@ public class SummaSearcherAggregator implements SummaSearcher {
 //                request.put(DocumentKeys.SEARCH_MAX_RECORDS,
 //                            request.getInt(DocumentKeys.SEARCH_MAX_RECORDS) + selected.size() * 2);
 //            }
-            List<Pair<String, Future<ResponseCollection>>> searchFutures = new ArrayList<>(selected.size());
+            List<Pair<SearcherCallable, Future<ResponseCollection>>> searchFutures =
+                    new ArrayList<>(selected.size());
             for (Pair<String, SearchClient> searcher: searchers) {
                 if (selected.contains(searcher.getKey())) {
-                    searchFutures.add(new Pair<>(
-                            searcher.getKey(),
-                            executor.submit(new SearcherCallable(searcher.getKey(), searcher.getValue(), request))));
+                    SearcherCallable callable = new SearcherCallable(searcher.getKey(), searcher.getValue(), request);
+                    searchFutures.add(new Pair<>(callable, executor.submit(callable)));
                 } else {
                     log.trace("search(...) skipping searcher " + searcher.getKey() + " as it is not asked for");
                 }
@@ -238,22 +264,53 @@ public class SummaSearcherAggregator implements SummaSearcher {
             log.trace("All searchers started, collecting and waiting");
 
 
+            long searchTimeout = request.getLong(SEARCH_TIMEOUT, -1L);
             List<ResponseHolder> responses = new ArrayList<>(searchFutures.size());
-            for (Pair<String, Future<ResponseCollection>> searchFuture: searchFutures) {
+            DegradedResponse degraded = null;
+            for (Pair<SearcherCallable, Future<ResponseCollection>> searchFuture: searchFutures) {
+                String searcherID = searchFuture.getKey().getDesignation();
+                long budget = getBudget(searcherID, searchTimeout);
                 try {
-                    responses.add(new ResponseHolder(searchFuture.getKey(), request, searchFuture.getValue().get()));
+                    ResponseCollection response;
+                    if (budget < 0) {
+                        response = searchFuture.getValue().get();
+                    } else {
+                        long remaining = Math.max(0, budget - (System.currentTimeMillis() - startTime));
+                        response = searchFuture.getValue().get(remaining, TimeUnit.MILLISECONDS);
+                    }
+                    responses.add(new ResponseHolder(searcherID, request, response));
+                    // Only latencies for responses that are merged are recorded. Searchers that deliver after
+                    // their budget has been cancelled are counted as timeouts only
+                    latencies.get(searcherID).add(searchFuture.getKey().getSearchTime());
+                } catch (TimeoutException e) {
+                    searchFuture.getValue().cancel(true);
+                    latencies.get(searcherID).addTimeout();
+                    String reason = "Timeout after " + budget + "ms";
+                    log.info("search: Searcher " + searcherID + " did not deliver within its time budget of "
+                             + budget + "ms. Continuing without it for " + request.toString(true));
+                    if (degraded == null) {
+                        degraded = new DegradedResponse();
+                    }
+                    degraded.addSource(searcherID, reason);
                 } catch (InterruptedException e) {
                     throw new IOException(
-                            "Interrupted while waiting for searcher result from " + searchFuture.getKey(), e);
+                            "Interrupted while waiting for searcher result from " + searcherID, e);
                 } catch (ExecutionException e) {
                     throw new IOException(
-                            "ExecutionException while requesting search result from " + searchFuture.getKey(), e);
+                            "ExecutionException while requesting search result from " + searcherID, e);
                 } catch (Exception e) {
-                    throw new IOException("Exception while requesting search result from " + searchFuture.getKey(), e);
+                    throw new IOException("Exception while requesting search result from " + searcherID, e);
                 }
             }
+            if (responses.isEmpty() && degraded != null) {
+                throw new IOException("No searchers delivered within their time budget: " + degraded.getSources());
+            }
             merged = merge(request, responses);
             postProcessPaging(merged, startIndex, maxRecords);
+            if (degraded != null) {
+                merged.add(degraded);
+                merged.addTiming("aggregator.degraded", degraded.getSources().size());
+            }
 
             log.debug("Finished search in " + (System.currentTimeMillis() - startTime) + " ms");
             merged.addTiming("aggregator.searchandmergeall", System.currentTimeMillis() - startTime);
@@ -303,6 +360,31 @@ public class SummaSearcherAggregator implements SummaSearcher {
         }
     }
 
+    /**
+     * @return the time budget for the given searcher or -1 if there is no budget.
+     */
+    private long getBudget(String searcherID, long searchTimeout) {
+        long budget = timeouts.get(searcherID);
+        if (searchTimeout >= 0 && (budget < 0 || searchTimeout < budget)) {
+            return searchTimeout;
+        }
+        return budget;
+    }
+
+    /**
+     * @return latency statistics for the remote searchers, including the number of missed time budgets.
+     */
+    public String getLatencyStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Pair<String, SearchClient> searcher: searchers) {
+            if (sb.length() != 0) {
+                sb.append(", ");
+            }
+            sb.append(searcher.getKey()).append("(").append(latencies.get(searcher.getKey())).append(")");
+        }
+        return sb.toString();
+    }
+
     public static class ResponseHolder {
         private final String searcherID;
         private final Request request;
@@ -370,7 +452,8 @@ public class SummaSearcherAggregator implements SummaSearcher {
 
     @Override
     public void close() throws IOException {
-        log.info("Close called for aggregator. Closing each searcher and shutting down executor");
+        log.info("Close called for aggregator. Closing each searcher and shutting down executor. Searcher latencies: "
+                 + getLatencyStats());
         for (Pair<String, SearchClient> searchPair: searchers) {
             searchPair.getValue().close();
         }
@@ -389,6 +472,7 @@ public class SummaSearcherAggregator implements SummaSearcher {
         private String designation;
         private SearchClient client;
         private Request request;
+        private volatile long searchTime = -1;
 
         private SearcherCallable(String designation, SearchClient client, Request request) {
             //noinspection DuplicateStringLiteralInspection
@@ -402,13 +486,21 @@ public class SummaSearcherAggregator implements SummaSearcher {
         public ResponseCollection call() throws Exception {
             long searchStart = System.currentTimeMillis();
             ResponseCollection result = client.search(request);
-            result.addTiming("aggregator.searchcall." + designation, System.currentTimeMillis() - searchStart);
+            searchTime = System.currentTimeMillis() - searchStart;
+            result.addTiming("aggregator.searchcall." + designation, searchTime);
             return result;
         }
 
         public String getDesignation() {
             return designation;
         }
+
+        /**
+         * @return the time in ms for the remote search or -1 if the search has not finished.
+         */
+        public long getSearchTime() {
+            return searchTime;
+        }
     }
 
     private String getStats() {
@@ -426,6 +518,6 @@ public class SummaSearcherAggregator implements SummaSearcher {
             s+= searcher.getKey();
         }
         return "SummaSearcherAggregator(searchers=[" + s + "], defaultSearchers=[" + Strings.join(defaultSearchers)
-               + "], shutdownOnOOM=" + oomShutdown + ", " + getStats() + ")";
+               + "], timeouts=" + timeouts + ", shutdownOnOOM=" + oomShutdown + ", " + getStats() + ")";
     }
 }
@@ -14,6 +14,7 @@
  */
 package dk.statsbiblioteket.summa.search;
 
+import dk.statsbiblioteket.summa.common.configuration.Configurable;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.configuration.Resolver;
 import dk.statsbiblioteket.summa.common.lucene.LuceneIndexUtils;
@@ -102,11 +103,29 @@ public class SummaSearcherImpl implements SummaSearcherMBean, SummaSearcher, Ind
     public static final String CONF_ALLOW_EMPTY_SEARCH = "summa.search.allowempty";
     public static final boolean DEFAULT_ALLOW_EMPTY_SEARCH = false;
 
+    /**
+     * If true, a new SearchNode is created for each new index generation after the first one. The new SearchNode is
+     * opened and warmed with a sample of recent live requests by a {@link GenerationWarmer}, while the old SearchNode
+     * keeps serving requests. When warmup has finished, the new SearchNode replaces the old one, which is closed when
+     * its running searches has finished.
+     * </p><p>
+     * This requires the SearchNode to be specified with {@link SearchNodeFactory#CONF_NODE_CLASS}, also when the
+     * SearchNode is given directly to the constructor, and temporarily doubles the resource requirements for the SearchNode when a new index generation is opened.
+     * See {@link GenerationWarmer} for warmup properties.
+     * </p><p>
+     * Optional. Default is false.
+     */
+    public static final String CONF_WARMUP_GENERATIONS = "summa.search.warmup.generations";
+    public static final boolean DEFAULT_WARMUP_GENERATIONS = false;
+
     private int searcherAvailabilityTimeout = DEFAULT_SEARCHER_AVAILABILITY_TIMEOUT;
 
     private ChangingSemaphore searchQueue;
     private ChangingSemaphore freeSlots = new ChangingSemaphore(0);
-    private SearchNode searchNode;
+    private volatile Generation generation;
+    private final Configuration conf;
+    private final GenerationWarmer warmer;
+    private boolean generationOpened = false;
     private IndexWatcher watcher;
 
     private File indexFolder;
@@ -146,8 +165,19 @@ public class SummaSearcherImpl implements SummaSearcherMBean, SummaSearcher, Ind
 
         searchQueue = new ChangingSemaphore(searchQueueMaxSize, true);
         log.trace("Constructing search node");
-        this.searchNode = searchNode;
+        this.conf = conf;
+        generation = new Generation(searchNode);
         emptySearchAllowed = conf.getBoolean(CONF_ALLOW_EMPTY_SEARCH, DEFAULT_ALLOW_EMPTY_SEARCH);
+        if (conf.getBoolean(CONF_WARMUP_GENERATIONS, DEFAULT_WARMUP_GENERATIONS)) {
+            if (!conf.valueExists(SearchNodeFactory.CONF_NODE_CLASS)) {
+                throw new Configurable.ConfigurationException(
+                        CONF_WARMUP_GENERATIONS + " is true but no " + SearchNodeFactory.CONF_NODE_CLASS
+                        + " is specified, so new generations cannot be created");
+            }
+            warmer = new GenerationWarmer(conf);
+        } else {
+            warmer = null;
+        }
 
         // Ready for open
         if (conf.getBoolean(CONF_USE_LOCAL_INDEX, DEFAULT_USE_LOCAL_INDEX)) {
@@ -200,7 +230,12 @@ public class SummaSearcherImpl implements SummaSearcherMBean, SummaSearcher, Ind
         } catch (InterruptedException e) {
             throw new RemoteException("Interrupted while waiting for search queue access", e);
         }
+        if (warmer != null && generationOpened) {
+            warmer.record(request);
+        }
         boolean success = false;
+        final Generation current = acquireGeneration();
+        final SearchNode searchNode = current.node;
         try {
             try {
                 if (freeSlots.getOverallPermits() == 0) {
@@ -250,6 +285,7 @@ public class SummaSearcherImpl implements SummaSearcherMBean, SummaSearcher, Ind
                 }
             }
         } finally {
+            current.active.decrementAndGet();
             searchQueue.release();
             profiler.beat();
             // TODO: Make this cleaner with no explicit dependency
@@ -294,7 +330,7 @@ public class SummaSearcherImpl implements SummaSearcherMBean, SummaSearcher, Ind
         if (watcher != null) {
             watcher.stopWatching();
         }
-        searchNode.close();
+        generation.node.close();
         freeSlots.setOverallPermits(0);
         //freeSlots.setPermits(searchNode.getFreeSlots());
     }
@@ -310,14 +346,104 @@ public class SummaSearcherImpl implements SummaSearcherMBean, SummaSearcher, Ind
         long startTime = System.currentTimeMillis();
         //noinspection DuplicateStringLiteralInspection
         log.info("indexChanged(" + indexFolder + ") called");
+        if (warmer != null && generationOpened && indexFolder != null) {
+            openGeneration(indexFolder);
+        } else {
+            try {
+                generation.node.open(indexFolder == null ? null : indexFolder.getAbsolutePath());
+                generationOpened = indexFolder != null;
+            } catch (RemoteException e) {
+                // TODO: Consider making this a fatal
+                log.error("Exception received while opening '" + indexFolder + "'", e);
+            }
+        }
+        freeSlots.setOverallPermits(generation.node.getFreeSlots());
+        log.info("Finished indexChanged(" + indexFolder + ") in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Creates and opens a new SearchNode for the given index, warms it with recorded requests and swaps it with the
+     * current SearchNode. If the new SearchNode cannot be opened, the current SearchNode is kept.
+     * @param indexFolder where the index is located.
+     */
+    private void openGeneration(File indexFolder) {
+        log.debug("Creating new SearchNode generation for '" + indexFolder + "'");
+        SearchNode fresh;
         try {
-            searchNode.open(indexFolder == null ? null : indexFolder.getAbsolutePath());
+            fresh = SearchNodeFactory.createSearchNode(conf);
+        } catch (Exception e) {
+            log.error("Exception received while creating new generation for '" + indexFolder
+                      + "'. Keeping the current generation", e);
+            return;
+        }
+        try {
+            fresh.open(indexFolder.getAbsolutePath());
+        } catch (Exception e) {
+            log.error("Exception received while opening new generation for '" + indexFolder
+                      + "'. Keeping the current generation", e);
+            try {
+                fresh.close();
+            } catch (RemoteException ce) {
+                log.warn("Exception closing failed generation for '" + indexFolder + "'", ce);
+            }
+            return;
+        }
+        GenerationWarmer.Stats stats = warmer.warmup(fresh);
+        log.info("Warmed new generation for '" + indexFolder + "': " + stats);
+        Generation old = generation;
+        generation = new Generation(fresh);
+        freeSlots.setOverallPermits(fresh.getFreeSlots());
+        retire(old);
+    }
+
+    /**
+     * Waits for running searches on the generation to finish, then closes its SearchNode.
+     */
+    private void retire(Generation old) {
+        long endTime = System.currentTimeMillis() + searcherAvailabilityTimeout;
+        while (old.active.get() > 0 && System.currentTimeMillis() < endTime) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for searches on old generation to finish");
+                break;
+            }
+        }
+        if (old.active.get() > 0) {
+            log.warn("Closing old generation with " + old.active.get() + " running searches");
+        }
+        try {
+            old.node.close();
         } catch (RemoteException e) {
-            // TODO: Consider making this a fatal
-            log.error("Exception received while opening '" + indexFolder + "'", e);
+            log.warn("Exception closing old generation " + old.node, e);
+        }
+    }
+
+    /**
+     * @return the current generation, marked as having an active search. The caller must decrement
+     *         {@link Generation#active} when the search has finished.
+     */
+    private Generation acquireGeneration() {
+        while (true) {
+            Generation current = generation;
+            current.active.incrementAndGet();
+            if (current == generation) {
+                return current;
+            }
+            current.active.decrementAndGet(); // Swapped while acquiring
+        }
+    }
+
+    /**
+     * A SearchNode and the number of searches running on it.
+     */
+    private static class Generation {
+        private final SearchNode node;
+        private final AtomicInteger active = new AtomicInteger(0);
+
+        private Generation(SearchNode node) {
+            this.node = node;
         }
-        freeSlots.setOverallPermits(searchNode.getFreeSlots());
-        log.info("Finished indexChanged(" + indexFolder + ") in " + (System.currentTimeMillis() - startTime) + " ms");
     }
 
     /* MBean implementations */
@@ -518,14 +644,22 @@ public class SummaSearcherImpl implements SummaSearcherMBean, SummaSearcher, Ind
      * @return the inner SearchNode.
      */
     public SearchNode getSearchNode() {
-        return searchNode;
+        return generation.node;
+    }
+
+    @Override
+    public String getWarmupStats() {
+        if (warmer == null) {
+            return "Generation warmup not enabled";
+        }
+        return warmer.getLastStats() == null ? "No generation warmup performed" : warmer.getLastStats().toString();
     }
 
     @Override
     public String toString() {
         return "SummaSearcherImpl(searcherAvailabilityTimeout=" + searcherAvailabilityTimeout +
                ", searchQueue.size=" + searchQueue.getQueueLength() + ", freeSlots=" + freeSlots.getQueueLength() +
-               ", searchNode=" + searchNode + ", ..., indexFolder=" + indexFolder +
+               ", searchNode=" + generation.node + ", ..., indexFolder=" + indexFolder +
                ", lastResponseTime=" + lastResponseTime + ", stats=" + getStats() +
                ", concurrentSearches=" + concurrentSearches + ", emptySearchAllowed=" + emptySearchAllowed +
                ", maxConcurrent=" + maxConcurrent + ")";
@@ -118,6 +118,13 @@ public interface SummaSearcherMBean {
      * @throws RemoteException if the data could not be cleared.
      */
     public void clearStatistics() throws RemoteException;
+
+    /**
+     * @return statistics for the last generation warmup.
+     * @throws RemoteException if the statistics could not be retrieved.
+     * @see SummaSearcherImpl#CONF_WARMUP_GENERATIONS
+     */
+    public String getWarmupStats() throws RemoteException;
 }
 
 
@@ -0,0 +1,96 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.search.api;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Marks a result as partial: One or more sources did not deliver their part of the result, typically because they
+ * did not respond within their time budget. Added by aggregators to the merged result.
+ * </p><p>
+ * XML output:
+ * {@code
+ * <degraded>
+ *   <source id="summon" reason="Timeout after 2000ms"/>
+ * </degraded>
+ * }
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class DegradedResponse extends ResponseImpl {
+    private static final long serialVersionUID = 168413487341L;
+    public static final String NAME = "DegradedResponse";
+
+    private final LinkedHashMap<String, String> sources = new LinkedHashMap<>();
+
+    public DegradedResponse() {
+        super(NAME + ".");
+    }
+
+    /**
+     * @param sourceID the ID of the source that did not deliver.
+     * @param reason   human readable reason.
+     */
+    public DegradedResponse(String sourceID, String reason) {
+        this();
+        addSource(sourceID, reason);
+    }
+
+    public synchronized void addSource(String sourceID, String reason) {
+        sources.put(sourceID, reason);
+    }
+
+    /**
+     * @return the degraded sources mapped to the reason for degradation.
+     */
+    public synchronized Map<String, String> getSources() {
+        return new LinkedHashMap<>(sources);
+    }
+
+    @Override
+    public synchronized void merge(Response other) throws ClassCastException {
+        super.merge(other);
+        sources.putAll(((DegradedResponse)other).getSources());
+    }
+
+    @Override
+    public synchronized void toXML(XMLStreamWriter xml) throws XMLStreamException {
+        startln(xml, "degraded", TIMING, getTiming());
+        for (Map.Entry<String, String> entry: sources.entrySet()) {
+            xml.writeCharacters("  ");
+            xml.writeEmptyElement("source");
+            xml.writeAttribute("id", entry.getKey());
+            xml.writeAttribute("reason", entry.getValue());
+            xml.writeCharacters("\n");
+        }
+        endln(xml);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String toString() {
+        return "DegradedResponse(" + getSources() + ")";
+    }
+}
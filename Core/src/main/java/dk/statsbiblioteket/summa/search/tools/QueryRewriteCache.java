@@ -0,0 +1,127 @@
+/* $Id:$
+ *
+ * The Summa project.
+ * Copyright (C) 2005-2010  The State and University Library
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.summa.search.tools;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe LRU cache for the output of {@link QueryRewriter}-based rewriting. Rewriting requires a full parse to
+ * Lucene Query objects and a serialisation back to String, which is expensive compared to a lookup. As the same
+ * queries are rewritten for each source in federated search and popular queries are repeated, the cache works well.
+ * </p><p>
+ * Entries are keyed on a context and the trimmed query. The context must represent everything besides the query that
+ * influences the rewrite, such as search-time field mappings or term stat weights.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class QueryRewriteCache {
+    private final int maxSize;
+    private final Map<String, String> cache;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param maxSize the maximum number of rewrites to hold. If this is 0 or less, nothing is cached.
+     */
+    public QueryRewriteCache(final int maxSize) {
+        this.maxSize = maxSize;
+        cache = new LinkedHashMap<String, String>(Math.max(16, Math.min(maxSize, 1000)), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param context everything besides the query that influences the rewrite.
+     * @param query   the unmodified query.
+     * @return the previously rewritten query or null if it is not in the cache.
+     */
+    public String get(String context, String query) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        String rewritten;
+        synchronized (cache) {
+            rewritten = cache.get(getKey(context, query));
+        }
+        (rewritten == null ? misses : hits).incrementAndGet();
+        return rewritten;
+    }
+
+    /**
+     * @param context   everything besides the query that influences the rewrite.
+     * @param query     the unmodified query.
+     * @param rewritten the rewritten query.
+     */
+    public void put(String context, String query, String rewritten) {
+        if (maxSize <= 0 || rewritten == null) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(getKey(context, query), rewritten);
+        }
+    }
+
+    private String getKey(String context, String query) {
+        return context + "\u0000" + query.trim();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return hits / (hits + misses) or 0 if there has been no lookups.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryRewriteCache(size=%d/%d, hits=%d, misses=%d, hitRate=%.2f)",
+                             size(), maxSize, getHits(), getMisses(), getHitRate());
+    }
+}
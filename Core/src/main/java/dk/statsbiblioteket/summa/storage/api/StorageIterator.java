@@ -22,10 +22,12 @@ import org.apache.commons.logging.LogFactory;
 import java.io.IOException;
 import java.io.Serializable;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -35,6 +37,13 @@ import java.util.concurrent.LinkedBlockingQueue;
  * This class takes care to optimize the network overhead by only requesting
  * batches of records via {@link ReadableStorage#next(long, int)} instead of
  * fetching them one by one.
+ * <p/>
+ * If prefetching is enabled, a background thread requests the batches in
+ * sequence and keeps up to the given number of batches ready, so that the
+ * remote calls overlaps the processing of the received Records instead of
+ * waiting for a full round trip each time the buffer is depleted. The
+ * fetcher blocks when the buffer is full (flow control). Call {@link #close}
+ * to stop the fetcher if the iterator is abandoned before depletion.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
@@ -44,15 +53,23 @@ public class StorageIterator implements Iterator<Record>, Serializable {
     // TODO: Consider making this adjustable
     public static final int DEFAULT_MAX_QUEUE_SIZE = 100;
     public static final boolean DEFAULT_ALLOW_PARTIAL_DELIVERIES = false;
+    public static final int DEFAULT_PREFETCH_BATCHES = 0;
 
     private int maxQueueSize;
     private final ReadableStorage iteratorHolder;
     private final long key;
     private final Queue<Record> records;
     private boolean next;
+    private volatile boolean fetchMore = true; // Controlled by fetch
     private long totalReceived = 0;
     private boolean allowPartialDeliveries;
 
+    // Prefetching. An empty batch in the queue signals end of iteration
+    private final int prefetchBatches;
+    private transient BlockingQueue<List<Record>> prefetched = null;
+    private transient Thread fetcher = null;
+    private transient volatile IOException fetchException = null;
+
     private Log log;
 
     /**
@@ -92,7 +109,24 @@ public class StorageIterator implements Iterator<Record>, Serializable {
      */
     public StorageIterator(ReadableStorage iteratorHolder, long key, int maxBufferSize,
                            boolean allowPartialDeliveries) {
+        this(iteratorHolder, key, maxBufferSize, allowPartialDeliveries, DEFAULT_PREFETCH_BATCHES);
+    }
+
+    /**
+     * Create an iterator on a given storage and iteration key (as returned
+     * by one of the getters on the {@link ReadableStorage} interface)
+     *
+     * @param iteratorHolder the storage holding the iterator key {@code key}
+     * @param key the iteration key as returned from the {@link ReadableStorage}
+     * @param maxBufferSize maximum number of records to request in each batch
+     * @param allowPartialDeliveries if true, delivery of less than maxBufferSize does not terminate the iterator.
+     * @param prefetchBatches the number of batches to request ahead in a background thread.
+     *                        If 0, batches are requested when the buffer is empty.
+     */
+    public StorageIterator(ReadableStorage iteratorHolder, long key, int maxBufferSize,
+                           boolean allowPartialDeliveries, int prefetchBatches) {
         log = LogFactory.getLog (this.getClass().getName());
+        this.prefetchBatches = prefetchBatches;
         this.iteratorHolder = iteratorHolder;
         this.key = key;
         this.next = true;
@@ -100,7 +134,8 @@ public class StorageIterator implements Iterator<Record>, Serializable {
         maxQueueSize = maxBufferSize;
         this.allowPartialDeliveries = allowPartialDeliveries;
         if(log.isTraceEnabled()) {
-            log.trace("Created StorageIterator(" + iteratorHolder + ", " + key + ", " + maxBufferSize + ")");
+            log.trace("Created StorageIterator(" + iteratorHolder + ", " + key + ", " + maxBufferSize + ", "
+                      + prefetchBatches + ")");
         }
     }
 
@@ -141,49 +176,136 @@ public class StorageIterator implements Iterator<Record>, Serializable {
      */
     private void checkRecords () throws IOException {
         if (records.isEmpty() && next) {
-            try {
-                long startTime = System.currentTimeMillis();
-                List<Record> recs = iteratorHolder.next(key, maxQueueSize);
-                totalReceived += recs.size();
-                final long receiveTime = System.currentTimeMillis()-startTime;
-                log.debug("Received " + recs.size() + " Records (" + maxQueueSize + " requested, "+ totalReceived
-                          + " received in total) in " + receiveTime + "ms: "
-                          + (recs.isEmpty() ? "N/A" : receiveTime / recs.size() + "ms/Record"));
-                if (!recs.isEmpty() && recs.size() < maxQueueSize) {
-                    if (allowPartialDeliveries) {
-                        log.debug("checkRecords: Received only " + recs.size() + "/" + maxQueueSize + " records. " +
-                                  "Continuing as allowPartialUpdates is true" );
-                    } else {
-                        log.debug("checkRecords: Received only " + recs.size() + "/" + maxQueueSize + " records. " +
-                                  "Iteration will be terminated" );
+            if (prefetchBatches > 0) {
+                takePrefetched();
+                return;
+            }
+            List<Record> recs = fetch();
+            if (recs == null) {
+                next = false;
+                return;
+            }
+            records.addAll(recs);
+            if (records.isEmpty()) {
+                next = false;
+            }
+        }
+    }
+
+    private void takePrefetched() throws IOException {
+        if (fetcher == null) {
+            startFetcher();
+        }
+        List<Record> recs;
+        try {
+            recs = prefetched.take();
+        } catch (InterruptedException e) {
+            throw new RemoteException("Interrupted while waiting for prefetched Records", e);
+        }
+        if (recs.isEmpty()) {
+            next = false;
+            if (fetchException != null) {
+                throw fetchException;
+            }
+            return;
+        }
+        records.addAll(recs);
+    }
+
+    private void startFetcher() {
+        prefetched = new LinkedBlockingQueue<>(prefetchBatches);
+        fetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<Record> empty = new ArrayList<>(0);
+                try {
+                    List<Record> recs;
+                    while ((recs = fetch()) != null && !recs.isEmpty()) {
+                        prefetched.put(recs);
                     }
-                    next = allowPartialDeliveries;
-                }
-                records.addAll(recs);
-                if (records.isEmpty()) {
-                    log.info("Received 0 records from iteratorHolder, but no NoSuchElementException");
-                    next = false;
+                } catch (IOException e) {
+                    fetchException = e;
+                } catch (InterruptedException e) {
+                    log.debug("Interrupted while prefetching Records for key " + key + ". Stopping prefetch");
+                    return;
                 }
-            } catch (Exception e) { // Often this is a java.rmi.ServerException indirectly wrapping NoSuchElementEx...
                 try {
-                    Throwable sub = e;
-                    while (sub != null) {
-                        if (sub instanceof NoSuchElementException) {
-                            log.info("Got NoSuchElementException, which signals no more Records. "
-                                     + "Received a total of " + totalReceived + " Records");
-                            next = false;
-                            return;
-                        }
-                        sub = sub.getCause();
-                    }
-                    throw new RemoteException("Received Exception that did not have a NoSuchElementException "
-                                              + "in the causes chain", e);
-                } catch (Exception e2) {
-                    throw new RemoteException("Exception triggered while searching for NoSuchElementException "
-                                              + "cause in " + e, e2);
+                    prefetched.put(empty);
+                } catch (InterruptedException e) {
+                    log.debug("Interrupted while signalling end of prefetch for key " + key);
                 }
+            }
+        }, "StorageIterator prefetch " + key);
+        fetcher.setDaemon(true); // Allow the JVM to exit
+        fetcher.start();
+        log.debug("Started prefetching of up to " + prefetchBatches + " batches of " + maxQueueSize
+                  + " Records for key " + key);
+    }
 
+    /**
+     * Requests the next batch from the iteratorHolder and updates the state of the iteration accordingly.
+     * Only called from a single thread at a time.
+     * @return the next batch of Records or null if there are no more Records. If the returned batch is shorter
+     *         than requested and partial deliveries are not allowed, the next call will return null.
+     * @throws IOException if the batch could not be requested.
+     */
+    private List<Record> fetch() throws IOException {
+        if (!fetchMore) {
+            return null;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            List<Record> recs = iteratorHolder.next(key, maxQueueSize);
+            totalReceived += recs.size();
+            final long receiveTime = System.currentTimeMillis()-startTime;
+            log.debug("Received " + recs.size() + " Records (" + maxQueueSize + " requested, "+ totalReceived
+                      + " received in total) in " + receiveTime + "ms: "
+                      + (recs.isEmpty() ? "N/A" : receiveTime / recs.size() + "ms/Record"));
+            if (!recs.isEmpty() && recs.size() < maxQueueSize) {
+                if (allowPartialDeliveries) {
+                    log.debug("checkRecords: Received only " + recs.size() + "/" + maxQueueSize + " records. " +
+                              "Continuing as allowPartialUpdates is true" );
+                } else {
+                    log.debug("checkRecords: Received only " + recs.size() + "/" + maxQueueSize + " records. " +
+                              "Iteration will be terminated" );
+                }
+                fetchMore = allowPartialDeliveries;
+            }
+            if (recs.isEmpty()) {
+                log.info("Received 0 records from iteratorHolder, but no NoSuchElementException");
+                fetchMore = false;
+            }
+            return recs;
+        } catch (Exception e) { // Often this is a java.rmi.ServerException indirectly wrapping NoSuchElementEx...
+            try {
+                Throwable sub = e;
+                while (sub != null) {
+                    if (sub instanceof NoSuchElementException) {
+                        log.info("Got NoSuchElementException, which signals no more Records. "
+                                 + "Received a total of " + totalReceived + " Records");
+                        fetchMore = false;
+                        return null;
+                    }
+                    sub = sub.getCause();
+                }
+                throw new RemoteException("Received Exception that did not have a NoSuchElementException "
+                                          + "in the causes chain", e);
+            } catch (Exception e2) {
+                throw new RemoteException("Exception triggered while searching for NoSuchElementException "
+                                          + "cause in " + e, e2);
             }
         }
     }
+
+    /**
+     * Stops prefetching, if active, and marks the iterator as depleted. Records already received are discarded.
+     */
+    public void close() {
+        next = false;
+        records.clear();
+        if (fetcher != null) {
+            fetcher.interrupt();
+            fetcher = null;
+        }
+    }
 }
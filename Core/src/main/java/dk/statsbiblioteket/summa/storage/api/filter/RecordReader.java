@@ -34,7 +34,6 @@ import org.apache.commons.logging.LogFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
@@ -236,6 +235,17 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
      */
     public static final String CONF_ALLOW_PARTIAL_DELIVERIES = "summa.storage.recordreader.allow.partial.deliveries";
 
+    /**
+     * The number of batches of Records to request ahead of processing. The requests are issued in sequence by a
+     * background thread, so that the round trips to the Storage overlaps the processing of the Records in the filter
+     * chain. Memory usage is up to (prefetch.batches + 1) * {@link #CONF_BATCH_SIZE} Records.
+     * If 0, a new batch is only requested when the previous batch has been processed.
+     * </p><p>
+     * Optional. Default is 2.
+     */
+    public static final String CONF_PREFETCH_BATCHES = "summa.storage.recordreader.prefetch.batches";
+    public static final int DEFAULT_PREFETCH_BATCHES = 2;
+
     /**
      * The readable storage.
      */
@@ -259,6 +269,7 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
     private int maxReadRecords = DEFAULT_MAX_READ_RECORDS;
     private int maxReadSeconds = DEFAULT_MAX_READ_SECONDS;
     private int batchSize = DEFAULT_BATCH_SIZE;
+    private int prefetchBatches = DEFAULT_PREFETCH_BATCHES;
     private boolean loadData = DEFAULT_LOAD_DATA_COLUMN;
 
     private final boolean stopOnNewer;
@@ -289,7 +300,7 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
     /**
      * Record iterator.
      */
-    private Iterator<Record> recordIterator = null;
+    private StorageIterator recordIterator = null;
 
     /**
      * Connects to the Storage specified in the configuration and request an
@@ -340,6 +351,7 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
         maxReadRecords = conf.getInt(CONF_MAX_READ_RECORDS, DEFAULT_MAX_READ_RECORDS);
         maxReadSeconds = conf.getInt(CONF_MAX_READ_SECONDS, DEFAULT_MAX_READ_SECONDS);
         batchSize = conf.getInt(CONF_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        prefetchBatches = conf.getInt(CONF_PREFETCH_BATCHES, DEFAULT_PREFETCH_BATCHES);
         loadData = conf.getBoolean(CONF_LOAD_DATA_COLUMN, DEFAULT_LOAD_DATA_COLUMN);
         allowPartialDeliveries = conf.getBoolean(
                 CONF_ALLOW_PARTIAL_DELIVERIES, StorageIterator.DEFAULT_ALLOW_PARTIAL_DELIVERIES);
@@ -422,7 +434,8 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
             long iterKey = storage.getRecordsModifiedAfter(lastRecordTimestamp, base, getQueryOptions());
 
             lastIteratorUpdate = System.currentTimeMillis();
-            recordIterator = new StorageIterator(storage, iterKey, batchSize, allowPartialDeliveries);
+            recordIterator = new StorageIterator(
+                    storage, iterKey, batchSize, allowPartialDeliveries, prefetchBatches);
 
             return false;
         } else if (recordIterator.hasNext()) {
@@ -441,11 +454,13 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
         long iterKey = storage.getRecordsModifiedAfter(lastRecordTimestamp, base, getQueryOptions());
 
         lastIteratorUpdate = System.currentTimeMillis();
-        recordIterator = new StorageIterator(storage, iterKey, batchSize, allowPartialDeliveries);
+        recordIterator.close();
+        recordIterator = new StorageIterator(storage, iterKey, batchSize, allowPartialDeliveries, prefetchBatches);
 
         if (!recordIterator.hasNext()) {
             log.debug("Received update notification from StorageWatcher, but no new Records is available from the "
                       + "record iterator");
+            recordIterator.close();
             recordIterator = null;
             return false;
         }
@@ -474,6 +489,9 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
      */
     private void markEof() {
         eofReached = true;
+        if (recordIterator != null) {
+            recordIterator.close(); // Stops prefetching
+        }
         recordIterator = null; // Allow finalization of the recordIterator
     }
 
@@ -703,12 +721,12 @@ public class RecordReader extends ObjectFilterBase implements StorageChangeListe
     public String toString() {
         return String.format(
                 "RecordReader(startFromScratch=%b, storage=%s, bases=%s, startMTime=%s, progress=%s, "
-                + "maxRecords=%d, maxSeconds=%d, batchSize=%d, loadDate=%b, stayAlive=%b, "
+                + "maxRecords=%d, maxSeconds=%d, batchSize=%d, prefetchBatches=%d, loadDate=%b, stayAlive=%b, "
                 + "stopOnNewer=%b, allowPartialDeliveries=%b, readRecords=%d, continueOffset=%dms, "
                 + "stats=%s)",
                 startFromScratch, storage, base == null || "".equals(base) ? "*" : base,
                 String.format(ProgressTracker.ISO_TIME, lastRecordTimestamp), progressTracker,
-                maxReadRecords, maxReadSeconds, batchSize, loadData, storageWatcher != null,
+                maxReadRecords, maxReadSeconds, batchSize, prefetchBatches, loadData, storageWatcher != null,
                 stopOnNewer, allowPartialDeliveries, sizeProcess.getRecordCount(), continueOffset, getProcessStats());
     }
 }
@@ -35,7 +35,14 @@ import org.apache.commons.logging.LogFactory;
 import java.io.IOException;
 import java.net.NoRouteToHostException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Connects to a Storage and ingests received Records into the storage.
@@ -47,6 +54,14 @@ import java.util.List;
  * The policy on when to commit the batches is determined by the two
  * properties {@link #CONF_BATCH_SIZE} and {@link #CONF_BATCH_TIMEOUT}. 
  * <p/>
+ * Optionally batches are sent to Storage in the background, with up to
+ * {@link #CONF_INFLIGHT} batches being sent at the same time, so that the
+ * filter chain can continue while Storage commits. Batches are dispatched in
+ * the order they were created and a batch containing a Record ID that is
+ * part of a batch still being sent waits for that batch to finish, so the
+ * order of updates for a given Record is preserved. Failed background
+ * batches are retried with exponential backoff, see {@link #CONF_RETRIES}.
+ * <p/>
  * Note: This ObjectFilter can only be chained after another ObjectFilter.
  * </p><p>
  * Note: Only Record is stored. All other data in Payload is ignored.
@@ -125,6 +140,50 @@ public class RecordWriter extends ObjectFilterImpl {
 
     public static final boolean DEFAULT_TRY_UPDATE = false;
 
+    /**
+     * The maximum number of batches that are being sent to Storage at the
+     * same time. While batches are in flight, new Records are collected into
+     * the next batch. If 0, batches are sent synchronously, blocking the
+     * filter chain while Storage commits.
+     * </p><p>
+     * Note: Storage must be able to handle concurrent calls to
+     * {@link WritableStorage#flushAll} for values above 1.
+     * </p><p>
+     * Note: With values above 0, errors from Storage are reported after
+     * {@link #processRecord} has returned.
+     * </p><p>
+     * Optional. Default is 0 (synchronous sending).
+     */
+    public static final String CONF_INFLIGHT = "summa.storage.recordwriter.inflight";
+    public static final int DEFAULT_INFLIGHT = 0;
+
+    /**
+     * The number of times to retry sending a batch to Storage if the send
+     * fails. If all retries fail, the Records in the batch are dropped and
+     * logged.
+     * </p><p>
+     * Note: With synchronous sending ({@link #CONF_INFLIGHT} == 0), the
+     * filter chain is blocked while waiting for a retry, so retries are
+     * disabled by default in that mode.
+     * </p><p>
+     * Optional. Default is 2 for background sending and 0 for synchronous
+     * sending.
+     * @see #CONF_RETRY_DELAY
+     */
+    public static final String CONF_RETRIES = "summa.storage.recordwriter.retries";
+    public static final int DEFAULT_RETRIES = 2;
+    public static final int DEFAULT_RETRIES_SYNC = 0;
+
+    /**
+     * The delay in milliseconds before the first retry of a failed batch.
+     * The delay is doubled for each subsequent retry.
+     * </p><p>
+     * Optional. Default is 500.
+     * @see #CONF_RETRIES
+     */
+    public static final String CONF_RETRY_DELAY = "summa.storage.recordwriter.retrydelay";
+    public static final int DEFAULT_RETRY_DELAY = 500;
+
     private class Batcher implements Runnable {
 
         public static final String CONF_STATUS_EVERY = "batch." + ObjectFilterBase.CONF_STATUS_EVERY;
@@ -141,13 +200,29 @@ public class RecordWriter extends ObjectFilterImpl {
         private final WritableStorage storage;
         private final QueryOptions qOptions;
 
+        private final int maxInFlight;
+        private final int retries;
+        private final int retryDelay;
+        private final ExecutorService sender; // null if maxInFlight == 0
+
         private boolean mayRun;
-        private long lastCommit;
+        private volatile long lastCommit;
         private long lastUpdate;
 
+        // Dispatch state, guarded by the Batcher monitor
+        private int inFlight = 0;
+        private final Set<String> inFlightIDs = new HashSet<>();
+        private long nextTicket = 0;
+        private long dispatchTurn = 0;
+
         private final int statusEvery;
-        private long totalRecordsCommitted = 0;
-        private long totalBatchesCommitted = 0;
+        private final AtomicLong totalRecordsCommitted = new AtomicLong(0);
+        private final AtomicLong totalBatchesCommitted = new AtomicLong(0);
+        private final AtomicLong totalRetries = new AtomicLong(0);
+        private final AtomicLong totalRecordsDropped = new AtomicLong(0);
+        private final AtomicLong totalBatchesFailed = new AtomicLong(0); // Unexpected failures in background sends
+        private final AtomicLong maxSendNS = new AtomicLong(0);
+        private long firstDispatch = -1;
         private long batchByteSize = 0;
 
         private final Timing timingSend;
@@ -167,6 +242,22 @@ public class RecordWriter extends ObjectFilterImpl {
             statusEvery = conf.getInt(CONF_STATUS_EVERY, DEFAULT_STATUS_EVERY);
             timingSend = StatUtil.createTiming(conf, "batch", "batchsend", null, "RecordBatch", null);
             sizeSend = new RecordStatsCollector("batch", conf, null, false, "batches");
+            maxInFlight = conf.getInt(CONF_INFLIGHT, DEFAULT_INFLIGHT);
+            retries = conf.getInt(CONF_RETRIES, maxInFlight <= 0 ? DEFAULT_RETRIES_SYNC : DEFAULT_RETRIES);
+            retryDelay = conf.getInt(CONF_RETRY_DELAY, DEFAULT_RETRY_DELAY);
+            sender = maxInFlight <= 0 ? null : Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RecordBatcher sender #" + count.getAndIncrement());
+                    t.setDaemon(true); // Allow the JVM to exit
+                    t.setUncaughtExceptionHandler(new LoggingExceptionHandler());
+                    return t;
+                }
+            });
+            log.debug(String.format("Batcher created with batchSize=%d, batchMaxMemory=%d, batchTimeout=%d, "
+                                    + "inFlight=%d, retries=%d, retryDelay=%d",
+                                    batchSize, batchMaxMemory, batchTimeout, maxInFlight, retries, retryDelay));
 
             log.debug("Starting batch job watcher");
             watcher = new Thread(this, "RecordBatcher daemon");
@@ -226,6 +317,10 @@ public class RecordWriter extends ObjectFilterImpl {
             return true;
         }
 
+        /**
+         * Hands the current batch over for sending. If batches are sent
+         * asynchronously, this only blocks until the batch has been dispatched.
+         */
         private synchronized void forceCommit() {
             if (log.isTraceEnabled()) {
                 for (Record r : records) {
@@ -236,56 +331,172 @@ public class RecordWriter extends ObjectFilterImpl {
                 log.debug("No records to commit");
                 return;
             }
+            if (firstDispatch == -1) {
+                firstDispatch = System.nanoTime();
+            }
 
-            try {
-                String stats = records.size() + " records of total size " + batchByteSize / 1024 + "KB, last recordID:'"
-                               + (records.isEmpty() ? "N/A" : records.get(records.size()-1).getId()) + "'";
-                if (log.isDebugEnabled()) {
-                    log.debug(String.format("Committing %s.", stats));
+            if (sender == null) {
+                send(records, batchByteSize);
+                // Clear the batch queue and awake anyone waiting for us
+                clear();
+                log.trace("Batch queue cleared");
+                notifyAll();
+                log.trace("Notified");
+                return;
+            }
+
+            // Take over the batch and free the queue so that new Records can be collected while this batch is sent
+            final List<Record> batch = new ArrayList<>(records);
+            final long byteSize = batchByteSize;
+            clear();
+            notifyAll();
+            log.trace("Batch queue cleared and notified");
+
+            // Dispatch in order and never send the same ID in two concurrent batches
+            long ticket = nextTicket++;
+            while (ticket != dispatchTurn || inFlight >= maxInFlight || overlapsInFlight(batch)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    log.trace("Interrupted while waiting for dispatch of batch. Retrying");
                 }
-                long start = System.nanoTime();
-                timingSend.start();
-                storage.flushAll(records, qOptions);
-                timingSend.stop();
-                sizeSend.process("batch#" + totalBatchesCommitted, batchByteSize);
-                totalBatchesCommitted++;
-                totalRecordsCommitted += records.size();
-                if (statusEvery != 0 && totalBatchesCommitted % statusEvery == 0 || log.isDebugEnabled()) {
-                    final String message =String.format(
-                            "Committed %s in %.1fms. Last commit was %dms ago. %s",
-                            stats, (System.nanoTime() - start) / 1000000D,
-                            (System.nanoTime() - lastCommit) / 1000000, getBatchProcessStats());
-                    if (statusEvery != 0 && totalBatchesCommitted % statusEvery == 0) {
-                        log.info(message);
-                    } else {
-                        log.debug(message);
+            }
+            dispatchTurn++;
+            inFlight++;
+            for (Record record: batch) {
+                inFlightIDs.add(record.getId());
+            }
+            notifyAll();
+            sender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(batch, byteSize);
+                    } catch (RuntimeException | Error e) {
+                        // Recorded here and passed on to the sender thread's uncaught exception handler
+                        totalBatchesFailed.incrementAndGet();
+                        totalRecordsDropped.addAndGet(batch.size());
+                        log.error("Unexpected exception while sending " + batch.size() + " records in the "
+                                  + "background. Last recordID: '" + batch.get(batch.size()-1).getId() + "'", e);
+                        throw e;
+                    } finally {
+                        release(batch);
                     }
                 }
-                lastCommit = System.nanoTime();
-            } catch (NoRouteToHostException e) {
-                Logging.fatal(log, "RecordWriter.forceCommit",
-                              "Unable to flush " + records.size() + " due to no Storage connection. " +
-                              "System will be shut down in 1 second", e);
-                new DeferredSystemExit(66, 1000);
-            } catch (Exception e) {
-                log.error("Dropped " + records.size() + " records in commit", e);
-                for (Record r: records) {
-                    log.warn("Dropped: " + r.getId());
+            });
+        }
+
+        private boolean overlapsInFlight(List<Record> batch) {
+            if (inFlightIDs.isEmpty()) {
+                return false;
+            }
+            for (Record record: batch) {
+                if (inFlightIDs.contains(record.getId())) {
+                    return true;
                 }
-                // Fall through so that we clear the records list - this must
-                // be done because it might not be the connection that is bad,
-                // but the records that are broken
             }
+            return false;
+        }
 
-            // Clear the batch queue and awake anyone waiting for us
-            clear();
-            log.trace("Batch queue cleared");
+        private synchronized void release(List<Record> batch) {
+            for (Record record: batch) {
+                inFlightIDs.remove(record.getId());
+            }
+            inFlight--;
             notifyAll();
-            log.trace("Notified");
+        }
+
+        /**
+         * Blocks until all dispatched batches has been sent.
+         * @return the number of background sends that has failed unexpectedly since the Batcher was created.
+         */
+        private synchronized long waitForInFlight() {
+            while (inFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    log.trace("Interrupted while waiting for in flight batches");
+                }
+            }
+            return totalBatchesFailed.get();
+        }
+
+        /**
+         * Sends the batch to Storage, retrying with exponential backoff on failure.
+         * @param batch    the Records to send.
+         * @param byteSize the approximate size of the Records.
+         */
+        private void send(List<Record> batch, long byteSize) {
+            String stats = batch.size() + " records of total size " + byteSize / 1024 + "KB, last recordID:'"
+                           + batch.get(batch.size()-1).getId() + "'";
+            for (int attempt = 0 ; ; attempt++) {
+                try {
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("Committing %s%s.",
+                                                stats, attempt == 0 ? "" : " (retry #" + attempt + ")"));
+                    }
+                    long sendNS = -System.nanoTime();
+                    storage.flushAll(batch, qOptions);
+                    sendNS += System.nanoTime();
+                    timingSend.addNS(sendNS);
+                    long max;
+                    while ((max = maxSendNS.get()) < sendNS && !maxSendNS.compareAndSet(max, sendNS));
+                    sizeSend.process("batch#" + totalBatchesCommitted.get(), byteSize);
+                    long batches = totalBatchesCommitted.incrementAndGet();
+                    totalRecordsCommitted.addAndGet(batch.size());
+                    if (statusEvery != 0 && batches % statusEvery == 0 || log.isDebugEnabled()) {
+                        final String message = String.format(
+                                "Committed %s in %.1fms. Last commit was %dms ago. %s",
+                                stats, sendNS / 1000000D,
+                                (System.nanoTime() - lastCommit) / 1000000, getBatchProcessStats());
+                        if (statusEvery != 0 && batches % statusEvery == 0) {
+                            log.info(message);
+                        } else {
+                            log.debug(message);
+                        }
+                    }
+                    lastCommit = System.nanoTime();
+                    return;
+                } catch (NoRouteToHostException e) {
+                    Logging.fatal(log, "RecordWriter.forceCommit",
+                                  "Unable to flush " + batch.size() + " due to no Storage connection. " +
+                                  "System will be shut down in 1 second", e);
+                    new DeferredSystemExit(66, 1000);
+                    return;
+                } catch (Exception e) {
+                    if (attempt < retries) {
+                        long delay = (long) retryDelay << attempt;
+                        log.warn(String.format("Unable to commit %s. Retry #%d of %d in %dms",
+                                               stats, attempt + 1, retries, delay), e);
+                        totalRetries.incrementAndGet();
+                        try {
+                            Thread.sleep(delay);
+                            continue;
+                        } catch (InterruptedException ie) {
+                            log.warn("Interrupted while waiting to retry commit of " + stats);
+                        }
+                    }
+                    log.error("Dropped " + batch.size() + " records in commit after " + attempt + " retries", e);
+                    for (Record r: batch) {
+                        log.warn("Dropped: " + r.getId());
+                    }
+                    totalRecordsDropped.addAndGet(batch.size());
+                    // Do not stop as it might not be the connection that is bad, but the records that are broken
+                    return;
+                }
+            }
         }
 
         private String getBatchProcessStats() {
-            return "Timing=" + timingSend + ". SizeStats=" + sizeSend;
+            long records = totalRecordsCommitted.get();
+            long spendMS = firstDispatch == -1 ? 0 : (System.nanoTime() - firstDispatch) / 1000000;
+            return String.format(
+                    "Committed %d records in %d batches at %s records/sec, maxBatchMS=%.1f, retries=%d, dropped=%d, "
+                    + "failedBatches=%d, inFlight=%d/%d. Timing=%s. SizeStats=%s",
+                    records, totalBatchesCommitted.get(),
+                    spendMS == 0 ? "N/A" : Long.toString(records * 1000 / spendMS),
+                    maxSendNS.get() / 1000000D, totalRetries.get(), totalRecordsDropped.get(), totalBatchesFailed.get(),
+                    inFlight, maxInFlight, timingSend, sizeSend);
         }
 
         public void stop() {
@@ -299,6 +510,14 @@ public class RecordWriter extends ObjectFilterImpl {
             } catch (InterruptedException e) {
                 log.warn("Interrupted while waiting for record batching thread");
             }
+            if (sender != null) {
+                log.debug("Waiting for in flight batches to be sent");
+                if (waitForInFlight() > 0) {
+                    log.warn("Closing with " + totalBatchesFailed.get() + " failed background sends. "
+                             + "See previous errors for details");
+                }
+                sender.shutdown();
+            }
             log.info("Batcher closed. " + getBatchProcessStats());
         }
 
@@ -369,12 +588,20 @@ public class RecordWriter extends ObjectFilterImpl {
     }
 
     public RecordWriter(WritableStorage storage, int batchSize, int batchMaxMemory, int batchTimeout) {
-        super (Configuration.newMemoryBased());
+        this(Configuration.newMemoryBased(), storage, batchSize, batchMaxMemory, batchTimeout);
+    }
+
+    /**
+     * @param conf used for batch sending options such as {@link #CONF_INFLIGHT} and {@link #CONF_RETRIES}.
+     */
+    public RecordWriter(Configuration conf, WritableStorage storage, int batchSize, int batchMaxMemory,
+                        int batchTimeout) {
+        super (conf);
         this.storage = storage;
         this.batchSize = batchSize;
         this.batchMaxMemory = batchMaxMemory;
         this.batchTimeout = batchTimeout;
-        batcher = new Batcher(Configuration.newMemoryBased(), batchSize, batchMaxMemory, batchTimeout, storage, null);
+        batcher = new Batcher(conf, batchSize, batchMaxMemory, batchTimeout, storage, null);
     }
 
     /**
@@ -423,10 +650,30 @@ public class RecordWriter extends ObjectFilterImpl {
     }
 
     /**
-     * Explicit flush of queued Records to Storage.
+     * Explicit flush of queued Records to Storage. Returns when all Records
+     * received until now has been sent.
      */
     public void flush() {
+        long failedBefore = batcher.totalBatchesFailed.get();
         batcher.forceCommit();
+        long failed = batcher.waitForInFlight() - failedBefore;
+        if (failed > 0) {
+            log.warn("flush(): " + failed + " background sends failed. See previous errors for details");
+        }
+    }
+
+    /**
+     * @return the number of retries of failed batches since the RecordWriter was created.
+     */
+    long getRetries() {
+        return batcher.totalRetries.get();
+    }
+
+    /**
+     * @return the number of Records that were dropped due to failed sends since the RecordWriter was created.
+     */
+    long getRecordsDropped() {
+        return batcher.totalRecordsDropped.get();
     }
 
     @Override
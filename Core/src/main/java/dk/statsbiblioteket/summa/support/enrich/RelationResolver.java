@@ -18,8 +18,11 @@ import dk.statsbiblioteket.summa.common.Logging;
 import dk.statsbiblioteket.summa.common.Record;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.configuration.Resolver;
+import dk.statsbiblioteket.summa.common.filter.Filter;
 import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.filter.object.ObjectFilter;
 import dk.statsbiblioteket.summa.common.filter.object.ObjectFilterImpl;
+import dk.statsbiblioteket.summa.common.filter.object.ParallelPayloadSource;
 import dk.statsbiblioteket.summa.common.filter.object.PayloadException;
 import dk.statsbiblioteket.summa.common.rpc.ConnectionConsumer;
 import dk.statsbiblioteket.summa.common.util.RecordUtil;
@@ -34,10 +37,24 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
 
 /**
  * Uses an external SummaSearcher to resolve relations for the given Payload.
@@ -53,6 +70,11 @@ import java.util.Set;
  * the searchvalue, which is extracted from the Record's metadata. Normally one
  * would precede the RelationResolver with a RecordShaperFilter or
  * similar filter that ensures that the required metadata is present.
+ * </p><p>
+ * Optionally resolved relations are cached, keyed on the search value, to
+ * avoid repeated searches for popular values, see {@link #CONF_CACHE_SIZE}.
+ * Optionally the search values for multiple Payloads can be resolved with a
+ * single OR-query, see {@link #CONF_BATCH_SIZE}.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
@@ -135,6 +157,46 @@ public class RelationResolver extends ObjectFilterImpl {
     public static final String CONF_ASSIGN_CHILDREN = "relationresolver.assign.children";
     public static final boolean DEFAULT_ASSIGN_CHILDREN = false;
 
+    /**
+     * The maximum number of search values to hold in the cache of resolved
+     * relations. Both matches and non-matches are cached. Only use the cache
+     * if the searcher's index is not updated with new relation targets while
+     * the resolver is running.
+     * </p><p>
+     * Optional. Default is 0 (no caching).
+     */
+    public static final String CONF_CACHE_SIZE = "relationresolver.cache.size";
+    public static final int DEFAULT_CACHE_SIZE = 0;
+
+    /**
+     * The number of Payloads to read ahead and resolve with a single
+     * OR-query of the form "searchfield:(value1 OR value2 ...)". The hits are
+     * attributed to the search values by comparing them case-insensitively to
+     * the content of {@link #CONF_SEARCH_FIELD} in the hits, so the field must
+     * be stored and hold the search values verbatim. Values without attributed
+     * hits are resolved with a single search as usual.
+     * </p><p>
+     * Batching requires a search field. Unquoted values containing whitespace,
+     * quotes or parentheses are never batched.
+     * </p><p>
+     * Optional. Default is 1 (no batching).
+     */
+    public static final String CONF_BATCH_SIZE = "relationresolver.batch.size";
+    public static final int DEFAULT_BATCH_SIZE = 1;
+
+    /**
+     * The maximum number of batched lookups in flight. If this is more than
+     * 1, the lookups are performed by background threads while the filter
+     * delivers Payloads from already resolved batches.
+     * Only relevant if {@link #CONF_BATCH_SIZE} is more than 1.
+     * </p><p>
+     * Optional. Default is 1.
+     */
+    public static final String CONF_THREADS = "relationresolver.threads";
+    public static final int DEFAULT_THREADS = 1;
+
+    private static final Pattern UNQUOTED_BATCHABLE = Pattern.compile("[^\\s\"()]+");
+
     private final SummaSearcher searcher;
     private final String searchField;
     private final int maxHits;
@@ -144,6 +206,17 @@ public class RelationResolver extends ObjectFilterImpl {
     private final boolean assignAsParents;
     private final boolean assignAsChildren;
     private final boolean quote;
+    private final int cacheSize;
+    private final Map<String, List<String>> cache;
+    private final int batchSize;
+    private final int threads;
+    private ExecutorService executor = null;
+    private BatchSource batchSource = null;
+
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long batchLookups = 0;
+    private long batchResolved = 0;
 
     public RelationResolver(Configuration conf) {
         super(conf);
@@ -189,17 +262,44 @@ public class RelationResolver extends ObjectFilterImpl {
         }
         searcher = createSearchClient(conf);
         quote = conf.getBoolean(CONF_SEARCH_QUOTE, DEFAULT_SEARCH_QUOTE);
+        cacheSize = conf.getInt(CONF_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+        cache = new LinkedHashMap<String, List<String>>(Math.max(16, Math.min(cacheSize, 1000)), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        batchSize = conf.getInt(CONF_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        threads = conf.getInt(CONF_THREADS, DEFAULT_THREADS);
+        if (batchSize > 1 && "".equals(searchField)) {
+            log.warn(String.format("%s is %d but no %s is defined. Batching is disabled",
+                                   CONF_BATCH_SIZE, batchSize, CONF_SEARCH_FIELD));
+        }
         log.info(String.format("Created RelationResolver with searcher '%s', searchField '%s', "
-                               + "quote %b, maxHits %d, metaKey '%s', discard non-matched %b and "
-                               + "non-matching folder '%s'",
+                               + "quote %b, maxHits %d, metaKey '%s', discard non-matched %b, "
+                               + "non-matching folder '%s', cacheSize %d, batchSize %d and threads %d",
                                conf.getString(ConnectionConsumer.CONF_RPC_TARGET), searchField, quote, maxHits,
-                               Strings.join(metaKeys, ", "), discardNonmatched, nonmatchedFolder));
+                               Strings.join(metaKeys, ", "), discardNonmatched, nonmatchedFolder, cacheSize,
+                               batchSize, threads));
     }
 
     protected SummaSearcher createSearchClient(Configuration conf) {
         return new SearchClient(conf);
     }
 
+    @Override
+    public void setSource(Filter filter) {
+        if (batchSize <= 1 || "".equals(searchField) || !(filter instanceof ObjectFilter)) {
+            super.setSource(filter); // Let the super class produce the proper error for non-ObjectFilters
+            return;
+        }
+        if (executor == null && threads > 1) {
+            executor = ParallelPayloadSource.createExecutor("RelationResolver_" + getName(), threads);
+        }
+        batchSource = new BatchSource((ObjectFilter) filter);
+        super.setSource(batchSource);
+    }
+
     @Override
     protected boolean processPayload(Payload payload) throws PayloadException {
         log.trace("processPayload(...) called");
@@ -215,8 +315,8 @@ public class RelationResolver extends ObjectFilterImpl {
                                                        + "'", Logging.LogLevel.TRACE, payload);
                 continue;
             }
-            DocumentResponse docResponse = getHits(payload, searchValue);
-            if (docResponse.getHitCount() == 0) {
+            List<String> hitIDs = resolve(payload, searchValue);
+            if (hitIDs.isEmpty()) {
                 if (log.isDebugEnabled()) {
                     log.debug("No hits found for search value '" + searchValue + "' for " + payload);
                 }
@@ -225,8 +325,8 @@ public class RelationResolver extends ObjectFilterImpl {
                                    + "'", Logging.LogLevel.DEBUG, payload);
                 continue;
             }
-            matched += docResponse.getHitCount();
-            assignRelatives(payload, docResponse);
+            matched += hitIDs.size();
+            assignRelatives(payload, hitIDs, getQuery(searchValue));
         }
         if (matched == 0) {
             nonmatching(payload);
@@ -236,10 +336,66 @@ public class RelationResolver extends ObjectFilterImpl {
         return true;
     }
 
+    /**
+     * Resolves the relation-IDs for the search value, using the batched lookups and the cache before falling back to
+     * a search for the single value.
+     * @param payload     the Payload that the search value was extracted from.
+     * @param searchValue the value to resolve.
+     * @return the resolved IDs, empty if there were no hits.
+     * @throws PayloadException if the search failed.
+     */
+    private List<String> resolve(Payload payload, String searchValue) throws PayloadException {
+        List<String> hitIDs = batchSource == null ? null : batchSource.getResolved(searchValue);
+        if (hitIDs != null) {
+            return hitIDs;
+        }
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                hitIDs = cache.get(searchValue);
+            }
+            if (hitIDs != null) {
+                cacheHits++;
+                return hitIDs;
+            }
+            cacheMisses++;
+        }
+        hitIDs = getIDs(getHits(payload, searchValue));
+        cache(searchValue, hitIDs);
+        return hitIDs;
+    }
+
+    private void cache(String searchValue, List<String> hitIDs) {
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                cache.put(searchValue, hitIDs);
+            }
+        }
+    }
+
+    private boolean isCached(String searchValue) {
+        if (cacheSize <= 0) {
+            return false;
+        }
+        synchronized (cache) {
+            return cache.containsKey(searchValue);
+        }
+    }
+
+    private String getQuery(String searchValue) {
+        return "".equals(searchField) ? searchValue : searchField + ":" + quote(searchValue);
+    }
+
+    private String quote(String searchValue) {
+        return quote ? "\"" + searchValue + "\"" : searchValue;
+    }
+
+    private boolean isBatchable(String searchValue) {
+        return quote ? !searchValue.contains("\"") : UNQUOTED_BATCHABLE.matcher(searchValue).matches();
+    }
+
     protected DocumentResponse getHits(Payload payload, String searchValue) throws PayloadException {
         Request request = new Request();
-        String qw = quote ? "\"" : "";
-        String query = "".equals(searchField) ? searchValue : searchField + ":" + qw + searchValue + qw;
+        String query = getQuery(searchValue);
         request.put(DocumentKeys.SEARCH_QUERY, query);
         request.put(DocumentKeys.SEARCH_MAX_RECORDS, maxHits);
         request.put(DocumentKeys.SEARCH_RESULT_FIELDS, DocumentKeys.RECORD_ID);
@@ -267,6 +423,105 @@ public class RelationResolver extends ObjectFilterImpl {
         return docResponse;
     }
 
+    /**
+     * Searches for all the given values with a single OR-query and attributes the hits to the values by comparing
+     * them case-insensitively to the stored content of the search field. A value is only resolved if it has at least
+     * one attributed hit and all its hits are guaranteed to be present in the response, which is the case when it has
+     * at least maxHits attributed hits or when the response holds all hits. Values without attributed hits might
+     * still match with a single search, e.g. due to analysis of the search field, so they are never resolved here.
+     * Unresolved values are left out of the result.
+     * </p><p>
+     * Called from the worker threads if {@link #CONF_THREADS} is more than 1.
+     * @param searchValues the values to resolve. These must be batchable, see {@link #CONF_BATCH_SIZE}.
+     * @return the resolved values mapped to the IDs of the hits.
+     * @throws IOException if the search failed.
+     */
+    protected Map<String, List<String>> getBatchedHits(List<String> searchValues) throws IOException {
+        StringBuilder query = new StringBuilder();
+        query.append(searchField).append(":(");
+        Map<String, List<String>> lowercased = new HashMap<>(searchValues.size());
+        for (int i = 0 ; i < searchValues.size() ; i++) {
+            String searchValue = searchValues.get(i);
+            if (i != 0) {
+                query.append(" OR ");
+            }
+            query.append(quote(searchValue));
+            String lower = searchValue.toLowerCase(Locale.ROOT);
+            if (!lowercased.containsKey(lower)) {
+                lowercased.put(lower, new ArrayList<String>(1));
+            }
+            lowercased.get(lower).add(searchValue);
+        }
+        query.append(")");
+
+        Request request = new Request();
+        request.put(DocumentKeys.SEARCH_QUERY, query.toString());
+        request.put(DocumentKeys.SEARCH_MAX_RECORDS, searchValues.size() * maxHits);
+        request.put(DocumentKeys.SEARCH_RESULT_FIELDS, DocumentKeys.RECORD_ID + ", " + searchField);
+        log.trace("Searching with batched query '" + query + "'");
+        DocumentResponse docResponse = null;
+        for (Response response : searcher.search(request)) {
+            if (response instanceof DocumentResponse) {
+                docResponse = (DocumentResponse) response;
+                break;
+            }
+        }
+        if (docResponse == null) {
+            throw new IOException("Did not receive a DocumentResponse when searching for batched query '"
+                                  + query + "'");
+        }
+
+        Map<String, List<String>> hits = new HashMap<>();
+        for (DocumentResponse.Record hitRecord : docResponse.getRecords()) {
+            String id = hitRecord.getFieldValue(DocumentResponse.RECORD_ID, null);
+            if (id == null) {
+                continue;
+            }
+            for (DocumentResponse.Field field : hitRecord) {
+                if (!searchField.equals(field.getName()) || field.getContent() == null
+                    || !lowercased.containsKey(field.getContent().toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+                for (String searchValue : lowercased.get(field.getContent().toLowerCase(Locale.ROOT))) {
+                    List<String> hitIDs = hits.get(searchValue);
+                    if (hitIDs == null) {
+                        hitIDs = new ArrayList<>(maxHits);
+                        hits.put(searchValue, hitIDs);
+                    }
+                    if (hitIDs.size() < maxHits && !hitIDs.contains(id)) {
+                        hitIDs.add(id);
+                    }
+                }
+            }
+        }
+
+        boolean complete = docResponse.getHitCount() <= docResponse.getRecords().size();
+        Map<String, List<String>> resolved = new HashMap<>(searchValues.size());
+        for (String searchValue : searchValues) {
+            List<String> hitIDs = hits.get(searchValue);
+            if (hitIDs != null && (complete || hitIDs.size() >= maxHits)) {
+                resolved.put(searchValue, hitIDs);
+                cache(searchValue, hitIDs);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Resolved %d/%d values with batched query with %d hits",
+                                    resolved.size(), searchValues.size(), docResponse.getHitCount()));
+        }
+        return resolved;
+    }
+
+    private List<String> getIDs(DocumentResponse docResponse) {
+        List<String> hitIDs = new ArrayList<>(docResponse.getRecords().size());
+        for (DocumentResponse.Record hitRecord : docResponse.getRecords()) {
+            String id = hitRecord.getFieldValue(DocumentResponse.RECORD_ID, null);
+            if (id != null) {
+                hitIDs.add(id);
+            }
+        }
+        return hitIDs;
+    }
+
     private void nonmatching(Payload payload) {
         if (nonmatchedFolder == null) {
             log.debug(payload + " not stored as no non-matching folder is defined");
@@ -282,20 +537,12 @@ public class RelationResolver extends ObjectFilterImpl {
         }
     }
 
-    private void assignRelatives(Payload payload, DocumentResponse docResponse) {
-        List<String> hitIDs = new ArrayList<>(docResponse.getRecords().size());
-        for (DocumentResponse.Record hitRecord : docResponse.getRecords()) {
-            String id = hitRecord.getFieldValue(DocumentResponse.RECORD_ID, null);
-            if (id != null) {
-                hitIDs.add(id);
-            }
-        }
-
+    private void assignRelatives(Payload payload, List<String> hitIDs, String query) {
         int parentAdd = 0;
         int childAdd = 0;
         Record record = payload.getRecord();
         Set<String> parents = record.getParentIds() == null ?
-                              new HashSet<String>(docResponse.getRecords().size()) :
+                              new HashSet<String>(hitIDs.size()) :
                               new HashSet<>(record.getParentIds());
         if (assignAsParents) {
             parentAdd = -parents.size();
@@ -303,11 +550,11 @@ public class RelationResolver extends ObjectFilterImpl {
             parentAdd += parents.size();
             record.setParentIds(parents.isEmpty() ? null : new ArrayList<>(parents));
             Logging.logProcess("RelationResolver",
-                               "Assigned " + docResponse.getRecords().size() + " parents. Parents are now "
+                               "Assigned " + hitIDs.size() + " parents. Parents are now "
                                + Strings.join(parents, ", "), Logging.LogLevel.DEBUG, payload);
         }
         Set<String> children = record.getChildIds() == null ?
-                               new HashSet<String>(docResponse.getRecords().size()) :
+                               new HashSet<String>(hitIDs.size()) :
                                new HashSet<>(record.getChildIds());
         if (assignAsChildren) {
             childAdd = -children.size();
@@ -318,6 +565,172 @@ public class RelationResolver extends ObjectFilterImpl {
         Logging.logProcess("RelationResolver",
                            "Assigned '" + parentAdd + " new parents (total parents: " + Strings.join(parents, ", ")
                            + ") and " + childAdd + " new children (total children: " + Strings.join(children, ", ")
-                           + ") from query '" + docResponse.getQuery() + "'", Logging.LogLevel.DEBUG, payload);
+                           + ") from query '" + query + "'", Logging.LogLevel.DEBUG, payload);
+    }
+
+    @Override
+    public void close(boolean success) {
+        super.close(success);
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        log.info(String.format("Closing RelationResolver with success %b. Cache hits %d, cache misses %d, "
+                               + "batched lookups %d resolving %d values",
+                               success, cacheHits, cacheMisses, batchLookups, batchResolved));
+    }
+
+    /**
+     * Pulls up to {@link #batchSize} Payloads ahead of delivery and resolves their uncached search values with
+     * {@link #getBatchedHits(List)}. Up to {@link #threads} batches are resolved concurrently.
+     * </p><p>
+     * This class is not thread safe: It must only be accessed from the filter thread.
+     */
+    private class BatchSource implements ObjectFilter {
+        private final ObjectFilter source;
+        private final Deque<Batch> batches = new ArrayDeque<>();
+        private Batch current = null;
+
+        private BatchSource(ObjectFilter source) {
+            this.source = source;
+        }
+
+        /**
+         * @param searchValue a search value from the most recently delivered Payload.
+         * @return the IDs resolved by the batched lookup or null if the value was not resolved.
+         */
+        public List<String> getResolved(String searchValue) {
+            return current == null ? null : current.resolved.get(searchValue);
+        }
+
+        private void fill() {
+            while (batches.size() < Math.max(1, threads) && source.hasNext()) {
+                batches.addLast(createBatch());
+            }
+        }
+
+        private Batch createBatch() {
+            Batch batch = new Batch();
+            Set<String> searchValues = new LinkedHashSet<>();
+            while (batch.payloads.size() < batchSize && source.hasNext()) {
+                Payload payload = source.next();
+                if (payload == null) {
+                    continue;
+                }
+                batch.payloads.addLast(payload);
+                if (payload.getRecord() == null || !matchesPayload(payload)) {
+                    continue;
+                }
+                for (String metaKey : metaKeys) {
+                    String searchValue = payload.getRecord().getMeta(metaKey);
+                    if (searchValue != null && isBatchable(searchValue) && !isCached(searchValue)) {
+                        searchValues.add(searchValue);
+                    }
+                }
+            }
+            batch.lookup(new ArrayList<>(searchValues));
+            return batch;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || current.payloads.isEmpty()) {
+                fill();
+                if (batches.isEmpty()) {
+                    current = null;
+                    return false;
+                }
+                current = batches.removeFirst();
+                fill(); // Keep the lookups going while the batch is being delivered
+                current.await();
+            }
+            return true;
+        }
+
+        @Override
+        public Payload next() {
+            if (!hasNext()) {
+                throw new IllegalStateException("No more Payloads available");
+            }
+            return current.payloads.removeFirst();
+        }
+
+        @Override
+        public boolean pump() throws IOException {
+            throw new UnsupportedOperationException("pump is not supported by the internal batch source");
+        }
+
+        @Override
+        public void close(boolean success) {
+            if (current != null) {
+                batches.addFirst(current);
+                current = null;
+            }
+            for (Batch batch : batches) {
+                if (batch.lookup != null) {
+                    batch.lookup.cancel(true);
+                }
+                for (Payload payload : batch.payloads) {
+                    payload.close();
+                }
+            }
+            batches.clear();
+            source.close(success);
+        }
+
+        @Override
+        public void setSource(Filter filter) {
+            throw new UnsupportedOperationException("The source cannot be changed for the internal batch source");
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported");
+        }
+    }
+
+    private class Batch {
+        private final Deque<Payload> payloads = new ArrayDeque<>();
+        private Future<Map<String, List<String>>> lookup = null;
+        private Map<String, List<String>> resolved = Collections.emptyMap();
+        private List<String> searchValues = null;
+
+        private void lookup(final List<String> searchValues) {
+            if (searchValues.isEmpty()) {
+                return;
+            }
+            this.searchValues = searchValues;
+            FutureTask<Map<String, List<String>>> task = new FutureTask<>(new Callable<Map<String, List<String>>>() {
+                @Override
+                public Map<String, List<String>> call() throws Exception {
+                    return getBatchedHits(searchValues);
+                }
+            });
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+            lookup = task;
+        }
+
+        private void await() {
+            if (lookup == null) {
+                return;
+            }
+            try {
+                resolved = lookup.get();
+                batchLookups++;
+                batchResolved += resolved.size();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for batched lookup of " + searchValues.size()
+                         + " values. Falling back to single searches");
+            } catch (ExecutionException e) {
+                log.warn("Batched lookup of " + searchValues.size() + " values failed. Falling back to single "
+                         + "searches", e.getCause());
+            }
+            lookup = null;
+        }
     }
 }
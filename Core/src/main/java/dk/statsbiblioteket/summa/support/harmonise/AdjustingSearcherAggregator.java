@@ -46,6 +46,10 @@ import java.util.List;
  * It is the responsibility of the caller to ensure that the adjuster is
  * configured with a target for each search client and that the ids os the
  * target matches the search clients.
+ * </p><p>
+ * Slow sources can be given a time budget with
+ * {@link SummaSearcherAggregator#CONF_SEARCHER_TIMEOUT}. Sources that miss their budget are left out of the merge
+ * and the result is marked with a {@link dk.statsbiblioteket.summa.search.api.DegradedResponse}.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
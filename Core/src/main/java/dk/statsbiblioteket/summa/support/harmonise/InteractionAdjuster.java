@@ -32,6 +32,7 @@ import dk.statsbiblioteket.summa.search.api.Response;
 import dk.statsbiblioteket.summa.search.api.ResponseCollection;
 import dk.statsbiblioteket.summa.search.api.document.DocumentKeys;
 import dk.statsbiblioteket.summa.search.api.document.DocumentResponse;
+import dk.statsbiblioteket.summa.search.tools.QueryRewriteCache;
 import dk.statsbiblioteket.summa.search.tools.QueryRewriter;
 import dk.statsbiblioteket.summa.support.summon.search.SummonSearchNode;
 import dk.statsbiblioteket.util.Strings;
@@ -194,6 +195,15 @@ public class InteractionAdjuster implements Configurable {
      */
     public static final String CONF_ADJUST_FACET_TAGS = "adjuster.facet.tags";
 
+    /**
+     * The maximum number of rewritten queries and filters to cache. Rewriting is deterministic for a given query
+     * and set of search-time field mappings, so repeated queries can skip parsing and serialisation.
+     * </p><p>
+     * Optional. Default is 1000. Set to 0 to disable caching.
+     */
+    public static final String CONF_REWRITE_CACHE_SIZE = "adjuster.rewrite.cache.size";
+    public static final int DEFAULT_REWRITE_CACHE_SIZE = 1000;
+
     private final String id;
     private final String prefix;
     private double baseFactor;
@@ -209,6 +219,7 @@ public class InteractionAdjuster implements Configurable {
     private boolean adjustResponseFieldsEnabled;
     private boolean adjustResponseFacetsEnabled;
     private final boolean pureNegativeNotSimple;
+    private final QueryRewriteCache rewriteCache;
 
     public InteractionAdjuster(Configuration conf) throws ConfigurationException {
         id = conf.getString(CONF_IDENTIFIER);
@@ -256,6 +267,8 @@ public class InteractionAdjuster implements Configurable {
             log.debug("Created " + tagAdjusters.size() + " tag adjusters");
         }
 
+        rewriteCache = new QueryRewriteCache(conf.getInt(CONF_REWRITE_CACHE_SIZE, DEFAULT_REWRITE_CACHE_SIZE));
+
         if (conf.valueExists(CONF_ADJUST_UNSUPPORTED_FIELDS)){
             unsupportedFields = new HashSet<>(conf.getStrings(CONF_ADJUST_UNSUPPORTED_FIELDS));
             String unsupportedQueryString = conf.getString(CONF_ADJUST_UNSUPPORTED_QUERY);
@@ -307,7 +320,7 @@ public class InteractionAdjuster implements Configurable {
         }
 
         if (log.isDebugEnabled()) {
-            log.debug("Query Request:" + incoming + " Query rewritten:" + adjusted);
+            log.debug("Query Request:" + incoming + " Query rewritten:" + adjusted + " using " + rewriteCache);
 
         }
         return adjusted;
@@ -337,17 +350,18 @@ public class InteractionAdjuster implements Configurable {
         }
 
         log.trace("Rewriting fields and content in document filter, query and sort");
+        final String context = getRewriteContext(request);
         final List<String> oldFilters = request.getStrings(DocumentKeys.SEARCH_FILTER, new ArrayList<String>());
         if (!oldFilters.isEmpty()) {
             final ArrayList<String> newFilters = new ArrayList<>(oldFilters.size());
             for (String oldFilter: oldFilters) {
-                final String rewrittenFilter = rewriteQuery(oldFilter, documentFieldMap, facetFieldMap);
+                final String rewrittenFilter = rewriteQuery(context, oldFilter, documentFieldMap, facetFieldMap);
                 if (unsupported.equals(rewrittenFilter)) { // Bail if a single unsupported is reached
                     request.put(DocumentKeys.SEARCH_FILTER, new ArrayList(Arrays.asList(rewrittenFilter)));
                     return;
                 }
                 if (!("-" + unsupported).equals(rewrittenFilter)) { // NOT nonexisting means nothing
-                    newFilters.add(rewriteQuery(oldFilter, documentFieldMap, facetFieldMap));
+                    newFilters.add(rewrittenFilter);
                 }
             }
             if (newFilters.isEmpty()) {
@@ -358,7 +372,7 @@ public class InteractionAdjuster implements Configurable {
         }
         final String query = request.getString(DocumentKeys.SEARCH_QUERY, "");
         if (!"".equals(query)) {
-            request.put(DocumentKeys.SEARCH_QUERY, rewriteQuery(query, documentFieldMap, facetFieldMap));
+            request.put(DocumentKeys.SEARCH_QUERY, rewriteQuery(context, query, documentFieldMap, facetFieldMap));
         }
         if (documentFieldMap != null
             && request.containsKey(DocumentKeys.SEARCH_SORTKEY)) {
@@ -377,6 +391,28 @@ public class InteractionAdjuster implements Configurable {
         }
     }
 
+    /* The search-time field mappings are the only request-dependent part of query rewriting */
+    private String getRewriteContext(Request request) {
+        return request.get(SEARCH_ADJUST_DOCUMENT_FIELDS) + "|" + request.get(prefix + SEARCH_ADJUST_DOCUMENT_FIELDS)
+               + "|" + request.get(SEARCH_ADJUST_FACET_FIELDS) + "|" + request.get(prefix + SEARCH_ADJUST_FACET_FIELDS);
+    }
+
+    private String rewriteQuery(String context, String query, ManyToManyMapper... maps) throws ParseException {
+        String rewritten = rewriteCache.get(context, query);
+        if (rewritten == null) {
+            rewritten = rewriteQuery(query, maps);
+            rewriteCache.put(context, query, rewritten);
+        }
+        return rewritten;
+    }
+
+    /**
+     * @return statistics for the cache of rewritten queries.
+     */
+    public QueryRewriteCache getRewriteCache() {
+        return rewriteCache;
+    }
+
     private String rewriteQuery(final String query, final ManyToManyMapper... maps) throws ParseException {
         return new QueryRewriter(
                 getRewriterConfig(), null, // TODO: Consider supplying the SummaAnalyzer
@@ -47,6 +47,12 @@ import java.util.*;
  * extracted to a single DocumentResponse that is returned with the unmodified
  * responses.
  * </p><p>
+ * The merge is a k-way merge of the already sorted record lists from the
+ * sources, so only the records that can end up in the result are extracted:
+ * The first max(maxRecords, forceTopX) records in merged order plus, when force
+ * rules are active, enough further records from the forced sources to satisfy
+ * the rules.
+ * </p><p>
  * Properties are generally specified both at startup and runtime, where runtime
  * overrides startup. 
  * </p><p>
@@ -227,7 +233,9 @@ public class ResponseMerger implements Configurable {
         private final ResponseCollection merged = new ResponseCollection();
         /* Merged hitcount and time. The only DocumentResponse in the wrapper */
         private DocumentResponse base = null;
-        /* All records from the DocumentResponses, held until externalise */
+        /* Sorted record lists from the DocumentResponses, in order of appearance */
+        private final List<SourceCursor> sources = new ArrayList<>();
+        /* The merged records, held until externalise */
         private List<AdjustRecord> records = new ArrayList<>();
 
         /* Merge everything into the ResponseCollection. This class should not
@@ -256,6 +264,10 @@ public class ResponseMerger implements Configurable {
             return merged;
         }
 
+        public List<SourceCursor> getSources() {
+            return sources;
+        }
+
         public List<AdjustRecord> getRecords() {
             return records;
         }
@@ -306,6 +318,121 @@ public class ResponseMerger implements Configurable {
         }
     }
 
+    /**
+     * Iterator-like view of the sorted records from a single DocumentResponse.
+     * {@link #next()} moves the current record to {@link #getLast()}.
+     */
+    private static final class SourceCursor {
+        private final int sourceIndex;
+        private final String searcherID;
+        private final List<DocumentResponse.Record> records;
+        private int rank = 0; // Primary merge order, used by concatenate
+        private int position = 0;
+        private DocumentResponse.Record last = null;
+
+        private SourceCursor(int sourceIndex, String searcherID, List<DocumentResponse.Record> records) {
+            this.sourceIndex = sourceIndex;
+            this.searcherID = searcherID;
+            this.records = records;
+        }
+
+        public boolean hasNext() {
+            return position < records.size();
+        }
+        public DocumentResponse.Record current() {
+            return records.get(position);
+        }
+        public void next() {
+            last = records.get(position++);
+        }
+        public DocumentResponse.Record getLast() {
+            return last;
+        }
+        public String getSearcherID() {
+            return searcherID;
+        }
+        public int size() {
+            return records.size();
+        }
+    }
+
+    /**
+     * Delivers cursors in merged order. The cursor returned from {@link #next()}
+     * has been advanced, so the merged record is {@link SourceCursor#getLast()}.
+     */
+    private interface CursorPicker {
+        /**
+         * @return the cursor that delivered the next record in merged order or null if all cursors are exhausted.
+         */
+        SourceCursor next();
+    }
+
+    /**
+     * Standard k-way merge with a heap holding one entry per non-empty source.
+     * Sources are ordered by rank, then by their current record. Ties are
+     * resolved by source order, making the result equal to a stable sort of the
+     * concatenated sources.
+     */
+    private static final class HeapPicker implements CursorPicker {
+        private final PriorityQueue<SourceCursor> heap;
+
+        private HeapPicker(List<SourceCursor> sources, final Comparator<DocumentResponse.Record> comparator) {
+            heap = new PriorityQueue<>(Math.max(1, sources.size()), new Comparator<SourceCursor>() {
+                @Override
+                public int compare(SourceCursor o1, SourceCursor o2) {
+                    if (o1.rank != o2.rank) {
+                        return Integer.compare(o1.rank, o2.rank);
+                    }
+                    int c = comparator.compare(o1.current(), o2.current());
+                    return c != 0 ? c : o1.sourceIndex - o2.sourceIndex;
+                }
+            });
+            for (SourceCursor source: sources) {
+                if (source.hasNext()) {
+                    heap.add(source);
+                }
+            }
+        }
+
+        @Override
+        public SourceCursor next() {
+            SourceCursor cursor = heap.poll();
+            if (cursor == null) {
+                return null;
+            }
+            cursor.next();
+            if (cursor.hasNext()) {
+                heap.add(cursor);
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * Takes the next record from each provider in turn.
+     */
+    private static final class RoundRobinPicker implements CursorPicker {
+        private final List<SourceCursor> providers;
+        private int provider = 0;
+
+        private RoundRobinPicker(List<SourceCursor> providers) {
+            this.providers = providers;
+        }
+
+        @Override
+        public SourceCursor next() {
+            for (int i = 0 ; i < providers.size() ; i++) {
+                SourceCursor cursor = providers.get(provider);
+                provider = (provider + 1) % providers.size();
+                if (cursor.hasNext()) {
+                    cursor.next();
+                    return cursor;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Merges the given packages and returns the result based on basic setup and
      * parameters given in the request. 
@@ -383,104 +510,170 @@ public class ResponseMerger implements Configurable {
         MODE mode = MODE.valueOf(request.getString(SEARCH_MODE, defaultMode.toString()));
         List<String> order = request.getStrings(SEARCH_ORDER, defaultOrder);
         log.debug("Merging DocumentResponses with mode " + mode);
+        CursorPicker picker;
         switch (mode) {
             case standard: {
-                sortByStandard(aw);
+                picker = sortByStandard(aw);
                 break;
             }
             case score: {
-                sortByScore(aw);
+                picker = sortByScore(aw);
                 break;
             }
             case concatenate: {
-                sortByID(aw, order);
+                picker = sortByID(aw, order);
                 break;
             }
             case interleave: {
-                interleave(aw, order);
+                picker = interleave(aw, order);
                 break;
             }
             default: throw new UnsupportedOperationException("Merge mode " + mode + " not supported yet");
         }
+        collect(request, aw, picker);
         aw.getMerged().addTiming("responsemerger.merge", System.currentTimeMillis() - startTime);
     }
 
-    private void interleave(AdjustWrapper aw, List<String> order) {
+    /* Extracts the records in merged order until the result window is filled,
+       then continues extracting records from forced sources only, until the
+       force rules can be satisfied.
+     */
+    private void collect(Request request, AdjustWrapper aw, CursorPicker picker) {
+        int total = 0;
+        for (SourceCursor source: aw.getSources()) {
+            total += source.size();
+        }
+        Map<String, Integer> forced = getForcedCounts(request);
+        int window = aw.getBase().isGrouped() ? Integer.MAX_VALUE :
+                     (int)Math.min(Integer.MAX_VALUE, aw.getBase().getMaxRecords());
+        int missing = 0;
+        if (!forced.isEmpty()) {
+            window = Math.max(window, request.getInt(SEARCH_FORCE_TOPX, defaultForceTopX));
+            for (Integer count: forced.values()) {
+                missing += count;
+            }
+        }
+
+        List<AdjustWrapper.AdjustRecord> records = new ArrayList<>(Math.min(total, window) + missing);
+        SourceCursor cursor;
+        while (records.size() < window && (cursor = picker.next()) != null) {
+            records.add(new AdjustWrapper.AdjustRecord(cursor.getSearcherID(), cursor.getLast()));
+        }
+        while (missing > 0 && (cursor = picker.next()) != null) {
+            Integer needed = forced.get(cursor.getSearcherID());
+            if (needed != null && needed > 0) {
+                records.add(new AdjustWrapper.AdjustRecord(cursor.getSearcherID(), cursor.getLast()));
+                forced.put(cursor.getSearcherID(), needed - 1);
+                missing--;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Extracted " + records.size() + "/" + total + " records from " + aw.getSources().size()
+                      + " sources with window " + window);
+        }
+        aw.setRecords(records);
+    }
+
+    /* The maximum number of records from each source that the force rules can
+       promote. Empty if no post processing is requested.
+     */
+    private Map<String, Integer> getForcedCounts(Request request) {
+        POST post = POST.valueOf(request.getString(SEARCH_POST, defaultPost.toString()));
+        List<Pair<String, Integer>> forceRules = defaultForceRules;
+        if (request.containsKey(SEARCH_FORCE_RULES)) {
+            forceRules = parseForceRules(request.getString(SEARCH_FORCE_RULES));
+        }
+        if (post == POST.none || forceRules == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> forced = new HashMap<>(forceRules.size());
+        for (Pair<String, Integer> rule: forceRules) {
+            Integer existing = forced.get(rule.getKey());
+            forced.put(rule.getKey(), (existing == null ? 0 : existing) + rule.getValue());
+        }
+        return forced;
+    }
+
+    private CursorPicker interleave(AdjustWrapper aw, List<String> order) {
         log.trace("Sorting by interleaving");
-        // (searchID, records*)*
-        Map<String, List<AdjustWrapper.AdjustRecord>> providers =
-                new LinkedHashMap<>();
+        // (searchID, sources*)*
+        Map<String, List<SourceCursor>> providers = new LinkedHashMap<>();
         for (String o: order) { // Ordered first
-            providers.put(o, new ArrayList<AdjustWrapper.AdjustRecord>());
-        }
-        for (AdjustWrapper.AdjustRecord ar: aw.getRecords()) {
-            if (!providers.containsKey(ar.getSearcherID())) {
-                providers.put(ar.getSearcherID(), new ArrayList<AdjustWrapper.AdjustRecord>());
-            }
-            providers.get(ar.getSearcherID()).add(ar);
-        }
-        // providers now contains ordered lists of records split by search ID
-        List<AdjustWrapper.AdjustRecord> interleaved = new ArrayList<>();
-        boolean any = true;
-        while (any) {
-            any = false;
-            for (Map.Entry<String, List<AdjustWrapper.AdjustRecord>> entry:
-                providers.entrySet()) {
-                if (!entry.getValue().isEmpty()) {
-                    any = true;
-                    interleaved.add(entry.getValue().remove(0));
+            providers.put(o, new ArrayList<SourceCursor>(1));
+        }
+        for (SourceCursor source: aw.getSources()) {
+            if (!providers.containsKey(source.getSearcherID())) {
+                providers.put(source.getSearcherID(), new ArrayList<SourceCursor>(1));
+            }
+            providers.get(source.getSearcherID()).add(source);
+        }
+        List<SourceCursor> cursors = new ArrayList<>(providers.size());
+        for (Map.Entry<String, List<SourceCursor>> entry: providers.entrySet()) {
+            List<SourceCursor> sources = entry.getValue();
+            if (sources.size() == 1) {
+                cursors.add(sources.get(0));
+            } else if (sources.size() > 1) { // Same searcher ID for multiple responses: Concatenate
+                List<DocumentResponse.Record> concatenated = new ArrayList<>();
+                for (SourceCursor source: sources) {
+                    concatenated.addAll(source.records);
                 }
+                cursors.add(new SourceCursor(cursors.size(), entry.getKey(), concatenated));
             }
         }
-        aw.setRecords(interleaved);
+        return new RoundRobinPicker(cursors);
     }
 
-    private void sortByStandard(AdjustWrapper aw) {
+    private CursorPicker sortByStandard(AdjustWrapper aw) {
         log.trace("Sorting by provided order");
-        if (aw.getBase() == null) {
-            log.debug("sortByStandard(...): No base in AdjustWrapper. Exiting");
-            return;
-        }
-        final Comparator<DocumentResponse.Record> comparator = aw.getBase().getComparator();
-        Collections.sort(
-            aw.getRecords(),
-            new Comparator<AdjustWrapper.AdjustRecord>() {
-                @Override
-                public int compare(AdjustWrapper.AdjustRecord o1,
-                                   AdjustWrapper.AdjustRecord o2) {
-                    return comparator.compare(o1.getRecord(), o2.getRecord());
-                }
-            });
+        return getHeapPicker(aw, aw.getBase().getComparator());
     }
 
-    private void sortByScore(AdjustWrapper aw) {
+    private CursorPicker sortByScore(AdjustWrapper aw) {
         log.trace("Sorting records by score");
-        Collections.sort(
-            aw.getRecords(),
-            new Comparator<AdjustWrapper.AdjustRecord>() {
-                @Override
-                public int compare(AdjustWrapper.AdjustRecord o1,
-                                   AdjustWrapper.AdjustRecord o2) {
-                    return -Float.compare(o1.getScore(), o2.getScore());
-                }
-            });
+        return getHeapPicker(aw, SCORE_COMPARATOR);
     }
 
-    private void sortByID(AdjustWrapper aw, final List<String> order) {
+    private CursorPicker sortByID(AdjustWrapper aw, final List<String> order) {
         log.trace("Sorting records by searcher ID, secondarily by score");
-        Collections.sort(
-            aw.getRecords(),
-            new Comparator<AdjustWrapper.AdjustRecord>() {
+        for (SourceCursor source: aw.getSources()) {
+            int rank = order.indexOf(source.getSearcherID());
+            source.rank = rank == -1 ? Integer.MAX_VALUE : rank;
+        }
+        return getHeapPicker(aw, SCORE_COMPARATOR);
+    }
+
+    private static final Comparator<DocumentResponse.Record> SCORE_COMPARATOR =
+            new Comparator<DocumentResponse.Record>() {
                 @Override
-                public int compare(AdjustWrapper.AdjustRecord o1,
-                                   AdjustWrapper.AdjustRecord o2) {
-                    int order1 = order.indexOf(o1.getSearcherID());
-                    order1 = order1 == -1 ? Integer.MAX_VALUE : order1;
-                    int order2 = order.indexOf(o2.getSearcherID());
-                    order2 = order2 == -1 ? Integer.MAX_VALUE : order2;
-                    return order1 != order2 ? order1 - order2 : -Float.compare(o1.getScore(), o2.getScore());
+                public int compare(DocumentResponse.Record o1, DocumentResponse.Record o2) {
+                    return -Float.compare(o1.getScore(), o2.getScore());
                 }
-            });
+            };
+
+    /* Ensures that all sources are sorted by the comparator (normally they already are) and creates a heap picker.
+     */
+    private CursorPicker getHeapPicker(AdjustWrapper aw, Comparator<DocumentResponse.Record> comparator) {
+        List<SourceCursor> sources = aw.getSources();
+        for (int i = 0 ; i < sources.size() ; i++) {
+            SourceCursor source = sources.get(i);
+            if (!isSorted(source.records, comparator)) {
+                List<DocumentResponse.Record> sorted = new ArrayList<>(source.records);
+                Collections.sort(sorted, comparator);
+                SourceCursor sortedSource = new SourceCursor(source.sourceIndex, source.getSearcherID(), sorted);
+                sortedSource.rank = source.rank;
+                sources.set(i, sortedSource);
+            }
+        }
+        return new HeapPicker(sources, comparator);
+    }
+
+    private boolean isSorted(List<DocumentResponse.Record> records, Comparator<DocumentResponse.Record> comparator) {
+        for (int i = 1 ; i < records.size() ; i++) {
+            if (comparator.compare(records.get(i-1), records.get(i)) > 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private AdjustWrapper deconstruct(List<SummaSearcherAggregator.ResponseHolder> responses) {
@@ -491,7 +684,6 @@ public class ResponseMerger implements Configurable {
                 grouped |= (r instanceof DocumentResponse) && ((DocumentResponse)r).isGrouped();
             }
         }
-        List<AdjustWrapper.AdjustRecord> adjustRecords = new ArrayList<>();
         for (SummaSearcherAggregator.ResponseHolder response: responses) {
             if (!"".equals(response.getResponses().getTopLevelTiming())) {
                 aw.getMerged().addTiming(response.getResponses(). getTopLevelTiming());
@@ -508,9 +700,8 @@ public class ResponseMerger implements Configurable {
                     continue;
                 }
 
-                for (DocumentResponse.Record record: dr.getRecords()) {
-                    adjustRecords.add(new AdjustWrapper.AdjustRecord(response.getSearcherID(), record));
-                }
+                aw.getSources().add(
+                        new SourceCursor(aw.getSources().size(), response.getSearcherID(), dr.getRecords()));
                 if (aw.getBase() == null) {
                     aw.setBase(dr);
                 } else { // Merge hit and time
@@ -522,7 +713,6 @@ public class ResponseMerger implements Configurable {
                 }
             }
         }
-        aw.setRecords(adjustRecords);
         return aw;
     }
 
@@ -27,6 +27,7 @@ import dk.statsbiblioteket.summa.common.lucene.distribution.TermEntry;
 import dk.statsbiblioteket.summa.common.lucene.distribution.TermStat;
 import dk.statsbiblioteket.summa.search.api.Request;
 import dk.statsbiblioteket.summa.search.api.document.DocumentKeys;
+import dk.statsbiblioteket.summa.search.tools.QueryRewriteCache;
 import dk.statsbiblioteket.summa.search.tools.QueryRewriter;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
@@ -108,9 +109,20 @@ public class TermStatQueryRewriter implements Configurable {
      */
     public static final double ROUND_DELTA = 0.001;
 
+    /**
+     * The maximum number of rewritten queries to cache. The rewrite for a target is deterministic for a given query
+     * and set of search-time weights and fallback document frequency, so repeated queries can skip parsing,
+     * term stat lookups and serialisation.
+     * </p><p>
+     * Optional. Default is 1000. Set to 0 to disable caching.
+     */
+    public static final String CONF_CACHE_SIZE = "queryrewriter.cache.size";
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
     private boolean enabled = DEFAULT_TERMSTATS_ENABLED;
     private final List<Target> targets;
     private final boolean lowercase;
+    private final QueryRewriteCache cache;
 
     public TermStatQueryRewriter(Configuration conf) {
         enabled = conf.getBoolean(CONF_TERMSTATS_ENABLED, enabled);
@@ -130,6 +142,7 @@ public class TermStatQueryRewriter implements Configurable {
             targets = new ArrayList<>(0);
         }
         lowercase = conf.getBoolean(CONF_LOWERCASE_QUERY, DEFAULT_LOWERCASE_QUERY);
+        cache = new QueryRewriteCache(conf.getInt(CONF_CACHE_SIZE, DEFAULT_CACHE_SIZE));
         log.info("Constructed query rewriter with " + targets.size() + " targets. Enabled: " + enabled);
     }
 
@@ -181,7 +194,8 @@ public class TermStatQueryRewriter implements Configurable {
             }
         }
         rewriteTime += System.currentTimeMillis();
-        log.debug("Finished rewriting '" + query + "' to " + targets.size() + " targets in " + rewriteTime + " ms");
+        log.debug("Finished rewriting '" + query + "' to " + targets.size() + " targets in " + rewriteTime + " ms "
+                  + "using " + cache);
         return result;
     }
 
@@ -236,6 +250,35 @@ public class TermStatQueryRewriter implements Configurable {
 
     private String rewrite(final Request request, final Target target, String query,
                            final boolean doLowercase) throws ParseException {
+        String context = getContext(request, target, doLowercase);
+        String rewritten = cache.get(context, query);
+        if (rewritten == null) {
+            rewritten = rewriteUncached(request, target, query, doLowercase);
+            cache.put(context, query, rewritten);
+        }
+        return rewritten;
+    }
+
+    /* Everything besides the query that influences the rewrite for the target */
+    private String getContext(Request request, Target target, boolean doLowercase) {
+        StringBuilder sb = new StringBuilder(50);
+        sb.append(target.getID()).append('|').append(doLowercase).append('|');
+        sb.append(request.get(Target.SEARCH_FALLBACK_DF));
+        for (Target t : targets) {
+            sb.append('|').append(request.get(t.getID() + "." + Target.SEARCH_WEIGHT));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return statistics for the cache of rewritten queries.
+     */
+    public QueryRewriteCache getCache() {
+        return cache;
+    }
+
+    private String rewriteUncached(final Request request, final Target target, String query,
+                                   final boolean doLowercase) throws ParseException {
 
         QueryRewriter queryRewriter = new QueryRewriter(null, null, new QueryRewriter.Event() {
 
@@ -395,6 +438,6 @@ public class TermStatQueryRewriter implements Configurable {
     @Override
     public String toString() {
         return "TermStatQueryRewriter(enabled=" + enabled + ", #targets=" + targets.size()
-               + ", lowercase=" + lowercase + ')';
+               + ", lowercase=" + lowercase + ", " + cache + ')';
     }
 }
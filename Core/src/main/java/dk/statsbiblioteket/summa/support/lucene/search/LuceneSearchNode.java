@@ -24,6 +24,8 @@ import dk.statsbiblioteket.summa.common.index.IndexException;
 import dk.statsbiblioteket.summa.common.lucene.LuceneIndexDescriptor;
 import dk.statsbiblioteket.summa.common.lucene.LuceneIndexUtils;
 import dk.statsbiblioteket.summa.common.lucene.index.IndexUtils;
+import dk.statsbiblioteket.summa.common.lucene.index.NRTRegistry;
+import dk.statsbiblioteket.summa.common.lucene.index.RecordIDMap;
 import dk.statsbiblioteket.summa.common.lucene.search.SummaQueryParser;
 import dk.statsbiblioteket.summa.search.SearchNodeImpl;
 import dk.statsbiblioteket.summa.search.api.QueryException;
@@ -52,6 +54,8 @@ import org.apache.lucene.search.exposed.ExposedCache;
 import org.apache.lucene.search.exposed.ExposedSettings;
 import org.apache.lucene.search.exposed.ExposedUtil;
 import org.apache.lucene.search.exposed.facet.FacetMapFactory;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
@@ -268,6 +272,19 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
     public static final String FS_NIO = "nio";
     public static final String FS_AUTO = "AUTO";
 
+    /**
+     * If true and an IndexWriter for the index has been registered in the {@link NRTRegistry} by a
+     * {@link dk.statsbiblioteket.summa.index.lucene.LuceneManipulator} in the same JVM, the searcher is opened from
+     * that writer and reopened when the writer signals changes. This makes updates searchable before commit and
+     * reopens only the changed segments. The time from change to searchability is logged and available from
+     * {@link #getNRTStats()}. On reopen, only the exposed facet and sort structures for the replaced reader and its
+     * dropped segments are purged; structures for unchanged segments and for other indexes are kept.
+     * </p><p>
+     * Optional. Default is false.
+     */
+    public static final String CONF_NRT = "summa.support.lucene.nrt";
+    public static final boolean DEFAULT_NRT = false;
+
     @SuppressWarnings({"FieldCanBeLocal"})
     private LuceneIndexDescriptor descriptor;
     private SortPool sortPool; // Tied to the descriptor
@@ -291,6 +308,18 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
     private Set<String> mlt_stopWords = null;
     private MoreLikeThis moreLikeThis = null;
     private final String fsDirectory;
+    private final boolean nrt;
+    private File nrtFolder = null;
+    private final NRTRegistry.Listener nrtListener = new NRTRegistry.Listener() {
+        @Override
+        public void indexChanged(IndexWriter writer, long oldestChange) {
+            nrtRefresh(writer, oldestChange);
+        }
+    };
+    private long nrtRefreshes = 0;
+    private long nrtLatencyTotal = 0;
+    private long nrtLatencyMax = 0;
+    private long nrtRefreshTimeTotal = 0;
 
     private SortFactory.COMPARATOR sortComparator;
     private int sortBuffer;
@@ -357,8 +386,9 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
             fsDirectoryT = DEFAULT_FSDIRECTORY;
         }
         fsDirectory = fsDirectoryT;
-        log.info(String.format("Constructed LuceneSearchNode(FSDirectory='%s')%s",
-                               fsDirectory, exposedFeedback));
+        nrt = conf.getBoolean(CONF_NRT, DEFAULT_NRT);
+        log.info(String.format("Constructed LuceneSearchNode(FSDirectory='%s', nrt=%b)%s",
+                               fsDirectory, nrt, exposedFeedback));
     }
 
     private void setupMoreLikeThis(Configuration conf) {
@@ -416,7 +446,8 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
             return;
         }
         location +=  "/" + LuceneIndexUtils.LUCENE_FOLDER;
-        if (this.location != null) {
+        final boolean reopen = this.location != null;
+        if (reopen) {
             close();
         }
         this.location = location;
@@ -437,7 +468,7 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
         }
         try {
             log.debug("Opening searcher from '" + urlLocation + "' with FSDirectory " + fsDirectory);
-            searcher = new IndexSearcher(getIndexReader(urlLocation));
+            searcher = new IndexSearcher(getIndexReader(urlLocation, reopen));
 
             // Removed due to upgrade to Lucene 4 trunk
             //searcher.setDefaultFieldSortScoring(true, false);
@@ -446,6 +477,10 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
             log.debug("Opened Lucene searcher for " + urlLocation + " with maxDoc "
                       + searcher.getIndexReader().maxDoc());
             createMoreLikeThis();
+            if (nrt) {
+                nrtFolder = new File(Resolver.urlToFile(urlLocation).getAbsolutePath());
+                NRTRegistry.addListener(nrtFolder, nrtListener);
+            }
         } catch (CorruptIndexException e) {
             throw new RemoteException(String.format("Corrupt index at '%s'", urlLocation), e);
         } catch (IOException e) {
@@ -455,17 +490,216 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
                   + searcher.getIndexReader().maxDoc());
     }
 
-    // TODO: Optimize with reopen support
-    private IndexReader getIndexReader(URL location) throws IOException {
-        // TODO: This should not be needed anymore, but needs heavy testing as the functionality is crucial
-        ExposedCache.getInstance().purgeAllCaches();
+    /**
+     * @param location where the index is located.
+     * @param reopen   true if this node was already open. If false, the node is a new generation that might be opened
+     *                 while another node serves the same index, so the shared exposed cache is not purged.
+     */
+    private IndexReader getIndexReader(URL location, boolean reopen) throws IOException {
+        if (reopen) {
+            // TODO: This should not be needed anymore, but needs heavy testing as the functionality is crucial
+            ExposedCache.getInstance().purgeAllCaches();
+        }
         File file = new File(Resolver.urlToFile(location).getAbsolutePath());
+        if (nrt) {
+            IndexWriter writer = NRTRegistry.getWriter(file);
+            if (writer != null) {
+                log.debug("Opening NRT reader from the registered IndexWriter for '" + file + "'");
+                return DirectoryReader.open(writer, true);
+            }
+        }
+        Directory directory = openDirectory(file);
+        File shards = new File(file.getParentFile(), LuceneIndexUtils.SHARDS_FOLDER);
+        if (!DirectoryReader.indexExists(directory) && shards.isDirectory()) {
+            directory.close();
+            return openShards(shards);
+        }
+        return DirectoryReader.open(directory);
+    }
+
+    /**
+     * Opens the shards from a ShardedLuceneManipulator that publishes without merging. The Directory for each shard
+     * is closed when the reader for the shard is closed, which happens when the MultiReader is closed.
+     * @param shards the folder with the shards.
+     * @return a MultiReader with a sub reader for each shard.
+     * @throws IOException if a shard could not be opened.
+     */
+    private IndexReader openShards(File shards) throws IOException {
+        File[] shardRoots = shards.listFiles();
+        if (shardRoots == null) {
+            throw new IOException("Unable to list the shards in '" + shards + "'");
+        }
+        Arrays.sort(shardRoots);
+        List<IndexReader> readers = new ArrayList<>(shardRoots.length);
+        try {
+            for (File shardRoot: shardRoots) {
+                File shardIndex = new File(shardRoot, LuceneIndexUtils.LUCENE_FOLDER);
+                if (!shardIndex.isDirectory()) {
+                    continue;
+                }
+                final Directory directory = openDirectory(shardIndex);
+                final DirectoryReader reader;
+                try {
+                    reader = DirectoryReader.open(directory);
+                } catch (IOException e) {
+                    closeQuietly(directory);
+                    throw e;
+                }
+                reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+                    @Override
+                    public void onClose(IndexReader closed) {
+                        closeQuietly(directory);
+                    }
+                });
+                readers.add(reader);
+            }
+        } catch (IOException e) {
+            for (IndexReader reader: readers) {
+                closeQuietly(reader);
+            }
+            throw e;
+        }
+        log.info("Opened " + readers.size() + " shards from '" + shards + "' as a MultiReader");
+        if (nrt) {
+            log.warn("NRT is not supported for sharded indexes. The shards are only reopened on explicit open");
+        }
+        return new MultiReader(readers.toArray(new IndexReader[readers.size()]), true);
+    }
+
+    private Directory openDirectory(File file) throws IOException {
         if (FS_NIO.equals(fsDirectory)) {
-            return DirectoryReader.open(NIOFSDirectory.open(file));
+            return NIOFSDirectory.open(file);
         } else if (FS_MMAP.equals(fsDirectory)) {
-            DirectoryReader.open(MMapDirectory.open(file));
+            return MMapDirectory.open(file);
         } // auto
-        return DirectoryReader.open(FSDirectory.open(file));
+        return FSDirectory.open(file);
+    }
+
+    /**
+     * @return the segment readers in the replaced reader that are not part of the fresh reader.
+     */
+    private List<IndexReader> getDroppedSegments(IndexReader replaced, IndexReader fresh) {
+        Set<IndexReader> kept = Collections.newSetFromMap(new IdentityHashMap<IndexReader, Boolean>());
+        for (AtomicReaderContext context: fresh.leaves()) {
+            kept.add(context.reader());
+        }
+        List<IndexReader> dropped = new ArrayList<>();
+        for (AtomicReaderContext context: replaced.leaves()) {
+            if (!kept.contains(context.reader())) {
+                dropped.add(context.reader());
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Purges the exposed structures for the replaced reader and its dropped segments. The exposed cache is shared by
+     * all indexes in the JVM, so structures for other indexes and for segments shared with the fresh reader are kept.
+     */
+    private void purgeExposed(IndexReader replaced, List<IndexReader> droppedSegments) {
+        ExposedCache cache = ExposedCache.getInstance();
+        cache.purge(replaced);
+        for (IndexReader segment: droppedSegments) {
+            cache.purge(segment);
+        }
+    }
+
+    /*
+     * Called from the NRTRegistry notifier thread. The reopen is performed while searches are running, only the swap
+     * of the searcher is exclusive.
+     */
+    private void nrtRefresh(IndexWriter writer, long oldestChange) {
+        final IndexSearcher current = searcher;
+        if (current == null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        final DirectoryReader fresh;
+        try {
+            fresh = DirectoryReader.openIfChanged((DirectoryReader) current.getIndexReader(), writer, true);
+        } catch (AlreadyClosedException e) {
+            log.debug("nrtRefresh: The reader was closed during refresh, probably due to open. Skipping refresh");
+            return;
+        } catch (IOException e) {
+            log.warn("nrtRefresh: Unable to reopen the reader for '" + location + "' from the IndexWriter", e);
+            return;
+        }
+        if (fresh == null) {
+            log.trace("nrtRefresh: No changes");
+            return;
+        }
+        final boolean[] swapped = new boolean[1];
+        try {
+            runExclusive(new Runnable() {
+                @Override
+                public void run() {
+                    if (searcher != current) { // open or close has been called in the meantime
+                        return;
+                    }
+                    searcher = new IndexSearcher(fresh);
+                    sortPool.indexChanged(fresh);
+                    createMoreLikeThis();
+                    swapped[0] = true;
+                }
+            });
+        } catch (InterruptedException e) {
+            log.warn("nrtRefresh: Interrupted while waiting for searches to finish", e);
+        }
+        if (!swapped[0]) {
+            closeQuietly(fresh);
+            return;
+        }
+        // No searches uses the reader that is not in the current searcher, so it is safe to close
+        IndexReader replaced = current.getIndexReader();
+        List<IndexReader> dropped = getDroppedSegments(replaced, fresh);
+        closeQuietly(replaced);
+        purgeExposed(replaced, dropped);
+        long now = System.currentTimeMillis();
+        long latency = oldestChange == 0 ? -1 : now - oldestChange;
+        synchronized (nrtListener) {
+            nrtRefreshes++;
+            nrtRefreshTimeTotal += now - startTime;
+            if (latency >= 0) {
+                nrtLatencyTotal += latency;
+                nrtLatencyMax = Math.max(nrtLatencyMax, latency);
+            }
+        }
+        log.debug(String.format(
+                "nrtRefresh: Reopened searcher for '%s' in %d ms with maxDoc %d. Freshness latency %d ms",
+                location, now - startTime, fresh.maxDoc(), latency));
+    }
+
+    private void closeQuietly(IndexReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            log.warn("Unable to close IndexReader " + reader + ". This might result in a resource leak", e);
+        }
+    }
+
+    private void closeQuietly(Directory directory) {
+        try {
+            directory.close();
+        } catch (IOException e) {
+            log.warn("Unable to close Directory " + directory + ". This might result in a resource leak", e);
+        }
+    }
+
+    /**
+     * The freshness latency is the time from the oldest change signalled by the IndexWriter to the swap of the
+     * searcher, so it includes the refresh interval of the writer.
+     * @return statistics for near-real-time refreshes or a message that NRT is disabled.
+     */
+    public String getNRTStats() {
+        if (!nrt) {
+            return "NRT disabled";
+        }
+        synchronized (nrtListener) {
+            return String.format(
+                    "NRT refreshes=%d, avgRefreshTime=%d ms, avgFreshnessLatency=%d ms, maxFreshnessLatency=%d ms",
+                    nrtRefreshes, nrtRefreshes == 0 ? 0 : nrtRefreshTimeTotal / nrtRefreshes,
+                    nrtRefreshes == 0 ? 0 : nrtLatencyTotal / nrtRefreshes, nrtLatencyMax);
+        }
     }
 
     private void openDescriptor(String location) throws RemoteException {
@@ -529,16 +763,27 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
     @Override
     public void managedClose() {
         log.trace("close called");
+        if (nrtFolder != null) {
+            NRTRegistry.removeListener(nrtFolder, nrtListener);
+            log.info("Closing NRT searcher for '" + location + "'. " + getNRTStats());
+            nrtFolder = null;
+        }
         if (searcher != null) {
+            final IndexReader reader = searcher.getIndexReader();
+            final List<IndexReader> segments = new ArrayList<>();
+            for (AtomicReaderContext context: reader.leaves()) {
+                segments.add(context.reader());
+            }
             try {
-                log.debug("Closing down Searcher by closing IndexReader " + searcher.getIndexReader());
-                searcher.getIndexReader().close();
-                log.info("Successfully closed down IndexReader " + searcher.getIndexReader());
+                log.debug("Closing down Searcher by closing IndexReader " + reader);
+                reader.close();
+                log.info("Successfully closed down IndexReader " + reader);
             } catch (IOException e) {
                 log.warn(String.format(
                         "Could not close index-connection to '%s'. This will probably result in a resource-leak",
                         location), e);
             }
+            purgeExposed(reader, segments);
             //noinspection AssignmentToNull
             searcher = null;
         }
@@ -592,6 +837,25 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
         }
     }
 
+    /**
+     * Requests for {@link DocumentKeys#SEARCH_IDS} are resolved directly against the term dictionary for the RecordIDs
+     * with a {@link RecordIDMap} filter instead of being rewritten to a query string. Plain hit counting for IDs still
+     * uses the generic rewrite.
+     */
+    @Override
+    protected boolean adjustRequest(Request request) {
+        if (!request.containsKey(DocumentKeys.SEARCH_IDS)
+            || (request.containsKey(DocumentKeys.SEARCH_MAX_RECORDS)
+                && request.getLong(DocumentKeys.SEARCH_MAX_RECORDS) == 0)) {
+            return super.adjustRequest(request);
+        }
+        if (!request.containsKey(DocumentKeys.SEARCH_MAX_RECORDS)) {
+            request.put(DocumentKeys.SEARCH_MAX_RECORDS, request.getStrings(DocumentKeys.SEARCH_IDS).size());
+        }
+        request.put(DocumentKeys.SEARCH_COLLECT_DOCIDS, false);
+        return true;
+    }
+
     @Override
     protected boolean isRequestUsable(Request request) {
         return request.containsKey(LuceneKeys.SEARCH_MORELIKETHIS_RECORDID) || super.isRequestUsable(request);
@@ -670,6 +934,11 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
     // Can return null on MoreLikeThis parsing
     private Query parseQuery(Request request, String query) throws
                                                RemoteException, ParseException {
+        if (request != null && request.containsKey(DocumentKeys.SEARCH_IDS)) {
+            List<String> ids = request.getStrings(DocumentKeys.SEARCH_IDS);
+            log.debug("parseQuery(...): Creating RecordID filter for " + ids.size() + " IDs");
+            return new ConstantScoreQuery(RecordIDMap.createFilter(ids, IndexUtils.RECORD_FIELD));
+        }
         if (request == null || !isMoreLikeThisRequest(request)) {
             log.debug("parseQuery(...): Returning plain query instead of MoreLikeThis");
             return matchAllParse(query);
@@ -707,9 +976,8 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
         int docID;
         Query moreLikeThisQuery;
         try {
-            TermQuery q = new TermQuery(new Term(IndexUtils.RECORD_FIELD, recordID));
-            TopDocs recordDocs = searcher.search(q, null, 1);
-            if (recordDocs.totalHits == 0) {
+            docID = new RecordIDMap(searcher.getIndexReader()).getDocID(recordID);
+            if (docID == RecordIDMap.NOT_PRESENT) {
                 throw new RemoteException(String.format(
                     "Unable to locate recordID '%s' in MoreLikeThis query", recordID));
             }
@@ -717,7 +985,6 @@ public class LuceneSearchNode extends DocumentSearcherImpl implements Configurab
             // In a distributed environment, only the Searcher containing the
             // document will return any hits. Just as bad: The doc-id-trick only
             // works within the index that contains the document.
-            docID = recordDocs.scoreDocs[0].doc;
             moreLikeThisQuery = moreLikeThis.like(docID);
         } catch (IOException e) {
             throw new RemoteException(String.format("Unable to create MoreLikeThis query for recordID '%s'",
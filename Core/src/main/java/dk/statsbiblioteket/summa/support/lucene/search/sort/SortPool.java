@@ -30,6 +30,11 @@ import java.util.Map;
  * Uses the search description to generate a pool of sorters. The pool is lazy,
  * so sorters are only created when requested. If the IndexDescription is
  * changed, a new SortPool should be constructed to reflect the change.
+ * </p><p>
+ * Fields with sorted or numeric doc values (see {@link IndexField#getDocValues()}) are sorted with the standard Lucene
+ * sorters, which use the doc values directly instead of un-inverting the field. Sorted doc values for fields with a
+ * sort locale contain collator keys, so the binary order is the locale order. This requires that all segments in the
+ * index has been built with doc values for the field.
  */
 public class SortPool {
     private static final Logger log = Logger.getLogger(SortPool.class);
@@ -45,6 +50,11 @@ public class SortPool {
      */
     private Map<String, ReusableSortComparator> comparators = new HashMap<>(10);
 
+    /**
+     * Fields with doc values suitable for sorting.
+     */
+    private Map<String, SortField.Type> docValuesTypes = new HashMap<>(10);
+
     private boolean naturalOrder = false;
     private SortFactory.COMPARATOR comparatorImplementation;
     private int bufferSize;
@@ -70,6 +80,19 @@ public class SortPool {
     }
 
     private void updateField(IndexField field) {
+        switch (field.getDocValues()) {
+            case sorted: {
+                log.debug("Field '" + field.getName() + "' has sorted doc values. Using direct doc values sort");
+                docValuesTypes.put(field.getName(), SortField.Type.STRING);
+                return;
+            }
+            case numeric: {
+                log.debug("Field '" + field.getName() + "' has numeric doc values. Using direct doc values sort");
+                docValuesTypes.put(field.getName(), SortField.Type.LONG);
+                return;
+            }
+            default: docValuesTypes.remove(field.getName());
+        }
 /*        if (field.getSortLocale() == null) {
             return;
         }
@@ -114,6 +137,9 @@ public class SortPool {
             log.warn("Returning sort in natural order. This effectively ignores all localization on sort");
             return new Sort(new SortField(field, SortField.Type.STRING, reverse));
         }
+        if (docValuesTypes.containsKey(field)) {
+            return new Sort(new SortField(field, docValuesTypes.get(field), reverse));
+        }
         if (!sortFactories.containsKey(field)) {
             log.debug("No explicit sort specified for field '" + field + "'. Returning standard sort");
             return new Sort(new SortField(field, SortField.Type.STRING, reverse));
@@ -0,0 +1,344 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.support.solr;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared HTTP client for remote search backends such as Solr and Summon. Connections are pooled and kept alive
+ * between requests, gzip-compressed responses are requested and transparently decompressed and the number of
+ * concurrent connections to any single host is limited. Requests exceeding the limit waits for a free connection.
+ * </p><p>
+ * Clients are shared between search nodes with the same pool setup, see {@link #getShared(Configuration)}.
+ * The response content is handed to a {@link ContentHandler} as a stream, allowing for parsing without first
+ * materialising the full response.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class PooledHttpClient {
+    private static Log log = LogFactory.getLog(PooledHttpClient.class);
+
+    /**
+     * The maximum number of concurrent connections to a single host. Requests beyond this wait for a free
+     * connection, bounded by {@link #CONF_POOL_TIMEOUT}.
+     * </p><p>
+     * Optional. Default is 20.
+     */
+    public static final String CONF_MAX_CONNECTIONS_PER_HOST = "solr.http.maxconnectionsperhost";
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+    /**
+     * The maximum number of concurrent connections in total.
+     * </p><p>
+     * Optional. Default is 200.
+     */
+    public static final String CONF_MAX_CONNECTIONS = "solr.http.maxconnections";
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+
+    /**
+     * The maximum number of milliseconds to wait for a free connection when the limit for a host has been reached.
+     * </p><p>
+     * Optional. Default is 10,000 (10 seconds).
+     */
+    public static final String CONF_POOL_TIMEOUT = "solr.http.pooltimeout";
+    public static final int DEFAULT_POOL_TIMEOUT = 10 * 1000;
+
+    /**
+     * If true, gzip-compressed responses are requested from the remote server.
+     * </p><p>
+     * Optional. Default is true.
+     */
+    public static final String CONF_GZIP = "solr.http.gzip";
+    public static final boolean DEFAULT_GZIP = true;
+
+    /**
+     * Pooled connections that have been idle for this number of milliseconds are closed.
+     * </p><p>
+     * Optional. Default is 60,000 (1 minute).
+     */
+    public static final String CONF_IDLE_TIMEOUT = "solr.http.idletimeout";
+    public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final Map<String, PooledHttpClient> shared = new HashMap<>();
+
+    /**
+     * Receives the content of a successful response.
+     * @param <T> the type of the processed content.
+     */
+    public interface ContentHandler<T> {
+        /**
+         * @param content the response content, decompressed if needed. The stream is closed by the caller.
+         * @param charset the charset stated by the server or UTF-8 if not stated.
+         * @return the processed content.
+         * @throws IOException if the content could not be read or processed.
+         */
+        T handle(InputStream content, Charset charset) throws IOException;
+    }
+
+    /**
+     * Handler that returns the full content as a String.
+     */
+    public static final ContentHandler<String> STRING_HANDLER = new ContentHandler<String>() {
+        @Override
+        public String handle(InputStream content, Charset charset) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            Reader in = new InputStreamReader(content, charset);
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+            return sb.toString();
+        }
+    };
+
+    /**
+     * Thrown if the remote server responds with a non-2xx status.
+     */
+    public static class HttpStatusException extends IOException {
+        private final int status;
+
+        public HttpStatusException(String message, int status) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * The processed content for a request together with timing information.
+     * @param <T> the type of the processed content.
+     */
+    public static class Result<T> {
+        private final T content;
+        private final long connectTime;
+        private final long readTime;
+
+        public Result(T content, long connectTime, long readTime) {
+            this.content = content;
+            this.connectTime = connectTime;
+            this.readTime = readTime;
+        }
+
+        public T getContent() {
+            return content;
+        }
+
+        /**
+         * @return milliseconds from the request was issued until the response headers were received, including
+         *         waiting for a free connection.
+         */
+        public long getConnectTime() {
+            return connectTime;
+        }
+
+        /**
+         * @return milliseconds used for reading and processing the response content.
+         */
+        public long getReadTime() {
+            return readTime;
+        }
+    }
+
+    private final PoolingClientConnectionManager connectionManager;
+    private final DefaultHttpClient http;
+    private final int maxPerHost;
+    private final int maxTotal;
+    private final long poolTimeout;
+    private final boolean gzip;
+    private final long idleTimeout;
+
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private volatile long lastIdleCheck = System.currentTimeMillis();
+
+    /**
+     * Returns a client shared by all callers with the same pool setup as the given configuration.
+     * @param conf setup as specified in the class constants.
+     * @return a shared client.
+     */
+    public static PooledHttpClient getShared(Configuration conf) {
+        int maxPerHost = conf.getInt(CONF_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        int maxTotal = conf.getInt(CONF_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+        long poolTimeout = conf.getInt(CONF_POOL_TIMEOUT, DEFAULT_POOL_TIMEOUT);
+        boolean gzip = conf.getBoolean(CONF_GZIP, DEFAULT_GZIP);
+        long idleTimeout = conf.getInt(CONF_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        String key = maxPerHost + "/" + maxTotal + "/" + poolTimeout + "/" + gzip + "/" + idleTimeout;
+        synchronized (shared) {
+            PooledHttpClient client = shared.get(key);
+            if (client == null) {
+                client = new PooledHttpClient(maxPerHost, maxTotal, poolTimeout, gzip, idleTimeout);
+                shared.put(key, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Creates a non-shared client. Call {@link #close()} when the client is no longer needed.
+     * @param maxPerHost  the maximum number of concurrent connections to a single host.
+     * @param maxTotal    the maximum number of concurrent connections in total.
+     * @param poolTimeout the maximum number of milliseconds to wait for a free connection.
+     * @param gzip        if true, gzip-compressed responses are requested.
+     * @param idleTimeout idle connections are closed after this number of milliseconds.
+     */
+    public PooledHttpClient(int maxPerHost, int maxTotal, long poolTimeout, boolean gzip, long idleTimeout) {
+        this.maxPerHost = maxPerHost;
+        this.maxTotal = maxTotal;
+        this.poolTimeout = poolTimeout;
+        this.gzip = gzip;
+        this.idleTimeout = idleTimeout;
+        connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerHost);
+        http = new DefaultHttpClient(connectionManager);
+        if (gzip) {
+            http.addRequestInterceptor(new RequestAcceptEncoding());
+            http.addResponseInterceptor(new ResponseContentEncoding());
+        }
+        log.info("Created " + this);
+    }
+
+    /**
+     * Performs the request and returns the full response content as a String.
+     * @see #execute(HttpRequestBase, int, int, ContentHandler)
+     */
+    public Result<String> getString(
+            HttpRequestBase request, int connectionTimeout, int readTimeout) throws IOException {
+        return execute(request, connectionTimeout, readTimeout, STRING_HANDLER);
+    }
+
+    /**
+     * Performs the request, using a pooled connection if available, and passes the content of the response to the
+     * handler. The connection is returned to the pool when the handler has finished.
+     * @param request           the request to perform.
+     * @param connectionTimeout milliseconds to wait for a connection to be established.
+     * @param readTimeout       milliseconds to wait for data from the server.
+     * @param handler           receives the response content.
+     * @param <T> the type of the processed content.
+     * @return the processed content and timing information.
+     * @throws HttpStatusException if the server responded with a non-2xx status.
+     * @throws IOException if the request could not be performed or the content could not be processed.
+     */
+    public <T> Result<T> execute(HttpRequestBase request, int connectionTimeout, int readTimeout,
+                                 ContentHandler<T> handler) throws IOException {
+        requests.incrementAndGet();
+        closeIdle();
+        HttpConnectionParams.setConnectionTimeout(request.getParams(), connectionTimeout);
+        HttpConnectionParams.setSoTimeout(request.getParams(), readTimeout);
+        request.getParams().setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, poolTimeout);
+
+        long connectTime = -System.currentTimeMillis();
+        boolean success = false;
+        try {
+            HttpResponse response = http.execute(request);
+            connectTime += System.currentTimeMillis();
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                String error = entity == null ? "N/A" : EntityUtils.toString(entity, "utf-8");
+                throw new HttpStatusException(
+                        "Got HTTP status " + response.getStatusLine() + " from " + request.getURI()
+                        + " with content\n" + error, status);
+            }
+            long readTime = -System.currentTimeMillis();
+            T content;
+            if (entity == null) {
+                content = handler.handle(new ByteArrayInputStream(new byte[0]), UTF8);
+            } else {
+                ContentType contentType = ContentType.get(entity);
+                Charset charset = contentType == null || contentType.getCharset() == null ?
+                                  UTF8 : contentType.getCharset();
+                InputStream in = entity.getContent();
+                try {
+                    content = handler.handle(in, charset);
+                } finally {
+                    in.close(); // Consumes remaining content and releases the connection to the pool
+                }
+            }
+            readTime += System.currentTimeMillis();
+            success = true;
+            return new Result<>(content, connectTime, readTime);
+        } finally {
+            if (!success) {
+                failures.incrementAndGet();
+                request.abort(); // The connection state is unknown so it is not reused
+            }
+        }
+    }
+
+    private void closeIdle() {
+        final long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < idleTimeout / 2) {
+            return;
+        }
+        lastIdleCheck = now;
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes all pooled connections. Shared clients should not be closed.
+     */
+    public void close() {
+        log.info("Closing " + this);
+        synchronized (shared) {
+            shared.values().remove(this);
+        }
+        connectionManager.shutdown();
+    }
+
+    public String getStats() {
+        return "requests=" + requests.get() + ", failures=" + failures.get()
+               + ", pool=" + connectionManager.getTotalStats();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledHttpClient(maxPerHost=" + maxPerHost + ", maxTotal=" + maxTotal
+               + ", poolTimeout=" + poolTimeout + "ms, gzip=" + gzip + ", idleTimeout=" + idleTimeout + "ms, "
+               + getStats() + ")";
+    }
+}
@@ -34,14 +34,15 @@ import dk.statsbiblioteket.util.caching.TimeSensitiveCache;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.lucene.queryparser.classic.ParseException;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.*;
-import java.net.ConnectException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.rmi.RemoteException;
 import java.util.*;
 
@@ -260,6 +261,16 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
     public static final String CONF_RECORD_CACHE_LIMIT = "solr.recordcache.limit";
     public static final int DEFAULT_RECORD_CACHE_LIMIT = 1000;
 
+    /**
+     * If true, the Solr response is parsed directly from the connection as it arrives, instead of being received in
+     * full before parsing. This lowers latency and memory overhead for large responses, at the cost of the raw
+     * response not being available for debug logging in case of parse errors.
+     * </p><p>
+     * Optional. Default is true.
+     */
+    public static final String CONF_SOLR_STREAMING = "solr.response.streaming";
+    public static final boolean DEFAULT_SOLR_STREAMING = true;
+
     //    private static final DateFormat formatter =
     //        new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.US);
     protected SolrResponseBuilder responseBuilder;
@@ -267,6 +278,7 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
     protected final String restCall;
     protected final int connectionTimeout;
     protected final int readTimeout;
+    protected final PooledHttpClient http;
     protected final String idPrefix;
     protected final int defaultPageSize;
     protected final int minCount;
@@ -282,6 +294,7 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
     protected final boolean emptyQueryNoSearch;
     protected final boolean emptyFilterNoSearch;
     protected final boolean mltEnabled;
+    protected final boolean streaming;
 
     protected final CACHE_TYPE cacheType;
     protected final TimeSensitiveCache<String, DocumentResponse.Record> recordCache;
@@ -306,6 +319,7 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
         restCall = conf.getString(CONF_SOLR_RESTCALL, DEFAULT_SOLR_RESTCALL);
         connectionTimeout = conf.getInt(CONF_SOLR_CONNECTION_TIMEOUT, DEFAULT_SOLR_CONNECTION_TIMEOUT);
         readTimeout = conf.getInt(CONF_SOLR_READ_TIMEOUT, DEFAULT_SOLR_READ_TIMEOUT);
+        http = PooledHttpClient.getShared(conf);
         idPrefix =   conf.getString(CONF_SOLR_IDPREFIX, DEFAULT_SOLR_IDPREFIX);
         defaultPageSize = conf.getInt(CONF_SOLR_DEFAULTPAGESIZE, DEFAULT_SOLR_DEFAULTPAGESIZE);
         minCount = conf.getInt(CONF_SOLR_MINCOUNT, DEFAULT_SOLR_MINCOUNT);
@@ -323,6 +337,7 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
         emptyQueryNoSearch = conf.getBoolean(CONF_EMPTY_QUERY_NO_SEARCH, DEFAULT_EMPTY_QUERY_NO_SEARCH);
         emptyFilterNoSearch = conf.getBoolean(CONF_EMPTY_FILTER_NO_SEARCH, DEFAULT_EMPTY_FILTER_NO_SEARCH);
         mltEnabled = conf.getBoolean(CONF_MLT_ENABLED, DEFAULT_MLT_ENABLED);
+        streaming = conf.getBoolean(CONF_SOLR_STREAMING, DEFAULT_SOLR_STREAMING);
 
         cacheType = CACHE_TYPE.valueOf(conf.getString(CONF_RECORD_CACHE, DEFAULT_RECORD_CACHE.toString()));
         switch (cacheType) {
@@ -518,6 +533,20 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
             log.debug("Performing MoreLikeThis search for '" + query);
         }*/
         log.trace("Performing search for '" + query + "' with facets '" + facets + "'");
+        if (isStreaming()) {
+            long hitCount = solrSearchStreaming(
+                request, filters, query, solrSearchParams, collectdocIDs ? facets : null, facets,
+                startIndex, maxRecords, sortKey, reverseSort, responses);
+            searchTime += System.currentTimeMillis();
+            if (log.isDebugEnabled()) {
+                log.debug("fullSearch(" + request.toString(true) + ", [" + Strings.join(filters) + "], " + rawQuery
+                          + ", " + startIndex + ", " + maxRecords + ", " + sortKey + ", " + reverseSort + ") with "
+                          + hitCount + " hits finished in " + searchTime + " ms using streaming response parsing");
+            }
+            cacheRecords(request, responses);
+            responses.addTiming(getID() + ".search.total", System.currentTimeMillis() - startTime);
+            return;
+        }
         String solrResponse;
         String solrTiming;
         try {
@@ -845,6 +874,60 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
 
     }
 
+    /**
+     * Performs a search in Solr and parses the response directly from the connection using
+     * {@link SolrResponseBuilder#buildResponses(Request, SolrFacetRequest, ResponseCollection, Reader, String)}.
+     * Parameters are as for {@link #solrSearch}, except for {@code buildFacets} which is the facet request passed
+     * on to the response builder.
+     * @return the number of hits or -1 if no remote call was performed.
+     * @throws RemoteException if the remote call or the parsing of the response failed.
+     */
+    protected long solrSearchStreaming(
+        final Request request, List<String> filters, String query, Map<String, List<String>> solrParams,
+        SolrFacetRequest facets, final SolrFacetRequest buildFacets, int startIndex, int maxRecords, String sortKey,
+        boolean reverseSort, final ResponseCollection responses) throws RemoteException {
+        long buildQuery = -System.currentTimeMillis();
+        Map<String, List<String>> queryMap;
+        try {
+            queryMap = buildSolrQuery(
+                request, filters, query, solrParams, facets, startIndex, maxRecords, sortKey, reverseSort);
+        } catch (ParseException e) {
+            throw new RemoteException("Unable to build Solr query", e);
+        }
+        String queryString = computeSortedQueryString(queryMap, true);
+        buildQuery += System.currentTimeMillis();
+        final String solrTiming = "solr.buildquery:" + buildQuery;
+        if (!validRequest(queryMap)) {
+            responses.addTiming(solrTiming);
+            return -1;
+        }
+        try {
+            return getData(restCall, queryString, responses, new PooledHttpClient.ContentHandler<Long>() {
+                @Override
+                public Long handle(InputStream content, Charset charset) throws IOException {
+                    try {
+                        return responseBuilder.buildResponses(
+                            request, buildFacets, responses, new InputStreamReader(content, charset), solrTiming);
+                    } catch (XMLStreamException e) {
+                        throw new IOException(
+                            "Unable to transform Solr XML response to Summa response for '" + request + "'", e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new RemoteException("SolrSearchNode: Unable to perform remote call to "  + host + restCall
+                                      + " with argument '" + queryString + "'", e);
+        }
+    }
+
+    /**
+     * @return true if {@link #solrSearchStreaming} should be used instead of {@link #solrSearch}.
+     *         Subclasses that override {@link #solrSearch} should override this to return false.
+     */
+    protected boolean isStreaming() {
+        return streaming;
+    }
+
     // True if either a query or a filter is present
     private boolean validRequest(Map<String, List<String>> queryMap) {
         return queryMap.containsKey("q") || queryMap.containsKey("fq");
@@ -853,87 +936,42 @@ public class SolrSearchNode extends SearchNodeImpl  { // TODO: implements Docume
     //  {spellcheck=[true], start=[0], q=[gense], spellcheck.dictionary=[summa_spell], spellcheck.count=[5], qt=[/didyoumean], rows=[15]}
 
     private String getData(String path, String params, ResponseCollection responses) throws IOException {
+        return getData(path, params, responses, PooledHttpClient.STRING_HANDLER);
+    }
+
+    private <T> T getData(String path, String params, ResponseCollection responses,
+                          PooledHttpClient.ContentHandler<T> handler) throws IOException {
         String command = path + "?" + params;
-        StringBuilder retval = new StringBuilder();
 
         if (log.isDebugEnabled()) {
             log.debug("Performing Solr request for '" + command + "'");
         }
 
-        //URL url = new URL("http://" + host + command);
-        URL url = new URL("http://" + host + path);
-        HttpURLConnection conn;
-        try {
-            conn = (HttpURLConnection) url.openConnection();
-        } catch (Exception e) {
-            String message = "Exception while calling HttpURLConnection(" + url.toExternalForm() + ").openConnection()";
-            log.error(message, e);
-            throw (ConnectException)new ConnectException(message).initCause(e);
-        }
-        conn.setRequestProperty("Host", host);
-        conn.setRequestProperty("Accept", "application/xml");
-        conn.setRequestProperty("Accept-Charset", "utf-8");
-        // http://www.xyzws.com/Javafaq/how-to-use-httpurlconnection-post-data-to-web-server/139
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-        conn.setRequestProperty("Content-Length", "" + Integer.toString(params.getBytes().length));
-        conn.setUseCaches (false);
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-
-        conn.setConnectTimeout(connectionTimeout);
-        conn.setReadTimeout(readTimeout);
-        Long readStart = System.currentTimeMillis();
-    	long summonConnect = -System.currentTimeMillis();
-        try {
-            //Send request
-            DataOutputStream wr = new DataOutputStream (conn.getOutputStream ());
-            wr.writeBytes(params);
-            wr.flush ();
-            wr.close ();
-
-            //conn.connect();
-        } catch (Exception e) {
-            String message = "Unable to connect to remote Solr with URL '" + url.toExternalForm()
-                             + "' and connection timeout " + connectionTimeout;
-            log.error(message, e);
-            summonConnect += System.currentTimeMillis();
-            lastConnectTime = summonConnect;
-            throw (ConnectException)new ConnectException(message).initCause(e);
-        }
-        summonConnect += System.currentTimeMillis();
-        lastConnectTime = summonConnect;
+        HttpPost post = new HttpPost("http://" + host + path);
+        post.setHeader("Accept", "application/xml");
+        post.setHeader("Accept-Charset", "utf-8");
+        post.setEntity(new StringEntity(params, ContentType.APPLICATION_FORM_URLENCODED));
 
-        BufferedReader in;
-        long rawCall = -System.currentTimeMillis();
+        PooledHttpClient.Result<T> result;
         try {
-        	in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-            String str;
-
-            while ((str = in.readLine()) != null) {
-                retval.append(str);
-            }
-            log.trace("Reading from Solr done in " + (System.currentTimeMillis() - readStart) + "ms");
-            in.close();
-            rawCall += System.currentTimeMillis();
-            lastDataTime = rawCall;
-            responses.addTiming(getID() + ".connect", summonConnect);
-            responses.addTiming(getID() + ".rawcall", rawCall);
-
-        } catch (Exception e) {
-            rawCall += System.currentTimeMillis();
-            lastDataTime = rawCall;
-            String error = String.format(
-                "getData(host='%s', command='%s') for %s failed with error stream\n%s",
-                "http://" + host, command, getID(),
-                conn.getErrorStream() == null ? "N/A" :
-                        Strings.flush(new InputStreamReader(conn.getErrorStream(), "UTF-8")));
+            result = http.execute(post, connectionTimeout, readTimeout, handler);
+        } catch (PooledHttpClient.HttpStatusException e) {
+            String error = String.format("getData(host='%s', command='%s') for %s failed with %s",
+                                         "http://" + host, command, getID(), e.getMessage());
             log.warn(error, e);
             throw new IOException(error, e);
+        } catch (IOException e) {
+            String message = "Unable to perform request to remote Solr with URL '" + post.getURI()
+                             + "' and connection timeout " + connectionTimeout + ", read timeout " + readTimeout;
+            log.warn(message, e);
+            throw new IOException(message, e);
         }
-        // TODO: Should we disconnect?
-        //System.out.println(retval.toString());
-        return retval.toString();
+        lastConnectTime = result.getConnectTime();
+        lastDataTime = result.getReadTime();
+        log.trace("Reading from Solr done in " + (lastConnectTime + lastDataTime) + "ms");
+        responses.addTiming(getID() + ".connect", lastConnectTime);
+        responses.addTiming(getID() + ".rawcall", lastDataTime);
+        return result.getContent();
     }
 
     /**
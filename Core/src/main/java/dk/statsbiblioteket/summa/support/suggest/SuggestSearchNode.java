@@ -111,6 +111,8 @@ public class SuggestSearchNode extends SearchNodeImpl {
     /**
      * The class for the back-end storage for suggest.
      * </p><p>
+     * {@link SuggestStorageTrie} is an in-memory alternative with faster lookups for short prefixes.
+     * </p><p>
      * Optional. Default is
      * {@link dk.statsbiblioteket.summa.support.suggest.SuggestStorageH2}.
      */
@@ -133,6 +135,25 @@ public class SuggestSearchNode extends SearchNodeImpl {
      */
     public static final String DEFAULT_LOWERCASE_LOCALE = "da";
 
+    /**
+     * If more than 0, updates of query counts are buffered and written to the storage every {@code flushinterval}
+     * milliseconds. Updates for the same query within the interval are written as a single storage update.
+     * Buffered updates are lost if the searcher crashes. See {@link SuggestUpdateBuffer}.
+     * </p><p>
+     * Optional. Default is 0 (updates are written to the storage immediately).
+     */
+    public static final String CONF_UPDATE_FLUSH_INTERVAL = "summa.support.suggest.update.flushinterval";
+    public static final int DEFAULT_UPDATE_FLUSH_INTERVAL = 0;
+
+    /**
+     * The maximum number of distinct queries to buffer when {@link #CONF_UPDATE_FLUSH_INTERVAL} is active. When the
+     * maximum is reached, the buffer is flushed immediately.
+     * </p><p>
+     * Optional. Default is 10000.
+     */
+    public static final String CONF_UPDATE_MAX_BUFFERED = "summa.support.suggest.update.maxbuffered";
+    public static final int DEFAULT_UPDATE_MAX_BUFFERED = 10000;
+
     /**
      * The folder name for the sub-index created by Suggest.
      */
@@ -179,6 +200,13 @@ public class SuggestSearchNode extends SearchNodeImpl {
      * The suggest storage holding the suggestion.
      */
     private SuggestStorage storage;
+    /**
+     * Write-behind buffer for updates. Null if updates are written directly or if the storage is not open.
+     * The buffer is created in {@link #managedOpen} and closed before the storage is closed.
+     */
+    private volatile SuggestUpdateBuffer updateBuffer = null;
+    private final int flushInterval;
+    private final int maxBuffered;
     private final Profiler profiler = new Profiler(Integer.MAX_VALUE, 100);
     private final Profiler uProfiler = new Profiler(Integer.MAX_VALUE, 100);
 
@@ -195,9 +223,12 @@ public class SuggestSearchNode extends SearchNodeImpl {
         storageClass = Configuration.getClass(CONF_STORAGE_CLASS, SuggestStorage.class, DEFAULT_STORAGE, conf);
 
         storage = Configuration.create(storageClass, conf);
+        flushInterval = conf.getInt(CONF_UPDATE_FLUSH_INTERVAL, DEFAULT_UPDATE_FLUSH_INTERVAL);
+        maxBuffered = conf.getInt(CONF_UPDATE_MAX_BUFFERED, DEFAULT_UPDATE_MAX_BUFFERED);
         log.info(String.format(
-                "Created SuggestSearchNode with maxResults=%d,  defaultMaxResults=%d and storage=%s",
-                maxResults, defaultMaxResults, storageClass.getSimpleName()));
+                "Created SuggestSearchNode with maxResults=%d,  defaultMaxResults=%d, storage=%s, "
+                + "update flushInterval=%d and maxBuffered=%d",
+                maxResults, defaultMaxResults, storageClass.getSimpleName(), flushInterval, maxBuffered));
     }
 
     /**
@@ -220,9 +251,17 @@ public class SuggestSearchNode extends SearchNodeImpl {
     protected void managedSearch(Request request, ResponseCollection responses) throws RemoteException {
         boolean maintenance = false;
         final int maxResults = 10;
+        final SuggestUpdateBuffer updateBuffer = this.updateBuffer;
+        if (updateBuffer != null && (request.containsKey(SuggestKeys.DELETE_SUGGEST)
+                                     || request.containsKey(SEARCH_IMPORT) || request.containsKey(SEARCH_EXPORT))) {
+            updateBuffer.flush();
+        }
         try {
             if (request.getBoolean(SEARCH_CLEAR, false)) {
                 log.info("Clearing all suggestions");
+                if (updateBuffer != null) {
+                    updateBuffer.clear();
+                }
                 storage.clear();
                 responses.add(new SuggestResponse("Suggestions cleared", maxResults));
                 maintenance = true;
@@ -348,7 +387,17 @@ public class SuggestSearchNode extends SearchNodeImpl {
         }
         int hits = request.getInt(SuggestKeys.SEARCH_UPDATE_HITCOUNT);
         uProfiler.beat();
-        if (!request.containsKey(SuggestKeys.SEARCH_UPDATE_QUERYCOUNT)) {
+        final SuggestUpdateBuffer updateBuffer = this.updateBuffer;
+        if (updateBuffer != null) {
+            if (request.containsKey(SuggestKeys.SEARCH_UPDATE_QUERYCOUNT)) {
+                updateBuffer.add(query, hits, request.getInt(SuggestKeys.SEARCH_UPDATE_QUERYCOUNT));
+            } else {
+                updateBuffer.add(query, hits);
+            }
+            if (log.isTraceEnabled()) {
+                log.trace("Buffered update for '" + query + "' with " + hits + " hits. " + getUpdateStats());
+            }
+        } else if (!request.containsKey(SuggestKeys.SEARCH_UPDATE_QUERYCOUNT)) {
             storage.addSuggestion(query, hits);
             dualLog("Completed addSuggestion(" + query + ", " + hits + ") in "
                     + (System.nanoTime() - startTime) / 1000000D + "ms. " + getUpdateStats());
@@ -372,12 +421,17 @@ public class SuggestSearchNode extends SearchNodeImpl {
         File fileLocation = new File(new File(location), SUGGEST_FOLDER);
         log.debug(String.format("manageOpen(%s) called. The specific folder was '%s'", location,
                                 fileLocation.toString()));
+        closeUpdateBuffer();
         storage.close();
         try {
             storage.open(fileLocation);
         } catch (IOException e) {
             throw new RemoteException("Exception while opening '" + location + "'", e);
         }
+        if (flushInterval > 0) {
+            updateBuffer = new SuggestUpdateBuffer(storage, flushInterval, maxBuffered);
+            log.debug("Created " + updateBuffer + " for '" + fileLocation + "'");
+        }
     }
 
     /**
@@ -386,9 +440,22 @@ public class SuggestSearchNode extends SearchNodeImpl {
     @Override
     protected void managedClose() {
         log.debug("managedClose() called. Closing down storage");
+        closeUpdateBuffer();
         storage.close();
     }
 
+    /**
+     * Stops the scheduled flushing and writes all pending updates to the storage, which must still be open.
+     */
+    private void closeUpdateBuffer() {
+        final SuggestUpdateBuffer updateBuffer = this.updateBuffer;
+        if (updateBuffer == null) {
+            return;
+        }
+        this.updateBuffer = null;
+        updateBuffer.close();
+    }
+
     /**
      * No warmup is needed for suggestions.
      * @param request Not used.
@@ -438,7 +505,9 @@ public class SuggestSearchNode extends SearchNodeImpl {
                + ", q/s(last " + profiler.getBpsSpan() + ")=" + profiler.getBps(true);
     }
     private String getUpdateStats() {
+        final SuggestUpdateBuffer updateBuffer = this.updateBuffer;
         return "Stats(#updates=" + uProfiler.getBeats()
-               + ", u/s(last " + uProfiler.getBpsSpan() + ")=" + uProfiler.getBps(true);
+               + ", u/s(last " + uProfiler.getBpsSpan() + ")=" + uProfiler.getBps(true)
+               + (updateBuffer == null ? "" : ", " + updateBuffer.getStats());
     }
 }
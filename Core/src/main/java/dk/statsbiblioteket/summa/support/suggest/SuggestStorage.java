@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Interface for the storage responsible for persistence.
@@ -98,6 +99,33 @@ public interface SuggestStorage extends Configurable {
      */
     void addSuggestion(String query, int hits, int queryCount) throws IOException;
 
+    /**
+     * Add the given suggestion. If it already exists, update its queryCount
+     * with {@code increment} and set the number of hits. If it does not exist,
+     * create a new entry with queryCount set to {@code increment}.
+     * This is equivalent to calling {@link #addSuggestion(String, int)}
+     * {@code increment} times.
+     *
+     * @param query     The query to store.
+     * @param hits      The number of hits that the query gives.
+     * @param increment The number of times the query has been issued.
+     * @throws IOException If the addition failed.
+     */
+    void incrementSuggestion(String query, int hits, int increment) throws IOException;
+
+    /**
+     * Apply the given updates in order. This is equivalent to calling
+     * {@link #addSuggestion(String, int, int)} or {@link #incrementSuggestion}
+     * for each update, but storages backed by a database apply the updates as
+     * a single batch in one transaction. If an IOException is thrown, none of
+     * the updates are applied for transactional storages, while other
+     * storages might have applied some of them.
+     *
+     * @param updates The updates to apply.
+     * @throws IOException If the updates could not be applied.
+     */
+    void updateSuggestions(List<Update> updates) throws IOException;
+
     /**
      * Extracts max stored suggestions from the underlying storage from start.
      * This is typically used for dumping the suggest data.
@@ -161,4 +189,35 @@ public interface SuggestStorage extends Configurable {
      *         in storage.
      */
     boolean deleteSuggestion(String suggestion);
+
+    /**
+     * A single suggestion update for {@link #updateSuggestions}.
+     */
+    final class Update {
+        public final String query;
+        public final int hits;
+        public final int queryCount;
+        public final int increment;
+
+        /**
+         * @param query      The query to store.
+         * @param hits       The number of hits that the query gives.
+         * @param queryCount The query count. -1 means add {@code increment}
+         *                   to the existing query count.
+         * @param increment  The number of times the query has been issued.
+         *                   Only used if queryCount is -1.
+         */
+        public Update(String query, int hits, int queryCount, int increment) {
+            this.query = query;
+            this.hits = hits;
+            this.queryCount = queryCount;
+            this.increment = increment;
+        }
+
+        @Override
+        public String toString() {
+            return "Update(query='" + query + "', hits=" + hits + ", queryCount=" + queryCount
+                   + ", increment=" + increment + ")";
+        }
+    }
 }
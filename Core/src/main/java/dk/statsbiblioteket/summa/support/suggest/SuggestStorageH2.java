@@ -36,7 +36,11 @@ import java.net.URL;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -406,7 +410,137 @@ public class SuggestStorageH2 extends SuggestStorageImpl {
     // -1 means add 1 to suggest_index.query_count
     @Override
     public synchronized void addSuggestion(String query, int hits, int queryCount) throws IOException {
+        upsert(query, hits, queryCount, 1);
+    }
+
+    @Override
+    public synchronized void incrementSuggestion(String query, int hits, int increment) throws IOException {
+        upsert(query, hits, -1, increment);
+    }
+
+    /**
+     * Applies the updates as JDBC batches in a single transaction: Deletions
+     * (updates with 0 hits) first, then updates of existing suggestions and
+     * finally inserts of the suggestions that did not exist. If the same
+     * suggestion is inserted more than once, the inserts are merged in order.
+     */
+    @Override
+    public synchronized void updateSuggestions(List<Update> updates) throws IOException {
+        long startTime = System.nanoTime();
+        List<String> deletes = new ArrayList<>();
+        List<Update> upserts = new ArrayList<>(updates.size());
+        List<String> normalized = new ArrayList<>(updates.size());
+        for (Update update: updates) {
+            // Doing checkString() here makes sure we don't allocate huge amounts
+            // of memory in our thread local StringBuilders used in join()
+            if (!checkString(update.query)) {
+                continue;
+            }
+            String query = sanitize(update.query);
+            if (update.hits == 0) {
+                deletes.add(normalize(query));
+                continue;
+            }
+            String normalizedQuery = normalize(query);
+            if (!checkString(normalizedQuery)) {
+                continue;
+            }
+            upserts.add(new Update(normalizeQueries ? normalizedQuery : query,
+                                   update.hits, update.queryCount, update.increment));
+            normalized.add(normalizedQuery);
+        }
+
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new IOException("SQLException while setting autoCommit to false", e);
+        }
+        try {
+            if (!deletes.isEmpty()) {
+                PreparedStatement psDelete = connection.prepareStatement(
+                        "DELETE FROM suggest_data WHERE normalized_query=?");
+                for (String delete: deletes) {
+                    psDelete.setString(1, delete);
+                    psDelete.addBatch();
+                }
+                psDelete.executeBatch();
+                psDelete.close();
+            }
+
+            // query_count=0*query_count+queryCount sets and 1*query_count+increment increments,
+            // so that both kinds of updates are handled in order by the same batch
+            int[] updated = new int[0];
+            if (!upserts.isEmpty()) {
+                PreparedStatement psUpdate = connection.prepareStatement("UPDATE suggest_data " +
+                                                                         "SET query_count=?*query_count+?, " +
+                                                                         "    hit_count=?, " +
+                                                                         "    mtime=? " +
+                                                                         "WHERE user_query=?");
+                for (Update upsert: upserts) {
+                    psUpdate.setInt(1, upsert.queryCount == -1 ? 1 : 0);
+                    psUpdate.setInt(2, upsert.queryCount == -1 ? upsert.increment : upsert.queryCount);
+                    psUpdate.setInt(3, upsert.hits);
+                    psUpdate.setLong(4, timestamps.next());
+                    psUpdate.setString(5, upsert.query);
+                    psUpdate.addBatch();
+                }
+                updated = psUpdate.executeBatch();
+                psUpdate.close();
+            }
+
+            // Inserts always have explicit query counts
+            Map<String, Update> inserts = new LinkedHashMap<>();
+            Map<String, String> insertNormalized = new HashMap<>();
+            int existing = 0;
+            for (int i = 0 ; i < upserts.size() ; i++) {
+                Update upsert = upserts.get(i);
+                if (updated[i] != 0) {
+                    existing++;
+                    continue;
+                }
+                Update previous = inserts.get(upsert.query);
+                int queryCount = upsert.queryCount != -1 ? upsert.queryCount
+                        : previous == null ? upsert.increment : previous.queryCount + upsert.increment;
+                inserts.put(upsert.query, new Update(upsert.query, upsert.hits, queryCount, 0));
+                insertNormalized.put(upsert.query, normalized.get(i));
+            }
+            if (!inserts.isEmpty()) {
+                PreparedStatement psInsert = connection.prepareStatement(
+                        "INSERT INTO suggest_data VALUES (?, ?, ?, ?, ?)");
+                for (Update insert: inserts.values()) {
+                    psInsert.setString(1, insert.query);
+                    psInsert.setString(2, insertNormalized.get(insert.query));
+                    psInsert.setInt(3, insert.queryCount);
+                    psInsert.setInt(4, insert.hits);
+                    psInsert.setLong(5, timestamps.next());
+                    psInsert.addBatch();
+                }
+                psInsert.executeBatch();
+                psInsert.close();
+            }
+            connection.commit();
+            updateCount += deletes.size() + upserts.size();
+            log.debug(String.format("Applied %d deletes, %d updates and %d inserts in %sms",
+                                    deletes.size(), existing, inserts.size(),
+                                    (System.nanoTime() - startTime) / 1000000D));
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException e1) {
+                log.error("Failed to roll back transaction: " + e.getMessage(), e);
+            }
+            throw new IOException("SQLException applying " + updates.size() + " suggestion updates", e);
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.error("SQLException setting autoCommit to true. Suggest might not be able to get updates", e);
+            }
+        }
+    }
 
+    // queryCount -1 means add increment to suggest_index.query_count
+    private void upsert(String query, int hits, int queryCount, int increment) throws IOException {
         // Doing checkString() here makes sure we don't allocate huge amounts
         // of memory in our thread local StringBuilders used in join()
         if (!checkString(query)) {
@@ -425,11 +559,11 @@ public class SuggestStorageH2 extends SuggestStorageImpl {
         }
 
         try {
-            insertSuggestion(query, hits, queryCount == -1 ? 1 : queryCount);
+            insertSuggestion(query, hits, queryCount == -1 ? increment : queryCount);
             log.debug("Created new suggestion '" + query + "' with " + hits + " hits");
         } catch (SQLException e) {
             if (isIntegrityConstraintViolation(e)) {
-                updateSuggestion(query, hits, queryCount);
+                updateSuggestion(query, hits, queryCount, increment);
                 log.debug("Updated suggestion '" + query + "' with " + hits + " hits");
             } else {
                 throw new IOException(String.format("Unable to complete addSuggestion(%s, %d, %d)", query, hits,
@@ -529,14 +663,15 @@ public class SuggestStorageH2 extends SuggestStorageImpl {
 
 
     /**
-     * If queryCount is -1 we must add one to the previous value, otherwise
+     * If queryCount is -1 we must add increment to the previous value, otherwise
      * we should set suggest_index.query_count to queryCount.
      *
      * @param query      The search query.
      * @param hits       The hit count, gonna override 'suggest_data.hit_count'.
-     * @param queryCount if -1 we add one to old query_count otherwise override.
+     * @param queryCount if -1 we add increment to old query_count otherwise override.
+     * @param increment  the amount to add to query_count if queryCount is -1.
      */
-    private void updateSuggestion(String query, int hits, int queryCount) {
+    private void updateSuggestion(String query, int hits, int queryCount, int increment) {
         try {
             String normalizedQuery = normalize(query);
 
@@ -550,7 +685,7 @@ public class SuggestStorageH2 extends SuggestStorageImpl {
 
             PreparedStatement psUpdate;
             if (queryCount == -1) {
-                queryCount = 1;
+                queryCount = increment;
                 psUpdate = connection.prepareStatement("UPDATE suggest_data " +
                                                        "SET query_count=query_count+?, " +
                                                        "    hit_count=?, " +
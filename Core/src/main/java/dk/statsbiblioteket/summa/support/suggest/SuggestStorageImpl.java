@@ -24,7 +24,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Default implementation of import and export of suggestions.
+ * Default implementation of import and export of suggestions and of batched
+ * updates.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED,
@@ -106,4 +107,19 @@ public abstract class SuggestStorageImpl implements SuggestStorage {
         log.info(String.format("Exported %d suggestions to '%s' in %ds",
                                exported, target, (System.currentTimeMillis() - exportStart) / MILLI_IN_SECOND));
     }
+
+    /**
+     * Applies the updates one at a time. Storages with transactional backends
+     * should override this.
+     */
+    @Override
+    public void updateSuggestions(List<Update> updates) throws IOException {
+        for (Update update: updates) {
+            if (update.queryCount == -1) {
+                incrementSuggestion(update.query, update.hits, update.increment);
+            } else {
+                addSuggestion(update.query, update.hits, update.queryCount);
+            }
+        }
+    }
 }
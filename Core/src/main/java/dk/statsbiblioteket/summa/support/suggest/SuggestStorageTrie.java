@@ -0,0 +1,1006 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.support.suggest;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.support.api.SuggestResponse;
+import dk.statsbiblioteket.util.Strings;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import dk.statsbiblioteket.util.reader.CharSequenceReader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.Version;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory implementation of the {@link SuggestStorage}, based on a prefix trie of the normalized queries where each
+ * node holds the top-{@link #CONF_TOP_K} suggestions for its prefix, ordered by query count. The trie is path
+ * compressed (a radix tree): Chains of single-child nodes without entries are collapsed into one node with a multi
+ * character edge, so the number of nodes is bounded by twice the number of distinct normalized queries. Looking up suggestions
+ * for a prefix is a walk down the trie followed by a copy of the precomputed top suggestions, independent of the
+ * number of suggestions matching the prefix.
+ * </p><p>
+ * The top suggestions are maintained incrementally on {@link #addSuggestion}: Increasing query counts only needs to
+ * update the nodes on the path for the normalized query, while deletions and decreasing query counts triggers a
+ * re-calculation from the children on the path. Bulk imports re-calculates all nodes once at the end.
+ * </p><p>
+ * The suggestions are persisted as a snapshot in {@link #SNAPSHOT_FILE} on close, after bulk changes and after
+ * {@link #CONF_PERSIST_UPDATES} updates. The snapshot is memory mapped and read when the storage is opened.
+ * Snapshots triggered by updates are copied under the lock and written by a background thread, so lookups are not
+ * blocked while the snapshot is written.
+ * </p><p>
+ * Normalization and sanitizing is controlled by the same properties as for {@link SuggestStorageH2}:
+ * {@link SuggestStorageH2#CONF_NORMALIZER}, {@link SuggestStorageH2#CONF_SANITIZER},
+ * {@link SuggestStorageH2#CONF_MIN_SUGGEST_LENGTH} and {@link SuggestSearchNode#CONF_NORMALIZE_QUERIES}.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class SuggestStorageTrie extends SuggestStorageImpl {
+    private static Log log = LogFactory.getLog(SuggestStorageTrie.class);
+
+    /**
+     * The snapshot of the suggestions in the storage folder.
+     */
+    public static final String SNAPSHOT_FILE = "suggest_trie.dat";
+
+    /**
+     * The number of suggestions to keep precomputed for each prefix. Requests for more suggestions than this are
+     * resolved by collecting all suggestions for the prefix, which is slower for short prefixes.
+     * </p><p>
+     * Optional. Default is 20.
+     */
+    public static final String CONF_TOP_K = "summa.support.suggest.trie.topk";
+    public static final int DEFAULT_TOP_K = 20;
+
+    /**
+     * The number of updates to the suggestions before the snapshot is written. The snapshot is always written on
+     * close, clear and after bulk additions. 0 means only write the snapshot in these cases.
+     * </p><p>
+     * Optional. Default is 10000.
+     */
+    public static final String CONF_PERSIST_UPDATES = "summa.support.suggest.trie.persistupdates";
+    public static final int DEFAULT_PERSIST_UPDATES = 10000;
+
+    private static final int SNAPSHOT_MAGIC = 0x53545249; // STRI
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final Entry[] EMPTY_ENTRIES = new Entry[0];
+    private static final Node[] EMPTY_NODES = new Node[0];
+    private static final char[] EMPTY_LABELS = new char[0];
+
+    private final Analyzer normalizer;
+    private final Analyzer sanitizer;
+    private final boolean normalizeQueries;
+    private final int minLength;
+    private final int topK;
+    private final int persistUpdates;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private Node root = new Node(EMPTY_LABELS);
+    private List<Entry> listSnapshot = null;
+    private boolean deferTops = false;
+    private int updatesSincePersist = 0;
+    private File location = null;
+    private ExecutorService persister = null;
+    private Future<?> pendingPersist = null;
+
+    public SuggestStorageTrie(Configuration conf) {
+        log.debug("Creating SuggestStorageTrie");
+        normalizeQueries = conf.getBoolean(
+                SuggestSearchNode.CONF_NORMALIZE_QUERIES, SuggestSearchNode.DEFAULT_NORMALIZE_QUERIES);
+        Class<? extends Analyzer> analyzerClass = Configuration.getClass(
+                SuggestStorageH2.CONF_NORMALIZER, Analyzer.class, SuggestStorageH2.DEFAULT_NORMALIZER, conf);
+        try {
+            normalizer = analyzerClass.newInstance();
+        } catch (Exception e) {
+            throw new ConfigurationException("Unable to instantiate query normalizer", e);
+        }
+        analyzerClass = Configuration.getClass(
+                SuggestStorageH2.CONF_SANITIZER, Analyzer.class, SuggestStorageH2.DEFAULT_SANITIZER, conf);
+        try {
+            sanitizer = analyzerClass.getConstructor(Version.class).newInstance(Version.LUCENE_46);
+        } catch (Exception e) {
+            throw new ConfigurationException("Unable to instantiate query sanitizer", e);
+        }
+        minLength = conf.getInt(SuggestStorageH2.CONF_MIN_SUGGEST_LENGTH, SuggestStorageH2.DEFAULT_MIN_SUGGEST_LENGTH);
+        topK = conf.getInt(CONF_TOP_K, DEFAULT_TOP_K);
+        if (topK < 1) {
+            throw new ConfigurationException("The value for " + CONF_TOP_K + " must be 1 or more but was " + topK);
+        }
+        persistUpdates = conf.getInt(CONF_PERSIST_UPDATES, DEFAULT_PERSIST_UPDATES);
+        log.info("Created " + this);
+    }
+
+    @Override
+    public void open(File location) throws IOException {
+        log.debug(String.format("open(%s) called for SuggestStorageTrie", location));
+        lock.writeLock().lock();
+        try {
+            if (!location.exists()) {
+                log.info(String.format("Creating new SuggestStorageTrie at location '%s'", location));
+                if (!location.mkdirs()) {
+                    throw new ConfigurationException(String.format("Unable to create folder '%s'", location));
+                }
+            }
+            this.location = location;
+            if (persister == null) {
+                persister = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SuggestTriePersister");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            clearMemory();
+            File snapshot = new File(location, SNAPSHOT_FILE);
+            if (snapshot.isFile()) {
+                loadSnapshot(snapshot);
+            } else {
+                log.debug(String.format("No snapshot at '%s'. Starting with empty storage", snapshot));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public File getLocation() {
+        return location;
+    }
+
+    @Override
+    public void close() {
+        log.info(String.format("Closing '%s'", location));
+        lock.writeLock().lock();
+        try {
+            if (location == null) {
+                return;
+            }
+            persist();
+        } catch (IOException e) {
+            log.error("Unable to persist suggestions to '" + location + "' on close", e);
+        } finally {
+            if (location != null) {
+                clearMemory();
+                location = null;
+                persister.shutdown();
+                persister = null;
+                pendingPersist = null;
+            }
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public SuggestResponse getSuggestion(String prefix, int maxResults) throws IOException {
+        if (log.isTraceEnabled()) {
+            log.trace("getSuggestion(" + prefix + ", " + maxResults + ")");
+        }
+        SuggestResponse response = new SuggestResponse(prefix, maxResults);
+        if (prefix.length() < minLength) {
+            return response;
+        }
+        long startTime = System.nanoTime();
+        maxResults = Math.min(maxResults, SuggestStorageH2.MAX_SUGGESTIONS);
+        String normalized = normalize(prefix);
+        lock.readLock().lock();
+        try {
+            Node node = findPrefix(normalized);
+            if (node == null) {
+                return response;
+            }
+            Entry[] suggestions = maxResults <= topK ? node.top : collectAll(node, maxResults);
+            int count = Math.min(maxResults, suggestions.length);
+            for (int i = 0 ; i < count ; i++) {
+                response.addSuggestion(suggestions[i].query, suggestions[i].hits, suggestions[i].queryCount);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("getSuggestion(" + prefix + ", " + maxResults + ") -> " + count + " suggestions in "
+                          + (System.nanoTime() - startTime) / 1000000D + "ms");
+            }
+            return response;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SuggestResponse getRecentSuggestions(int ageSeconds, int maxResults) throws IOException {
+        long minTime = System.currentTimeMillis() - ageSeconds * 1000L;
+        List<Entry> recent = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Entry entry: entries.values()) {
+                if (entry.mtime >= minTime) {
+                    recent.add(entry);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(recent, ENTRY_ORDER);
+        SuggestResponse response = new SuggestResponse("", maxResults);
+        for (int i = 0 ; i < Math.min(maxResults, recent.size()) ; i++) {
+            response.addSuggestion(recent.get(i).query, recent.get(i).hits, recent.get(i).queryCount);
+        }
+        return response;
+    }
+
+    @Override
+    public void addSuggestion(String query, int hits) throws IOException {
+        addSuggestion(query, hits, -1);
+    }
+
+    // -1 means add 1 to the existing query count
+    @Override
+    public void addSuggestion(String query, int hits, int queryCount) throws IOException {
+        upsert(query, hits, queryCount, 1);
+    }
+
+    @Override
+    public void incrementSuggestion(String query, int hits, int increment) throws IOException {
+        upsert(query, hits, -1, increment);
+    }
+
+    // queryCount -1 means add increment to the existing query count
+    private void upsert(String query, int hits, int queryCount, int increment) throws IOException {
+        if (!checkString(query)) {
+            return;
+        }
+        query = sanitize(query);
+        if (hits == 0) {
+            log.trace("No hits for '" + query + "'. Deleting query...");
+            delete(query);
+            return;
+        }
+        String normalized = normalize(query);
+        if (!checkString(normalized)) {
+            return;
+        }
+        if (normalizeQueries) {
+            query = normalized;
+        }
+        lock.writeLock().lock();
+        try {
+            Entry entry = entries.get(query);
+            boolean increased;
+            if (entry == null) {
+                entry = new Entry(query, normalized, queryCount == -1 ? increment : queryCount, hits);
+                entries.put(query, entry);
+                getOrCreate(normalized).addEntry(entry);
+                listSnapshot = null;
+                increased = true;
+                log.debug("Created new suggestion '" + query + "' with " + hits + " hits");
+            } else {
+                int oldCount = entry.queryCount;
+                entry.queryCount = queryCount == -1 ? oldCount + increment : queryCount;
+                entry.hits = hits;
+                entry.mtime = System.currentTimeMillis();
+                increased = entry.queryCount >= oldCount;
+                log.debug("Updated suggestion '" + query + "' with " + hits + " hits");
+            }
+            if (!deferTops) {
+                if (increased) {
+                    promote(normalized, entry);
+                } else {
+                    recalculate(normalized);
+                }
+            }
+            updated(1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteSuggestion(String suggestion) {
+        try {
+            delete(suggestion);
+            return true;
+        } catch (IOException e) {
+            log.warn("Deletion of suggestion '" + suggestion + "' was not successful", e);
+        }
+        return false;
+    }
+
+    /**
+     * Deletes all suggestions with the same normalized form as the query.
+     */
+    private void delete(String query) throws IOException {
+        log.debug("Removing suggestion '" + query + "'");
+        String normalized = normalize(query);
+        lock.writeLock().lock();
+        try {
+            Node node = find(normalized);
+            if (node == null || node.entries.length == 0) {
+                return;
+            }
+            for (Entry entry: node.entries) {
+                entries.remove(entry.query);
+            }
+            node.entries = EMPTY_ENTRIES;
+            listSnapshot = null;
+            if (!deferTops) {
+                recalculate(normalized);
+            }
+            updated(1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ArrayList<String> listSuggestions(int start, int max) throws IOException {
+        log.debug(String.format("Listing suggestions from %d to %d", start, max));
+        max = Math.min(max, SuggestStorageH2.MAX_SUGGESTIONS);
+        lock.writeLock().lock(); // The list snapshot might be updated
+        try {
+            if (listSnapshot == null) {
+                listSnapshot = new ArrayList<>(entries.values());
+            }
+            ArrayList<String> suggestions = new ArrayList<>(max);
+            for (int i = start ; i < Math.min(start + max, listSnapshot.size()) ; i++) {
+                Entry entry = listSnapshot.get(i);
+                suggestions.add(entry.query + "\t" + entry.hits + "\t" + entry.queryCount);
+            }
+            return suggestions;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addSuggestions(Iterator<String> suggestions) throws IOException {
+        log.debug("addSuggestions called");
+        long startTime = System.nanoTime();
+        boolean wasDeferred = setDeferTops(true);
+        int count = 0;
+        try {
+            while (suggestions.hasNext()) {
+                String suggestion = suggestions.next();
+                if (suggestion == null || "".equals(suggestion)) {
+                    continue;
+                }
+                count++;
+                String[] tokens = suggestion.split("\t");
+                if (tokens.length > 3) { // Compensate for tabs in the query
+                    tokens[0] = Strings.join(Arrays.asList(tokens).subList(0, tokens.length - 2), "\t");
+                    tokens[1] = tokens[tokens.length - 2];
+                    tokens[2] = tokens[tokens.length - 1];
+                }
+                long hits = 1;
+                int queryCount = 1;
+                try {
+                    if (tokens.length > 1) {
+                        hits = Long.valueOf(tokens[1]);
+                    }
+                } catch (NumberFormatException e) {
+                    log.warn(String.format("NumberFormatException for hits with '%s'", tokens[1]));
+                }
+                try {
+                    if (tokens.length > 2) {
+                        queryCount = Integer.valueOf(tokens[2]);
+                    }
+                } catch (NumberFormatException e) {
+                    log.warn(String.format("NumberFormatException for querycount with '%s'", tokens[2]));
+                }
+                addSuggestion(tokens[0], (int) hits, queryCount);
+            }
+        } finally {
+            if (!wasDeferred) {
+                finishBulk();
+            }
+        }
+        log.debug(String.format("Finished adding %d suggestions in %sms ",
+                                count, (System.nanoTime() - startTime) / 1000000D));
+    }
+
+    /* Calculate the top suggestions only once, after all suggestions has been imported */
+    @Override
+    public void importSuggestions(URL in) throws IOException {
+        setDeferTops(true);
+        try {
+            super.importSuggestions(in);
+        } finally {
+            finishBulk();
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        log.info("Clearing suggest data");
+        lock.writeLock().lock();
+        try {
+            clearMemory();
+            persist();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void clearMemory() {
+        entries.clear();
+        root = new Node(EMPTY_LABELS);
+        listSnapshot = null;
+        updatesSincePersist = 0;
+    }
+
+    private boolean setDeferTops(boolean defer) {
+        lock.writeLock().lock();
+        try {
+            boolean old = deferTops;
+            deferTops = defer;
+            return old;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void finishBulk() throws IOException {
+        lock.writeLock().lock();
+        try {
+            deferTops = false;
+            long startTime = System.currentTimeMillis();
+            calculateAll(root);
+            log.debug("Calculated top suggestions for " + entries.size() + " suggestions in "
+                      + (System.currentTimeMillis() - startTime) + "ms");
+            persist();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a background write of the snapshot if enough updates has been performed and no write is in progress.
+     * Must be called while holding the write lock.
+     */
+    private void updated(int updates) {
+        updatesSincePersist += updates;
+        if (persistUpdates <= 0 || updatesSincePersist < persistUpdates || deferTops) {
+            return;
+        }
+        if (pendingPersist != null) {
+            if (!pendingPersist.isDone()) {
+                return; // Try again on the next update
+            }
+            try {
+                pendingPersist.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.warn("Background persisting of suggestions to '" + location + "' failed", e.getCause());
+            }
+        }
+        pendingPersist = persistAsync();
+    }
+
+    /* Trie handling */
+
+    /**
+     * @return the node for the subtree holding all normalized queries starting with the prefix or null if there are
+     *         none. The prefix can end inside the edge of the returned node.
+     */
+    private Node findPrefix(String prefix) {
+        Node node = root;
+        int pos = 0;
+        while (pos < prefix.length()) {
+            Node child = node.getChild(prefix.charAt(pos));
+            if (child == null) {
+                return null;
+            }
+            int matched = matchLength(child.edge, prefix, pos);
+            if (pos + matched == prefix.length()) {
+                return child;
+            }
+            if (matched < child.edge.length) {
+                return null;
+            }
+            pos += matched;
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * @return the nodes from the root to the node where the normalized query ends or null if there is no such node.
+     */
+    private List<Node> getPath(String normalized) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int pos = 0;
+        while (pos < normalized.length()) {
+            node = node.getChild(normalized.charAt(pos));
+            if (node == null) {
+                return null;
+            }
+            int matched = matchLength(node.edge, normalized, pos);
+            if (matched < node.edge.length) {
+                return null;
+            }
+            pos += matched;
+            path.add(node);
+        }
+        return path;
+    }
+
+    private Node find(String normalized) {
+        List<Node> path = getPath(normalized);
+        return path == null ? null : path.get(path.size() - 1);
+    }
+
+    /**
+     * Locates the node where the normalized query ends, splitting edges and creating a leaf as needed.
+     */
+    private Node getOrCreate(String normalized) {
+        Node node = root;
+        int pos = 0;
+        while (pos < normalized.length()) {
+            Node child = node.getChild(normalized.charAt(pos));
+            if (child == null) {
+                child = new Node(normalized.substring(pos).toCharArray());
+                node.setChild(child);
+                return child;
+            }
+            int matched = matchLength(child.edge, normalized, pos);
+            if (matched < child.edge.length) { // Split the edge
+                Node middle = new Node(Arrays.copyOf(child.edge, matched));
+                child.edge = Arrays.copyOfRange(child.edge, matched, child.edge.length);
+                middle.setChild(child);
+                middle.top = child.top.clone(); // The subtree is unchanged
+                node.setChild(middle);
+                child = middle;
+            }
+            pos += matched;
+            node = child;
+        }
+        return node;
+    }
+
+    private static int matchLength(char[] edge, String s, int pos) {
+        int max = Math.min(edge.length, s.length() - pos);
+        int matched = 0;
+        while (matched < max && edge[matched] == s.charAt(pos + matched)) {
+            matched++;
+        }
+        return matched;
+    }
+
+    /**
+     * Updates the top suggestions on the path for an entry where the query count has been increased or the entry is
+     * new. As the count for all other entries are unchanged, it is sufficient to move the entry up in the top
+     * suggestions or insert it.
+     */
+    private void promote(String normalized, Entry entry) {
+        for (Node node: getPath(normalized)) {
+            node.promote(entry, topK);
+        }
+    }
+
+    /**
+     * Re-calculates the top suggestions from the children and own entries for all nodes on the path, starting from
+     * the deepest node. Nodes without entries and children are removed and nodes without entries with a single
+     * child are merged with the child.
+     */
+    private void recalculate(String normalized) {
+        List<Node> path = getPath(normalized);
+        if (path == null) {
+            return;
+        }
+        for (int i = path.size() - 1 ; i >= 0 ; i--) {
+            Node node = path.get(i);
+            if (i > 0 && node.isEmpty()) {
+                path.get(i - 1).removeChild(node.edge[0]);
+            } else if (i > 0 && node.entries.length == 0 && node.children.length == 1) {
+                Node child = node.children[0];
+                char[] merged = Arrays.copyOf(node.edge, node.edge.length + child.edge.length);
+                System.arraycopy(child.edge, 0, merged, node.edge.length, child.edge.length);
+                child.edge = merged;
+                path.get(i - 1).setChild(child);
+            } else {
+                node.calculateTop(topK);
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes in the trie, including the root. Used for testing.
+     */
+    int getNodeCount() {
+        lock.readLock().lock();
+        try {
+            return countNodes(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int countNodes(Node node) {
+        int count = 1;
+        for (Node child: node.children) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    private void calculateAll(Node node) {
+        for (Node child: node.children) {
+            calculateAll(child);
+        }
+        node.calculateTop(topK);
+    }
+
+    /**
+     * Slow path for requests for more than top-k suggestions.
+     */
+    private Entry[] collectAll(Node node, int maxResults) {
+        List<Entry> all = new ArrayList<>();
+        collectAll(node, all);
+        Collections.sort(all, ENTRY_ORDER);
+        return all.subList(0, Math.min(maxResults, all.size())).toArray(new Entry[Math.min(maxResults, all.size())]);
+    }
+
+    private void collectAll(Node node, List<Entry> all) {
+        Collections.addAll(all, node.entries);
+        for (Node child: node.children) {
+            collectAll(child, all);
+        }
+    }
+
+    /* Persistence */
+
+    /**
+     * Writes the snapshot and waits for the write to finish. Must be called while holding the write lock.
+     */
+    private void persist() throws IOException {
+        Future<?> write = persistAsync();
+        if (write == null) {
+            return;
+        }
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while persisting suggestions to '" + location + "'", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to persist suggestions to '" + location + "'", e.getCause());
+        }
+    }
+
+    /**
+     * Copies the suggestions and writes them to the snapshot on the persister thread. As there is only one persister
+     * thread, the writes are performed in order and a newer snapshot is never overwritten by an older one.
+     * Must be called while holding the write lock.
+     * @return the pending write or null if the storage is not open.
+     */
+    private Future<?> persistAsync() {
+        if (location == null) {
+            return null;
+        }
+        final File snapshot = new File(location, SNAPSHOT_FILE);
+        final SnapshotData data = new SnapshotData(entries.values());
+        updatesSincePersist = 0;
+        return persister.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                writeSnapshot(snapshot, data);
+                return null;
+            }
+        });
+    }
+
+    // Called from the persister thread
+    private void writeSnapshot(File snapshot, SnapshotData data) throws IOException {
+        long startTime = System.currentTimeMillis();
+        File tmp = new File(snapshot.getParentFile(), SNAPSHOT_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(data.queries.length);
+            for (int i = 0 ; i < data.queries.length ; i++) {
+                writeString(out, data.queries[i]);
+                writeString(out, data.normalized[i]);
+                out.writeInt(data.queryCounts[i]);
+                out.writeInt(data.hits[i]);
+                out.writeLong(data.mtimes[i]);
+            }
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmp.toPath(), snapshot.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            log.warn("Atomic move not supported for '" + snapshot + "'. Falling back to plain replace");
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        log.debug("Persisted " + data.queries.length + " suggestions to '" + snapshot + "' in "
+                  + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void loadSnapshot(File snapshot) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("The file '" + snapshot + "' is not a suggest snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in '" + snapshot + "'");
+            }
+            int count = buffer.getInt();
+            for (int i = 0 ; i < count ; i++) {
+                Entry entry = new Entry(readString(buffer), readString(buffer), buffer.getInt(), buffer.getInt());
+                entry.mtime = buffer.getLong();
+                entries.put(entry.query, entry);
+                getOrCreate(entry.normalized).addEntry(entry);
+            }
+        }
+        calculateAll(root);
+        log.info("Loaded " + entries.size() + " suggestions from '" + snapshot + "' in "
+                 + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /* Analysis, same as SuggestStorageH2 */
+
+    private boolean checkString(String normalizedQuery) {
+        if (normalizedQuery.length() > SuggestStorageH2.MAX_QUERY_LENGTH) {
+            log.info("addSuggestion: The analyzed query must be " + SuggestStorageH2.MAX_QUERY_LENGTH
+                     + " chars or less. Got " + normalizedQuery.length() + " chars from '" + normalizedQuery + "'");
+            return false;
+        }
+        return true;
+    }
+
+    private String normalize(String s) {
+        return analyze(normalizer, s);
+    }
+
+    private String sanitize(String s) {
+        return analyze(sanitizer, s);
+    }
+
+    private String analyze(Analyzer analyzer, String s) {
+        StringBuilder buf = new StringBuilder(s.length());
+        try {
+            TokenStream tokens = analyzer.tokenStream("query", new CharSequenceReader(s));
+            CharTermAttribute term = tokens.getAttribute(CharTermAttribute.class);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                if (buf.length() != 0) {
+                    buf.append(" ");
+                }
+                buf.append(term.buffer(), 0, term.length());
+            }
+            tokens.end();
+            tokens.close();
+            return buf.toString();
+        } catch (IOException e) {
+            log.error(String.format("Error analyzing query '%s': %s", s, e.getMessage()), e);
+            return "ERROR";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SuggestStorageTrie(location=" + location + ", topK=" + topK + ", persistUpdates=" + persistUpdates
+               + ", normalizeQueries=" + normalizeQueries + ", minLength=" + minLength + ", suggestions="
+               + entries.size() + ")";
+    }
+
+    /* Data structures */
+
+    /**
+     * Higher query count first, ties resolved by natural order of the query.
+     */
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return o1.queryCount != o2.queryCount ?
+                   o1.queryCount > o2.queryCount ? -1 : 1 :
+                   o1.query.compareTo(o2.query);
+        }
+    };
+
+    private static final class Entry {
+        private final String query;
+        private final String normalized;
+        private int queryCount;
+        private int hits;
+        private long mtime = System.currentTimeMillis();
+
+        private Entry(String query, String normalized, int queryCount, int hits) {
+            this.query = query;
+            this.normalized = normalized;
+            this.queryCount = queryCount;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * Copy of the persistent parts of the entries, used for writing the snapshot without holding the lock.
+     */
+    private static final class SnapshotData {
+        private final String[] queries;
+        private final String[] normalized;
+        private final int[] queryCounts;
+        private final int[] hits;
+        private final long[] mtimes;
+
+        private SnapshotData(Collection<Entry> entries) {
+            queries = new String[entries.size()];
+            normalized = new String[entries.size()];
+            queryCounts = new int[entries.size()];
+            hits = new int[entries.size()];
+            mtimes = new long[entries.size()];
+            int i = 0;
+            for (Entry entry: entries) {
+                queries[i] = entry.query;
+                normalized[i] = entry.normalized;
+                queryCounts[i] = entry.queryCount;
+                hits[i] = entry.hits;
+                mtimes[i++] = entry.mtime;
+            }
+        }
+    }
+
+    private static final class Node {
+        private char[] edge;                    // The characters from the parent to this node
+        private char[] labels = EMPTY_LABELS;   // The first character of the edges to the children
+        private Node[] children = EMPTY_NODES;
+        private Entry[] entries = EMPTY_ENTRIES; // Entries where the normalized query ends at this node
+        private Entry[] top = EMPTY_ENTRIES;     // Ordered by ENTRY_ORDER
+
+        private Node(char[] edge) {
+            this.edge = edge;
+        }
+
+        private Node getChild(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * Adds the child or replaces the existing child with the same first edge character.
+         */
+        private void setChild(Node child) {
+            int index = Arrays.binarySearch(labels, child.edge[0]);
+            if (index >= 0) {
+                children[index] = child;
+                return;
+            }
+            index = -index - 1;
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newLabels[index] = child.edge[0];
+            newChildren[index] = child;
+            System.arraycopy(labels, index, newLabels, index + 1, labels.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            labels = newLabels;
+            children = newChildren;
+        }
+
+        private void removeChild(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            if (index < 0) {
+                return;
+            }
+            char[] newLabels = new char[labels.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(labels, index + 1, newLabels, index, labels.length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            labels = newLabels;
+            children = newChildren;
+        }
+
+        private void addEntry(Entry entry) {
+            entries = Arrays.copyOf(entries, entries.length + 1);
+            entries[entries.length - 1] = entry;
+        }
+
+        private boolean isEmpty() {
+            return entries.length == 0 && children.length == 0;
+        }
+
+        private void promote(Entry entry, int topK) {
+            int pos = -1;
+            for (int i = 0 ; i < top.length ; i++) {
+                if (top[i] == entry) {
+                    pos = i;
+                    break;
+                }
+            }
+            if (pos == -1) {
+                if (top.length < topK) {
+                    top = Arrays.copyOf(top, top.length + 1);
+                } else if (ENTRY_ORDER.compare(entry, top[top.length - 1]) >= 0) {
+                    return; // Not good enough
+                }
+                pos = top.length - 1;
+                top[pos] = entry;
+            }
+            while (pos > 0 && ENTRY_ORDER.compare(top[pos], top[pos - 1]) < 0) {
+                Entry tmp = top[pos - 1];
+                top[pos - 1] = top[pos];
+                top[pos] = tmp;
+                pos--;
+            }
+        }
+
+        /**
+         * As the top of each child holds its best entries, the union of the child tops and the entries for this node
+         * contains the best entries for this node.
+         */
+        private void calculateTop(int topK) {
+            int candidateCount = entries.length;
+            for (Node child: children) {
+                candidateCount += child.top.length;
+            }
+            Entry[] candidates = Arrays.copyOf(entries, candidateCount);
+            int pos = entries.length;
+            for (Node child: children) {
+                System.arraycopy(child.top, 0, candidates, pos, child.top.length);
+                pos += child.top.length;
+            }
+            Arrays.sort(candidates, ENTRY_ORDER);
+            top = candidates.length <= topK ? candidates : Arrays.copyOf(candidates, topK);
+        }
+    }
+}
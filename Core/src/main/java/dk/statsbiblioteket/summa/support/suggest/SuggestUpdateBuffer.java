@@ -0,0 +1,267 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.support.suggest;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind buffer for suggestion updates. Updates for the same query are coalesced in memory and written to the
+ * {@link SuggestStorage} at a fixed interval, so that frequent queries results in a single storage update per
+ * interval instead of one per execution and so that the writes happens outside of the request threads. Each flush
+ * writes all buffered queries with a single {@link SuggestStorage#updateSuggestions} call, which is one transaction
+ * for {@link SuggestStorageH2}.
+ * </p><p>
+ * The number of distinct buffered queries is bounded. When the bound is reached, the buffer is flushed in the calling
+ * thread before the new update is buffered.
+ * </p><p>
+ * Buffered updates are lost if the JVM crashes. The number of updates at risk, the number of updates lost due to
+ * storage errors and the number of written updates are available from {@link #getStats()} and logged on close.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class SuggestUpdateBuffer {
+    private static Log log = LogFactory.getLog(SuggestUpdateBuffer.class);
+
+    private final SuggestStorage storage;
+    private final int maxQueries;
+    private final ScheduledExecutorService flusher;
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong buffered = new AtomicLong(0);  // Updates received
+    private final AtomicLong written = new AtomicLong(0);   // Queries written to storage
+    private final AtomicLong flushed = new AtomicLong(0);   // Updates written to storage
+    private final AtomicLong lost = new AtomicLong(0);      // Updates lost due to storage errors
+    private final AtomicLong discarded = new AtomicLong(0); // Updates discarded due to clear
+
+    /**
+     * @param storage       the storage to write the updates to.
+     * @param flushInterval the number of milliseconds between flushes.
+     * @param maxQueries    the maximum number of distinct queries to buffer.
+     */
+    public SuggestUpdateBuffer(SuggestStorage storage, int flushInterval, int maxQueries) {
+        this.storage = storage;
+        this.maxQueries = maxQueries;
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SuggestUpdateFlusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    log.error("Unexpected exception during scheduled flush of suggest updates", e);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Buffers an increment of the query count for the query.
+     * @param query the executed query.
+     * @param hits  the number of hits for the query.
+     * @see SuggestStorage#addSuggestion(String, int)
+     */
+    public void add(String query, int hits) {
+        ensureCapacity();
+        while (true) {
+            Pending p = getPending(query);
+            synchronized (p) {
+                if (p.removed) { // Flushed after retrieval
+                    continue;
+                }
+                p.increment++;
+                p.hits = hits;
+                p.adds++;
+                break;
+            }
+        }
+        buffered.incrementAndGet();
+    }
+
+    /**
+     * Buffers an explicit query count for the query. Increments buffered before this call are discarded, while
+     * increments buffered after this call are added to the query count.
+     * @param query      the query.
+     * @param hits       the number of hits for the query.
+     * @param queryCount the number of times the query has been executed.
+     * @see SuggestStorage#addSuggestion(String, int, int)
+     */
+    public void add(String query, int hits, int queryCount) {
+        ensureCapacity();
+        while (true) {
+            Pending p = getPending(query);
+            synchronized (p) {
+                if (p.removed) { // Flushed after retrieval
+                    continue;
+                }
+                p.queryCount = queryCount;
+                p.increment = 0;
+                p.hits = hits;
+                p.adds++;
+                break;
+            }
+        }
+        buffered.incrementAndGet();
+    }
+
+    private Pending getPending(String query) {
+        Pending p = pending.get(query);
+        if (p == null) {
+            Pending fresh = new Pending();
+            p = pending.putIfAbsent(query, fresh);
+            if (p == null) {
+                p = fresh;
+            }
+        }
+        return p;
+    }
+
+    private void ensureCapacity() {
+        if (pending.size() >= maxQueries) {
+            log.debug("The buffer of " + maxQueries + " distinct queries is full. Flushing in calling thread");
+            flush();
+        }
+    }
+
+    /**
+     * Writes all buffered updates to the storage as a single batch. Storage errors are logged and all updates in the
+     * batch are counted as lost.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        List<SuggestStorage.Update> batch = new ArrayList<>(pending.size());
+        long updates = 0;
+        Iterator<Map.Entry<String, Pending>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Pending> entry = entries.next();
+            entries.remove();
+            Pending p = entry.getValue();
+            int increment, hits, queryCount;
+            synchronized (p) { // Updates arriving after this are buffered in a new Pending
+                p.removed = true;
+                increment = p.increment;
+                hits = p.hits;
+                queryCount = p.queryCount;
+            }
+            updates += p.updates();
+            if (queryCount != -1) {
+                batch.add(new SuggestStorage.Update(entry.getKey(), hits, queryCount + increment, 0));
+            } else if (increment > 0) {
+                batch.add(new SuggestStorage.Update(entry.getKey(), hits, -1, increment));
+            }
+        }
+        try {
+            storage.updateSuggestions(batch);
+        } catch (IOException e) {
+            lost.addAndGet(updates);
+            log.warn("Unable to write " + batch.size() + " buffered queries. " + updates + " updates lost", e);
+            return;
+        }
+        written.addAndGet(batch.size());
+        flushed.addAndGet(updates);
+        log.debug("Flushed " + updates + " suggest updates for " + batch.size() + " queries in "
+                  + (System.nanoTime() - startTime) / 1000000D + "ms. " + getStats());
+    }
+
+    /**
+     * Discards all buffered updates. Used when the storage is cleared.
+     */
+    public synchronized void clear() {
+        Iterator<Pending> entries = pending.values().iterator();
+        while (entries.hasNext()) {
+            Pending p = entries.next();
+            entries.remove();
+            synchronized (p) { // Updates arriving after this are buffered in a new Pending
+                p.removed = true;
+            }
+            discarded.addAndGet(p.updates());
+        }
+    }
+
+    /**
+     * Flushes all buffered updates and stops the flushing thread.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Timeout waiting for the scheduled flush to finish");
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the scheduled flush to finish");
+        }
+        flush();
+        log.info("Closed " + this);
+    }
+
+    /**
+     * @return the number of buffered updates that would be lost in case of a crash.
+     */
+    public long getPendingUpdates() {
+        long updates = 0;
+        for (Pending p: pending.values()) {
+            updates += p.updates();
+        }
+        return updates;
+    }
+
+    public String getStats() {
+        return "BufferStats(pendingQueries=" + pending.size() + ", pendingUpdates=" + getPendingUpdates()
+               + ", buffered=" + buffered.get() + ", flushed=" + flushed.get() + ", storageWrites=" + written.get()
+               + ", lost=" + lost.get() + ", discarded=" + discarded.get() + ")";
+    }
+
+    @Override
+    public String toString() {
+        return "SuggestUpdateBuffer(maxQueries=" + maxQueries + ", " + getStats() + ")";
+    }
+
+    private static final class Pending {
+        private int increment = 0;
+        private int hits = 0;
+        private int queryCount = -1; // -1 means not explicitly set
+        private int adds = 0; // The number of add-calls coalesced in this Pending
+        private boolean removed = false;
+
+        private synchronized long updates() {
+            return adds;
+        }
+    }
+}
@@ -44,6 +44,7 @@ import org.apache.solr.exposed.ExposedIndexLookupParams;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -164,12 +165,27 @@ public class SolrResponseBuilder implements Configurable {
    //     System.err.println(request);
 //        System.out.println("***");
 //        System.out.println(solrResponse.replace(">", ">\n"));
+        return buildResponses(request, facets, responses, new StringReader(solrResponse), solrTiming);
+    }
 
+    /**
+     * Parses the Solr response directly from the given stream. Records, facets and other parts of the response are
+     * added to the responses as they are encountered, without materialising the full response first.
+     * @param request     the request that resulted in the Solr response.
+     * @param facets      the requested facets, if any.
+     * @param responses   the Summa responses will be added to this.
+     * @param solrResponse the Solr response. The reader is not closed.
+     * @param solrTiming  timing information to add to the DocumentResponse.
+     * @return the number of hits.
+     * @throws XMLStreamException if the Solr response could not be parsed.
+     */
+    public long buildResponses(final Request request, final SolrFacetRequest facets, final ResponseCollection responses,
+                               Reader solrResponse, String solrTiming) throws XMLStreamException {
         long startTime = System.currentTimeMillis();
         log.debug("buildResponses(...) called");
         XMLStreamReader xml;
         try {
-            xml = xmlFactory.createXMLStreamReader(new StringReader(solrResponse));
+            xml = xmlFactory.createXMLStreamReader(solrResponse);
         } catch (XMLStreamException e) {
             throw new IllegalArgumentException("Unable to construct a reader from input for request " + request, e);
         }
@@ -188,6 +204,7 @@ public class SolrResponseBuilder implements Configurable {
         final DocumentResponse documentResponse = createBasicDocumentResponse(request);
         documentResponse.addTiming(solrTiming); // No matter what, we want the timing
         final boolean mlt = request.getBoolean(LuceneKeys.SEARCH_MORELIKETHIS_RECORDID, null) != null;
+        final Set<String> fields = getFieldFilter(request, documentResponse);
         XMLStepper.jumpToNextTagStart(xml); // Inside response
         XMLStepper.iterateTags(xml, new XMLStepper.Callback() {
             @Override
@@ -196,7 +213,7 @@ public class SolrResponseBuilder implements Configurable {
                 // MLT-results are just plain results(?)
                 if (mlt && "lst".equals(current) && "moreLikeThis".equals(XMLStepper.getAttribute(xml, "name", null))) {
                     log.debug("Parsing MoreLikeThis response");
-                    parseMLTResponse(xml, documentResponse);
+                    parseMLTResponse(xml, documentResponse, fields);
                     // TODO: Remove query-id
                     return true;
                 }
@@ -214,7 +231,7 @@ public class SolrResponseBuilder implements Configurable {
                         return true;
                     }
                     if ("response".equals(name)) {
-                        parseResponse(xml, documentResponse);
+                        parseResponse(xml, documentResponse, fields);
                         // Cursor is at end of sub tree after parseHeader
                         return true;
                     }
@@ -231,7 +248,7 @@ public class SolrResponseBuilder implements Configurable {
                         return true;
                     }
                     if ("grouped".equals(name)) {
-                        parseGrouped(xml, documentResponse);
+                        parseGrouped(xml, documentResponse, fields);
                         // Cursor is at end of sub tree after parseHeader
                         return true;
                     }
@@ -721,6 +738,8 @@ public class SolrResponseBuilder implements Configurable {
 
     private void parseFacet(
         XMLStreamReader xml, final FacetResultExternal facets, final String facetName) throws XMLStreamException {
+        // Tags are unique within a Solr facet, so they are collected and added in one go instead of one at a time
+        final List<FacetResultImpl.Tag<String>> facetTags = new ArrayList<>();
         XMLStepper.iterateTags(xml, new XMLStepper.Callback() {
             @Override
             public boolean elementStart(XMLStreamReader xml, List<String> tags, String current) throws XMLStreamException {
@@ -733,8 +752,10 @@ public class SolrResponseBuilder implements Configurable {
                 String content = xml.getElementText();
                 try {
                     int count = Integer.parseInt(content);
-                    facets.addTag(facetName, tagName, count);
-                    log.trace("Added tag " + facetName + ":" + tagName + "(" + count + ")");
+                    facetTags.add(new FacetResultImpl.Tag<>(tagName, count, FacetResult.Reliability.PRECISE));
+                    if (log.isTraceEnabled()) {
+                        log.trace("Added tag " + facetName + ":" + tagName + "(" + count + ")");
+                    }
                 } catch (NumberFormatException e) {
                     log.warn("Encountered tag '" + tagName + "' inside facet '" + facetName
                              + "' with un-parsable count '" + content + "'. Ignoring tag");
@@ -742,6 +763,9 @@ public class SolrResponseBuilder implements Configurable {
                 return true;
             }
         });
+        if (!facetTags.isEmpty()) {
+            facets.addTags(facetName, facetTags);
+        }
     }
 
     private void parseHeader(XMLStreamReader xml, final DocumentResponse response) throws XMLStreamException {
@@ -770,8 +794,8 @@ public class SolrResponseBuilder implements Configurable {
                   <str name="recordID">sb_pure_ddfmxd:42663</str>
      */
     private boolean mltWarnFired = false;
-    private void parseMLTResponse(XMLStreamReader xml, final DocumentResponse documentResponse)
-            throws XMLStreamException {
+    private void parseMLTResponse(XMLStreamReader xml, final DocumentResponse documentResponse,
+                                  final Set<String> fields) throws XMLStreamException {
         log.debug("parseXMLResponse called");
         final AtomicLong hitCount = new AtomicLong(0);
         final AtomicInteger responseCount = new AtomicInteger(0);
@@ -798,7 +822,7 @@ public class SolrResponseBuilder implements Configurable {
                         log.debug("No MoreLikeThis for '" + currentName + "'. Skipping document extraction");
                         return false;
                     }
-                    parseDocumentsInResponse(xml, documentResponse);
+                    parseDocumentsInResponse(xml, documentResponse, fields);
                     return true;
                 }
                 return false;
@@ -810,10 +834,11 @@ public class SolrResponseBuilder implements Configurable {
        <doc>*
            <str name="recordID">sb_pure_ddfmxd:42657</str>*
      */
-    private void parseResponse(XMLStreamReader xml, final DocumentResponse response) throws XMLStreamException {
+    private void parseResponse(XMLStreamReader xml, final DocumentResponse response, Set<String> fields)
+            throws XMLStreamException {
         log.trace("parseResponse(...) called");
         response.setHitCount(Long.parseLong(XMLStepper.getAttribute(xml, "numFound", "-1")));
-        parseDocumentsInResponse(xml, response);
+        parseDocumentsInResponse(xml, response, fields);
 
     }
 
@@ -828,7 +853,8 @@ public class SolrResponseBuilder implements Configurable {
               <doc>
                 <str name="recordID">sb_5588484</str>
      */
-    private void parseGrouped(XMLStreamReader xml, final DocumentResponse docResponse) throws XMLStreamException {
+    private void parseGrouped(XMLStreamReader xml, final DocumentResponse docResponse, final Set<String> fields)
+            throws XMLStreamException {
         XMLStepper.findTagStart(xml, "lst");
         final String groupField = XMLStepper.getAttribute(xml, "name", null);
         if (groupField == null) {
@@ -862,7 +888,7 @@ public class SolrResponseBuilder implements Configurable {
                         public boolean elementStart(XMLStreamReader xml, List<String> tags, String current)
                                 throws XMLStreamException {
                             if ("lst".equals(current)) {
-                                parseGroupedInnerList(xml, docResponse, groupField);
+                                parseGroupedInnerList(xml, docResponse, groupField, fields);
                                 return true;
                             }
                             log.debug("parseGrouped: Unexpected tag '" + current + "' while iterating groups");
@@ -887,8 +913,8 @@ public class SolrResponseBuilder implements Configurable {
      If there are no value in the group field, the group will be
      <null name="groupValue"/>
      */
-    private void parseGroupedInnerList(XMLStreamReader xml, final DocumentResponse docResponse, final String groupName)
-            throws XMLStreamException {
+    private void parseGroupedInnerList(XMLStreamReader xml, final DocumentResponse docResponse, final String groupName,
+                                       final Set<String> fields) throws XMLStreamException {
         xml.next(); // Inside lst
         XMLStepper.iterateTags(xml, new XMLStepper.Callback() {
             private String groupValue = null;
@@ -911,7 +937,7 @@ public class SolrResponseBuilder implements Configurable {
                 // What about maxScore? Inferred from first record in the group?
                 if ("result".equals(current) && "doclist".equals(XMLStepper.getAttribute(xml, "name", null))) {
                     numFound = Long.parseLong(XMLStepper.getAttribute(xml, "numFound", "-1"));
-                    records = getDocumentsInResponse(xml, docResponse);
+                    records = getDocumentsInResponse(xml, docResponse, fields);
                     return true;
                 }
                 log.debug("parseGroupedInnerList: Unexpected tag '" + current + "'");
@@ -940,9 +966,9 @@ public class SolrResponseBuilder implements Configurable {
         });
     }
 
-    private void parseDocumentsInResponse(XMLStreamReader xml, final DocumentResponse response)
+    private void parseDocumentsInResponse(XMLStreamReader xml, final DocumentResponse response, Set<String> fields)
             throws XMLStreamException {
-        for (DocumentResponse.Record record: getDocumentsInResponse(xml, response)) {
+        for (DocumentResponse.Record record: getDocumentsInResponse(xml, response, fields)) {
             response.addRecord(record);
         }
     }
@@ -953,8 +979,8 @@ public class SolrResponseBuilder implements Configurable {
           <str name="recordID">sb_5588484</str>*
 
      */
-    private List<DocumentResponse.Record> getDocumentsInResponse(XMLStreamReader xml, final DocumentResponse response)
-            throws XMLStreamException {
+    private List<DocumentResponse.Record> getDocumentsInResponse(
+            XMLStreamReader xml, final DocumentResponse response, final Set<String> fields) throws XMLStreamException {
         final List<DocumentResponse.Record> records = new ArrayList<>(); // Contains only a single record
         xml.next(); // Inside result
         XMLStepper.iterateTags(xml, new XMLStepper.Callback() {
@@ -963,7 +989,7 @@ public class SolrResponseBuilder implements Configurable {
             public boolean elementStart(XMLStreamReader xml, List<String> tags, String current)
                     throws XMLStreamException {
                 if ("doc".equals(current)) {
-                    DocumentResponse.Record record = extractRecord(xml, response);
+                    DocumentResponse.Record record = extractRecord(xml, response, fields);
                     if (record != null) {
                         records.add(record);
                     }
@@ -974,11 +1000,38 @@ public class SolrResponseBuilder implements Configurable {
         });
         return records;
     }
+    /**
+     * Creates a filter for the fields to extract from the Solr documents. Solr is normally asked only for the
+     * requested fields, but the filter ensures that unrequested fields are skipped without further processing.
+     * @return the names of the fields to extract or null if all fields should be extracted.
+     */
+    private Set<String> getFieldFilter(Request request, DocumentResponse response) {
+        if (!request.containsKey(DocumentKeys.SEARCH_RESULT_FIELDS)) {
+            return null;
+        }
+        Set<String> fields = new HashSet<>(request.getStrings(DocumentKeys.SEARCH_RESULT_FIELDS));
+        for (String field: fields) {
+            if (field.contains("*") || field.contains("?") || field.contains("[")) {
+                return null; // Solr patterns and pseudo fields are not resolved here
+            }
+        }
+        fields.add("score");
+        fields.add(idField);
+        fields.add(baseField);
+        fields.add(DocumentKeys.RECORD_ID);
+        fields.add(DocumentKeys.RECORD_BASE);
+        if (response.getSortKey() != null) {
+            fields.add(response.getSortKey());
+        }
+        return fields;
+    }
+
     /*
         <doc>
           <str name="recordID">sb_5588484</str>*
      */
-    private DocumentResponse.Record extractRecord(XMLStreamReader xml, final DocumentResponse response)
+    private DocumentResponse.Record extractRecord(
+            XMLStreamReader xml, final DocumentResponse response, final Set<String> fieldFilter)
             throws XMLStreamException {
         final String sortKey = response.getSortKey() == null || response.getSortKey().equals(DocumentKeys.SORT_ON_SCORE)
                                ? null : response.getSortKey();
@@ -988,7 +1041,7 @@ public class SolrResponseBuilder implements Configurable {
             float score = 0.0f;
             String id = null;
             String base = null;
-            List<SimplePair<String, String>> fields = new ArrayList<>(100);
+            List<SimplePair<String, String>> fields = new ArrayList<>(20);
             String lastArrName = null; // For <arr name="foo"><str>term1</str><str>term1</str></arr> structures
 
             @Override
@@ -996,6 +1049,11 @@ public class SolrResponseBuilder implements Configurable {
                     throws XMLStreamException {
                 if ("arr".equals(current)) {
                     lastArrName = XMLStepper.getAttribute(xml, "name", null);
+                    if (fieldFilter != null && lastArrName != null && !fieldFilter.contains(lastArrName)) {
+                        xml.next();
+                        XMLStepper.skipSubTree(xml); // Unrequested multi value field
+                        return true;
+                    }
                     return false;
                 }
                 String name = tags.size() > 1 && "arr".equals(tags.get(tags.size() - 2)) ?
@@ -1007,6 +1065,11 @@ public class SolrResponseBuilder implements Configurable {
                     log.warn("Encountered tag '" + current + "' without expected attribute 'name'. Skipping");
                     return false;
                 }
+                if (fieldFilter != null && !fieldFilter.contains(name)) {
+                    xml.next();
+                    XMLStepper.skipSubTree(xml); // Unrequested field
+                    return true;
+                }
                 String content;
                 try {
                     content = xml.getElementText();
@@ -30,6 +30,7 @@ import dk.statsbiblioteket.summa.search.api.document.DocumentKeys;
 import dk.statsbiblioteket.summa.search.api.document.DocumentResponse;
 import dk.statsbiblioteket.summa.support.api.DebugResponse;
 import dk.statsbiblioteket.summa.support.summon.search.api.RecommendationResponse;
+import dk.statsbiblioteket.util.Strings;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import dk.statsbiblioteket.util.xml.XMLStepper;
 import org.apache.commons.logging.Log;
@@ -38,6 +39,8 @@ import org.apache.lucene.search.exposed.facet.FacetResponse;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -165,6 +168,20 @@ public class SummonResponseBuilder extends SolrResponseBuilder {
         }
     }
 
+    /**
+     * Summon responses needs pre-processing of the full response, so the content of the reader is collected before
+     * parsing.
+     */
+    @Override
+    public long buildResponses(Request request, SolrFacetRequest facets, ResponseCollection responses,
+                               Reader solrResponse, String solrTiming) throws XMLStreamException {
+        try {
+            return buildResponses(request, facets, responses, Strings.flush(solrResponse), solrTiming);
+        } catch (IOException e) {
+            throw new XMLStreamException("Unable to read the Summon response", e);
+        }
+    }
+
     private boolean rangeWarned = false;
     @Override
     public long buildResponses(Request request, SolrFacetRequest facets, ResponseCollection responses,
@@ -24,26 +24,23 @@ import dk.statsbiblioteket.summa.search.api.ResponseCollection;
 import dk.statsbiblioteket.summa.search.api.document.DocumentKeys;
 import dk.statsbiblioteket.summa.search.api.document.DocumentResponse;
 import dk.statsbiblioteket.summa.search.tools.QueryRewriter;
+import dk.statsbiblioteket.summa.support.solr.PooledHttpClient;
 import dk.statsbiblioteket.summa.support.solr.SolrSearchNode;
 import dk.statsbiblioteket.util.Strings;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.*;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.Serializable;
-import java.net.ConnectException;
-import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.nio.charset.Charset;
 import java.rmi.RemoteException;
 import java.security.Security;
@@ -822,6 +819,15 @@ public class SummonSearchNode extends SolrSearchNode {
         return summonIDs;
     }
 
+    /**
+     * Summon requests needs authentication and the responses needs ID-prefixing before parsing, so the streaming
+     * search path of the SolrSearchNode is not used.
+     */
+    @Override
+    protected boolean isStreaming() {
+        return false;
+    }
+
     /**
      * Perform a search in Summon.
      *
@@ -1098,77 +1104,41 @@ public class SummonSearchNode extends SolrSearchNode {
      */
     private String getData(String target, String content, Date date, String idstring,
                            String sessionId, ResponseCollection responses) throws Exception {
-        StringBuilder retval = new StringBuilder();
-
         if (log.isDebugEnabled()) {
             log.debug("Performing Summon request for '" + content + "'");
         }
 
-        URL url = new URL(target + content);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestProperty("Host", host);
-        conn.setRequestProperty("Accept", "application/xml");
-        conn.setRequestProperty("Accept-Charset", "utf-8");
-        conn.setRequestProperty("x-summon-date", summonDateFormat.format(date));
-        conn.setRequestProperty("Authorization", "Summon " + accessID + ";" + buildDigest(accessKey, idstring));
+        HttpGet get = new HttpGet(target + content);
+        get.setHeader("Accept", "application/xml");
+        get.setHeader("Accept-Charset", "utf-8");
+        get.setHeader("x-summon-date", summonDateFormat.format(date));
+        get.setHeader("Authorization", "Summon " + accessID + ";" + buildDigest(accessKey, idstring));
         if (sessionId != null && !sessionId.isEmpty()) {
-            conn.setRequestProperty("x-summon-session-id", sessionId);
+            get.setHeader("x-summon-session-id", sessionId);
         }
-        conn.setConnectTimeout(connectionTimeout);
-        conn.setReadTimeout(readTimeout);
-        Long readStart = System.currentTimeMillis();
-    	long summonConnect = -System.currentTimeMillis();
-        try {
-            conn.connect();
-        } catch (Exception e) {
-            String message = "Unable to connect to remote Solr with URL '" + url.toExternalForm()
-                             + "' and connection timeout " + connectionTimeout;
-            log.error(message, e);
-            summonConnect += System.currentTimeMillis();
-            lastConnectTime = summonConnect;
-            throw (ConnectException)new ConnectException(message).initCause(e);
-        }
-        summonConnect += System.currentTimeMillis();
-        lastConnectTime = summonConnect;
 
-        long rawCall = -System.currentTimeMillis();
-        BufferedReader in;
+        PooledHttpClient.Result<String> result;
         try {
-        	in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-            String str;
-        
-            while ((str = in.readLine()) != null) {
-                retval.append(str);
-            }
-            log.trace("Reading from Summon done in " + (System.currentTimeMillis() - readStart) + "ms");
-            in.close();
-            rawCall += System.currentTimeMillis();
-            lastDataTime = rawCall;
-            responses.addTiming(getID() + ".connect", summonConnect);
-            responses.addTiming(getID() + ".rawcall", rawCall);
-            
+            result = http.getString(get, connectionTimeout, readTimeout);
         } catch (SocketTimeoutException e) {
-            rawCall += System.currentTimeMillis();
-            lastDataTime = rawCall;
             String error = String.format(
                 "getData(target='%s', content='%s', date=%s, idstring='%s', sessionID=%s) timed out",
                 target, content, date, idstring, sessionId);
             log.warn(error, e);
             throw new IOException(error, e);
-        } catch (Exception e) {
-            rawCall += System.currentTimeMillis();
-            lastDataTime = rawCall;
+        } catch (IOException e) {
             String error = String.format(
-                "getData(target='%s', content='%s', date=%s, idstring='%s', sessionID=%s) failed with error stream\n%s",
-                target, content, date, idstring, sessionId,
-                conn.getErrorStream() == null ? "N/A" :
-                Strings.flush(new InputStreamReader(conn.getErrorStream(), "UTF-8")));
+                "getData(target='%s', content='%s', date=%s, idstring='%s', sessionID=%s) failed with %s",
+                target, content, date, idstring, sessionId, e.getMessage());
             log.warn(error, e);
             throw new IOException(error, e);
         }
-        // TODO: Should we disconnect?
-
-        return retval.toString();
+        lastConnectTime = result.getConnectTime();
+        lastDataTime = result.getReadTime();
+        log.trace("Reading from Summon done in " + (lastConnectTime + lastDataTime) + "ms");
+        responses.addTiming(getID() + ".connect", lastConnectTime);
+        responses.addTiming(getID() + ".rawcall", lastDataTime);
+        return result.getContent();
     }
 
     /**
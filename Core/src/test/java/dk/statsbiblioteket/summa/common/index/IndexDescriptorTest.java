@@ -70,7 +70,7 @@ public class IndexDescriptorTest extends TestCase {
             + "            <alias name=\"forfatter\" lang=\"da\"/>\n"
             + "        </field>\n"
             + "        <field name=\"author_inv\" parent=\"text\" indexed=\"false\" stored=\"false\" multiValued=\"false\" "
-            + "               indexBoost=\"2.5\" sortLocale=\"de\" sortCache=\"active\" inFreeText=\"false\" required=\"false\" />\n"
+            + "               indexBoost=\"2.5\" sortLocale=\"de\" sortCache=\"active\" docValues=\"sorted\" inFreeText=\"false\" required=\"false\" />\n"
             + "        <field name=\"author_inherit\" parent=\"author\"/>\n"
             + "        <field name=\"title\" indexed=\"false\" stored=\"true\"/>\n"
             + "        <field name=\"titel\" indexed=\"false\" stored=\"true\"/>\n"
@@ -183,6 +183,7 @@ public class IndexDescriptorTest extends TestCase {
         assertEquals(intro + "indexBoost", 2.5f, i.getIndexBoost());
         assertEquals(intro + "sortLocale", "de", i.getSortLocale());
         assertEquals(intro + "sortCache", "active",i.getSortCache().toString());
+        assertEquals(intro + "docValues", IndexField.DOC_VALUES.sorted, i.getDocValues());
         assertEquals(intro + "inFreeText", false, i.isInFreetext());
         assertEquals(intro + "required", false, i.isRequired());
 
@@ -14,6 +14,14 @@
  */
 package dk.statsbiblioteket.summa.common.lucene.analysis;
 
+import org.apache.lucene.analysis.TokenStream;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class AnalyzerReuseTest extends AnalyzerTestCase {
 
     public void testSummaAnalyzer() throws Exception {
@@ -47,4 +55,46 @@ public class AnalyzerReuseTest extends AnalyzerTestCase {
     public void testSummaSymbolRemovingAnalyzer() throws Exception {
         assertAnalyzer(new SummaSymbolRemovingAnalyzer(), "foo bar", "foo bar");
     }
+
+    public void testSummaAnalyzerChainReuse() throws Exception {
+        SummaAnalyzer analyzer = new SummaAnalyzer(null, true, null, true, true);
+        for (String[] test: new String[][]{{"FOO BAR", "foo", "bar"}, {"Zoo", "zoo"}, {"", }, {"A b C", "a", "b", "c"}}) {
+            TokenStream tokens = analyzer.tokenStream("dummy", new StringReader(test[0]));
+            assertTokens("Input '" + test[0] + "'", tokens, Arrays.copyOfRange(test, 1, test.length));
+            tokens.end();
+            tokens.close();
+        }
+    }
+
+    public void testSummaAnalyzerThreads() throws Exception {
+        final SummaAnalyzer analyzer = new SummaAnalyzer(null, true, null, true, true);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0 ; t < 4 ; t++) {
+            final String word = "Word" + t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0 ; i < 200 ; i++) {
+                            TokenStream tokens = analyzer.tokenStream("dummy", new StringReader(word + " " + i));
+                            assertTokens(tokens, word.toLowerCase(), Integer.toString(i));
+                            tokens.end();
+                            tokens.close();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertTrue("There should be no errors but got " + errors, errors.isEmpty());
+        analyzer.close();
+    }
 }
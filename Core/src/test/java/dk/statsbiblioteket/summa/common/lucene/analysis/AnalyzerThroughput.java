@@ -0,0 +1,135 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.lucene.analysis;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures tokens/second and allocated bytes/document for the analyzers used when indexing SummaDocumentXML.
+ * The sample data are split into paragraphs, each paragraph acting as the content of a field in a document.
+ * </p><p>
+ * Allocation is measured with {@code com.sun.management.ThreadMXBean} and is reported as -1 if the JVM does not
+ * support it. This is a manual benchmark: Run {@link #main} for measurements.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class AnalyzerThroughput extends TestCase {
+    private static final int WARMUP_RUNS = 200;
+    private static final int RUNS = 1000;
+
+    public void testSmallThroughput() throws Exception {
+        // Sanity check only. Use main for real measurements
+        assertTrue("Some tokens should be produced",
+                   measure(new SummaStandardAnalyzer(), getDocuments(), 1, 1).tokens > 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> documents = getDocuments();
+        System.out.println("Measuring analyzers on " + documents.size() + " documents");
+        for (Analyzer analyzer: new Analyzer[]{
+                new SummaStandardAnalyzer(),
+                new FreeTextAnalyzer(),
+                new SummaKeywordAnalyzer(),
+                new SummaAnalyzer(null, true, null, true, true),
+                new SummaFieldSeparatingAnalyzer(new SummaStandardAnalyzer())}) {
+            System.out.println(measure(analyzer, documents, WARMUP_RUNS, RUNS));
+            analyzer.close();
+        }
+    }
+
+    static List<String> getDocuments() {
+        List<String> documents = new ArrayList<>();
+        for (String paragraph: SampleDataLoader.getDataString(0).split("\n\\s*\n")) {
+            if (!paragraph.trim().isEmpty()) {
+                documents.add(paragraph);
+            }
+        }
+        return documents;
+    }
+
+    static Measurement measure(Analyzer analyzer, List<String> documents, int warmup, int runs) throws Exception {
+        for (int i = 0 ; i < warmup ; i++) {
+            analyzeAll(analyzer, documents);
+        }
+        long allocated = -getAllocatedBytes();
+        long time = -System.nanoTime();
+        long tokens = 0;
+        for (int i = 0 ; i < runs ; i++) {
+            tokens += analyzeAll(analyzer, documents);
+        }
+        time += System.nanoTime();
+        allocated += getAllocatedBytes();
+        return new Measurement(analyzer.toString(), (long)runs * documents.size(), tokens, time,
+                               getAllocatedBytes() == -1 ? -1 : allocated);
+    }
+
+    private static long analyzeAll(Analyzer analyzer, List<String> documents) throws Exception {
+        long tokens = 0;
+        for (String document: documents) {
+            TokenStream stream = analyzer.tokenStream("testField", new StringReader(document));
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (term.length() > 0) { // Prevent sneaky JIT elimination
+                    tokens++;
+                }
+            }
+            stream.end();
+            stream.close();
+        }
+        return tokens;
+    }
+
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static class Measurement {
+        final String analyzer;
+        final long documents;
+        final long tokens;
+        final long nanos;
+        final long allocated;
+
+        Measurement(String analyzer, long documents, long tokens, long nanos, long allocated) {
+            this.analyzer = analyzer;
+            this.documents = documents;
+            this.tokens = tokens;
+            this.nanos = nanos;
+            this.allocated = allocated;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d documents, %d tokens/sec, %d bytes allocated/document",
+                                 analyzer, documents, nanos == 0 ? 0 : tokens * 1000000000L / nanos,
+                                 allocated == -1 ? -1 : allocated / Math.max(1, documents));
+        }
+    }
+}
@@ -68,5 +68,18 @@ public class LowerCasingReaderTest extends TestCase {
         assertEquals("*", Strings.flushLocal(r));
     }
 
-}
+    public void testBulkReadWithOffset() throws Exception {
+        r = new LowerCasingReader(new StringReader("ABC"));
+        char[] buf = new char[]{'X', 'X', 'X', 'X', 'X'};
+        assertEquals("The number of read chars should match", 3, r.read(buf, 1, 3));
+        assertEquals("Only the read chars should be lower cased", "XabcX", new String(buf));
+        assertEquals("EOF should be signalled", -1, r.read(buf, 0, 5));
+        assertEquals("The buffer should be untouched at EOF", "XabcX", new String(buf));
+    }
 
+    public void testSetSource() throws Exception {
+        r = new LowerCasingReader(new StringReader("FOO"));
+        assertEquals("foo", Strings.flushLocal(r));
+        assertEquals("bar", Strings.flushLocal(r.setSource(new StringReader("BaR"))));
+    }
+}
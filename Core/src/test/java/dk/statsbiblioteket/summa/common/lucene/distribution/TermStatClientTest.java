@@ -14,6 +14,7 @@
  */
 package dk.statsbiblioteket.summa.common.lucene.distribution;
 
+import dk.statsbiblioteket.summa.common.configuration.Configurable;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.support.lucene.LuceneUtil;
 import dk.statsbiblioteket.util.Files;
@@ -111,6 +112,21 @@ public class TermStatClientTest extends TestCase {
         }
     }
 
+    public void testInvalidConfiguration() throws Exception {
+        try {
+            new TermStatClient(Configuration.newMemoryBased(TermStatClient.CONF_BATCH_SIZE, 0));
+            fail("A batch size of 0 should be rejected");
+        } catch (Configurable.ConfigurationException e) {
+            // Expected
+        }
+        try {
+            new TermStatClient(Configuration.newMemoryBased(TermStatClient.CONF_THREADS, 0));
+            fail("0 threads should be rejected");
+        } catch (Configurable.ConfigurationException e) {
+            // Expected
+        }
+    }
+
     public void testTermIteration() throws Exception {
         generateDuplicateIndex(3, INDEX_LOCATION);
         IndexReader ir = DirectoryReader.open(new NIOFSDirectory(INDEX_LOCATION));
@@ -248,7 +264,6 @@ public class TermStatClientTest extends TestCase {
     }
 
 
-    /*
     public void testMerge() throws Exception {
         generateIndex(100, new File(TEST_DIR, "index_a"));
         generateIndex(300, new File(TEST_DIR, "index_b"));
@@ -256,27 +271,55 @@ public class TermStatClientTest extends TestCase {
         Configuration conf = Configuration.newMemoryBased();
         TermStatClient extractor = new TermStatClient(conf);
 
-        extractor.dumpStats(new File(TEST_DIR, "index_a"),
-                            new File(TEST_DIR, "dump_a"));
-        extractor.dumpStats(new File(TEST_DIR, "index_b"),
-                            new File(TEST_DIR, "dump_b"));
+        extractor.dumpStats(new File(TEST_DIR, "index_a"), new File(TEST_DIR, "dump_a"));
+        extractor.dumpStats(new File(TEST_DIR, "index_b"), new File(TEST_DIR, "dump_b"));
 
-        extractor.mergeStats(Arrays.asList(new File(TEST_DIR, "dump_a"),
-                                           new File(TEST_DIR, "dump_b")),
+        extractor.mergeStats(Arrays.asList(new File(TEST_DIR, "dump_a"), new File(TEST_DIR, "dump_b")),
                              new File(TEST_DIR, "merged"));
 
         TermStat termStat = new TermStat(conf);
         termStat.open(new File(TEST_DIR, "merged"));
-        String FIXED = "fixed:fixedcontent";
-        assertEquals("The termcount for " + FIXED + " should be numDocs",
-                     400, termStat.getEntry(FIXED).getStat(1));
-
-        String VARIABLE_A = "variableshareda:variablecontent1";
-        assertEquals("The termcount for " + VARIABLE_A 
-                     + " should be indexcount",
-                     2, termStat.getEntry(VARIABLE_A).getStat(1));
-        termStat.close();
-    } */
+        try {
+            assertEquals("The merged docCount should be the sum", 400, termStat.getDocCount());
+            String FIXED = "fixedcontent";
+            assertEquals("The df for " + FIXED + " should be the sum of numDocs",
+                         400, termStat.getEntry(FIXED).getStat(termStat.getIndex("df_dumpstats")));
+            String VARIABLE = "variablecontent299";
+            assertNotNull("Terms only present in one source should be merged", termStat.getEntry(VARIABLE));
+            for (int i = 1 ; i < termStat.size() ; i++) {
+                assertTrue("The merged terms should be in order at index " + i,
+                           termStat.get(i-1).getTerm().compareTo(termStat.get(i).getTerm()) < 0);
+            }
+        } finally {
+            termStat.close();
+        }
+    }
+
+    public void testParallelExtraction() throws Exception {
+        generateIndex(100);
+        File sequential = new File(TEST_DIR, "sequential");
+        File parallel = new File(TEST_DIR, "parallel");
+        new TermStatClient(Configuration.newMemoryBased(
+                TermStatClient.CONF_THREADS, 1)).dumpStats(INDEX_LOCATION, sequential);
+        new TermStatClient(Configuration.newMemoryBased(
+                TermStatClient.CONF_THREADS, 4,
+                TermStatClient.CONF_BATCH_SIZE, 3)).dumpStats(INDEX_LOCATION, parallel);
+
+        TermStat expected = new TermStat(Configuration.newMemoryBased());
+        TermStat actual = new TermStat(Configuration.newMemoryBased());
+        expected.open(sequential);
+        actual.open(parallel);
+        try {
+            assertEquals("The number of terms should be the same", expected.size(), actual.size());
+            for (int i = 0 ; i < expected.size() ; i++) {
+                assertEquals("Entry #" + i + " should be the same",
+                             expected.get(i).toPersistent(), actual.get(i).toPersistent());
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
 
     public static final File TEST_DIR = new File("target/tmp/", "termstats");
     public static final File INDEX_LOCATION = new File(TEST_DIR, "lucene");
@@ -20,6 +20,11 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import dk.statsbiblioteket.util.Files;
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
@@ -70,6 +75,137 @@ public class TermStatTest extends TestCase {
         assertEquals("The source should match", "foo", ts.getSource());
     }
 
+    public void testBinaryLookup() throws Exception {
+        TermStat ts = new TermStat(Configuration.newMemoryBased());
+        ts.create(TMP, "foo", new String[]{"term", "df", "tf"});
+        String[] terms = new String[]{"a", "aa", "aab", "b", "bar", "barn", "foo", "\u00e6bler", "\u00e6blegr\u00f8d"};
+        Arrays.sort(terms);
+        for (int i = 0 ; i < terms.length ; i++) {
+            ts.add(new TermEntry(terms[i], new long[]{i, i * 1000L}, new String[]{"term", "df", "tf"}));
+        }
+        ts.setDocCount(87);
+        ts.store();
+        ts.close();
+
+        TermStat textual = new TermStat(Configuration.newMemoryBased(TermStat.CONF_BINARY, false));
+        textual.open(TMP);
+        assertFalse("No binary file should be created when binary is disabled",
+                    new File(TMP, TermStat.TERMSTAT_PERSISTENT_NAME + ".bin").exists());
+        TermStat binary = new TermStat(Configuration.newMemoryBased());
+        binary.open(TMP);
+        assertTrue("The binary file should be created on open",
+                   new File(TMP, TermStat.TERMSTAT_PERSISTENT_NAME + ".bin").exists());
+
+        for (int i = 0 ; i < terms.length ; i++) {
+            TermEntry entry = binary.getEntry(terms[i]);
+            assertNotNull("There should be a binary entry for '" + terms[i] + "'", entry);
+            assertEquals("The binary term should match", terms[i], entry.getTerm());
+            assertEquals("The binary df for '" + terms[i] + "' should match",
+                         textual.getEntry(terms[i]).getStat(0), entry.getStat(0));
+            assertEquals("The binary tf for '" + terms[i] + "' should match", i * 1000L, entry.getStat(1));
+            assertEquals("The index for '" + terms[i] + "' should match", i, binary.indexOf(terms[i]));
+        }
+        assertNull("Non-existing terms should not be found", binary.getEntry("zoo"));
+        assertNull("Prefixes of existing terms should not be found", binary.getEntry("ba"));
+        binary.close();
+        textual.close();
+    }
+
+    public void testBinaryLookupLarge() throws Exception {
+        final String[] columns = new String[]{"term", "df", "tf"};
+        List<String> terms = new ArrayList<>();
+        for (int i = 0 ; i < 3000 ; i++) {
+            terms.add("term" + i);
+        }
+        // "Aa" and "BB" has the same hashCode, so all combinations collide and forces probing
+        for (int i = 0 ; i < 256 ; i++) {
+            StringBuilder sb = new StringBuilder("c");
+            for (int bit = 0 ; bit < 8 ; bit++) {
+                sb.append((i & (1 << bit)) == 0 ? "Aa" : "BB");
+            }
+            terms.add(sb.toString());
+        }
+        Collections.sort(terms);
+        assertTrue("The test terms should span more than one block",
+                   terms.size() > BinaryTermStat.BLOCK_SIZE * 2);
+
+        TermStat ts = new TermStat(Configuration.newMemoryBased());
+        ts.create(TMP, "foo", columns);
+        for (int i = 0 ; i < terms.size() ; i++) {
+            ts.add(new TermEntry(terms.get(i), new long[]{i, -i * 7L}, columns));
+        }
+        ts.setDocCount(12345);
+        ts.store();
+        ts.close();
+
+        TermStat textual = new TermStat(Configuration.newMemoryBased(TermStat.CONF_BINARY, false));
+        textual.open(TMP);
+        TermStat binary = new TermStat(Configuration.newMemoryBased());
+        binary.open(TMP);
+        assertEquals("The sizes should match", textual.size(), binary.size());
+        for (int i = 0 ; i < terms.size() ; i++) {
+            String term = terms.get(i);
+            TermEntry expected = textual.getEntry(term);
+            TermEntry actual = binary.getEntry(term);
+            assertNotNull("There should be a textual entry for '" + term + "'", expected);
+            assertNotNull("There should be a binary entry for '" + term + "'", actual);
+            assertEquals("The binary term should match", expected.getTerm(), actual.getTerm());
+            assertEquals("The binary df for '" + term + "' should match", expected.getStat(0), actual.getStat(0));
+            assertEquals("The binary tf for '" + term + "' should match", expected.getStat(1), actual.getStat(1));
+            assertEquals("The index for '" + term + "' should match", textual.indexOf(term), binary.indexOf(term));
+            assertEquals("The entry at index " + i + " should match", textual.get(i).getTerm(), binary.get(i).getTerm());
+        }
+        assertNull("A non-existing colliding term should not be found", binary.getEntry("cAaAaAaAaAaAaAaAaAa"));
+        binary.close();
+        textual.close();
+    }
+
+    public void testBinaryStaleCounts() throws Exception {
+        final String[] columns = new String[]{"term", "df"};
+        File bin = new File(TMP, TermStat.TERMSTAT_PERSISTENT_NAME + ".bin");
+        File oldBin = new File(TMP.getParentFile(), "termstattemp_old.bin");
+        createSimple(columns, 10);
+        TermStat binary = new TermStat(Configuration.newMemoryBased());
+        binary.open(TMP);
+        binary.close();
+        java.nio.file.Files.copy(bin.toPath(), oldBin.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // Simulate replaced term stats with an old binary file that has a timestamp newer than the textual files
+        createSimple(columns, 20);
+        java.nio.file.Files.copy(oldBin.toPath(), bin.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertTrue("The old binary file should be removed", oldBin.delete());
+        assertTrue("The timestamp for the binary file should be updated",
+                   bin.setLastModified(System.currentTimeMillis() + 60000));
+
+        binary.open(TMP);
+        assertEquals("The docCount should be updated", 20, binary.getDocCount());
+        assertEquals("The df should be from the new term stats", 20, binary.getEntry("t1").getStat(0));
+        binary.close();
+    }
+
+    public void testBinaryUnwritable() throws Exception {
+        final String[] columns = new String[]{"term", "df"};
+        createSimple(columns, 10);
+        // A non-empty folder at the location of the binary file makes it impossible to write
+        File bin = new File(TMP, TermStat.TERMSTAT_PERSISTENT_NAME + ".bin");
+        assertTrue("The blocking folder should be created", new File(bin, "blocker").mkdirs());
+
+        TermStat fallback = new TermStat(Configuration.newMemoryBased());
+        assertTrue("Open should succeed without the binary file", fallback.open(TMP));
+        assertEquals("The textual look up should be used", 10, fallback.getEntry("t1").getStat(0));
+        fallback.close();
+    }
+
+    private void createSimple(String[] columns, long docCount) throws IOException {
+        TermStat ts = new TermStat(Configuration.newMemoryBased());
+        ts.create(TMP, "foo", columns);
+        ts.add(new TermEntry("t1", new long[]{docCount}, columns));
+        ts.add(new TermEntry("t2", new long[]{1}, columns));
+        ts.setDocCount(docCount);
+        ts.store();
+        ts.close();
+    }
+
 /*    public void testReplace() throws Exception {
         Configuration conf = Configuration.newMemoryBased();
         TermStat ts = new TermStat(conf);
@@ -0,0 +1,85 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.lucene.index;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NRTRegistryTest extends TestCase {
+    private static final File FOLDER = new File(System.getProperty("java.io.tmpdir"), "nrtregistrytest");
+
+    public NRTRegistryTest(String name) {
+        super(name);
+    }
+
+    public void testNotification() throws Exception {
+        IndexWriter writer = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(
+                Version.LUCENE_46, new StandardAnalyzer(Version.LUCENE_46)));
+        final DirectoryReader[] reader = new DirectoryReader[]{DirectoryReader.open(writer, true)};
+        assertEquals("The initial NRT reader should be empty", 0, reader[0].numDocs());
+
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicLong oldest = new AtomicLong(-1);
+        NRTRegistry.Listener listener = new NRTRegistry.Listener() {
+            @Override
+            public void indexChanged(IndexWriter writer, long oldestChange) {
+                try {
+                    DirectoryReader fresh = DirectoryReader.openIfChanged(reader[0], writer, true);
+                    if (fresh != null) {
+                        reader[0].close();
+                        reader[0] = fresh;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("Unable to reopen", e);
+                }
+                oldest.set(oldestChange);
+                notified.countDown();
+            }
+        };
+        NRTRegistry.addListener(FOLDER, listener);
+        try {
+            Document doc = new Document();
+            doc.add(new StringField("id", "doc1", Field.Store.YES));
+            writer.addDocument(doc);
+            long changeTime = System.currentTimeMillis();
+            NRTRegistry.register(FOLDER, writer, 50); // Registering signals a change
+            assertSame("The registered writer should be returned", writer, NRTRegistry.getWriter(FOLDER));
+            NRTRegistry.changed(FOLDER); // Should be collapsed into the pending notification
+
+            assertTrue("The listener should be notified", notified.await(5, TimeUnit.SECONDS));
+            assertEquals("The uncommitted document should be visible in the reopened reader", 1, reader[0].numDocs());
+            assertTrue("The oldest change should be set", oldest.get() >= changeTime);
+        } finally {
+            NRTRegistry.removeListener(FOLDER, listener);
+            NRTRegistry.unregister(FOLDER, writer);
+            reader[0].close();
+            writer.close();
+        }
+        assertNull("The writer should be unregistered", NRTRegistry.getWriter(FOLDER));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.lucene.index;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import java.util.Arrays;
+
+public class RecordIDMapTest extends TestCase {
+
+    public RecordIDMapTest(String name) {
+        super(name);
+    }
+
+    public void testLookup() throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(
+                Version.LUCENE_46, new StandardAnalyzer(Version.LUCENE_46)));
+        add(writer, "a", "first a");
+        add(writer, "b", "first b");
+        writer.commit(); // Segment 1
+        add(writer, "c", "first c");
+        writer.deleteDocuments(new Term(IndexUtils.RECORD_FIELD, "b"));
+        writer.deleteDocuments(new Term(IndexUtils.RECORD_FIELD, "a"));
+        add(writer, "a", "second a");
+        writer.commit(); // Segment 2
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            RecordIDMap map = new RecordIDMap(reader);
+            assertTrue("c should be present", map.contains("c"));
+            assertFalse("b should be deleted", map.contains("b"));
+            assertFalse("Unknown IDs should not be present", map.contains("z"));
+
+            int[] docIDs = map.getDocIDs(Arrays.asList("c", "z", "a", "b"));
+            assertEquals("Unknown ID should be NOT_PRESENT", RecordIDMap.NOT_PRESENT, docIDs[1]);
+            assertEquals("Deleted ID should be NOT_PRESENT", RecordIDMap.NOT_PRESENT, docIDs[3]);
+            assertEquals("The live document for c should be resolved",
+                         "first c", reader.document(docIDs[0]).get("content"));
+            assertEquals("The updated document for a should be resolved",
+                         "second a", reader.document(docIDs[2]).get("content"));
+
+            IndexSearcher searcher = new IndexSearcher(reader);
+            assertEquals("The filter should match the live documents for the given IDs", 2,
+                         searcher.search(new ConstantScoreQuery(RecordIDMap.createFilter(
+                                 Arrays.asList("b", "a", "z", "c"), IndexUtils.RECORD_FIELD)), 10).totalHits);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void add(IndexWriter writer, String id, String content) throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField(IndexUtils.RECORD_FIELD, id, Field.Store.YES));
+        doc.add(new StringField("content", content, Field.Store.YES));
+        writer.addDocument(doc);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.common.marc;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.common.configuration.Resolver;
+import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.unittest.PayloadFeederHelper;
+import dk.statsbiblioteket.summa.ingest.stream.FlexibleMarcStreamReader;
+import dk.statsbiblioteket.summa.ingest.stream.ISO2709ToMARCXMLFilter;
+import dk.statsbiblioteket.util.Strings;
+import junit.framework.TestCase;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ISO2709ReaderTest extends TestCase {
+    private static Log log = LogFactory.getLog(ISO2709ReaderTest.class);
+
+    public ISO2709ReaderTest(String name) {
+        super(name);
+    }
+
+    public void testSummerland() throws Exception {
+        List<MARCObject> marcs = new ArrayList<>();
+        ISO2709Reader reader = new ISO2709Reader(
+                new FileInputStream(Resolver.getFile("ingest/iso2709/summerland.data")), null, false);
+        MARCObject marc;
+        while ((marc = reader.next()) != null) {
+            marcs.add(marc);
+        }
+        assertEquals("There should be the right number of records", 1, marcs.size());
+        marc = marcs.get(0);
+        assertEquals("The leader should be as expected", "00714cam a2200205 a 4500", marc.getLeader().getContent());
+        assertEquals("The number of control fields should match", 3, marc.getControlFields().size());
+        assertEquals("The title should be as expected",
+                     "Summerland /", marc.getFirstSubField("245", "a").getContent());
+        assertEquals("The indicators for 245 should be as expected",
+                     "10", marc.getFirstDataField("245").getInd1() + marc.getFirstDataField("245").getInd2());
+    }
+
+    public void testEqualsMarc4j() throws Exception {
+        assertEqualsMarc4j("ingest/iso2709/summerland.data", null);
+        assertEqualsMarc4j("ingest/iso2709/dpu20091109_sample.data", "cp850");
+    }
+
+    private void assertEqualsMarc4j(String resource, String charset) throws Exception {
+        FlexibleMarcStreamReader marc4j = charset == null ?
+                new FlexibleMarcStreamReader(new FileInputStream(Resolver.getFile(resource))) :
+                new FlexibleMarcStreamReader(new FileInputStream(Resolver.getFile(resource)), charset);
+        ISO2709Reader direct = new ISO2709Reader(new FileInputStream(Resolver.getFile(resource)), charset, false);
+        int count = 0;
+        while (marc4j.hasNext()) {
+            Record expected = marc4j.next();
+            MARCObject actual = direct.next();
+            assertNotNull("There should be a direct MARCObject for record #" + count + " in " + resource, actual);
+            assertEquals("The number of data fields for record #" + count + " in " + resource + " should match",
+                         expected.getDataFields().size(), actual.getDataFields().size());
+            for (int i = 0 ; i < expected.getDataFields().size() ; i++) {
+                DataField eField = (DataField) expected.getDataFields().get(i);
+                MARCObject.DataField aField = actual.getDataFields().get(i);
+                assertEquals("The tag for field #" + i + " should match", eField.getTag(), aField.getTag());
+                assertEquals("The number of subfields for field " + eField.getTag() + " should match",
+                             eField.getSubfields().size(), aField.getSubFields().size());
+                for (int s = 0 ; s < eField.getSubfields().size() ; s++) {
+                    org.marc4j.marc.Subfield eSub = (org.marc4j.marc.Subfield) eField.getSubfields().get(s);
+                    assertEquals("The content for " + eField.getTag() + "$" + eSub.getCode() + " should match",
+                                 eSub.getData(), aField.getSubFields().get(s).getContent());
+                }
+            }
+            count++;
+        }
+        assertNull("There should be no more direct MARCObjects in " + resource, direct.next());
+    }
+
+    public void testDanishControlfields() throws Exception {
+        ISO2709Reader reader = new ISO2709Reader(new FileInputStream(
+                Resolver.getFile("ingest/iso2709/dpu20091109_sample.data")), "cp850", true);
+        MARCObject marc = reader.next();
+        assertTrue("There should be no control fields", marc.getControlFields().isEmpty());
+        assertEquals("The id should be extracted as subfield from 001",
+                     "3893228845", marc.getFirstSubField("001", "a").getContent());
+    }
+
+    public void testPrematureEnd() throws Exception {
+        byte[] full = Files.readAllBytes(Resolver.getFile("ingest/iso2709/summerland.data").toPath());
+        ISO2709Reader reader = new ISO2709Reader(
+                new ByteArrayInputStream(Arrays.copyOf(full, full.length / 2)), null, false);
+        try {
+            reader.next();
+            fail("Reading a truncated record should fail");
+        } catch (java.io.EOFException e) {
+            // Expected
+        }
+    }
+
+    public void testFilterDirect() throws Exception {
+        String marc4j = Strings.flush(getFilterStream(false));
+        String direct = Strings.flush(getFilterStream(true));
+        assertTrue("The direct output should contain a record\n" + direct, direct.contains("<record"));
+        assertTrue("The direct output should contain the title\n" + direct, direct.contains("Summerland /"));
+        assertTrue("The marc4j output should contain the title\n" + marc4j, marc4j.contains("Summerland /"));
+        List<MARCObject> marcs = MARCObjectFactory.generate(new ByteArrayInputStream(direct.getBytes("utf-8")));
+        assertEquals("The direct output should be parsable by MARCObjectFactory", 1, marcs.size());
+    }
+
+    private InputStream getFilterStream(boolean direct) throws Exception {
+        ISO2709ToMARCXMLFilter isoFilter = new ISO2709ToMARCXMLFilter(Configuration.newMemoryBased(
+                ISO2709ToMARCXMLFilter.CONF_USE_DIRECT, direct));
+        isoFilter.setSource(new PayloadFeederHelper(Arrays.asList(
+                new Payload(new FileInputStream(Resolver.getFile("ingest/iso2709/summerland.data"))))));
+        assertTrue("The filter should produce a Payload", isoFilter.hasNext());
+        return isoFilter.next().getStream();
+    }
+
+    /*
+     * Compares the marc4j -> MARC21Slim -> MARCObjectFactory pipeline with the direct ISO2709Reader.
+     * Point DUMP to a large (multi-million record) ISO 2709 dump before running.
+     */
+    private static final String DUMP = "/home/te/tmp/sb_dpb/dpb_full.data";
+    private static final String DUMP_CHARSET = "cp850";
+
+    public void xtestPerformance() throws Exception {
+        File dump = new File(DUMP);
+        if (!dump.exists()) {
+            fail("Missing ISO 2709 dump at " + dump);
+        }
+        for (int run = 0 ; run < 3 ; run++) {
+            log.info("Run " + run + ": two-step: " + measure(dump, false));
+            log.info("Run " + run + ": direct:   " + measure(dump, true));
+        }
+    }
+
+    private String measure(File dump, boolean direct) throws Exception {
+        final long[] fields = new long[1];
+        MARCObjectFactory.Callback counter = new MARCObjectFactory.Callback() {
+            @Override
+            public void handle(MARCObject marc) {
+                fields[0] += marc.getDataFields().size();
+            }
+        };
+        long startNS = System.nanoTime();
+        long records;
+        if (direct) {
+            records = MARCObjectFactory.generateFromISO2709(new FileInputStream(dump), DUMP_CHARSET, true, counter);
+        } else {
+            ISO2709ToMARCXMLFilter isoFilter = new ISO2709ToMARCXMLFilter(Configuration.newMemoryBased(
+                    ISO2709ToMARCXMLFilter.CONF_INPUT_CHARSET, DUMP_CHARSET,
+                    ISO2709ToMARCXMLFilter.CONF_FIX_CONTROLFIELDS, true));
+            isoFilter.setSource(new PayloadFeederHelper(Arrays.asList(new Payload(new FileInputStream(dump)))));
+            final long[] count = new long[1];
+            MARCObjectFactory.generate(isoFilter.next().getStream(), new MARCObjectFactory.Callback() {
+                @Override
+                public void handle(MARCObject marc) {
+                    count[0]++;
+                    fields[0] += marc.getDataFields().size();
+                }
+            });
+            records = count[0];
+        }
+        long ms = (System.nanoTime() - startNS) / 1000000;
+        return String.format("%d records with %d data fields in %d ms: %.0f records/sec",
+                             records, fields[0], ms, records * 1000.0 / Math.max(1, ms));
+    }
+}
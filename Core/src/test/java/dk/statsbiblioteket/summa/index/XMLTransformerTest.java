@@ -19,8 +19,10 @@ import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.configuration.Resolver;
 import dk.statsbiblioteket.summa.common.filter.Payload;
 import dk.statsbiblioteket.summa.common.filter.object.PayloadException;
+import dk.statsbiblioteket.summa.common.unittest.PayloadFeederHelper;
 import dk.statsbiblioteket.summa.common.util.RecordUtil;
 import dk.statsbiblioteket.summa.common.xml.XHTMLEntityResolver;
+import dk.statsbiblioteket.summa.plugins.SaxonXSLT;
 import dk.statsbiblioteket.util.Files;
 import dk.statsbiblioteket.util.Profiler;
 import dk.statsbiblioteket.util.Streams;
@@ -52,7 +54,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 
 @SuppressWarnings({"DuplicateStringLiteralInspection"})
@@ -369,6 +373,54 @@ public class XMLTransformerTest extends TestCase {
             assertTrue("The result must contain " + must, transformed.contains(must));
         }
     }
+
+    public void testParallelTransformation() throws Exception {
+        final int RECORDS = 50;
+        String content = Streams.getUTF8Resource(GURLI);
+        List<Payload> payloads = new ArrayList<>(RECORDS);
+        for (int i = 0 ; i < RECORDS ; i++) {
+            payloads.add(new Payload(new Record("fagref:gurli_" + i, "fagref", content.getBytes("utf-8"))));
+        }
+        Configuration conf = Configuration.newMemoryBased(
+                XMLTransformer.CONF_XSLT, xsltFagrefEntryURL,
+                XMLTransformer.CONF_THREADS, 4);
+        XMLTransformer transformer = new XMLTransformer(conf);
+        transformer.setSource(new PayloadFeederHelper(payloads));
+        int count = 0;
+        while (transformer.hasNext()) {
+            Payload payload = transformer.next();
+            assertEquals("The order of the Payloads should be preserved", "fagref:gurli_" + count, payload.getId());
+            assertTrue("Payload #" + count + " should be transformed",
+                       payload.getRecord().getContentAsUTF8().contains("Yetitæmning</Index:field>"));
+            count++;
+        }
+        transformer.close(true);
+        assertEquals("All Payloads should be delivered", RECORDS, count);
+    }
+
+    public void testPrefilterAndTreeModel() throws Exception {
+        final String XML = "<doc><keep>Kept</keep><drop><keep>Inner</keep></drop><keep>Also</keep></doc>";
+        for (SaxonXSLT.TREE_MODEL model: SaxonXSLT.TREE_MODEL.values()) {
+            Configuration conf = Configuration.newMemoryBased(
+                    XMLTransformer.CONF_XSLT, "index/identity.xslt",
+                    XMLTransformer.CONF_TREE_MODEL, model.toString(),
+                    XMLTransformer.CONF_DISCARD_ELEMENTS, "drop");
+            OpenTransformer transformer = new OpenTransformer(conf);
+            Payload payload = new Payload(new Record("dummy", "foo", XML.getBytes("utf-8")));
+            transformer.process(payload);
+            String transformed = payload.getRecord().getContentAsUTF8();
+            assertTrue("The kept text should be present with tree model " + model + ":\n" + transformed,
+                       transformed.contains("Kept") && transformed.contains("Also"));
+            assertFalse("The discarded text should be removed with tree model " + model + ":\n" + transformed,
+                        transformed.contains("Inner"));
+        }
+    }
+
+    public void testTemplatesCache() throws Exception {
+        assertSame("Templates for the same XSLT should be cached",
+                   SaxonXSLT.getTemplates(xsltFagrefEntryURL), SaxonXSLT.getTemplates(xsltFagrefEntryURL));
+    }
+
     private class OpenTransformer extends XMLTransformer {
         private OpenTransformer(Configuration conf) {
             super(conf);
@@ -44,8 +44,10 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 @SuppressWarnings({"DuplicateStringLiteralInspection"})
@@ -295,6 +297,30 @@ public class DocumentCreatorTest extends TestCase implements ObjectFilter {
 
     }
 
+    public void testParallelCreation() throws Exception {
+        final int RECORDS = 50;
+        List<Payload> payloads = new ArrayList<>(RECORDS);
+        for (int i = 0 ; i < RECORDS ; i++) {
+            payloads.add(new Payload(new Record("dummy_" + i, "dummy", NAMESPACED_RECORD.getBytes("utf-8"))));
+        }
+        Configuration conf = getCreatorConf();
+        conf.set(StreamingDocumentCreator.CONF_THREADS, 4);
+        ObjectFilter creator = new StreamingDocumentCreator(conf);
+        creator.setSource(new PayloadFeederHelper(payloads));
+
+        int count = 0;
+        while (creator.hasNext()) {
+            Payload processed = creator.next();
+            assertEquals("The order of the Payloads should be preserved", "dummy_" + count, processed.getId());
+            Document doc = (Document)processed.getData(Payload.LUCENE_DOCUMENT);
+            assertNotNull("A document should be created for Payload #" + count, doc);
+            assertNotNull("The document for Payload #" + count + " should contain mystored", doc.getField("mystored"));
+            count++;
+        }
+        creator.close(true);
+        assertEquals("All Payloads should be delivered", RECORDS, count);
+    }
+
     public void testEnrichedRecord() throws Exception {
         Record parent = new Record("parent", "foo", NAMESPACED_RECORD.getBytes("utf-8"));
         Record child = new Record("child", "foo", CHILD_RECORD.getBytes("utf-8"));
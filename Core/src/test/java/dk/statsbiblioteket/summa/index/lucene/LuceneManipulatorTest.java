@@ -133,6 +133,42 @@ public class LuceneManipulatorTest extends TestCase implements ObjectFilter {
                            + profiler.getBps() + " updates/second");
     }
 
+    public void testBackgroundConsolidate() throws Exception {
+        for (String policy: new String[]{"tiered", "logdoc"}) {
+            if (location.exists()) {
+                Files.delete(location);
+            }
+            manipulator = new LuceneManipulator(Configuration.newMemoryBased(
+                    LuceneManipulator.CONF_BUFFER_SIZE_PAYLOADS, 10,
+                    LuceneManipulator.CONF_MERGE_POLICY, policy,
+                    LuceneManipulator.CONF_MERGE_THREADS, 2,
+                    LuceneManipulator.CONF_MERGE_MAX_MB_PER_SEC, 100,
+                    LuceneManipulator.CONF_MAX_SEGMENTS_ON_CONSOLIDATE, 1,
+                    LuceneManipulator.CONF_CONSOLIDATE_BACKGROUND, true));
+            manipulator.open(location);
+            String[] ids = new String[100];
+            for (int i = 0 ; i < ids.length ; i++) {
+                ids[i] = "doc" + i;
+                manipulator.update(getPayload(ids[i], false));
+            }
+            manipulator.consolidate();
+            manipulator.update(getPayload("extra", false)); // Updates are possible while consolidating
+            manipulator.close();
+            manipulator = null;
+
+            IndexReader reader = DirectoryReader.open(
+                    new NIOFSDirectory(new File(location, LuceneIndexUtils.LUCENE_FOLDER)));
+            try {
+                assertEquals("The index should contain all documents with merge policy " + policy,
+                             ids.length + 1, reader.numDocs());
+                assertTrue("The index should be consolidated with merge policy " + policy + ". Segments: "
+                           + reader.leaves().size(), reader.leaves().size() <= 2);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
     public void testDeletionsIndex() throws Exception {
         manipulator = openIndex(2);
 
@@ -0,0 +1,169 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.index.lucene;
+
+import dk.statsbiblioteket.summa.common.Record;
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.lucene.LuceneIndexUtils;
+import dk.statsbiblioteket.util.Files;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.NIOFSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ShardedLuceneManipulatorTest extends TestCase {
+    private static final int SHARDS = 3;
+    private final File location = new File("target/tmp/", "shardedindex");
+    private ShardedLuceneManipulator manipulator = null;
+
+    public ShardedLuceneManipulatorTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ShardedLuceneManipulatorTest.class);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        if (location.exists()) {
+            Files.delete(location);
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        if (manipulator != null) {
+            manipulator.close();
+        }
+        if (location.exists()) {
+            Files.delete(location);
+        }
+    }
+
+    public void testShardedCommit() throws Exception {
+        manipulator = openIndex(ShardedLuceneManipulator.PUBLISH.multi);
+        addDocuments(100);
+        manipulator.commit();
+
+        int total = 0;
+        for (int shard = 0 ; shard < SHARDS ; shard++) {
+            int docs = countDocs(new File(ShardedLuceneManipulator.getShardRoot(location, shard),
+                                          LuceneIndexUtils.LUCENE_FOLDER));
+            assertTrue("Shard " + shard + " should contain documents", docs > 0);
+            total += docs;
+        }
+        assertEquals("The shards should contain all documents", 100, total);
+        assertFalse("There should be no merged index in multi mode",
+                    new File(location, LuceneIndexUtils.LUCENE_FOLDER).exists());
+    }
+
+    public void testUpdatesStayInShard() throws Exception {
+        manipulator = openIndex(ShardedLuceneManipulator.PUBLISH.multi);
+        addDocuments(50);
+        addDocuments(50); // Same ids, so the documents should be replaced
+        manipulator.commit();
+
+        int total = 0;
+        for (int shard = 0 ; shard < SHARDS ; shard++) {
+            total += countDocs(new File(ShardedLuceneManipulator.getShardRoot(location, shard),
+                                        LuceneIndexUtils.LUCENE_FOLDER));
+        }
+        assertEquals("Updates should replace the existing documents", 50, total);
+    }
+
+    public void testMergeOnConsolidate() throws Exception {
+        manipulator = openIndex(ShardedLuceneManipulator.PUBLISH.merge);
+        addDocuments(100);
+        manipulator.commit();
+        manipulator.consolidate();
+        assertEquals("The merged index should contain all documents",
+                     100, countDocs(new File(location, LuceneIndexUtils.LUCENE_FOLDER)));
+
+        manipulator.update(getPayload("doc0", true));
+        manipulator.commit();
+        manipulator.consolidate();
+        assertEquals("The re-merged index should reflect the deletion",
+                     99, countDocs(new File(location, LuceneIndexUtils.LUCENE_FOLDER)));
+    }
+
+    public void testFailureReported() throws Exception {
+        manipulator = openIndex(ShardedLuceneManipulator.PUBLISH.multi);
+        addDocuments(10);
+        manipulator.update(new Payload(new Record("nodocument", "testbase", new byte[0])));
+        try {
+            manipulator.commit();
+            fail("The failed update in the writer thread should be reported by commit");
+        } catch (IOException e) {
+            // Expected
+        }
+        manipulator.commit(); // The failure has been reported
+        int total = 0;
+        for (int shard = 0 ; shard < SHARDS ; shard++) {
+            total += countDocs(new File(ShardedLuceneManipulator.getShardRoot(location, shard),
+                                        LuceneIndexUtils.LUCENE_FOLDER));
+        }
+        assertEquals("The valid documents should be indexed", 10, total);
+    }
+
+    private ShardedLuceneManipulator openIndex(ShardedLuceneManipulator.PUBLISH publish) throws IOException {
+        ShardedLuceneManipulator manipulator = new ShardedLuceneManipulator(Configuration.newMemoryBased(
+                ShardedLuceneManipulator.CONF_SHARDS, SHARDS,
+                ShardedLuceneManipulator.CONF_PUBLISH, publish.toString(),
+                LuceneManipulator.CONF_MAX_SEGMENTS_ON_CONSOLIDATE, 1));
+        manipulator.open(location);
+        return manipulator;
+    }
+
+    private void addDocuments(int count) throws IOException {
+        for (int i = 0 ; i < count ; i++) {
+            manipulator.update(getPayload("doc" + i, false));
+        }
+    }
+
+    private int countDocs(File index) throws IOException {
+        IndexReader reader = DirectoryReader.open(new NIOFSDirectory(index));
+        try {
+            return reader.numDocs();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Payload getPayload(String id, boolean deleted) {
+        Record record = new Record(id, "testbase", new byte[0]);
+        record.setDeleted(deleted);
+        Document document = new Document();
+        document.add(new StringField("title", "Title for " + id, Field.Store.YES));
+        Payload payload = new Payload(record);
+        payload.getObjectData().put(Payload.LUCENE_DOCUMENT, document);
+        return payload;
+    }
+}
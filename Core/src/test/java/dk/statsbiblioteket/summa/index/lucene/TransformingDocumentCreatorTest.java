@@ -0,0 +1,197 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.index.lucene;
+
+import dk.statsbiblioteket.summa.common.Record;
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.common.configuration.Resolver;
+import dk.statsbiblioteket.summa.common.filter.Payload;
+import dk.statsbiblioteket.summa.common.filter.object.ObjectFilter;
+import dk.statsbiblioteket.summa.common.index.IndexDescriptor;
+import dk.statsbiblioteket.summa.common.unittest.PayloadFeederHelper;
+import dk.statsbiblioteket.summa.index.XMLTransformer;
+import dk.statsbiblioteket.util.Files;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class TransformingDocumentCreatorTest extends TestCase {
+    private static Log log = LogFactory.getLog(TransformingDocumentCreatorTest.class);
+
+    public static final String XSLT = "index/fagref/fagref_index.xsl";
+    public static final String DESCRIPTOR = "index/fagref/fagref_IndexDescriptor.xml";
+    public static final String[] SOURCES = new String[]{
+            "index/fagref/gurli.margrethe.xml", "index/fagref/hans.jensen.xml", "index/fagref/jens.hansen.xml"};
+
+    public TransformingDocumentCreatorTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TransformingDocumentCreatorTest.class);
+    }
+
+    public void testFusedMatchesTwoStep() throws Exception {
+        List<Payload> twoStep = createTwoStep(getPayloads(1));
+        List<Payload> fused = createFused(getPayloads(1));
+        assertEquals("The number of processed Payloads should match", twoStep.size(), fused.size());
+        for (int i = 0 ; i < twoStep.size() ; i++) {
+            Document expected = (Document)twoStep.get(i).getData(Payload.LUCENE_DOCUMENT);
+            Document actual = (Document)fused.get(i).getData(Payload.LUCENE_DOCUMENT);
+            assertNotNull("There should be a fused Document for " + fused.get(i).getId(), actual);
+            assertEquals("The Documents for " + fused.get(i).getId() + " should match",
+                         toString(expected), toString(actual));
+        }
+    }
+
+    public void testNonSummaDocument() throws Exception {
+        Configuration conf = getConf();
+        conf.set(XMLTransformer.CONF_XSLT, "index/identity.xslt");
+        ObjectFilter creator = new TransformingDocumentCreator(conf);
+        creator.setSource(new PayloadFeederHelper(getPayloads(1)));
+        assertFalse("No Payloads should pass when the XSLT does not produce SummaDocumentXML", creator.hasNext());
+        creator.close(true);
+    }
+
+    /**
+     * Side-by-side measurement of XMLTransformer followed by StreamingDocumentCreator vs. TransformingDocumentCreator.
+     * Run with {@link #main} to measure other setups, such as MARC bases with their production XSLTs.
+     */
+    public void testSpeed() throws Exception {
+        measure(XSLT, DESCRIPTOR, getPayloads(100), 3);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: TransformingDocumentCreatorTest xslt descriptor sourcefile*");
+            return;
+        }
+        List<String> sources = new ArrayList<>();
+        for (int i = 2 ; i < args.length ; i++) {
+            sources.add(Files.loadString(Resolver.getFile(args[i])));
+        }
+        List<Payload> payloads = new ArrayList<>();
+        for (int i = 0 ; i < 10000 / sources.size() ; i++) {
+            for (String source: sources) {
+                payloads.add(new Payload(new Record("doc_" + payloads.size(), "dummy", source.getBytes("utf-8"))));
+            }
+        }
+        measure(args[0], args[1], payloads, 10);
+    }
+
+    private static void measure(String xslt, String descriptor, List<Payload> payloads, int runs) throws Exception {
+        for (int run = 0 ; run < runs ; run++) {
+            long twoStepTime = -System.nanoTime();
+            createTwoStep(copy(payloads), xslt, descriptor);
+            twoStepTime += System.nanoTime();
+
+            long fusedTime = -System.nanoTime();
+            createFused(copy(payloads), xslt, descriptor);
+            fusedTime += System.nanoTime();
+
+            log.info(String.format("Run %d with %d records. Two step: %d records/s, fused: %d records/s",
+                                   run, payloads.size(), payloads.size() * 1000000000L / twoStepTime,
+                                   payloads.size() * 1000000000L / fusedTime));
+        }
+    }
+
+    private static List<Payload> copy(List<Payload> payloads) {
+        List<Payload> copies = new ArrayList<>(payloads.size());
+        for (Payload payload: payloads) {
+            Record record = payload.getRecord();
+            copies.add(new Payload(new Record(record.getId(), record.getBase(), record.getContent())));
+        }
+        return copies;
+    }
+
+    private List<Payload> createTwoStep(List<Payload> payloads) throws Exception {
+        return createTwoStep(payloads, XSLT, DESCRIPTOR);
+    }
+
+    private static List<Payload> createTwoStep(List<Payload> payloads, String xslt, String descriptor)
+            throws Exception {
+        Configuration conf = getConf(xslt, descriptor);
+        ObjectFilter transformer = new XMLTransformer(conf);
+        transformer.setSource(new PayloadFeederHelper(payloads));
+        ObjectFilter creator = new StreamingDocumentCreator(conf);
+        creator.setSource(transformer);
+        return empty(creator);
+    }
+
+    private List<Payload> createFused(List<Payload> payloads) throws Exception {
+        return createFused(payloads, XSLT, DESCRIPTOR);
+    }
+
+    private static List<Payload> createFused(List<Payload> payloads, String xslt, String descriptor)
+            throws Exception {
+        ObjectFilter creator = new TransformingDocumentCreator(getConf(xslt, descriptor));
+        creator.setSource(new PayloadFeederHelper(payloads));
+        return empty(creator);
+    }
+
+    private static List<Payload> empty(ObjectFilter filter) {
+        List<Payload> processed = new ArrayList<>();
+        while (filter.hasNext()) {
+            processed.add(filter.next());
+        }
+        filter.close(true);
+        return processed;
+    }
+
+    private List<Payload> getPayloads(int copies) throws Exception {
+        List<Payload> payloads = new ArrayList<>();
+        for (int i = 0 ; i < copies ; i++) {
+            for (String source: SOURCES) {
+                payloads.add(new Payload(new Record(source + "_" + i, "fagref",
+                                                    Files.loadString(Resolver.getFile(source)).getBytes("utf-8"))));
+            }
+        }
+        return payloads;
+    }
+
+    private Configuration getConf() throws IOException {
+        return getConf(XSLT, DESCRIPTOR);
+    }
+
+    private static Configuration getConf(String xslt, String descriptor) throws IOException {
+        Configuration conf = Configuration.newMemoryBased(
+                XMLTransformer.CONF_XSLT, xslt,
+                XMLTransformer.CONF_STRIP_XML_NAMESPACES, false);
+        Configuration idConf = conf.createSubConfiguration(IndexDescriptor.CONF_DESCRIPTOR);
+        idConf.set(IndexDescriptor.CONF_ABSOLUTE_LOCATION, Resolver.getURL(descriptor).toString());
+        return conf;
+    }
+
+    private String toString(Document document) {
+        StringBuilder sb = new StringBuilder();
+        for (IndexableField field: document.getFields()) {
+            sb.append(field.name()).append(":").append(field.stringValue()).append("^").append(field.boost());
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
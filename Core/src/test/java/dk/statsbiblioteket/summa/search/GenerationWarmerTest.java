@@ -0,0 +1,101 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.search;
+
+import dk.statsbiblioteket.summa.common.configuration.Configurable;
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.search.api.Request;
+import dk.statsbiblioteket.summa.search.api.document.DocumentKeys;
+import dk.statsbiblioteket.summa.search.dummy.SearchNodeDummy;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import junit.framework.TestCase;
+
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class GenerationWarmerTest extends TestCase {
+
+    public void testSampling() throws Exception {
+        GenerationWarmer warmer = new GenerationWarmer(Configuration.newMemoryBased(
+                GenerationWarmer.CONF_SAMPLE_SIZE, 5,
+                GenerationWarmer.CONF_SAMPLE_EVERY, 2));
+        for (int i = 0 ; i < 20 ; i++) {
+            warmer.record(new Request(DocumentKeys.SEARCH_QUERY, "q" + i));
+        }
+        assertEquals("The number of samples should be capped", 5, warmer.getSamples().size());
+        for (Request sample: warmer.getSamples()) {
+            int number = Integer.parseInt(sample.getString(DocumentKeys.SEARCH_QUERY).substring(1));
+            assertTrue("Only the most recent requests should be kept, but got " + number, number >= 10);
+            assertEquals("Only every second request should be sampled", 1, number % 2);
+        }
+    }
+
+    public void testSampleIsCopy() throws Exception {
+        GenerationWarmer warmer = new GenerationWarmer(Configuration.newMemoryBased(
+                GenerationWarmer.CONF_SAMPLE_EVERY, 1));
+        Request request = new Request(DocumentKeys.SEARCH_QUERY, "foo");
+        warmer.record(request);
+        request.put(DocumentKeys.SEARCH_QUERY, "bar");
+        assertEquals("The recorded request should not be affected by later changes",
+                     "foo", warmer.getSamples().get(0).getString(DocumentKeys.SEARCH_QUERY));
+    }
+
+    public void testWarmup() throws Exception {
+        GenerationWarmer warmer = new GenerationWarmer(Configuration.newMemoryBased(
+                GenerationWarmer.CONF_SAMPLE_EVERY, 1,
+                GenerationWarmer.CONF_TOLERANCE, 1000.0, // Always converge
+                GenerationWarmer.CONF_MIN_ROUNDS, 2));
+        for (int i = 0 ; i < 10 ; i++) {
+            warmer.record(new Request(DocumentKeys.SEARCH_QUERY, "q" + i));
+        }
+        SearchNode node = new SearchNodeDummy(Configuration.newMemoryBased());
+        node.open("dummy");
+        try {
+            GenerationWarmer.Stats stats = warmer.warmup(node);
+            assertTrue("Warmup should converge. " + stats, stats.isConverged());
+            assertEquals("The number of rounds should be as expected. " + stats, 2, stats.getRounds());
+            assertEquals("All requests should be replayed in each round. " + stats, 20, stats.getQueries());
+        } finally {
+            node.close();
+        }
+    }
+
+    public void testEmptyWarmup() throws Exception {
+        GenerationWarmer warmer = new GenerationWarmer(Configuration.newMemoryBased());
+        SearchNode node = new SearchNodeDummy(Configuration.newMemoryBased());
+        GenerationWarmer.Stats stats = warmer.warmup(node);
+        assertEquals("No queries should be issued without samples", 0, stats.getQueries());
+        assertFalse("Warmup without samples should not be marked as converged", stats.isConverged());
+    }
+
+    public void testMissingNodeClass() throws Exception {
+        Configuration conf = Configuration.newMemoryBased(
+                SummaSearcherImpl.CONF_WARMUP_GENERATIONS, true,
+                SummaSearcherImpl.CONF_USE_LOCAL_INDEX, false);
+        try {
+            new SummaSearcherImpl(conf, new SearchNodeDummy(conf)).close();
+            fail("Enabling generation warmup without a node class should fail");
+        } catch (Configurable.ConfigurationException e) {
+            // Expected
+        }
+    }
+
+    public void testPercentile() {
+        long[] values = new long[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        assertEquals("The median should be correct", 5, GenerationWarmer.getPercentile(values, 50));
+        assertEquals("The 95th percentile should be correct", 10, GenerationWarmer.getPercentile(values, 95));
+        assertEquals("The 0th percentile should be the minimum", 1, GenerationWarmer.getPercentile(values, 0));
+    }
+}
@@ -16,10 +16,15 @@ package dk.statsbiblioteket.summa.search;
 
 import dk.statsbiblioteket.summa.common.configuration.Configuration;
 import dk.statsbiblioteket.summa.common.rpc.ConnectionConsumer;
+import dk.statsbiblioteket.summa.search.api.DegradedResponse;
 import dk.statsbiblioteket.summa.search.api.Request;
+import dk.statsbiblioteket.summa.search.api.Response;
+import dk.statsbiblioteket.summa.search.api.ResponseCollection;
+import dk.statsbiblioteket.summa.search.api.SearchClient;
 import dk.statsbiblioteket.summa.search.api.SummaSearcher;
 import dk.statsbiblioteket.summa.search.dummy.SummaSearcherDummy;
 import dk.statsbiblioteket.summa.search.rmi.RMISearcherProxy;
+import dk.statsbiblioteket.summa.support.api.DebugResponse;
 import dk.statsbiblioteket.util.Strings;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import junit.framework.Test;
@@ -104,6 +109,72 @@ public class SummaSearcherAggregatorTest extends TestCase {
         aggregator.close();
     }
 
+    public void testDeadline() throws IOException {
+        Configuration conf = Configuration.newMemoryBased();
+        List<Configuration> connections = conf.createSubConfigurations(SummaSearcherAggregator.CONF_SEARCHERS, 2);
+        connections.get(0).set(ConnectionConsumer.CONF_RPC_TARGET, "//localhost:28000/fast");
+        connections.get(0).set(SummaSearcherAggregator.CONF_SEARCHER_DESIGNATION, "fast");
+        connections.get(1).set(ConnectionConsumer.CONF_RPC_TARGET, "//localhost:28000/slow");
+        connections.get(1).set(SummaSearcherAggregator.CONF_SEARCHER_DESIGNATION, "slow");
+        connections.get(1).set(SummaSearcherAggregator.CONF_SEARCHER_TIMEOUT, 200);
+        SummaSearcherAggregator aggregator = new SummaSearcherAggregator(conf) {
+            @Override
+            protected SearchClient createClient(final Configuration searcherConf) {
+                return new SearchClient(searcherConf) {
+                    @Override
+                    public ResponseCollection search(Request request) throws IOException {
+                        String designation = searcherConf.getString(CONF_SEARCHER_DESIGNATION);
+                        if ("slow".equals(designation)) {
+                            // Ignores interrupts to simulate a searcher that delivers after being cancelled
+                            long end = System.currentTimeMillis() + 800;
+                            while (System.currentTimeMillis() < end) {
+                                try {
+                                    Thread.sleep(end - System.currentTimeMillis());
+                                } catch (InterruptedException e) {
+                                    // Continue sleeping
+                                }
+                            }
+                        }
+                        ResponseCollection responses = new ResponseCollection();
+                        responses.add(new DebugResponse(designation, "source", designation));
+                        return responses;
+                    }
+                };
+            }
+        };
+        try {
+            long startTime = System.currentTimeMillis();
+            ResponseCollection responses = aggregator.search(new Request());
+            long spend = System.currentTimeMillis() - startTime;
+            assertTrue("The search should return within the budget of the slow searcher, but took " + spend + "ms",
+                       spend < 1500);
+            String xml = responses.toXML();
+            assertTrue("The result should contain the fast source\n" + xml, xml.contains("fast"));
+            DegradedResponse degraded = null;
+            for (Response response: responses) {
+                if (response instanceof DegradedResponse) {
+                    degraded = (DegradedResponse)response;
+                }
+            }
+            assertNotNull("The result should be marked as degraded\n" + xml, degraded);
+            assertEquals("Only the slow searcher should be degraded",
+                         Arrays.asList("slow"), new ArrayList<>(degraded.getSources().keySet()));
+            assertTrue("The latency stats should contain the timeout: " + aggregator.getLatencyStats(),
+                       aggregator.getLatencyStats().contains("timeouts=1"));
+            Thread.sleep(1000); // The slow searcher delivers after its budget has been cancelled
+            assertTrue("A delivery after cancellation should not be counted as a success: "
+                       + aggregator.getLatencyStats(),
+                       aggregator.getLatencyStats().contains("slow(count=0, timeouts=1"));
+
+            Request request = new Request(SummaSearcherAggregator.SEARCH_TIMEOUT, 5000);
+            String full = aggregator.search(request).toXML();
+            assertTrue("A search-time budget should not raise the configured budget\n" + full,
+                       full.contains("DegradedResponse"));
+        } finally {
+            aggregator.close();
+        }
+    }
+
     private void closeSearchers(List<SummaSearcher> searchers) throws IOException {
         for (SummaSearcher searcher : searchers) {
             searcher.close();
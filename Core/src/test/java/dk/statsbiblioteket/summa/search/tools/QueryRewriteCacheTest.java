@@ -0,0 +1,46 @@
+package dk.statsbiblioteket.summa.search.tools;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class QueryRewriteCacheTest extends TestCase {
+    public QueryRewriteCacheTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(QueryRewriteCacheTest.class);
+    }
+
+    public void testContext() {
+        QueryRewriteCache cache = new QueryRewriteCache(10);
+        cache.put("a", "foo bar", "rewritten_a");
+        cache.put("b", "foo bar", "rewritten_b");
+        assertEquals("Context a should give its own rewrite", "rewritten_a", cache.get("a", "foo bar"));
+        assertEquals("Context b should give its own rewrite", "rewritten_b", cache.get("b", "foo bar"));
+        assertEquals("Surrounding whitespace should be ignored", "rewritten_a", cache.get("a", " foo bar "));
+        assertNull("Unknown queries should not be found", cache.get("a", "zoo"));
+        assertEquals("The number of hits should be counted", 3, cache.getHits());
+        assertEquals("The number of misses should be counted", 1, cache.getMisses());
+        assertEquals("The hit rate should be as expected", 0.75, cache.getHitRate(), 0.0001);
+    }
+
+    public void testLRU() {
+        QueryRewriteCache cache = new QueryRewriteCache(2);
+        cache.put("", "q1", "r1");
+        cache.put("", "q2", "r2");
+        cache.get("", "q1"); // q2 is now least recently used
+        cache.put("", "q3", "r3");
+        assertEquals("The cache should be capped", 2, cache.size());
+        assertNull("The least recently used entry should be evicted", cache.get("", "q2"));
+        assertEquals("The recently used entry should be kept", "r1", cache.get("", "q1"));
+    }
+
+    public void testDisabled() {
+        QueryRewriteCache cache = new QueryRewriteCache(0);
+        cache.put("", "q1", "r1");
+        assertNull("Nothing should be cached when the size is 0", cache.get("", "q1"));
+        assertEquals("Disabled lookups should not count", 0, cache.getMisses());
+    }
+}
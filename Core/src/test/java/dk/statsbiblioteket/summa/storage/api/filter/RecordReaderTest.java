@@ -105,8 +105,12 @@ public class RecordReaderTest extends TestCase {
                 RMIStorageProxy.CONF_SERVICE_PORT, 28000
         ), storage);
 
-        assertEquals("Without partial deliveries, only a subset should be returned", BATCH, countRecords(false));
-        assertEquals("With partial deliveries, all Records should be returned", RECORDS, countRecords(true));
+        for (int prefetch: new int[]{0, 1, 3}) {
+            assertEquals("Without partial deliveries, only a subset should be returned with prefetch " + prefetch,
+                         BATCH, countRecords(false, prefetch));
+            assertEquals("With partial deliveries, all Records should be returned with prefetch " + prefetch,
+                         RECORDS, countRecords(true, prefetch));
+        }
 
         rmiStorage.close();
     }
@@ -192,9 +196,10 @@ public class RecordReaderTest extends TestCase {
 
     }
 
-    private int countRecords(boolean allowPartialDeliveries) throws IOException {
+    private int countRecords(boolean allowPartialDeliveries, int prefetch) throws IOException {
         RecordReader reader = new RecordReader(Configuration.newMemoryBased(
                 RecordReader.CONF_ALLOW_PARTIAL_DELIVERIES, allowPartialDeliveries,
+                RecordReader.CONF_PREFETCH_BATCHES, prefetch,
                 RecordReader.CONF_START_FROM_SCRATCH, true,
                 ConnectionConsumer.CONF_RPC_TARGET, "//localhost:28000/Faker"
         ));
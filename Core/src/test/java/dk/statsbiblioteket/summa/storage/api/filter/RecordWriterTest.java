@@ -22,6 +22,7 @@ import dk.statsbiblioteket.summa.common.filter.object.ObjectFilter;
 import dk.statsbiblioteket.summa.storage.api.Storage;
 import dk.statsbiblioteket.summa.storage.api.StorageFactory;
 import dk.statsbiblioteket.summa.storage.api.StorageIterator;
+import dk.statsbiblioteket.summa.storage.api.WritableStorage;
 import dk.statsbiblioteket.summa.storage.database.DatabaseStorage;
 import dk.statsbiblioteket.util.Files;
 import dk.statsbiblioteket.util.qa.QAInfo;
@@ -33,10 +34,16 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings({"DuplicateStringLiteralInspection"})
 @QAInfo(level = QAInfo.Level.NORMAL,
@@ -106,6 +113,89 @@ public class RecordWriterTest extends TestCase {
         assertBaseCount("fooBase", 100);
     }
 
+    public void testRetry() throws Exception {
+        final AtomicInteger flushAttempts = new AtomicInteger(0);
+        Configuration conf = Configuration.newMemoryBased(
+                RecordWriter.CONF_INFLIGHT, 1,
+                RecordWriter.CONF_RETRY_DELAY, 10);
+        writer = new RecordWriter(conf, createFailingStorage(flushAttempts, 1), 100,
+                                  RecordWriter.DEFAULT_BATCH_MAXMEMORY, 1000);
+        writer.setSource(new ObjectProvider(25));
+        while (writer.pump()) {
+            // Wait
+        }
+        writer.close(true);
+        assertEquals("The single batch should be sent once and retried once", 2, flushAttempts.get());
+        assertEquals("The retry should be reported", 1, writer.getRetries());
+        assertEquals("No records should be dropped", 0, writer.getRecordsDropped());
+        assertBaseCount("fooBase", 25);
+    }
+
+    public void testNoRetrySynchronous() throws Exception {
+        final AtomicInteger flushAttempts = new AtomicInteger(0);
+        writer = new RecordWriter(createFailingStorage(flushAttempts, 1), 100, 1000);
+        writer.setSource(new ObjectProvider(25));
+        while (writer.pump()) {
+            // Wait
+        }
+        writer.close(true);
+        assertEquals("The failed batch should not be retried when sending synchronously", 1, flushAttempts.get());
+        assertEquals("No retries should be reported", 0, writer.getRetries());
+        assertEquals("The failed batch should be reported as dropped", 25, writer.getRecordsDropped());
+    }
+
+    /* Fails the first failures calls to flushAll and counts all calls to flushAll */
+    private WritableStorage createFailingStorage(final AtomicInteger flushAttempts, final int failures) {
+        return (WritableStorage) Proxy.newProxyInstance(
+                WritableStorage.class.getClassLoader(), new Class[]{WritableStorage.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("flushAll".equals(method.getName()) && flushAttempts.incrementAndGet() <= failures) {
+                            throw new IOException("Simulated failure");
+                        }
+                        try {
+                            return method.invoke(storage, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    public void testInFlightOrder() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        WritableStorage slow = (WritableStorage) Proxy.newProxyInstance(
+                WritableStorage.class.getClassLoader(), new Class[]{WritableStorage.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("flushAll".equals(method.getName())) {
+                            @SuppressWarnings("unchecked")
+                            List<Record> records = (List<Record>) args[0];
+                            List<String> batch = new ArrayList<>(records.size());
+                            for (Record record: records) {
+                                batch.add(record.getId() + ":" + new String(record.getContent(false), "utf-8"));
+                            }
+                            Thread.sleep(batch.contains("a:1") ? 500 : 10); // The first batch is slow
+                            sent.addAll(batch);
+                            return null;
+                        }
+                        return method.invoke(storage, args);
+                    }
+                });
+        Configuration conf = Configuration.newMemoryBased(
+                RecordWriter.CONF_INFLIGHT, 3);
+        writer = new RecordWriter(conf, slow, 2, RecordWriter.DEFAULT_BATCH_MAXMEMORY, 1000);
+        // Batch 1: a:1, b:1 (slow). Batch 2: a:2, c:1 is dispatched while batch 1 is still in flight
+        writer.processRecord(new Record("a", "fooBase", "1".getBytes("utf-8")));
+        writer.processRecord(new Record("b", "fooBase", "1".getBytes("utf-8")));
+        writer.processRecord(new Record("a", "fooBase", "2".getBytes("utf-8")));
+        writer.processRecord(new Record("c", "fooBase", "1".getBytes("utf-8")));
+        writer.close(true);
+        assertEquals("All updates should be sent", 4, sent.size());
+        assertTrue("The first update for a should be sent before the second: " + sent,
+                   sent.indexOf("a:1") < sent.indexOf("a:2"));
+    }
+
     public void disabledtestBatchOvershoot() throws Exception {
         writer.setSource(new ObjectProvider(100007));
         while (writer.pump()) {
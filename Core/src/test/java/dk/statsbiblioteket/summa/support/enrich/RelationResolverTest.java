@@ -24,6 +24,8 @@ import dk.statsbiblioteket.summa.common.filter.object.RecordShaperFilter;
 import dk.statsbiblioteket.summa.common.rpc.ConnectionConsumer;
 import dk.statsbiblioteket.summa.common.unittest.PayloadFeederHelper;
 import dk.statsbiblioteket.summa.common.util.RecordUtil;
+import dk.statsbiblioteket.summa.search.api.Request;
+import dk.statsbiblioteket.summa.search.api.ResponseCollection;
 import dk.statsbiblioteket.summa.search.api.SummaSearcher;
 import dk.statsbiblioteket.summa.search.api.document.DocumentKeys;
 import dk.statsbiblioteket.summa.search.api.document.DocumentResponse;
@@ -44,6 +46,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -130,6 +133,89 @@ public class RelationResolverTest extends TestCase {
         storage.close();
     }
 
+    public void testBatchedLookup() throws IOException {
+        final List<String> queries = new ArrayList<>();
+        assertBatchedLookup(queries, 10, 1);
+        assertEquals("There should be 1 batched and 2 single searches. Queries were " + queries, 3, queries.size());
+        assertEquals("The batched query should be as expected",
+                     "id:(parent1 OR parent2 OR PARENT1 OR missing)", queries.get(0));
+        assertTrue("The value without attributed hits should be searched for separately. Queries were " + queries,
+                   queries.contains("id:missing"));
+
+        queries.clear();
+        assertBatchedLookup(queries, 2, 2);
+        assertTrue("There should be a single search for the unbatchable value. Queries were " + queries,
+                   queries.contains("id:two words"));
+    }
+
+    private void assertBatchedLookup(final List<String> queries, int batchSize, int threads) {
+        List<Payload> payloads = new ArrayList<>();
+        for (String searchValue : Arrays.asList("parent1", "parent2", "PARENT1", "missing", "two words", "parent2")) {
+            Record record = new Record("enricher" + payloads.size(), "foo", new byte[0]);
+            record.getMeta().put("SearchTerm", searchValue);
+            payloads.add(new Payload(record));
+        }
+        Configuration resolverConf = Configuration.newMemoryBased(
+                RelationResolver.CONF_ASSIGN_PARENTS, true,
+                RelationResolver.CONF_SEARCH_FIELD, "id",
+                RelationResolver.CONF_SEARCH_MAXHITS, 1,
+                RelationResolver.CONF_SEARCH_METAKEYS, new ArrayList<>(Arrays.asList("SearchTerm")),
+                RelationResolver.CONF_NONMATCHED_FOLDER, NONMATCHED.getAbsolutePath(),
+                RelationResolver.CONF_BATCH_SIZE, batchSize,
+                RelationResolver.CONF_THREADS, threads,
+                ConnectionConsumer.CONF_RPC_TARGET, "NotUsed");
+        ObjectFilter resolver = new RelationResolver(resolverConf) {
+            @Override
+            protected SummaSearcher createSearchClient(Configuration conf) {
+                return new SummaSearcher() {
+                    @Override
+                    public synchronized ResponseCollection search(Request request) throws IOException {
+                        String query = request.getString(DocumentKeys.SEARCH_QUERY);
+                        queries.add(query);
+                        String lower = query.toLowerCase(Locale.ROOT);
+                        List<String[]> hits = new ArrayList<>();
+                        if (lower.contains("parent1")) {
+                            hits.add(new String[]{"internal_parent1", "parent1"});
+                        }
+                        if (lower.contains("parent2")) {
+                            hits.add(new String[]{"internal_parent2", "parent2"});
+                        }
+                        if (lower.contains("two words")) {
+                            hits.add(new String[]{"internal_parent3", "two words"});
+                        }
+                        DocumentResponse response = new DocumentResponse(
+                                null, query, 0, 10, "LUCENE", false, new String[]{DocumentKeys.RECORD_ID, "id"}, 1,
+                                hits.size());
+                        for (String[] hit : hits) {
+                            DocumentResponse.Record record = new DocumentResponse.Record(hit[0], "foo", 1.0f, "");
+                            record.add(new DocumentResponse.Field(DocumentKeys.RECORD_ID, hit[0], false));
+                            record.add(new DocumentResponse.Field("id", hit[1], false));
+                            response.addRecord(record);
+                        }
+                        ResponseCollection responses = new ResponseCollection();
+                        responses.add(response);
+                        return responses;
+                    }
+
+                    @Override
+                    public void close() throws IOException { }
+                };
+            }
+        };
+        resolver.setSource(new PayloadFeederHelper(payloads));
+
+        List<String> parents = new ArrayList<>();
+        while (resolver.hasNext()) {
+            Payload enriched = resolver.next();
+            parents.add(enriched.getRecord().getParentIds().get(0));
+        }
+        resolver.close(true);
+        assertEquals("The resolved parents should be as expected with batchSize " + batchSize + " and threads "
+                     + threads,
+                     Arrays.asList("internal_parent1", "internal_parent2", "internal_parent1", "internal_parent3",
+                                   "internal_parent2"), parents);
+    }
+
     private static final String TEI =
             "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
             + "<TEI xmlns=\"http://www.tei-c.org/ns/1.0\">\n"
@@ -125,6 +125,24 @@ public class InteractionAdjusterTest extends TestCase {
         }
     }
 
+    public void testRewriteCache() {
+        InteractionAdjuster adjuster = createAdjuster();
+        String first = adjuster.rewrite(
+                new Request(DocumentKeys.SEARCH_QUERY, "author_normalised:foo")).getString(DocumentKeys.SEARCH_QUERY);
+        assertEquals("The first rewrite should not be a cache hit", 0, adjuster.getRewriteCache().getHits());
+        String second = adjuster.rewrite(
+                new Request(DocumentKeys.SEARCH_QUERY, "author_normalised:foo")).getString(DocumentKeys.SEARCH_QUERY);
+        assertEquals("The second rewrite should be a cache hit", 1, adjuster.getRewriteCache().getHits());
+        assertEquals("The cached rewrite should be equal to the first rewrite", first, second);
+
+        String custom = adjuster.rewrite(new Request(
+                DocumentKeys.SEARCH_QUERY, "author_normalised:foo",
+                InteractionAdjuster.SEARCH_ADJUST_DOCUMENT_FIELDS, "author_normalised - Creator"
+        )).getString(DocumentKeys.SEARCH_QUERY);
+        assertTrue("Search-time field mappings should not use the cached rewrite but got " + custom,
+                   custom.contains("Creator"));
+    }
+
     public void testUnsupportedFieldsFilterSingle() {
         Configuration conf = createAdjusterConfiguration();
         conf.set(InteractionAdjuster.CONF_ADJUST_UNSUPPORTED_QUERY, "un:supported");
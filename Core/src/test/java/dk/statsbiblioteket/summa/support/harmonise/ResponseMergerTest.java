@@ -14,7 +14,10 @@ import junit.framework.TestSuite;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 public class ResponseMergerTest extends TestCase {
     public ResponseMergerTest(String name) {
@@ -210,6 +213,66 @@ public class ResponseMergerTest extends TestCase {
         ));
     }
 
+    // Only the page window and the forced candidates are extracted, but the result must be the same as with a full merge
+    public void testForceSmallPage() {
+        assertEquals(Configuration.newMemoryBased(
+            ResponseMerger.CONF_MODE, ResponseMerger.MODE.concatenate,
+            ResponseMerger.CONF_ORDER, "searcherC, searcherA",
+            ResponseMerger.CONF_POST, ResponseMerger.POST.enforce,
+            ResponseMerger.CONF_FORCE_TOPX, 4,
+            ResponseMerger.CONF_FORCE_RULES, "searcherB(2)"),
+            new Request(), generateResponses(4), Arrays.asList(
+            "C1", "C2", "B1", "B2"
+        ));
+    }
+
+    public void testSmallPage() {
+        assertEquals(Configuration.newMemoryBased(
+            ResponseMerger.CONF_MODE, ResponseMerger.MODE.score),
+            new Request(), generateResponses(4), Arrays.asList(
+            "A1", "A2", "B1", "B2"
+        ));
+        assertEquals(Configuration.newMemoryBased(
+            ResponseMerger.CONF_MODE, ResponseMerger.MODE.interleave,
+            ResponseMerger.CONF_ORDER, "searcherB, searcherC"),
+            new Request(), generateResponses(4), Arrays.asList(
+            "B1", "C1", "A1", "B2"
+        ));
+    }
+
+    public void testKWayMerge() {
+        Random random = new Random(87);
+        List<SummaSearcherAggregator.ResponseHolder> holders = new ArrayList<>();
+        List<DocumentResponse.Record> all = new ArrayList<>();
+        Request request = new Request(
+            DocumentKeys.SEARCH_QUERY, "foozoo",
+            DocumentKeys.SEARCH_MAX_RECORDS, 20);
+        for (int s = 0 ; s < 10 ; s++) {
+            List<Object> hits = new ArrayList<>();
+            float score = 10.0f;
+            for (int r = 0 ; r < 1000 ; r++) {
+                score -= random.nextFloat() / 100;
+                hits.add("s" + s + "_" + r);
+                hits.add(score);
+            }
+            SummaSearcherAggregator.ResponseHolder holder = generateResponse("searcher" + s, request, 1000, 10, hits);
+            holders.add(holder);
+            all.addAll(((DocumentResponse)holder.getResponses().iterator().next()).getRecords());
+        }
+        Collections.sort(all, new Comparator<DocumentResponse.Record>() {
+            @Override
+            public int compare(DocumentResponse.Record o1, DocumentResponse.Record o2) {
+                return -Float.compare(o1.getScore(), o2.getScore());
+            }
+        });
+        List<String> expected = new ArrayList<>(20);
+        for (int i = 0 ; i < 20 ; i++) {
+            expected.add(all.get(i).getId());
+        }
+        assertEquals(Configuration.newMemoryBased(ResponseMerger.CONF_MODE, ResponseMerger.MODE.score),
+                     new Request(), holders, expected);
+    }
+
     private void assertEquals(
         Configuration conf, Request request,
         List<SummaSearcherAggregator.ResponseHolder> responses,
@@ -238,14 +301,18 @@ public class ResponseMergerTest extends TestCase {
     /**
      * @return sample data from three simulated searchers.
      */
-    @SuppressWarnings({"RedundantArrayCreation"})
     private List<SummaSearcherAggregator.ResponseHolder> generateResponses() {
+        return generateResponses(20);
+    }
+
+    @SuppressWarnings({"RedundantArrayCreation"})
+    private List<SummaSearcherAggregator.ResponseHolder> generateResponses(int maxRecords) {
         List<SummaSearcherAggregator.ResponseHolder> holders =
             new ArrayList<>(3);
         Request request = new Request(
             DocumentKeys.SEARCH_FILTER, null,
             DocumentKeys.SEARCH_QUERY, "foozoo",
-            DocumentKeys.SEARCH_MAX_RECORDS, 20);
+            DocumentKeys.SEARCH_MAX_RECORDS, maxRecords);
         List<Object> hitsA = Arrays.asList(new Object[]{
             "A1", 1.0f,
             "A2", 1.0f,
@@ -0,0 +1,175 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.support.solr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests the {@link PooledHttpClient} against a local stub server.
+ */
+public class PooledHttpClientTest extends TestCase {
+    private static final String CONTENT = "<response>Hello pooled world</response>";
+
+    private HttpServer server;
+    private String base;
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger maxActive = new AtomicInteger(0);
+    private final AtomicInteger gzipped = new AtomicInteger(0);
+
+    @Override
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 50);
+        server.createContext("/ok", new StubHandler(200, 0));
+        server.createContext("/slow", new StubHandler(200, 100));
+        server.createContext("/fail", new StubHandler(500, 0));
+        server.setExecutor(Executors.newFixedThreadPool(20));
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        server.stop(0);
+    }
+
+    public void testKeepAlive() throws Exception {
+        PooledHttpClient client = new PooledHttpClient(5, 10, 1000, false, 60000);
+        try {
+            for (int i = 0 ; i < 10 ; i++) {
+                assertEquals("The content should be delivered",
+                             CONTENT, client.getString(new HttpGet(base + "/ok"), 1000, 1000).getContent());
+            }
+            assertEquals("Sequential requests should reuse the same connection", 1, clientPorts.size());
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testGzip() throws Exception {
+        PooledHttpClient client = new PooledHttpClient(5, 10, 1000, true, 60000);
+        try {
+            assertEquals("The gzipped content should be decompressed",
+                         CONTENT, client.getString(new HttpGet(base + "/ok"), 1000, 1000).getContent());
+            assertEquals("The server should have been asked for gzip", 1, gzipped.get());
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testPerHostLimit() throws Exception {
+        final PooledHttpClient client = new PooledHttpClient(2, 10, 10000, false, 60000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0 ; i < 8 ; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return client.getString(new HttpGet(base + "/slow"), 1000, 5000).getContent();
+                    }
+                }));
+            }
+            for (Future<String> result: results) {
+                assertEquals("All requests should succeed", CONTENT, result.get());
+            }
+            assertEquals("No more than the per-host limit of connections should be active at the same time",
+                         2, maxActive.get());
+        } finally {
+            executor.shutdown();
+            client.close();
+        }
+    }
+
+    public void testErrorStatus() throws Exception {
+        PooledHttpClient client = new PooledHttpClient(1, 1, 1000, false, 60000);
+        try {
+            try {
+                client.getString(new HttpGet(base + "/fail"), 1000, 1000);
+                fail("A HTTP 500 should result in an exception");
+            } catch (PooledHttpClient.HttpStatusException e) {
+                assertEquals("The status should be available", 500, e.getStatus());
+                assertTrue("The error content should be included", e.getMessage().contains(CONTENT));
+            }
+            assertEquals("The connection should be released after an error status",
+                         CONTENT, client.getString(new HttpGet(base + "/ok"), 1000, 1000).getContent());
+        } finally {
+            client.close();
+        }
+    }
+
+    private class StubHandler implements HttpHandler {
+        private final int status;
+        private final int delay;
+
+        private StubHandler(int status, int delay) {
+            this.status = status;
+            this.delay = delay;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int current = active.incrementAndGet();
+            synchronized (maxActive) {
+                maxActive.set(Math.max(maxActive.get(), current));
+            }
+            try {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                byte[] content = CONTENT.getBytes("utf-8");
+                String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+                if (encoding != null && encoding.contains("gzip")) {
+                    gzipped.incrementAndGet();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    exchange.sendResponseHeaders(status, 0);
+                    OutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+                    out.write(content);
+                    out.close();
+                } else {
+                    exchange.sendResponseHeaders(status, content.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(content);
+                    out.close();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while delaying response", e);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+}
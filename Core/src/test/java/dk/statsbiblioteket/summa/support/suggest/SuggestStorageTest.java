@@ -251,6 +251,32 @@ public class SuggestStorageTest extends TestCase {
                 "The 'food' suggestion should have 2 queries", 2, foodQueries);
     }
 
+    public void testUpdateSuggestions() throws Exception {
+        storage.addSuggestion("foo", 10, 5);
+        storage.addSuggestion("fum", 10, 5);
+        List<SuggestStorage.Update> updates = new ArrayList<>();
+        updates.add(new SuggestStorage.Update("foo", 12, -1, 2));  // Increment existing
+        updates.add(new SuggestStorage.Update("food", 4, -1, 3));  // Insert
+        updates.add(new SuggestStorage.Update("food", 5, -1, 1));  // Increment the inserted
+        updates.add(new SuggestStorage.Update("fooz", 7, 20, 0));  // Insert with explicit count
+        updates.add(new SuggestStorage.Update("fum", 0, -1, 1));   // Delete
+        storage.updateSuggestions(updates);
+
+        Document dom = DOM.stringToDOM(storage.getSuggestion("f", 10).toXML());
+        assertEquals("The batch should result in the right suggestions",
+                     3, DOM.selectNodeList(dom, "//suggestion").getLength());
+        assertEquals("The existing suggestion should be incremented",
+                     "7", DOM.selectString(dom, "//suggestion[.='foo']/@queryCount"));
+        assertEquals("The existing suggestion should get the new hit count",
+                     "12", DOM.selectString(dom, "//suggestion[.='foo']/@hits"));
+        assertEquals("Repeated inserts should be merged in order",
+                     "4", DOM.selectString(dom, "//suggestion[.='food']/@queryCount"));
+        assertEquals("The last hit count should be used for merged inserts",
+                     "5", DOM.selectString(dom, "//suggestion[.='food']/@hits"));
+        assertEquals("The explicit query count should be used",
+                     "20", DOM.selectString(dom, "//suggestion[.='fooz']/@queryCount"));
+    }
+
     public void testDeletes() throws Exception {
         testTwoAdds();
         storage.addSuggestion("foo", 0);
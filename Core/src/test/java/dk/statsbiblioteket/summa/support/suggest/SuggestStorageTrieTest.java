@@ -0,0 +1,214 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.support.suggest;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.support.api.SuggestResponse;
+import dk.statsbiblioteket.util.Files;
+import dk.statsbiblioteket.util.xml.DOM;
+import junit.framework.TestCase;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for the {@link SuggestStorageTrie}.
+ */
+public class SuggestStorageTrieTest extends TestCase {
+    private static Log log = LogFactory.getLog(SuggestStorageTrieTest.class);
+    private final File location = new File("target/test/", "suggest-trie");
+    private SuggestStorageTrie storage;
+
+    @Override
+    public void setUp() throws Exception {
+        if (location.exists()) {
+            Files.delete(location);
+        }
+        storage = new SuggestStorageTrie(Configuration.newMemoryBased(SuggestStorageTrie.CONF_TOP_K, 3));
+        storage.open(location);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        storage.close();
+        if (location.exists()) {
+            Files.delete(location);
+        }
+    }
+
+    public void testTopOrder() throws Exception {
+        storage.addSuggestion("foo", 10, 5);
+        storage.addSuggestion("foobar", 10, 7);
+        storage.addSuggestion("fool", 10, 1);
+        storage.addSuggestion("bar", 10, 100);
+        assertEquals(Arrays.asList("foobar", "foo", "fool"), getQueries("fo", 10));
+        assertEquals(Arrays.asList("foobar", "foo"), getQueries("fo", 2));
+        assertEquals(Arrays.asList("foobar"), getQueries("foob", 10));
+        assertEquals(Arrays.asList(), getQueries("x", 10));
+    }
+
+    public void testIncrement() throws Exception {
+        storage.addSuggestion("alpha", 10, 2);
+        storage.addSuggestion("alps", 10, 3);
+        assertEquals(Arrays.asList("alps", "alpha"), getQueries("al", 10));
+        storage.addSuggestion("alpha", 10);
+        storage.addSuggestion("alpha", 10);
+        assertEquals("Incremented queries should move up",
+                     Arrays.asList("alpha", "alps"), getQueries("al", 10));
+    }
+
+    public void testDecreaseAndDelete() throws Exception {
+        storage.addSuggestion("a1", 10, 4);
+        storage.addSuggestion("a2", 10, 3);
+        storage.addSuggestion("a3", 10, 2);
+        storage.addSuggestion("a4", 10, 1);
+        assertEquals("Only top-k should be returned for small requests",
+                     Arrays.asList("a1", "a2", "a3"), getQueries("a", 3));
+        storage.addSuggestion("a1", 10, 0);
+        assertEquals("Decreased counts should move entries down and promote others",
+                     Arrays.asList("a2", "a3", "a4"), getQueries("a", 3));
+        storage.addSuggestion("a2", 0);
+        assertEquals("Deleted suggestions should disappear",
+                     Arrays.asList("a3", "a4", "a1"), getQueries("a", 3));
+        assertTrue(storage.deleteSuggestion("a3"));
+        assertEquals(Arrays.asList("a4", "a1"), getQueries("a", 10));
+    }
+
+    public void testPathCompression() throws Exception {
+        storage.addSuggestion("international", 10, 3);
+        storage.addSuggestion("internet", 10, 2);
+        storage.addSuggestion("interval", 10, 1);
+        assertEquals("The nodes should be root, 'inter' and the three endings", 5, storage.getNodeCount());
+        assertEquals(Arrays.asList("international", "internet", "interval"), getQueries("int", 10));
+        assertEquals("Prefixes ending inside an edge should match",
+                     Arrays.asList("international", "internet"), getQueries("intern", 10));
+        assertEquals(Arrays.asList(), getQueries("interx", 10));
+
+        assertTrue(storage.deleteSuggestion("internet"));
+        assertEquals("Deletion should merge single child nodes", 4, storage.getNodeCount());
+        assertEquals(Arrays.asList("international"), getQueries("interna", 10));
+        storage.addSuggestion("inter", 10, 5);
+        assertEquals("A query ending inside an edge should split it", 4, storage.getNodeCount());
+        assertEquals(Arrays.asList("inter", "international", "interval"), getQueries("inte", 10));
+    }
+
+    public void testBeyondTopK() throws Exception {
+        for (int i = 0 ; i < 10 ; i++) {
+            storage.addSuggestion("b" + i, 10, i);
+        }
+        assertEquals("Requests beyond top-k should be resolved fully",
+                     Arrays.asList("b9", "b8", "b7", "b6", "b5"), getQueries("b", 5));
+    }
+
+    public void testPersistence() throws Exception {
+        storage.addSuggestion("persistent", 12, 3);
+        storage.addSuggestion("persisted", 7, 5);
+        storage.close();
+        storage = new SuggestStorageTrie(Configuration.newMemoryBased());
+        storage.open(location);
+        assertEquals("The suggestions should survive close and open",
+                     Arrays.asList("persisted", "persistent"), getQueries("pers", 10));
+        NodeList nodes = getSuggestionNodes(storage.getSuggestion("persistent", 1));
+        assertEquals("The hits should be persisted",
+                     "12", nodes.item(0).getAttributes().getNamedItem("hits").getTextContent());
+    }
+
+    public void testPersistUpdates() throws Exception {
+        storage.close();
+        Files.delete(location);
+        storage = new SuggestStorageTrie(Configuration.newMemoryBased(SuggestStorageTrie.CONF_PERSIST_UPDATES, 10));
+        storage.open(location);
+        File snapshot = new File(location, SuggestStorageTrie.SNAPSHOT_FILE);
+        for (int i = 0 ; i < 10 ; i++) {
+            storage.addSuggestion("update" + i, 10, i + 1);
+        }
+        long maxTime = System.currentTimeMillis() + 10000;
+        while (!snapshot.exists() && System.currentTimeMillis() < maxTime) {
+            Thread.sleep(10);
+        }
+        assertTrue("The snapshot should be written in the background after 10 updates", snapshot.exists());
+        assertEquals("Lookups should work while and after persisting",
+                     Arrays.asList("update9", "update8"), getQueries("upd", 2));
+    }
+
+    public void testBulkAddMatchesIncremental() throws Exception {
+        Random random = new Random(87);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0 ; i < 1000 ; i++) {
+            String query = Integer.toString(random.nextInt(5000), 36);
+            storage.addSuggestion(query, 10, random.nextInt(100) + 1);
+            lines.add(query + "\t10\t" + (random.nextInt(100) + 1));
+        }
+        SuggestStorageTrie bulk = new SuggestStorageTrie(Configuration.newMemoryBased(SuggestStorageTrie.CONF_TOP_K, 3));
+        File bulkLocation = new File("target/test/", "suggest-trie-bulk");
+        if (bulkLocation.exists()) {
+            Files.delete(bulkLocation);
+        }
+        bulk.open(bulkLocation);
+        try {
+            for (String line: lines) { // Incremental updates of the existing storage
+                String[] tokens = line.split("\t");
+                storage.addSuggestion(tokens[0], 10, Integer.parseInt(tokens[2]));
+            }
+            bulk.addSuggestions(storage.listSuggestions(0, 1000).iterator());
+            bulk.addSuggestions(storage.listSuggestions(1000, 1000).iterator());
+            for (String prefix: new String[]{"1", "2", "a", "b", "z", "3c"}) {
+                assertEquals("Bulk and incremental should match for prefix " + prefix,
+                             getQueries(storage, prefix, 3), getQueries(bulk, prefix, 3));
+            }
+        } finally {
+            bulk.close();
+            Files.delete(bulkLocation);
+        }
+    }
+
+    public void testSpeed() throws Exception {
+        Random random = new Random(87);
+        for (int i = 0 ; i < 100000 ; i++) {
+            storage.addSuggestion(Integer.toString(random.nextInt(Integer.MAX_VALUE), 36), 10, random.nextInt(1000));
+        }
+        long time = -System.nanoTime();
+        int runs = 10000;
+        for (int i = 0 ; i < runs ; i++) {
+            storage.getSuggestion(Integer.toString(i % 36, 36), 3);
+        }
+        time += System.nanoTime();
+        log.info("Average suggest time for single char prefixes in 100,000 suggestions: "
+                 + time / runs / 1000 + "µs");
+    }
+
+    private List<String> getQueries(String prefix, int max) throws Exception {
+        return getQueries(storage, prefix, max);
+    }
+
+    private List<String> getQueries(SuggestStorage storage, String prefix, int max) throws Exception {
+        List<String> queries = new ArrayList<>();
+        NodeList nodes = getSuggestionNodes(storage.getSuggestion(prefix, max));
+        for (int i = 0 ; i < nodes.getLength() ; i++) {
+            queries.add(nodes.item(i).getTextContent());
+        }
+        return queries;
+    }
+
+    private NodeList getSuggestionNodes(SuggestResponse response) {
+        return DOM.selectNodeList(DOM.stringToDOM(response.toXML()), "//suggestion");
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.support.suggest;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.util.Files;
+import dk.statsbiblioteket.util.xml.DOM;
+import junit.framework.TestCase;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for the {@link SuggestUpdateBuffer}.
+ */
+public class SuggestUpdateBufferTest extends TestCase {
+    private static final int NO_SCHEDULED_FLUSH = 60 * 60 * 1000;
+    private final File location = new File("target/test/", "suggest-buffer");
+    private SuggestStorage storage;
+
+    @Override
+    public void setUp() throws Exception {
+        if (location.exists()) {
+            Files.delete(location);
+        }
+        storage = new SuggestStorageTrie(Configuration.newMemoryBased());
+        storage.open(location);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        storage.close();
+        if (location.exists()) {
+            Files.delete(location);
+        }
+    }
+
+    public void testCoalescing() throws Exception {
+        SuggestUpdateBuffer buffer = new SuggestUpdateBuffer(storage, NO_SCHEDULED_FLUSH, 100);
+        for (int i = 0 ; i < 50 ; i++) {
+            buffer.add("foo", 10 + i);
+        }
+        assertNull("Nothing should be written before flush", getSuggestion("foo"));
+        assertEquals("The pending updates should be reported", 50, buffer.getPendingUpdates());
+        buffer.flush();
+        assertEquals("The query count should be the number of buffered updates",
+                     "50", getSuggestion("foo").getAttributes().getNamedItem("queryCount").getTextContent());
+        assertEquals("The latest hit count should be used",
+                     "59", getSuggestion("foo").getAttributes().getNamedItem("hits").getTextContent());
+        buffer.add("foo", 10);
+        buffer.close();
+        assertEquals("Increments should be added to the existing count on close",
+                     "51", getSuggestion("foo").getAttributes().getNamedItem("queryCount").getTextContent());
+    }
+
+    public void testExplicitCount() throws Exception {
+        SuggestUpdateBuffer buffer = new SuggestUpdateBuffer(storage, NO_SCHEDULED_FLUSH, 100);
+        buffer.add("bar", 10);
+        buffer.add("bar", 10, 20);
+        buffer.add("bar", 10);
+        buffer.close();
+        assertEquals("Increments after an explicit count should be added to the count",
+                     "21", getSuggestion("bar").getAttributes().getNamedItem("queryCount").getTextContent());
+    }
+
+    public void testBounded() throws Exception {
+        SuggestUpdateBuffer buffer = new SuggestUpdateBuffer(storage, NO_SCHEDULED_FLUSH, 10);
+        for (int i = 0 ; i < 25 ; i++) {
+            buffer.add("q" + i, 10);
+        }
+        assertTrue("The buffer should be flushed when full. " + buffer.getStats(), buffer.getPendingUpdates() <= 10);
+        assertNotNull("Early updates should have been written", getSuggestion("q0"));
+        buffer.close();
+    }
+
+    public void testScheduledFlush() throws Exception {
+        SuggestUpdateBuffer buffer = new SuggestUpdateBuffer(storage, 50, 100);
+        buffer.add("zoo", 10);
+        Thread.sleep(500);
+        assertNotNull("The update should be written by the scheduled flush", getSuggestion("zoo"));
+        buffer.close();
+    }
+
+    public void testClear() throws Exception {
+        SuggestUpdateBuffer buffer = new SuggestUpdateBuffer(storage, NO_SCHEDULED_FLUSH, 100);
+        buffer.add("foo", 10);
+        buffer.add("foo", 10);
+        buffer.clear();
+        assertEquals("Cleared updates should not be pending", 0, buffer.getPendingUpdates());
+        buffer.add("foo", 10);
+        buffer.close();
+        assertEquals("Only updates after clear should be written. " + buffer.getStats(), "1",
+                     getSuggestion("foo").getAttributes().getNamedItem("queryCount").getTextContent());
+    }
+
+    public void testConcurrentUpdates() throws Exception {
+        final SuggestUpdateBuffer buffer = new SuggestUpdateBuffer(storage, 1, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0 ; t < 4 ; t++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0 ; i < 1000 ; i++) {
+                        buffer.add("concurrent", 10);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        buffer.close();
+        assertEquals("No updates should be lost with concurrent flushes. " + buffer.getStats(), "4000",
+                     getSuggestion("concurrent").getAttributes().getNamedItem("queryCount").getTextContent());
+    }
+
+    private Node getSuggestion(String query) throws Exception {
+        NodeList nodes = DOM.selectNodeList(
+                DOM.stringToDOM(storage.getSuggestion(query, 10).toXML()), "//suggestion");
+        for (int i = 0 ; i < nodes.getLength() ; i++) {
+            if (query.equals(nodes.item(i).getTextContent())) {
+                return nodes.item(i);
+            }
+        }
+        return null;
+    }
+}
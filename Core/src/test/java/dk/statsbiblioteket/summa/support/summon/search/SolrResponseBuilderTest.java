@@ -0,0 +1,151 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.summa.support.summon.search;
+
+import dk.statsbiblioteket.summa.common.configuration.Configuration;
+import dk.statsbiblioteket.summa.facetbrowser.api.FacetResultExternal;
+import dk.statsbiblioteket.summa.search.api.Request;
+import dk.statsbiblioteket.summa.search.api.Response;
+import dk.statsbiblioteket.summa.search.api.ResponseCollection;
+import dk.statsbiblioteket.summa.search.api.document.DocumentKeys;
+import dk.statsbiblioteket.summa.search.api.document.DocumentResponse;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import junit.framework.TestCase;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.StringReader;
+
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class SolrResponseBuilderTest extends TestCase {
+    private static Log log = LogFactory.getLog(SolrResponseBuilderTest.class);
+
+    public void testStreamingEqualsString() throws Exception {
+        String solrResponse = createResponse(5, 3, 20);
+        SolrResponseBuilder builder = new SolrResponseBuilder(Configuration.newMemoryBased());
+
+        ResponseCollection fromString = new ResponseCollection();
+        builder.buildResponses(createRequest(), createFacetRequest(), fromString, solrResponse, "");
+        ResponseCollection fromReader = new ResponseCollection();
+        builder.buildResponses(createRequest(), createFacetRequest(), fromReader, new StringReader(solrResponse), "");
+
+        assertEquals("The number of records should be the same",
+                     getDocumentResponse(fromString).getRecords().size(),
+                     getDocumentResponse(fromReader).getRecords().size());
+        assertEquals("The facet tags should be the same",
+                     getFacetResult(fromString).getTags("facet_0"), getFacetResult(fromReader).getTags("facet_0"));
+    }
+
+    public void testFacets() throws Exception {
+        ResponseCollection responses = new ResponseCollection();
+        new SolrResponseBuilder(Configuration.newMemoryBased()).buildResponses(
+                createRequest(), createFacetRequest(), responses, new StringReader(createResponse(1, 2, 5)), "");
+        FacetResultExternal facets = getFacetResult(responses);
+        assertNotNull("There should be a facet result", facets);
+        assertEquals("All tags should be parsed", 5, facets.getTags("facet_1").size());
+        assertEquals("The tags should be sorted by count", "tag_4", facets.getTags("facet_1").get(0));
+    }
+
+    public void testFieldFilter() throws Exception {
+        Request request = createRequest();
+        request.put(DocumentKeys.SEARCH_RESULT_FIELDS, "title");
+        ResponseCollection responses = new ResponseCollection();
+        new SolrResponseBuilder(Configuration.newMemoryBased()).buildResponses(
+                request, createFacetRequest(), responses, new StringReader(createResponse(2, 0, 0)), "");
+        DocumentResponse.Record record = getDocumentResponse(responses).getRecords().get(0);
+        assertEquals("The requested field should be present", "Title 0", record.getFieldValue("title", null));
+        assertNull("Unrequested single value fields should be skipped", record.getFieldValue("extra", null));
+        assertNull("Unrequested multi value fields should be skipped", record.getFieldValue("author", null));
+        assertEquals("The ID should always be present", "doc_0", record.getId());
+    }
+
+    public void testFacetHeavySpeed() throws Exception {
+        String solrResponse = createResponse(50, 20, 2000);
+        SolrResponseBuilder builder = new SolrResponseBuilder(Configuration.newMemoryBased());
+        Request request = createRequest();
+        SolrFacetRequest facets = createFacetRequest();
+        for (int i = 0 ; i < 3 ; i++) { // Warm up
+            builder.buildResponses(request, facets, new ResponseCollection(), new StringReader(solrResponse), "");
+        }
+        int runs = 10;
+        long time = -System.nanoTime();
+        for (int i = 0 ; i < runs ; i++) {
+            builder.buildResponses(request, facets, new ResponseCollection(), new StringReader(solrResponse), "");
+        }
+        time += System.nanoTime();
+        log.info("Average build time for a " + solrResponse.length() / 1024 + "KB response with 50 documents and "
+                 + "20 facets of 2000 tags: " + time / runs / 1000000 + "ms");
+    }
+
+    private Request createRequest() {
+        return new Request(DocumentKeys.SEARCH_QUERY, "foo",
+                           DocumentKeys.SEARCH_COLLECT_DOCIDS, true);
+    }
+
+    private SolrFacetRequest createFacetRequest() {
+        StringBuilder def = new StringBuilder();
+        for (int f = 0 ; f < 20 ; f++) {
+            if (f != 0) {
+                def.append(", ");
+            }
+            def.append("facet_").append(f).append("(5000)");
+        }
+        return new SolrFacetRequest(def.toString(), 1, 5000, "and");
+    }
+
+    private String createResponse(int docs, int facets, int tags) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>\n");
+        sb.append("<lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">7</int></lst>\n");
+        sb.append("<result name=\"response\" numFound=\"").append(docs).append("\" start=\"0\">\n");
+        for (int d = 0 ; d < docs ; d++) {
+            sb.append("<doc><str name=\"recordID\">doc_").append(d).append("</str>");
+            sb.append("<str name=\"title\">Title ").append(d).append("</str>");
+            sb.append("<str name=\"extra\">Not requested ").append(d).append("</str>");
+            sb.append("<arr name=\"author\"><str>Author A</str><str>Author B</str></arr></doc>\n");
+        }
+        sb.append("</result>\n");
+        sb.append("<lst name=\"facet_counts\"><lst name=\"facet_queries\"/><lst name=\"facet_fields\">\n");
+        for (int f = 0 ; f < facets ; f++) {
+            sb.append("<lst name=\"facet_").append(f).append("\">");
+            for (int t = tags - 1 ; t >= 0 ; t--) {
+                sb.append("<int name=\"tag_").append(t).append("\">").append(t + 1).append("</int>");
+            }
+            sb.append("</lst>\n");
+        }
+        sb.append("</lst></lst>\n</response>");
+        return sb.toString();
+    }
+
+    private DocumentResponse getDocumentResponse(ResponseCollection responses) {
+        for (Response response: responses) {
+            if (response instanceof DocumentResponse) {
+                return (DocumentResponse)response;
+            }
+        }
+        return null;
+    }
+
+    private FacetResultExternal getFacetResult(ResponseCollection responses) {
+        for (Response response: responses) {
+            if (response instanceof FacetResultExternal) {
+                return (FacetResultExternal)response;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,152 @@
+package org.apache.lucene.search.exposed;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.exposed.compare.NamedComparator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ELog;
+import org.apache.lucene.util.packed.IdentityReader;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Provides the terms for a single field from SORTED_SET doc values for the full index. The ordinals are the global
+ * doc values ordinals, which are in natural BytesRef order, so only index and count order is supported and the
+ * ordered ordinals are the identity.
+ * </p><p>
+ * The mapping from documents to ordinals is read directly from the doc values with {@link #getDocValues()}, so there
+ * is no un-inversion of the term dictionary. The postings-oriented methods {@link #getIterator(boolean)} and
+ * {@link #getDocsEnum} are not supported.
+ */
+public class DocValuesTermProvider extends TermProviderImpl {
+  private static final ELog log = ELog.getLog(DocValuesTermProvider.class);
+
+  private final String field;
+  // Used for term lookups only. Access is synchronized as doc values are stateful
+  private final SortedSetDocValues lookup;
+  private final long valueCount;
+  private final BytesRef scratch = new BytesRef();
+
+  public DocValuesTermProvider(IndexReader reader, ExposedRequest.Group group) throws IOException {
+    super(reader, 0, group.getComparator(), "DocValues " + group.getFieldNames().get(0), false, null);
+    if (!isApplicable(reader, group)) {
+      throw new IllegalArgumentException("The group " + group.getName() + " cannot be served by doc values");
+    }
+    field = group.getFieldNames().get(0);
+    lookup = getDocValues();
+    valueCount = lookup.getValueCount();
+    log.debug("Created DocValuesTermProvider for field " + field + " with " + valueCount + " unique terms");
+  }
+
+  /**
+   * @param reader a top level reader for the index.
+   * @param group  a facet group.
+   * @return true if the group consists of a single field with SORTED_SET doc values, is in index or count order
+   *         and is not a concat group.
+   */
+  public static boolean isApplicable(IndexReader reader, ExposedRequest.Group group) {
+    if (group.getFields().size() != 1 || group.isConcat()) {
+      return false;
+    }
+    NamedComparator.ORDER order = group.getComparator().getOrder();
+    if (order != NamedComparator.ORDER.index && order != NamedComparator.ORDER.count) {
+      return false;
+    }
+    FieldInfo info = MultiFields.getMergedFieldInfos(reader).fieldInfo(group.getFieldNames().get(0));
+    return info != null && info.getDocValuesType() == FieldInfo.DocValuesType.SORTED_SET;
+  }
+
+  /**
+   * Doc values are stateful, so each caller that iterates the documents must use its own instance.
+   * @return a new doc values instance for the field.
+   * @throws IOException if the doc values could not be opened.
+   */
+  public SortedSetDocValues getDocValues() throws IOException {
+    SortedSetDocValues values = MultiDocValues.getSortedSetValues(getReader(), field);
+    if (values == null) {
+      throw new IllegalStateException("No SORTED_SET doc values for field " + field);
+    }
+    return values;
+  }
+
+  @Override
+  public String getField(long ordinal) {
+    return field;
+  }
+
+  @Override
+  public synchronized BytesRef getTerm(long ordinal) throws IOException {
+    lookup.lookupOrd(ordinal, scratch);
+    return BytesRef.deepCopyOf(scratch);
+  }
+
+  @Override
+  public String getOrderedField(long indirect) throws IOException {
+    return field;
+  }
+
+  @Override
+  public BytesRef getOrderedTerm(long indirect) throws IOException {
+    return indirect == -1 ? null : getTerm(indirect);
+  }
+
+  @Override
+  public long getUniqueTermCount() throws IOException {
+    return valueCount;
+  }
+
+  @Override
+  public long getOrdinalTermCount() throws IOException {
+    return valueCount;
+  }
+
+  @Override
+  public long getMaxDoc() {
+    return getReader().maxDoc();
+  }
+
+  @Override
+  public int getReaderHash() {
+    return getReader().hashCode();
+  }
+
+  @Override
+  public int getRecursiveHash() {
+    return getReader().hashCode();
+  }
+
+  @Override
+  public PackedInts.Reader getOrderedOrdinals() throws IOException {
+    return new IdentityReader((int)valueCount);
+  }
+
+  @Override
+  public PackedInts.Reader getOrderedOrdinals(OrderedDecorator decorator) throws IOException {
+    PackedInts.Reader ordered = getOrderedOrdinals();
+    for (int indirect = 0 ; indirect < ordered.size() ; indirect++) {
+      decorator.decorate(getOrderedTerm(indirect), indirect);
+    }
+    return ordered;
+  }
+
+  @Override
+  public Iterator<ExposedTuple> getIterator(boolean collectDocIDs) throws IOException {
+    throw new UnsupportedOperationException("Term iteration is not supported for doc values. Use getDocValues()");
+  }
+
+  @Override
+  public org.apache.lucene.index.DocsEnum getDocsEnum(
+      long ordinal, org.apache.lucene.index.DocsEnum reuse) throws IOException {
+    throw new UnsupportedOperationException("Postings are not supported for doc values. Use getDocValues()");
+  }
+
+  @Override
+  public String toString() {
+    return "DocValuesTermProvider(" + field + ", " + valueCount + " terms, " + super.toString() + ")";
+  }
+}
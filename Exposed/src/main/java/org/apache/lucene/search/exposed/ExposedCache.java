@@ -124,7 +124,7 @@ public class ExposedCache implements IndexReader.ReaderClosedListener {
     }
     for (TermProvider provider: cache) {
       if (provider instanceof FieldTermProvider) {
-        if (provider.getRecursiveHash() == segmentReader.hashCode()
+        if (provider.getRecursiveHash() == segmentReader.hashCode() && provider.getDocIDBase() == docIDBase
             && ((FieldTermProvider)provider).getRequest().equals(request)) {
           return (FieldTermProvider)provider;
         }
@@ -168,20 +168,20 @@ public class ExposedCache implements IndexReader.ReaderClosedListener {
 
   /**
    * Purges all entries with connections to the given index reader.
-   * For exposed structures that means all structures except the
-   * ones that are FieldTermProviders not relying on the given index
-   * reader.
+   * Structures for other readers, including FieldTermProviders for segments
+   * shared with a reopened reader, are kept.
    * @param r the reader to purge.
    */
   @SuppressWarnings({"UseOfSystemOutOrSystemErr", "ObjectToString"})
   public synchronized void purge(IndexReader r) {
 
     log.debug("purge(" + r + ") called");
+    readers.remove(r);
 
     Iterator<TermProvider> remover = cache.iterator();
     while (remover.hasNext()) {
       TermProvider provider = remover.next();
-      if (!(provider instanceof FieldTermProvider) || provider.getRecursiveHash() == r.hashCode()) {
+      if (provider.getReaderHash() == r.hashCode() || provider.getRecursiveHash() == r.hashCode()) {
         remover.remove();
       }
     }
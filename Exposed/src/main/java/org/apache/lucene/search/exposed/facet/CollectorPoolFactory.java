@@ -1,6 +1,7 @@
 package org.apache.lucene.search.exposed.facet;
 
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.exposed.DocValuesTermProvider;
 import org.apache.lucene.search.exposed.ExposedCache;
 import org.apache.lucene.search.exposed.TermProvider;
 import org.apache.lucene.search.exposed.facet.request.FacetRequest;
@@ -24,6 +25,8 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
   private static final ELog log = ELog.getLog(CollectorPoolFactory.class);
 
   private Map<String, CollectorPool> poolMap;
+  // The hash of the reader used for each pool, used for selective purging
+  private Map<String, Integer> poolReaders = new HashMap<String, Integer>();
   // Readers used by the pools
   private Set<IndexReader> readers = new HashSet<IndexReader>();
   /**
@@ -43,6 +46,16 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
    */
   private static CollectorPoolFactory lastFactory = null;
 
+  /**
+   * If true, facet maps are built from SORTED_SET doc values when all groups in a request support it.
+   */
+  private final boolean useDocValues;
+
+  /**
+   * If true, maps persisted by {@link FacetMapPersistence#save} are loaded instead of building new ones.
+   */
+  private final boolean loadPersisted;
+
   /**
    * Constructing a CollectorPool is very costly, while constructing a collector
    * in a collector pool only impacts garbage collections. In order to avoid
@@ -60,6 +73,21 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
    * see {@link CollectorPool}.
    */
   public CollectorPoolFactory(final int maxSize, int filledCollectors, int freshCollectors) {
+    this(maxSize, filledCollectors, freshCollectors, false, true);
+  }
+
+  /**
+   * @param maxSize          the maximum number of CollectorPools to keep cached.
+   * @param filledCollectors the maximum number of filled collectors in each pool.
+   * @param freshCollectors  the maximum number of fresh collectors in each pool.
+   * @param useDocValues     if true, facet maps are built from SORTED_SET doc values when all groups in a request
+   *                         support it, see {@link #createFacetMap(IndexReader, FacetRequest, boolean, boolean)}.
+   * @param loadPersisted    if true, maps persisted by {@link FacetMapPersistence#save} are loaded when they match
+   *                         the reader.
+   * @see #CollectorPoolFactory(int, int, int)
+   */
+  public CollectorPoolFactory(final int maxSize, int filledCollectors, int freshCollectors,
+                              boolean useDocValues, boolean loadPersisted) {
     poolMap = new LinkedHashMap<String, CollectorPool>(maxSize, 0.75f, true) {
       @Override
       protected boolean removeEldestEntry(Map.Entry<String, CollectorPool> eldest) {
@@ -68,6 +96,8 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
     };
     this.freshCollectors = freshCollectors;
     this.filledCollectors = filledCollectors;
+    this.useDocValues = useDocValues;
+    this.loadPersisted = loadPersisted;
     lastFactory = this;
     ExposedCache.getInstance().addRemoteCache(this);
   }
@@ -85,7 +115,8 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
     if (readers.add(reader)) {
       reader.addReaderClosedListener(this);
     }
-    return poolMap.containsKey(request.getGroupKey());
+    final String key = request.getGroupKey();
+    return poolMap.containsKey(key) && Integer.valueOf(reader.hashCode()).equals(poolReaders.get(key));
   }
 
   /**
@@ -103,13 +134,37 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
     }
     final String key = request.getGroupKey();
     CollectorPool pool = poolMap.get(key);
-    if (pool != null) {
+    if (pool != null && Integer.valueOf(reader.hashCode()).equals(poolReaders.get(key))) {
       poolMap.put(key, pool); // Re-insert to support LRU-pool
       return pool;
     }
 
     log.debug("CollectorPoolFactory: Creating pool for " + key);
+    FacetMap facetMap = createFacetMap(reader, request, useDocValues, loadPersisted);
+    pool = new CollectorPool(key, facetMap, filledCollectors, freshCollectors);
+    poolMap.put(key, pool);
+    poolReaders.put(key, reader.hashCode());
+    return pool;
+  }
+
+  /**
+   * Creates the FacetMap for the given request. If loadPersisted is true, a matching map
+   * persisted by {@link FacetMapPersistence#save} is used instead of building a new one. If useDocValues is
+   * true and {@link #isDocValuesApplicable} for the request, the map is built from the doc values with
+   * {@link FacetMapDocValuesFactory}.
+   * @param reader       a reader for the full index.
+   * @param request      the groups for the map.
+   * @param useDocValues  if true, doc values are used when possible.
+   * @param loadPersisted if true, a matching persisted map is used when possible.
+   * @return a FacetMap for the request.
+   * @throws IOException if the reader could not be accessed.
+   */
+  public static FacetMap createFacetMap(
+      IndexReader reader, FacetRequest request, boolean useDocValues, boolean loadPersisted) throws IOException {
     List<FacetRequestGroup> groups = request.getGroups();
+    if (useDocValues && isDocValuesApplicable(reader, request)) {
+      return FacetMapDocValuesFactory.createMap(reader.maxDoc(), getDocValuesProviders(reader, groups));
+    }
     List<TermProvider> termProviders = new ArrayList<TermProvider>(groups.size());
     for (FacetRequestGroup group: groups) {
       TermProvider provider = ExposedCache.getInstance().getProvider(reader, group.getGroup());
@@ -119,13 +174,42 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
       termProviders.add(provider);
     }
 
-    long mapTime = -System.currentTimeMillis();
-    FacetMap facetMap = FacetMapFactory.createMap(reader.maxDoc(), termProviders);
-    mapTime += System.currentTimeMillis();
-//    System.out.println("Map time: " + mapTime + "ms");
-    pool = new CollectorPool(key, facetMap, filledCollectors, freshCollectors);
-    poolMap.put(key, pool);
-    return pool;
+    if (loadPersisted) {
+      try {
+        FacetMap persisted = FacetMapPersistence.load(reader, request.getGroupKey(), termProviders);
+        if (persisted != null) {
+          return persisted;
+        }
+      } catch (IOException e) {
+        log.warn("Unable to load persisted facet map. Building a new map", e);
+      }
+    }
+    return FacetMapFactory.createMap(reader.maxDoc(), termProviders);
+  }
+
+  /**
+   * Maps built from doc values are not persisted by {@link FacetMapPersistence}, so callers that build maps ahead of
+   * time should skip requests where this returns true.
+   * @param reader  a reader for the full index.
+   * @param request the groups for the map.
+   * @return true if all groups are single field groups in index or count order with SORTED_SET doc values.
+   */
+  public static boolean isDocValuesApplicable(IndexReader reader, FacetRequest request) {
+    for (FacetRequestGroup group: request.getGroups()) {
+      if (group.isHierarchical() || !DocValuesTermProvider.isApplicable(reader, group.getGroup())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static List<TermProvider> getDocValuesProviders(
+      IndexReader reader, List<FacetRequestGroup> groups) throws IOException {
+    List<TermProvider> providers = new ArrayList<TermProvider>(groups.size());
+    for (FacetRequestGroup group: groups) {
+      providers.add(new DocValuesTermProvider(reader, group.getGroup()));
+    }
+    return providers;
   }
 
   // TODO: clear() must wait until all pending TagHandlers has been returned
@@ -133,6 +217,7 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
   // be deprecated when returned
   public synchronized void clear() {
     poolMap.clear();
+    poolReaders.clear();
     readers.clear();
   }
 
@@ -168,8 +253,15 @@ public class CollectorPoolFactory implements ExposedCache.PurgeCallback, IndexRe
         System.err.println("Unable to locate reader " + r
         + " in the known readers pool. The pool contained ");
     }*/
-    // TODO: Make a selective clear
-    clear();
+    readers.remove(r);
+    Iterator<Map.Entry<String, Integer>> remover = poolReaders.entrySet().iterator();
+    while (remover.hasNext()) {
+      Map.Entry<String, Integer> entry = remover.next();
+      if (entry.getValue() == r.hashCode()) {
+        poolMap.remove(entry.getKey());
+        remover.remove();
+      }
+    }
   }
 
   public String toString() {
@@ -0,0 +1,193 @@
+package org.apache.lucene.search.exposed.facet;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.exposed.GroupTermProvider;
+import org.apache.lucene.search.exposed.TermProvider;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.ELog;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Stores and loads {@link FacetMapMulti}s next to the Lucene index files, so that the costly sorting of terms and
+ * mapping of documents to tags can be performed once at index time instead of every time a searcher opens a new
+ * generation of the index.
+ * </p><p>
+ * A persisted map is tied to the version of the reader it was built from and is only loaded for a reader with the
+ * same version and the same term counts. The files are named {@code exposed_facetmap_*.fmap}, which is ignored by the
+ * Lucene IndexWriter. Only maps for readers opened on an FSDirectory are persisted. Hierarchical facets and the
+ * optimized single-segment maps are not persisted.
+ */
+public class FacetMapPersistence {
+  private static final ELog log = ELog.getLog(FacetMapPersistence.class);
+
+  public static final String PREFIX = "exposed_facetmap_";
+  public static final String SUFFIX = ".fmap";
+  private static final String CODEC = "ExposedFacetMap";
+  private static final int VERSION = 0;
+
+  /**
+   * @param reader a top level reader for the index.
+   * @param key    the group key for the facet request, see
+   *               {@link org.apache.lucene.search.exposed.facet.request.FacetRequest#getGroupKey()}.
+   * @return the file for the persisted map or null if maps cannot be persisted for the reader.
+   */
+  public static File getFile(IndexReader reader, String key) {
+    if (!(reader instanceof DirectoryReader) || !(((DirectoryReader)reader).directory() instanceof FSDirectory)) {
+      return null;
+    }
+    File folder = ((FSDirectory)((DirectoryReader)reader).directory()).getDirectory();
+    return new File(folder, PREFIX + Integer.toHexString(key.hashCode()) + SUFFIX);
+  }
+
+  /**
+   * Stores the map so that it can be loaded with {@link #load} for readers with the same version.
+   * @param reader the reader that the map was built from.
+   * @param key    the group key for the facet request.
+   * @param map    the map to persist.
+   * @return true if the map was persisted, false if the reader or the map type does not support persistence.
+   * @throws IOException if the map could not be written.
+   */
+  public static boolean save(IndexReader reader, String key, FacetMap map) throws IOException {
+    File file = getFile(reader, key);
+    if (file == null || !(map instanceof FacetMapMulti)) {
+      log.debug("save: Persistence not supported for reader " + reader + " and map " + map.getClass().getSimpleName());
+      return false;
+    }
+    FacetMapMulti multi = (FacetMapMulti)map;
+    List<TermProvider> providers = multi.getProviders();
+    for (TermProvider provider: providers) {
+      if (!(provider instanceof GroupTermProvider)) {
+        log.debug("save: Persistence not supported for provider " + provider.getClass().getSimpleName());
+        return false;
+      }
+    }
+    long saveTime = -System.currentTimeMillis();
+    File tmp = new File(file.getPath() + ".tmp");
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024);
+    try {
+      DataOutput out = new OutputStreamDataOutput(os);
+      CodecUtil.writeHeader(out, CODEC, VERSION);
+      out.writeString(key);
+      out.writeLong(((DirectoryReader)reader).getVersion());
+      out.writeVInt(reader.maxDoc());
+      out.writeVInt(providers.size());
+      for (TermProvider provider: providers) {
+        out.writeVLong(provider.getOrdinalTermCount());
+        writePacked(out, provider.getOrderedOrdinals());
+      }
+      int[] indirectStarts = multi.getIndirectStarts();
+      out.writeVInt(indirectStarts.length);
+      for (int start: indirectStarts) {
+        out.writeVInt(start);
+      }
+      out.writeVInt(multi.getMaxTagOccurrences());
+      writePacked(out, multi.getDoc2ref());
+      writePacked(out, multi.getRefs());
+    } finally {
+      os.close();
+    }
+    // Atomic replace so that searchers never see a partially written map
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    saveTime += System.currentTimeMillis();
+    log.info("Persisted facet map for " + reader.maxDoc() + " documents to " + file + " (" + file.length() / 1024
+             + " KB) in " + saveTime + " ms");
+    return true;
+  }
+
+  /**
+   * Loads a previously persisted map if it matches the reader and the providers.
+   * @param reader    the reader to load a map for.
+   * @param key       the group key for the facet request.
+   * @param providers the providers for the facet request. The ordered ordinals for the providers are assigned from
+   *                  the persisted map.
+   * @return the persisted map or null if there is no matching map.
+   * @throws IOException if the map could not be read.
+   */
+  public static FacetMap load(IndexReader reader, String key, List<TermProvider> providers) throws IOException {
+    File file = getFile(reader, key);
+    if (file == null || !file.exists()) {
+      return null;
+    }
+    for (TermProvider provider: providers) {
+      if (!(provider instanceof GroupTermProvider)) {
+        return null;
+      }
+    }
+    long loadTime = -System.currentTimeMillis();
+    InputStream is = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    try {
+      DataInput in = new InputStreamDataInput(is);
+      CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+      if (!key.equals(in.readString())) {
+        log.debug("load: The persisted map at " + file + " was for another request");
+        return null;
+      }
+      long version = in.readLong();
+      int maxDoc = in.readVInt();
+      if (version != ((DirectoryReader)reader).getVersion() || maxDoc != reader.maxDoc()) {
+        log.debug("load: The persisted map at " + file + " was for version " + version + " with maxDoc " + maxDoc
+                  + " while the reader has version " + ((DirectoryReader)reader).getVersion() + " with maxDoc "
+                  + reader.maxDoc());
+        return null;
+      }
+      if (in.readVInt() != providers.size()) {
+        return null;
+      }
+      PackedInts.Reader[] orders = new PackedInts.Reader[providers.size()];
+      for (int i = 0 ; i < providers.size() ; i++) {
+        if (in.readVLong() != providers.get(i).getOrdinalTermCount()) {
+          log.debug("load: Term count mismatch for provider " + i + " in persisted map at " + file);
+          return null;
+        }
+        orders[i] = PackedInts.getReader(in);
+      }
+      int[] indirectStarts = new int[in.readVInt()];
+      for (int i = 0 ; i < indirectStarts.length ; i++) {
+        indirectStarts[i] = in.readVInt();
+      }
+      int maxTagOccurrences = in.readVInt();
+      PackedInts.Reader doc2ref = PackedInts.getReader(in);
+      PackedInts.Reader refs = PackedInts.getReader(in);
+      // Only assign when everything has been validated and read
+      for (int i = 0 ; i < providers.size() ; i++) {
+        ((GroupTermProvider)providers.get(i)).setOrderedOrdinals(orders[i]);
+      }
+      loadTime += System.currentTimeMillis();
+      log.info("Loaded persisted facet map for " + maxDoc + " documents from " + file + " in " + loadTime + " ms");
+      return new FacetMapMulti(providers, indirectStarts, doc2ref, refs, maxTagOccurrences);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static void writePacked(DataOutput out, PackedInts.Reader values) throws IOException {
+    long max = 0;
+    for (int i = 0 ; i < values.size() ; i++) {
+      max = Math.max(max, values.get(i));
+    }
+    PackedInts.Writer writer = PackedInts.getWriter(
+        out, values.size(), PackedInts.bitsRequired(max), PackedInts.COMPACT);
+    for (int i = 0 ; i < values.size() ; i++) {
+      writer.add(values.get(i));
+    }
+    writer.finish();
+  }
+}
@@ -0,0 +1,112 @@
+package org.apache.lucene.search.exposed.facet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.exposed.DocValuesTermProvider;
+import org.apache.lucene.search.exposed.ExposedCache;
+import org.apache.lucene.search.exposed.ExposedHelper;
+import org.apache.lucene.search.exposed.facet.request.FacetRequest;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestDocValuesFacets extends TestCase {
+  private ExposedHelper helper;
+
+  public TestDocValuesFacets(String name) {
+    super(name);
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    helper = new ExposedHelper();
+    ExposedHelper.deleteIndex();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    super.tearDown();
+    ExposedCache.getInstance().purgeAllCaches();
+    helper.close();
+  }
+
+  public static Test suite() {
+    return new TestSuite(TestDocValuesFacets.class);
+  }
+
+  public static final String REQUEST =
+      "<?xml version='1.0' encoding='utf-8'?>\n" +
+      "<facetrequest xmlns=\"http://lucene.apache.org/exposed/facet/request/1.0\" maxtags=\"5\">\n" +
+      "  <query>all:all</query>\n" +
+      "  <groups>\n" +
+      "    <group name=\"multi\" order=\"count\">\n" +
+      "      <fields>\n" +
+      "        <field name=\"facet\" />\n" +
+      "      </fields>\n" +
+      "    </group>\n" +
+      "    <group name=\"single\" order=\"index\">\n" +
+      "      <fields>\n" +
+      "        <field name=\"single\" />\n" +
+      "      </fields>\n" +
+      "    </group>\n" +
+      "  </groups>\n" +
+      "</facetrequest>";
+
+  public void testDocValuesMatchesPostings() throws Exception {
+    final int DOCS = 2000;
+    Random random = new Random(87);
+    IndexWriter writer = ExposedHelper.getWriter();
+    for (int docID = 0 ; docID < DOCS ; docID++) {
+      Document doc = new Document();
+      doc.add(new StringField("all", "all", Field.Store.NO));
+      int facets = random.nextInt(4);
+      for (int i = 0 ; i < facets ; i++) {
+        String value = Character.toString((char)(random.nextInt(25) + 'A'));
+        doc.add(new StringField("facet", value, Field.Store.NO));
+        doc.add(new SortedSetDocValuesField("facet", new BytesRef(value)));
+      }
+      if (docID % 3 != 0) {
+        String value = "s" + random.nextInt(100);
+        doc.add(new StringField("single", value, Field.Store.NO));
+        doc.add(new SortedSetDocValuesField("single", new BytesRef(value)));
+      }
+      writer.addDocument(doc);
+      if (docID == DOCS / 2) {
+        writer.commit(); // At least 2 segments
+      }
+    }
+    writer.close();
+    FacetRequest request = FacetRequest.parseXML(REQUEST);
+    IndexReader reader = ExposedHelper.getReader();
+
+    assertTrue("Doc values should be applicable for the request",
+               CollectorPoolFactory.isDocValuesApplicable(reader, request));
+    FacetMap docValuesMap = CollectorPoolFactory.createFacetMap(reader, request, true, false);
+    assertTrue("The doc values map should be backed by doc values providers",
+               docValuesMap.getProviders().get(0) instanceof DocValuesTermProvider);
+
+    FacetMap postingsMap = CollectorPoolFactory.createFacetMap(reader, request, false, false);
+    assertFalse("The postings map should not be backed by doc values providers",
+                postingsMap.getProviders().get(0) instanceof DocValuesTermProvider);
+
+    assertEquals("The tag counts should match", postingsMap.getTagCount(), docValuesMap.getTagCount());
+    for (int docID = 0 ; docID < DOCS ; docID++) {
+      BytesRef[] expected = postingsMap.getTermsForDocID(docID);
+      BytesRef[] actual = docValuesMap.getTermsForDocID(docID);
+      Arrays.sort(expected);
+      Arrays.sort(actual);
+      assertTrue("The terms for doc " + docID + " should match. Expected " + Arrays.toString(expected)
+                 + " but got " + Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+    reader.close();
+  }
+}
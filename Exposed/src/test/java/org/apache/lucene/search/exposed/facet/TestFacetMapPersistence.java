@@ -0,0 +1,105 @@
+package org.apache.lucene.search.exposed.facet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.exposed.ExposedCache;
+import org.apache.lucene.search.exposed.ExposedHelper;
+import org.apache.lucene.search.exposed.TermProvider;
+import org.apache.lucene.search.exposed.facet.request.FacetRequest;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestFacetMapPersistence extends TestCase {
+  private ExposedHelper helper;
+
+  public TestFacetMapPersistence(String name) {
+    super(name);
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    helper = new ExposedHelper();
+    ExposedHelper.deleteIndex();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    super.tearDown();
+    ExposedCache.getInstance().purgeAllCaches();
+    helper.close();
+  }
+
+  public static Test suite() {
+    return new TestSuite(TestFacetMapPersistence.class);
+  }
+
+  public static final String REQUEST =
+      "<?xml version='1.0' encoding='utf-8'?>\n" +
+      "<facetrequest xmlns=\"http://lucene.apache.org/exposed/facet/request/1.0\" maxtags=\"5\">\n" +
+      "  <query>even:true</query>\n" +
+      "  <groups>\n" +
+      "    <group name=\"custom\" order=\"locale\" locale=\"da\">\n" +
+      "      <fields>\n" +
+      "        <field name=\"a\" />\n" +
+      "        <field name=\"b\" />\n" +
+      "      </fields>\n" +
+      "    </group>\n" +
+      "    <group name=\"multi\" order=\"count\">\n" +
+      "      <fields>\n" +
+      "        <field name=\"facet\" />\n" +
+      "      </fields>\n" +
+      "    </group>\n" +
+      "  </groups>\n" +
+      "</facetrequest>";
+
+  public void testSaveAndLoad() throws Exception {
+    final int DOCS = 1000;
+    helper.createIndex(DOCS, Arrays.asList("a", "b"), 10, 2);
+    FacetRequest request = FacetRequest.parseXML(REQUEST);
+
+    IndexReader reader = ExposedHelper.getReader();
+    FacetMap built = CollectorPoolFactory.createFacetMap(reader, request, false, false);
+    assertTrue("The built map should be persisted", FacetMapPersistence.save(reader, request.getGroupKey(), built));
+    File file = FacetMapPersistence.getFile(reader, request.getGroupKey());
+    assertTrue("The persisted map should exist at " + file, file.exists());
+
+    ExposedCache.getInstance().purgeAllCaches();
+    IndexReader reopened = ExposedHelper.getReader();
+    FacetMap loaded = CollectorPoolFactory.createFacetMap(reopened, request, false, true);
+    assertNotSame("The map should be loaded, not reused", built, loaded);
+    assertEquals("The tag counts should match", built.getTagCount(), loaded.getTagCount());
+    for (int docID = 0 ; docID < DOCS ; docID++) {
+      BytesRef[] expected = built.getTermsForDocID(docID);
+      BytesRef[] actual = loaded.getTermsForDocID(docID);
+      assertTrue("The terms for doc " + docID + " should match", Arrays.equals(expected, actual));
+    }
+    reader.close();
+    reopened.close();
+  }
+
+  public void testVersionMismatch() throws Exception {
+    helper.createIndex(100, Arrays.asList("a", "b"), 10, 2);
+    FacetRequest request = FacetRequest.parseXML(REQUEST);
+    IndexReader reader = ExposedHelper.getReader();
+    FacetMap built = CollectorPoolFactory.createFacetMap(reader, request, false, false);
+    assertTrue("The built map should be persisted", FacetMapPersistence.save(reader, request.getGroupKey(), built));
+    reader.close();
+    ExposedCache.getInstance().purgeAllCaches();
+
+    IndexWriter writer = ExposedHelper.getWriter();
+    ExposedHelper.addDocument(writer, "a:extra", "facet:X");
+    writer.close();
+
+    IndexReader changed = ExposedHelper.getReader();
+    assertNull("A persisted map for another index version should not be loaded",
+               FacetMapPersistence.load(changed, request.getGroupKey(), Collections.<TermProvider>emptyList()));
+    changed.close();
+  }
+}